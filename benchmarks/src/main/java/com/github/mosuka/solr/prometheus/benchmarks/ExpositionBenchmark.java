@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import com.github.mosuka.solr.prometheus.exporter.SolrTextFormat;
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExpositionBenchmark
+ *
+ * Measures writing the samples of a collection in the Prometheus text format, with simpleclient's
+ * TextFormat from metric families and with SolrTextFormat from the series store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ExpositionBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int cores;
+
+    @Param({ "config.yml", "config-native.yml" })
+    public String config;
+
+    private List<Collector.MetricFamilySamples> samples;
+    private CharArrayWriter writer;
+
+    private SolrSeriesStore.View view;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        for (List<Collector.MetricFamilySamples> scraperSamples : SolrFixtures.scrape(SolrFixtures.config(config), cores)) {
+            accumulator.addAll(scraperSamples);
+        }
+        view = store.commit(accumulator);
+        samples = view.toList();
+        writer = new CharArrayWriter();
+        out = new ByteArrayOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() {
+        view.release();
+    }
+
+    @Benchmark
+    public int textFormat() throws IOException {
+        writer.reset();
+        TextFormat.write004(writer, Collections.enumeration(samples));
+        return writer.size();
+    }
+
+    @Benchmark
+    public int seriesTextFormat() throws IOException {
+        // the prefixes of the series are encoded by the first invocation and cached after
+        out.reset();
+        SolrTextFormat textFormat = new SolrTextFormat(out);
+        textFormat.write(view, Collections.emptySet());
+        textFormat.finish();
+        return out.size();
+    }
+}
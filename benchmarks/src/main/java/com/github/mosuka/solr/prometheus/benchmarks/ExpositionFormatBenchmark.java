@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import com.github.mosuka.solr.prometheus.exporter.SolrExpositionFormat;
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ExpositionFormatBenchmark
+ *
+ * Measures encoding the samples of a collection from the series store in each exposition format
+ * the metrics endpoint negotiates. The size of the payload of each format, raw and gzip-compressed,
+ * is printed when the trial is set up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ExpositionFormatBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int cores;
+
+    @Param({ "TEXT", "OPENMETRICS", "PROTOBUF" })
+    public SolrExpositionFormat.MediaType format;
+
+    private SolrSeriesStore.View view;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        for (List<Collector.MetricFamilySamples> scraperSamples : SolrFixtures.scrape(SolrFixtures.config("config.yml"), cores)) {
+            accumulator.addAll(scraperSamples);
+        }
+        view = store.commit(accumulator);
+        out = new ByteArrayOutputStream();
+
+        int size = encode();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            out.writeTo(gzip);
+        }
+        System.out.println();
+        System.out.println(format + " payload of " + cores + " cores: " + size + " bytes, " + compressed.size() + " bytes gzip-compressed");
+    }
+
+    @TearDown
+    public void tearDown() {
+        view.release();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        // the bytes of the series are encoded by the first invocation and cached after
+        out.reset();
+        SolrExpositionFormat encoder = format.create(out);
+        encoder.write(view, Collections.emptySet());
+        encoder.finish();
+        return out.size();
+    }
+}
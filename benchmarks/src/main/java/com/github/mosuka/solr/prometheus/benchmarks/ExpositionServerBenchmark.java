@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import com.github.mosuka.solr.prometheus.exporter.SolrExporterHttpServer;
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.HTTPServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExpositionServerBenchmark
+ *
+ * Load test of the metrics endpoint: concurrent clients scrape a registry holding the samples of a
+ * collection, over keep-alive connections. Throughput mode reports requests per second and sample
+ * time mode the latency percentiles, p0.99 among them. The server is either simpleclient's
+ * HTTPServer, which solr-exporter used before, or SolrExporterHttpServer.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ExpositionServerBenchmark {
+    @Param({ "100", "1000" })
+    public int cores;
+
+    @Param({ "config-native.yml" })
+    public String config;
+
+    @Param({ "simpleclient", "solr-exporter" })
+    public String server;
+
+    @Param({ "identity", "gzip" })
+    public String encoding;
+
+    @Param({ "4" })
+    public int serverThreads;
+
+    private HTTPServer simpleclientServer;
+    private SolrExporterHttpServer solrExporterServer;
+    private URL url;
+
+    @Setup
+    public void setUp() throws Exception {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        for (List<Collector.MetricFamilySamples> scraperSamples : SolrFixtures.scrape(SolrFixtures.config(config), cores)) {
+            accumulator.addAll(scraperSamples);
+        }
+        List<Collector.MetricFamilySamples> samples = accumulator.toList();
+
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return samples;
+            }
+        });
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        int port;
+        if (server.equals("simpleclient")) {
+            SimpleclientServer simpleclientServer = new SimpleclientServer(address, registry);
+            this.simpleclientServer = simpleclientServer;
+            port = simpleclientServer.getPort();
+        } else {
+            solrExporterServer = new SolrExporterHttpServer(address, registry, serverThreads);
+            port = solrExporterServer.getPort();
+        }
+        url = new URL("http://127.0.0.1:" + port + "/metrics");
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (simpleclientServer != null) {
+            simpleclientServer.stop();
+        }
+        if (solrExporterServer != null) {
+            solrExporterServer.stop();
+        }
+    }
+
+    /**
+     * Per-thread read buffer.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        byte[] buffer = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public long scrape(Client client) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("Accept-Encoding", encoding);
+        long bytes = 0;
+        // reading the body to the end and closing it returns the connection to the keep-alive cache
+        try (InputStream in = connection.getInputStream()) {
+            for (int n; (n = in.read(client.buffer)) != -1; ) {
+                bytes += n;
+            }
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("HTTP " + connection.getResponseCode());
+        }
+        return bytes;
+    }
+
+    /**
+     * simpleclient's HTTPServer, which does not tell which port it bound.
+     */
+    private static class SimpleclientServer extends HTTPServer {
+        SimpleclientServer(InetSocketAddress address, CollectorRegistry registry) throws IOException {
+            super(address, registry);
+        }
+
+        int getPort() {
+            return server.getAddress().getPort();
+        }
+    }
+}
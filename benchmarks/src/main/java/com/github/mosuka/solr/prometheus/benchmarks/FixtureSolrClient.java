@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * FixtureSolrClient
+ *
+ * Answers requests with fixed responses by path instead of calling Solr, so that a benchmark measures
+ * parsing and rule evaluation only. The response to a path may depend on the request parameters, and
+ * is built once per distinct set of parameters. Responses are parsed by the response parser of the
+ * request, as they would be over HTTP.
+ */
+public class FixtureSolrClient extends HttpSolrClient {
+    private final Map<String, Function<SolrParams, byte[]>> responders = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> responses = new ConcurrentHashMap<>();
+
+    public FixtureSolrClient(String baseUrl) {
+        super(new HttpSolrClient.Builder(baseUrl));
+    }
+
+    /**
+     * @param path the request path.
+     * @param response the JSON response to the path.
+     * @return this client.
+     */
+    public FixtureSolrClient respond(String path, byte[] response) {
+        return respond(path, params -> response);
+    }
+
+    /**
+     * @param path the request path.
+     * @param responder builds the JSON response to the path from the request parameters.
+     * @return this client.
+     */
+    public FixtureSolrClient respond(String path, Function<SolrParams, byte[]> responder) {
+        responders.put(path, responder);
+        return this;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request, ResponseParser processor, String collection) throws SolrServerException, IOException {
+        Function<SolrParams, byte[]> responder = responders.get(request.getPath());
+        if (responder == null) {
+            throw new SolrServerException("No response for " + request.getPath());
+        }
+        SolrParams params = request.getParams();
+        byte[] response = responses.computeIfAbsent(request.getPath() + "?" + params, key -> responder.apply(params));
+        ResponseParser responseParser = request.getResponseParser() != null ? request.getResponseParser() : processor;
+        return responseParser.processResponse(new ByteArrayInputStream(response), "UTF-8");
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraper;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RuleEvaluationBenchmark
+ *
+ * Measures a scrape of each section of a configuration against the responses of a node hosting a
+ * number of cores: the response is parsed as it would be over HTTP and the rules are applied to it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RuleEvaluationBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int cores;
+
+    @Param({ "config.yml", "config-native.yml" })
+    public String config;
+
+    private FixtureSolrClient solrClient;
+    private SolrCollectorConfig collectorConfig;
+    private List<SolrScraperConfig> pingConfigs;
+
+    @Setup
+    public void setUp() throws Exception {
+        solrClient = SolrFixtures.client(cores);
+        collectorConfig = SolrFixtures.config(config);
+        pingConfigs = SolrFixtures.pingConfigs(collectorConfig, cores);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        solrClient.close();
+    }
+
+    @Benchmark
+    public SolrSampleAccumulator metrics() {
+        return scrape(collectorConfig.getMetrics(), new SolrSampleAccumulator());
+    }
+
+    @Benchmark
+    public SolrSampleAccumulator collections() {
+        return scrape(collectorConfig.getCollections(), new SolrSampleAccumulator());
+    }
+
+    @Benchmark
+    public SolrSampleAccumulator ping() {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        for (SolrScraperConfig pingConfig : pingConfigs) {
+            scrape(pingConfig, accumulator);
+        }
+        return accumulator;
+    }
+
+    private SolrSampleAccumulator scrape(SolrScraperConfig scraperConfig, SolrSampleAccumulator accumulator) {
+        new SolrScraper(solrClient, scraperConfig, Collections.emptyList(), Collections.emptyList(), accumulator)
+                .collectResponse(solrClient, scraperConfig, accumulator);
+        return accumulator;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import io.prometheus.client.Collector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SampleAccumulatorBenchmark
+ *
+ * Measures gathering the samples of every scraper of a collection into one accumulator, as the
+ * scrapers of SolrCollector do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SampleAccumulatorBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int cores;
+
+    @Param({ "config.yml", "config-native.yml" })
+    public String config;
+
+    private List<List<Collector.MetricFamilySamples>> scraperSamples;
+
+    @Setup
+    public void setUp() throws Exception {
+        scraperSamples = SolrFixtures.scrape(SolrFixtures.config(config), cores);
+    }
+
+    @Benchmark
+    public List<Collector.MetricFamilySamples> accumulate() {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        for (List<Collector.MetricFamilySamples> samples : scraperSamples) {
+            accumulator.addAll(samples);
+        }
+        return accumulator.toList();
+    }
+}
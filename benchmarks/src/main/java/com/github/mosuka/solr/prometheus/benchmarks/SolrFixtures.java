@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraper;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import io.prometheus.client.Collector;
+import org.apache.solr.common.params.SolrParams;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SolrFixtures
+ *
+ * Builds responses of a node hosting a given number of cores from the recorded /admin/metrics
+ * response: its node-wide registries are kept and its SolrCloud core registry is repeated once per
+ * core. Cores are spread over collections of ten shards with one replica each.
+ */
+public class SolrFixtures {
+    public static final String BASE_URL = "http://127.0.0.1:8983/solr";
+    public static final String NODE_NAME = "127.0.0.1:8983_solr";
+
+    private static final String METRICS_RESOURCE = "/fixtures/admin-metrics.json";
+    private static final int SHARDS_PER_COLLECTION = 10;
+
+    private static final ObjectMapper om = new ObjectMapper();
+
+    public static String collection(int core) {
+        return "collection" + (core / SHARDS_PER_COLLECTION);
+    }
+
+    public static String shard(int core) {
+        return "shard" + (core % SHARDS_PER_COLLECTION + 1);
+    }
+
+    public static String core(int core) {
+        return collection(core) + "_" + shard(core) + "_replica_n1";
+    }
+
+    /**
+     * @param cores the number of cores.
+     * @return an /admin/metrics response of a node hosting the cores.
+     */
+    public static byte[] metrics(int cores) throws IOException {
+        return om.writeValueAsBytes(metricsTree(cores));
+    }
+
+    /**
+     * Filter an /admin/metrics response by the group, prefix and property parameters of a request,
+     * the way /admin/metrics does.
+     *
+     * @param cores the number of cores.
+     * @param params the request parameters.
+     * @return the response to the request.
+     */
+    public static byte[] metrics(int cores, SolrParams params) throws IOException {
+        ObjectNode response = metricsTree(cores);
+
+        List<String> groups = split(params.getParams("group"));
+        List<String> prefixes = split(params.getParams("prefix"));
+        List<String> properties = split(params.getParams("property"));
+
+        ObjectNode metrics = (ObjectNode) response.get("metrics");
+        for (Iterator<Map.Entry<String, JsonNode>> registries = metrics.fields(); registries.hasNext(); ) {
+            Map.Entry<String, JsonNode> registry = registries.next();
+            if (!groups.isEmpty() && !groups.contains("all") && !groups.contains(registry.getKey().split("\\.")[1])) {
+                registries.remove();
+                continue;
+            }
+            ObjectNode filtered = JsonNodeFactory.instance.objectNode();
+            for (Iterator<Map.Entry<String, JsonNode>> entries = registry.getValue().fields(); entries.hasNext(); ) {
+                Map.Entry<String, JsonNode> entry = entries.next();
+                if (!prefixes.isEmpty() && prefixes.stream().noneMatch(entry.getKey()::startsWith)) {
+                    continue;
+                }
+                JsonNode value = entry.getValue();
+                if (!properties.isEmpty() && value.isObject()) {
+                    ObjectNode filteredValue = JsonNodeFactory.instance.objectNode();
+                    for (String property : properties) {
+                        if (value.has(property)) {
+                            filteredValue.set(property, value.get(property));
+                        }
+                    }
+                    value = filteredValue;
+                }
+                filtered.set(entry.getKey(), value);
+            }
+            registry.setValue(filtered);
+        }
+        return om.writeValueAsBytes(response);
+    }
+
+    private static List<String> split(String[] values) {
+        List<String> split = new ArrayList<>();
+        if (values != null) {
+            for (String value : values) {
+                for (String s : value.split(",")) {
+                    if (!s.trim().isEmpty()) {
+                        split.add(s.trim());
+                    }
+                }
+            }
+        }
+        return split;
+    }
+
+    private static ObjectNode metricsTree(int cores) throws IOException {
+        JsonNode recorded;
+        try (InputStream in = SolrFixtures.class.getResourceAsStream(METRICS_RESOURCE)) {
+            recorded = om.readTree(in);
+        }
+
+        ObjectNode metrics = JsonNodeFactory.instance.objectNode();
+        JsonNode coreRegistry = null;
+        for (Iterator<Map.Entry<String, JsonNode>> ite = recorded.get("metrics").fields(); ite.hasNext(); ) {
+            Map.Entry<String, JsonNode> registry = ite.next();
+            if (!registry.getKey().startsWith("solr.core.")) {
+                metrics.set(registry.getKey(), registry.getValue());
+            } else if (coreRegistry == null && registry.getKey().split("\\.").length == 5) {
+                coreRegistry = registry.getValue();
+            }
+        }
+        if (coreRegistry == null) {
+            throw new IllegalStateException(METRICS_RESOURCE + " has no SolrCloud core registry");
+        }
+        for (int i = 0; i < cores; i++) {
+            metrics.set("solr.core." + collection(i) + "." + shard(i) + ".replica_n1", coreRegistry);
+        }
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.set("responseHeader", recorded.get("responseHeader"));
+        response.set("metrics", metrics);
+        return response;
+    }
+
+    /**
+     * @param cores the number of cores.
+     * @return a CLUSTERSTATUS response of a cluster hosting the cores on one node.
+     */
+    public static byte[] clusterStatus(int cores) throws IOException {
+        ObjectNode collections = JsonNodeFactory.instance.objectNode();
+        for (int i = 0; i < cores; i++) {
+            ObjectNode collection = (ObjectNode) collections.get(collection(i));
+            if (collection == null) {
+                collection = collections.putObject(collection(i));
+                collection.put("pullReplicas", "0");
+                collection.put("nrtReplicas", "1");
+                collection.put("tlogReplicas", "0");
+                collection.putObject("shards");
+            }
+
+            ObjectNode shard = ((ObjectNode) collection.get("shards")).putObject(shard(i));
+            shard.put("state", "active");
+            ObjectNode replica = shard.putObject("replicas").putObject("core_node" + i);
+            replica.put("core", core(i));
+            replica.put("base_url", BASE_URL);
+            replica.put("node_name", NODE_NAME);
+            replica.put("state", "active");
+            replica.put("type", "NRT");
+            replica.put("leader", "true");
+        }
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.putObject("responseHeader").put("status", 0).put("QTime", 1);
+        ObjectNode cluster = response.putObject("cluster");
+        cluster.set("collections", collections);
+        ArrayNode liveNodes = cluster.putArray("live_nodes");
+        liveNodes.add(NODE_NAME);
+        return om.writeValueAsBytes(response);
+    }
+
+    /**
+     * @return a /admin/ping response.
+     */
+    public static byte[] ping() throws IOException {
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.putObject("responseHeader").put("zkConnected", true).put("status", 0).put("QTime", 0);
+        response.put("status", "OK");
+        return om.writeValueAsBytes(response);
+    }
+
+    /**
+     * @param cores the number of cores.
+     * @return a client answering /admin/metrics, /admin/collections and /admin/ping requests to a
+     *         node hosting the cores.
+     */
+    public static FixtureSolrClient client(int cores) throws IOException {
+        return new FixtureSolrClient(BASE_URL)
+                .respond("/admin/metrics", params -> {
+                    try {
+                        return metrics(cores, params);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .respond("/admin/collections", clusterStatus(cores))
+                .respond("/admin/ping", ping());
+    }
+
+    /**
+     * @param collectorConfig the configuration.
+     * @param cores the number of cores.
+     * @return the ping section of the configuration for each core.
+     */
+    public static List<SolrScraperConfig> pingConfigs(SolrCollectorConfig collectorConfig, int cores) throws CloneNotSupportedException {
+        List<SolrScraperConfig> pingConfigs = new ArrayList<>(cores);
+        for (int i = 0; i < cores; i++) {
+            SolrScraperConfig pingConfig = collectorConfig.getPing().clone();
+            pingConfig.getQuery().setCore(core(i));
+            pingConfigs.add(pingConfig);
+        }
+        return pingConfigs;
+    }
+
+    /**
+     * Scrape every section of a configuration, as SolrCollector does for a node hosting the cores.
+     *
+     * @param collectorConfig the configuration.
+     * @param cores the number of cores.
+     * @return the samples of each scraper.
+     */
+    public static List<List<Collector.MetricFamilySamples>> scrape(SolrCollectorConfig collectorConfig, int cores) throws Exception {
+        List<SolrScraperConfig> scraperConfigs = new ArrayList<>(pingConfigs(collectorConfig, cores));
+        scraperConfigs.add(collectorConfig.getMetrics());
+        scraperConfigs.add(collectorConfig.getCollections());
+
+        List<List<Collector.MetricFamilySamples>> samples = new ArrayList<>();
+        try (FixtureSolrClient solrClient = client(cores)) {
+            for (SolrScraperConfig scraperConfig : scraperConfigs) {
+                SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+                new SolrScraper(solrClient, scraperConfig, Collections.emptyList(), Collections.emptyList(), accumulator)
+                        .collectResponse(solrClient, scraperConfig, accumulator);
+                samples.add(accumulator.toList());
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @param name the name of a configuration file shipped in conf.
+     * @return the configuration.
+     */
+    public static SolrCollectorConfig config(String name) throws IOException {
+        try (Reader reader = new InputStreamReader(SolrFixtures.class.getResourceAsStream("/conf/" + name), StandardCharsets.UTF_8)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class);
+        }
+    }
+}
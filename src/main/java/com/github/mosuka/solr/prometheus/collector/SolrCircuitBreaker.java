@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SolrCircuitBreaker
+ *
+ * The health of each Solr node, from the outcome of the requests of every scrape. After a number
+ * of scrapes in a row in which a node failed, or answered slower than a threshold, its circuit
+ * opens and the node is skipped instead of holding up every scrape until the requests time out.
+ * Once the circuit has been open for a while, a single request probes the node: the circuit
+ * closes if it succeeds and opens again otherwise.
+ */
+public class SolrCircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(SolrCircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_MILLIS = 30000L;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowNanos;
+    private final long openNanos;
+
+    // guarded by this
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    private static class Node {
+        State state = State.CLOSED;
+        int failures;
+        boolean up = true;
+        // when the circuit opened, or the last probe was sent
+        long openNanoTime;
+    }
+
+    /**
+     * Constructor.
+     */
+    public SolrCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, 0, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param failureThreshold the number of scrapes in a row a node fails in before it is skipped, or 0 never to skip it.
+     * @param slowMillis the time a request may take before it counts as failed, in milliseconds, or 0 for no limit.
+     * @param openMillis the time a node is skipped before it is probed, in milliseconds.
+     */
+    public SolrCircuitBreaker(int failureThreshold, long slowMillis, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Tell whether a request may be sent to a node. When the circuit of the node has been open long
+     * enough, the first request is allowed as a probe and the others are not until its outcome is
+     * recorded.
+     *
+     * @param node the base URL of the node.
+     * @param nanoTime the current time, from {@link System#nanoTime()}.
+     * @return false if the node must be skipped.
+     */
+    public synchronized boolean allow(String node, long nanoTime) {
+        Node entry = nodes.get(node);
+        if (entry == null || entry.state == State.CLOSED) {
+            return true;
+        }
+        // a probe whose outcome was never recorded is sent again once the node was skipped as long
+        if (nanoTime - entry.openNanoTime < openNanos) {
+            return false;
+        }
+        entry.state = State.HALF_OPEN;
+        entry.openNanoTime = nanoTime;
+        return true;
+    }
+
+    /**
+     * Record the outcome of the requests of a scrape to a node.
+     *
+     * @param node the base URL of the node.
+     * @param ok true if every request succeeded.
+     * @param latencyNanos the time the slowest request took.
+     * @param nanoTime the current time, from {@link System#nanoTime()}.
+     */
+    public synchronized void record(String node, boolean ok, long latencyNanos, long nanoTime) {
+        Node entry = nodes.computeIfAbsent(node, k -> new Node());
+        boolean failed = !ok || (slowNanos > 0 && latencyNanos > slowNanos);
+        entry.up = !failed;
+        if (!failed) {
+            if (entry.state != State.CLOSED) {
+                logger.info("Circuit of " + node + " closed");
+            }
+            entry.state = State.CLOSED;
+            entry.failures = 0;
+            return;
+        }
+
+        entry.failures++;
+        if (entry.state == State.HALF_OPEN || (failureThreshold > 0 && entry.failures >= failureThreshold && entry.state == State.CLOSED)) {
+            if (entry.state == State.CLOSED) {
+                logger.warn("Circuit of " + node + " opened after " + entry.failures + " failed scrapes");
+            }
+            entry.state = State.OPEN;
+            entry.openNanoTime = nanoTime;
+        }
+    }
+
+    /**
+     * @param node the base URL of the node.
+     * @return false if the last scrape of the node failed or it is skipped.
+     */
+    public synchronized boolean isUp(String node) {
+        Node entry = nodes.get(node);
+        return entry == null || (entry.up && entry.state == State.CLOSED);
+    }
+
+    /**
+     * @param node the base URL of the node.
+     * @return the state of the circuit of the node.
+     */
+    synchronized State getState(String node) {
+        Node entry = nodes.get(node);
+        return entry == null ? State.CLOSED : entry.state;
+    }
+
+    /**
+     * Forget the nodes that are no longer scraped.
+     *
+     * @param scraped the base URLs of the nodes scraped.
+     */
+    public synchronized void retain(Collection<String> scraped) {
+        nodes.keySet().retainAll(scraped);
+    }
+}
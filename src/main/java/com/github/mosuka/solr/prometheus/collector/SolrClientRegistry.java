@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import io.prometheus.client.Collector;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.impl.NoOpResponseParser;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SolrClientRegistry
+ *
+ * Long-lived {@link HttpSolrClient}s keyed by base URL. All clients share one pooled Apache HttpClient,
+ * so connections to a node are kept alive across scrapes. The registry may be shared by the
+ * collectors of several clusters, each retaining the nodes of its own cluster.
+ */
+public class SolrClientRegistry extends Collector implements Collector.Describable, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SolrClientRegistry.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+
+    private final int maxConnectionsPerHost;
+    private final int connectTimeout;
+    private final int socketTimeout;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    private final ConcurrentMap<String, HttpSolrClient> httpSolrClients = new ConcurrentHashMap<>();
+
+    // guarded by this, the live base URLs by owner
+    private final Map<Object, Set<String>> liveBaseUrlsByOwner = new HashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public SolrClientRegistry() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxConnectionsPerHost the maximum number of connections to a node.
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param socketTimeout the socket timeout in milliseconds.
+     */
+    public SolrClientRegistry(int maxConnectionsPerHost, int connectTimeout, int socketTimeout) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(HttpClientUtil.getSchemaRegisteryProvider().getSchemaRegistry());
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        this.connectionManager.setMaxTotal(Integer.MAX_VALUE);
+
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, Integer.MAX_VALUE);
+        params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectTimeout);
+        params.set(HttpClientUtil.PROP_SO_TIMEOUT, socketTimeout);
+        params.set(HttpClientUtil.PROP_ALLOW_COMPRESSION, true);
+
+        this.httpClient = HttpClientUtil.createClient(params, connectionManager);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * @return the pooled HttpClient, for other Solr clients to share, not to be closed by them.
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Get the client of a node, creating it on first use.
+     * The client returns raw JSON responses and must not be reconfigured by callers.
+     *
+     * @param baseUrl the base URL of the node.
+     * @return the client.
+     */
+    public HttpSolrClient get(String baseUrl) {
+        return httpSolrClients.computeIfAbsent(baseUrl, this::createHttpSolrClient);
+    }
+
+    /**
+     * Close and remove the clients of nodes that are no longer live.
+     *
+     * @param liveBaseUrls the base URLs of live nodes.
+     */
+    public void retain(Collection<String> liveBaseUrls) {
+        retain(this, liveBaseUrls);
+    }
+
+    /**
+     * Close and remove the clients of nodes that are no longer live, neither for an owner nor for
+     * any other.
+     *
+     * @param owner the owner, e.g. the collector of a cluster.
+     * @param liveBaseUrls the base URLs of the nodes live for the owner, empty once it is gone.
+     */
+    public synchronized void retain(Object owner, Collection<String> liveBaseUrls) {
+        if (liveBaseUrls.isEmpty()) {
+            liveBaseUrlsByOwner.remove(owner);
+        } else {
+            liveBaseUrlsByOwner.put(owner, new HashSet<>(liveBaseUrls));
+        }
+        Set<String> live = new HashSet<>();
+        for (Set<String> ownerLiveBaseUrls : liveBaseUrlsByOwner.values()) {
+            live.addAll(ownerLiveBaseUrls);
+        }
+        for (Iterator<Map.Entry<String, HttpSolrClient>> i = httpSolrClients.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, HttpSolrClient> entry = i.next();
+            if (!live.contains(entry.getKey())) {
+                i.remove();
+                logger.info("Evict client for " + entry.getKey());
+                closeQuietly(entry.getValue());
+            }
+        }
+        connectionManager.closeExpiredConnections();
+    }
+
+    @Override
+    public void close() {
+        for (HttpSolrClient httpSolrClient : httpSolrClients.values()) {
+            closeQuietly(httpSolrClient);
+        }
+        httpSolrClients.clear();
+        HttpClientUtil.close(httpClient);
+        connectionManager.close();
+    }
+
+    private HttpSolrClient createHttpSolrClient(String baseUrl) {
+        NoOpResponseParser responseParser = new NoOpResponseParser();
+        responseParser.setWriterType("json");
+
+        HttpSolrClient.Builder builder = new HttpSolrClient.Builder();
+        builder.withBaseSolrUrl(baseUrl);
+        builder.withHttpClient(httpClient);
+        builder.withResponseParser(responseParser);
+        builder.withConnectionTimeout(connectTimeout);
+        builder.withSocketTimeout(socketTimeout);
+        builder.allowCompression(true);
+
+        return builder.build();
+    }
+
+    private static void closeQuietly(HttpSolrClient httpSolrClient) {
+        try {
+            // the shared HttpClient is not closed by clients built with an external one
+            httpSolrClient.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Describe connection pool metrics.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_clients", Type.GAUGE, "Number of Solr nodes with a pooled client.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_leased", Type.GAUGE, "Number of connections to a host in use.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_available", Type.GAUGE, "Number of idle keep-alive connections to a host.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_pending", Type.GAUGE, "Number of requests waiting for a connection to a host.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_max", Type.GAUGE, "Maximum number of connections to a host.", new ArrayList<>()));
+        return metricFamilies;
+    }
+
+    /**
+     * Collect connection pool metrics.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> clientsSamples = new ArrayList<>();
+        List<MetricFamilySamples.Sample> leasedSamples = new ArrayList<>();
+        List<MetricFamilySamples.Sample> availableSamples = new ArrayList<>();
+        List<MetricFamilySamples.Sample> pendingSamples = new ArrayList<>();
+        List<MetricFamilySamples.Sample> maxSamples = new ArrayList<>();
+
+        clientsSamples.add(new MetricFamilySamples.Sample("solr_exporter_http_clients", new ArrayList<>(), new ArrayList<>(), httpSolrClients.size()));
+
+        List<String> labelNames = Collections.singletonList("host");
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            PoolStats stats = connectionManager.getStats(route);
+            List<String> labelValues = Collections.singletonList(route.getTargetHost().toURI());
+
+            leasedSamples.add(new MetricFamilySamples.Sample("solr_exporter_http_connections_leased", labelNames, labelValues, stats.getLeased()));
+            availableSamples.add(new MetricFamilySamples.Sample("solr_exporter_http_connections_available", labelNames, labelValues, stats.getAvailable()));
+            pendingSamples.add(new MetricFamilySamples.Sample("solr_exporter_http_connections_pending", labelNames, labelValues, stats.getPending()));
+            maxSamples.add(new MetricFamilySamples.Sample("solr_exporter_http_connections_max", labelNames, labelValues, stats.getMax()));
+        }
+
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_clients", Type.GAUGE, "Number of Solr nodes with a pooled client.", clientsSamples));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_leased", Type.GAUGE, "Number of connections to a host in use.", leasedSamples));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_available", Type.GAUGE, "Number of idle keep-alive connections to a host.", availableSamples));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_pending", Type.GAUGE, "Number of requests waiting for a connection to a host.", pendingSamples));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_http_connections_max", Type.GAUGE, "Maximum number of connections to a host.", maxSamples));
+        return metricFamilies;
+    }
+}
@@ -34,20 +34,35 @@ import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
 
 /**
  * SolrCollector
  *
  */
-public class SolrCollector extends Collector implements Collector.Describable {
+public class SolrCollector extends Collector implements Collector.Describable, SolrSeriesCollector, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(SolrCollector.class);
 
     private SolrClient solrClient;
     private SolrCollectorConfig config = new SolrCollectorConfig();
-    private int numThreads;
+    private SolrScraperExecutor executor;
+    // whether the executor was created by this collector, and is shut down with it
+    private boolean ownsExecutor = false;
+    private SolrClientRegistry clientRegistry;
+    private SolrTopologyCache topologyCache;
+    private SolrScraperMetrics metrics;
+    private SolrAsyncClient asyncClient;
+    private SolrSectionCache sectionCache = new SolrSectionCache();
+    private SolrResultCache resultCache = new SolrResultCache();
+    private SolrSeriesStore seriesStore = new SolrSeriesStore();
+    private SolrShard shard = SolrShard.ALL;
+    private SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker();
+    private SolrHedger hedger;
+    private ConcurrentMap<String, Boolean> coreHealth = new ConcurrentHashMap<>();
 
     private static ObjectMapper om = new ObjectMapper();
 
@@ -56,11 +71,118 @@ public class SolrCollector extends Collector implements Collector.Describable {
      *
      * @param solrClient
      * @param config
+     * @param numThreads the number of threads of an executor of this collector, shut down when it is closed.
      */
     public SolrCollector(SolrClient solrClient, SolrCollectorConfig config, int numThreads) {
+        this(solrClient, config, new SolrScraperExecutor(numThreads));
+        this.ownsExecutor = true;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param solrClient
+     * @param config
+     * @param executor the executor shared by every scrape.
+     */
+    public SolrCollector(SolrClient solrClient, SolrCollectorConfig config, SolrScraperExecutor executor) {
+        this(solrClient, config, executor, new SolrClientRegistry());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param solrClient
+     * @param config
+     * @param executor the executor shared by every scrape.
+     * @param clientRegistry the clients of SolrCloud nodes shared by every scrape.
+     */
+    public SolrCollector(SolrClient solrClient, SolrCollectorConfig config, SolrScraperExecutor executor, SolrClientRegistry clientRegistry) {
+        this(solrClient, config, executor, clientRegistry, new SolrScraperMetrics());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param solrClient
+     * @param config
+     * @param executor the executor shared by every scrape.
+     * @param clientRegistry the clients of SolrCloud nodes shared by every scrape.
+     * @param metrics the metrics of the exporter, to be registered alongside this collector.
+     */
+    public SolrCollector(SolrClient solrClient, SolrCollectorConfig config, SolrScraperExecutor executor, SolrClientRegistry clientRegistry, SolrScraperMetrics metrics) {
+        this(solrClient, config, executor, clientRegistry, metrics, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param solrClient
+     * @param config
+     * @param executor the executor shared by every scrape.
+     * @param clientRegistry the clients of SolrCloud nodes shared by every scrape.
+     * @param metrics the metrics of the exporter, to be registered alongside this collector.
+     * @param asyncClient sends the requests to Solr nodes without blocking executor threads, or null to send them from the executor.
+     */
+    public SolrCollector(SolrClient solrClient, SolrCollectorConfig config, SolrScraperExecutor executor, SolrClientRegistry clientRegistry,
+                         SolrScraperMetrics metrics, SolrAsyncClient asyncClient) {
         this.solrClient = solrClient;
         this.config = config;
-        this.numThreads = numThreads;
+        this.executor = executor;
+        this.clientRegistry = clientRegistry;
+        this.metrics = metrics;
+        this.asyncClient = asyncClient;
+        this.topologyCache = SolrTopologyCache.create(solrClient);
+    }
+
+    /**
+     * @return the metrics of the exporter recorded by the scrapers of this collector.
+     */
+    public SolrScraperMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Scrape only part of the cluster, the rest being scraped by other instances.
+     *
+     * @param shard the nodes and collections to scrape, closed with this collector.
+     */
+    public void setShard(SolrShard shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Skip the nodes that keep failing or answering slowly, instead of waiting for them in every scrape.
+     *
+     * @param circuitBreaker tracks the health of the nodes.
+     */
+    public void setCircuitBreaker(SolrCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Send a copy of the slow requests through the SolrCloud client to another replica.
+     *
+     * @param hedger sends the copies, or null to send each request once.
+     */
+    public void setHedger(SolrHedger hedger) {
+        this.hedger = hedger;
+    }
+
+    /**
+     * Stop watching the topology of the scraped Solr and release the clients of its nodes, and shut
+     * down the executor if this collector created it.
+     */
+    @Override
+    public void close() {
+        topologyCache.close();
+        shard.close();
+        if (solrClient instanceof CloudSolrClient) {
+            clientRegistry.retain(this, Collections.emptyList());
+        }
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
     }
 
     /**
@@ -80,220 +202,497 @@ public class SolrCollector extends Collector implements Collector.Describable {
      * @return
      */
     public List<MetricFamilySamples> collect() {
+        SolrSeriesStore.View view = collectSeries();
+        try {
+            return view.toList();
+        } finally {
+            view.release();
+        }
+    }
+
+    /**
+     * Collect samples into the series store, where the series scraped by the previous collections
+     * only have their values overwritten.
+     *
+     * @return the view of the collection, retained for the caller, who must release it.
+     */
+    public SolrSeriesStore.View collectSeries() {
         // start time of scraping.
         long startTime = System.nanoTime();
 
-        Map<String, MetricFamilySamples> metricFamilySamplesMap = new LinkedHashMap<>();
+        // every scraper adds its samples straight to the accumulator
+        Scrape scrape = new Scrape(startTime, seriesStore.begin(), shard.get());
+        try {
+            scrape(scrape);
+        } catch (RuntimeException | Error e) {
+            seriesStore.rollback(scrape.accumulator);
+            throw e;
+        }
+        metrics.duplicates(scrape.accumulator.getDuplicates());
+
+        if (shard != SolrShard.ALL) {
+            scrape.accumulator.add("solr_exporter_shard_members", Type.GAUGE, "Number of exporter instances sharing the scraped Solr.",
+                    Collections.emptyList(), Collections.emptyList(), scrape.assignment.getMembers());
+            scrape.accumulator.add("solr_exporter_shard_leader", Type.GAUGE, "Whether this instance scrapes the sections that read the whole Solr cluster.",
+                    Collections.emptyList(), Collections.emptyList(), scrape.assignment.isLeader() ? 1.0 : 0.0);
+        }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-        List<Future<Map<String, MetricFamilySamples>>> futureList = new ArrayList<>();
+        for (String node : scrape.nodes) {
+            scrape.accumulator.add("solr_exporter_target_up", Type.GAUGE, "Whether the last scrape of a Solr node succeeded and the node is not skipped.",
+                    Collections.singletonList("target"), Collections.singletonList(node), circuitBreaker.isUp(node) ? 1.0 : 0.0);
+        }
 
+        // add scrape duration metric
+        scrape.accumulator.add("solr_scrape_duration_seconds", Type.GAUGE, "Time this Solr scrape took, in seconds.",
+                Collections.emptyList(), Collections.emptyList(), (System.nanoTime() - startTime) / 1.0E9);
+
+        return seriesStore.commit(scrape.accumulator);
+    }
+
+    /**
+     * Run the scrapers of a collection and wait for them.
+     *
+     * @param scrape
+     */
+    private void scrape(Scrape scrape) {
+        // Topology
+        SolrTopology topology;
         try {
-            // Ping
-            if (config.getPing() != null) {
-                if (solrClient instanceof CloudSolrClient) {
-                    List<HttpSolrClient> httpSolrClients = new ArrayList<>();
-                    try {
-                        httpSolrClients = getHttpSolrClients((CloudSolrClient) solrClient);
-                        for (HttpSolrClient httpSolrClient : httpSolrClients) {
-                            try {
-                                List<String> cores = getCores(httpSolrClient);
-                                for (String core : cores) {
-                                    SolrScraperConfig pingConfig;
-                                    try {
-                                        pingConfig = config.getPing().clone();
-                                    } catch (CloneNotSupportedException e) {
-                                        logger.error(e.getMessage());
-                                        continue;
-                                    }
-
-                                    pingConfig.getQuery().setCore(core);
-
-                                    SolrScraper scraper = new SolrScraper(httpSolrClient, pingConfig, Arrays.asList("zk_host"), Arrays.asList(((CloudSolrClient) solrClient).getZkHost()));
-                                    Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                                    futureList.add(future);
-                                }
-                            } catch (SolrServerException | IOException e) {
-                                logger.error(e.getMessage());
-                            }
-                        }
+            topology = topologyCache.get();
+        } catch (SolrServerException | IOException e) {
+            logger.error(e.getMessage());
+            metrics.error(SolrScraperMetrics.SECTION_TOPOLOGY, SolrScraperMetrics.target(solrClient), e);
+            topology = SolrTopology.EMPTY;
+        }
+        if (solrClient instanceof CloudSolrClient) {
+            clientRegistry.retain(this, topology.getBaseUrls());
+        }
 
-                        // get future
-                        for (Future<Map<String, MetricFamilySamples>> future : futureList) {
-                            try {
-                                Map<String, MetricFamilySamples> m = future.get(60, TimeUnit.SECONDS);
-                                mergeMetrics(metricFamilySamplesMap, m);
-                            } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                                logger.error(e.getMessage());
-                            }
-                        }
-                    } catch (SolrServerException | IOException e) {
-                        logger.error(e.getMessage());
-                    } finally {
-                        for (HttpSolrClient httpSolrClient : httpSolrClients) {
-                            try {
-                                httpSolrClient.close();
-                            } catch (IOException e) {
-                                logger.error(e.getMessage());
-                            }
+        // Ping
+        if (config.getPing() != null && config.getPing().isBatch()) {
+            schedulePingBatch(topology, scrape);
+        } else if (config.getPing() != null) {
+            if (solrClient instanceof CloudSolrClient) {
+                for (String baseUrl : topology.getBaseUrls()) {
+                    if (!scrape.assignment.owns(baseUrl)) {
+                        continue;
+                    }
+                    HttpSolrClient httpSolrClient = clientRegistry.get(baseUrl);
+                    for (String core : topology.getCores(baseUrl)) {
+                        SolrScraperConfig pingConfig;
+                        try {
+                            pingConfig = config.getPing().clone();
+                        } catch (CloneNotSupportedException e) {
+                            logger.error(e.getMessage());
+                            metrics.error(SolrScraperMetrics.SECTION_PING, baseUrl, e);
+                            continue;
                         }
+
+                        pingConfig.getQuery().setCore(core);
+
+                        schedule(httpSolrClient, pingConfig, Arrays.asList("zk_host"), Arrays.asList(((CloudSolrClient) solrClient).getZkHost()), SolrScraperMetrics.SECTION_PING, scrape);
                     }
+                }
 
+                for (String collection : topology.getCollections()) {
+                    if (!scrape.assignment.owns(collection)) {
+                        continue;
+                    }
+                    SolrScraperConfig pingConfig;
                     try {
-                        List<String> collections = getCollections((CloudSolrClient) solrClient);
-                        for (String collection : collections) {
-                            SolrScraperConfig pingConfig;
-                            try {
-                                pingConfig = config.getPing().clone();
-                            } catch (CloneNotSupportedException e) {
-                                logger.error(e.getMessage());
-                                continue;
-                            }
-
-                            pingConfig.getQuery().setCollection(collection);
-                            LinkedHashMap<String, String> distrib = new LinkedHashMap<>();
-                            distrib.put("distrib", "true");
-                            pingConfig.getQuery().setParams(Collections.singletonList(distrib));
-
-                            SolrScraper scraper = new SolrScraper(solrClient, pingConfig);
-                            Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                            futureList.add(future);
-                        }
-                    } catch (SolrServerException | IOException e) {
+                        pingConfig = config.getPing().clone();
+                    } catch (CloneNotSupportedException e) {
                         logger.error(e.getMessage());
+                        metrics.error(SolrScraperMetrics.SECTION_PING, SolrScraperMetrics.target(solrClient), e);
+                        continue;
                     }
-                } else {
-                    try {
-                        List<String> cores = getCores((HttpSolrClient) solrClient);
-                        for (String core : cores) {
-                            SolrScraperConfig pingConfig = new SolrScraperConfig();
-                            pingConfig.setQuery(config.getPing().getQuery());
-                            pingConfig.getQuery().setCore(core);
 
-                            pingConfig.setJsonQueries(config.getPing().getJsonQueries());
+                    pingConfig.getQuery().setCollection(collection);
+                    LinkedHashMap<String, String> distrib = new LinkedHashMap<>();
+                    distrib.put("distrib", "true");
+                    pingConfig.getQuery().setParams(Collections.singletonList(distrib));
 
-                            SolrScraper scraper = new SolrScraper(solrClient, pingConfig);
-                            Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                            futureList.add(future);
-                        }
-                    } catch (SolrServerException | IOException e) {
-                        logger.error(e.getMessage());
-                    }
+                    schedule(solrClient, pingConfig, new ArrayList<>(), new ArrayList<>(), SolrScraperMetrics.SECTION_PING, scrape);
                 }
-            }
-
-            // Metrics
-            if (config.getMetrics() != null) {
-                if (solrClient instanceof CloudSolrClient) {
-                    List<HttpSolrClient> httpSolrClients = new ArrayList<>();
+            } else if (scrape.assignment.owns(((HttpSolrClient) solrClient).getBaseURL())) {
+                for (String core : topology.getCores(((HttpSolrClient) solrClient).getBaseURL())) {
+                    SolrScraperConfig pingConfig;
                     try {
-                        httpSolrClients = getHttpSolrClients((CloudSolrClient) solrClient);
-                        for (HttpSolrClient httpSolrClient : httpSolrClients) {
-                            SolrScraper scraper = new SolrScraper(httpSolrClient, config.getMetrics(), Arrays.asList("zk_host"), Arrays.asList(((CloudSolrClient) solrClient).getZkHost()));
-                            Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                            futureList.add(future);
-                        }
-
-                        // get future
-                        for (Future<Map<String, MetricFamilySamples>> future : futureList) {
-                            try {
-                                Map<String, MetricFamilySamples> m = future.get(60, TimeUnit.SECONDS);
-                                mergeMetrics(metricFamilySamplesMap, m);
-                            } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                                logger.error(e.getMessage());
-                            }
-                        }
-                    } catch (SolrServerException | IOException e) {
+                        pingConfig = config.getPing().clone();
+                    } catch (CloneNotSupportedException e) {
                         logger.error(e.getMessage());
-                    } finally {
-                        for (HttpSolrClient httpSolrClient : httpSolrClients) {
-                            try {
-                                httpSolrClient.close();
-                            } catch (IOException e) {
-                                logger.error(e.getMessage());
-                            }
-                        }
+                        metrics.error(SolrScraperMetrics.SECTION_PING, SolrScraperMetrics.target(solrClient), e);
+                        continue;
                     }
-                } else {
-                    SolrScraper scraper = new SolrScraper(solrClient, config.getMetrics());
-                    Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                    futureList.add(future);
+
+                    pingConfig.getQuery().setCore(core);
+
+                    schedule(solrClient, pingConfig, new ArrayList<>(), new ArrayList<>(), SolrScraperMetrics.SECTION_PING, scrape);
                 }
             }
+        }
 
-            // Collections
-            if (config.getCollections() != null) {
-                if (solrClient instanceof CloudSolrClient) {
-                    SolrScraper scraper = new SolrScraper(solrClient, config.getCollections());
-                    Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                    futureList.add(future);
+        // Metrics
+        if (config.getMetrics() != null && config.getMetrics().getSplit() > 0) {
+            scheduleMetricsSplit(topology, scrape);
+        } else if (config.getMetrics() != null) {
+            if (solrClient instanceof CloudSolrClient) {
+                for (String baseUrl : topology.getBaseUrls()) {
+                    if (!scrape.assignment.owns(baseUrl)) {
+                        continue;
+                    }
+                    schedule(clientRegistry.get(baseUrl), config.getMetrics(), Arrays.asList("zk_host"), Arrays.asList(((CloudSolrClient) solrClient).getZkHost()), SolrScraperMetrics.SECTION_METRICS, scrape);
                 }
+            } else if (scrape.assignment.owns(((HttpSolrClient) solrClient).getBaseURL())) {
+                schedule(solrClient, config.getMetrics(), new ArrayList<>(), new ArrayList<>(), SolrScraperMetrics.SECTION_METRICS, scrape);
             }
+        }
 
-            // Query
-            if (config.getQueries() != null) {
-                for (SolrScraperConfig c : config.getQueries()) {
-                    SolrScraper scraper = new SolrScraper(solrClient, c);
-                    Future<Map<String, MetricFamilySamples>> future = executorService.submit(scraper);
-                    futureList.add(future);
-                }
+        // Collections, and Query below, read the whole cluster
+        if (config.getCollections() != null && scrape.assignment.isLeader()) {
+            if (solrClient instanceof CloudSolrClient) {
+                schedule(solrClient, config.getCollections(), new ArrayList<>(), new ArrayList<>(), SolrScraperMetrics.SECTION_COLLECTIONS, scrape);
             }
+        }
 
-            // get future
-            for (Future<Map<String, MetricFamilySamples>> future : futureList) {
-                try {
-                    Map<String, MetricFamilySamples> m = future.get(60, TimeUnit.SECONDS);
-                    mergeMetrics(metricFamilySamplesMap, m);
-                } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                    logger.error(e.getMessage());
-                }
+        // Query
+        if (config.getQueries() != null && scrape.assignment.isLeader()) {
+            for (int i = 0; i < config.getQueries().size(); i++) {
+                schedule(solrClient, config.getQueries().get(i), new ArrayList<>(), new ArrayList<>(), SolrScraperMetrics.querySection(i), scrape);
             }
-        } finally {
-            executorService.shutdown();
         }
 
-        // return value
-        List<MetricFamilySamples> metricFamiliesSamplesList = new ArrayList<>();
+        // get future
+        waitFutures(scrape);
+
+        long endTime = System.nanoTime();
+        for (Map.Entry<String, Boolean> node : scrape.nodeOk.entrySet()) {
+            circuitBreaker.record(node.getKey(), node.getValue(), scrape.nodeRequestNanos.get(node.getKey()), endTime);
+        }
+        circuitBreaker.retain(scrape.nodes);
 
-        // add solr metrics
-        for (String gaugeMetricName : metricFamilySamplesMap.keySet()) {
-            MetricFamilySamples metricFamilySamples = metricFamilySamplesMap.get(gaugeMetricName);
-            if (metricFamilySamples.samples.size() > 0) {
-                metricFamiliesSamplesList.add(metricFamilySamples);
+        // the ping of collections follows from the status of their replicas
+        if (config.getPing() != null && config.getPing().isBatch() && solrClient instanceof CloudSolrClient) {
+            collectCollectionPings(topology, scrape);
+        }
+
+        // forget the tasks of cores and nodes that are gone
+        sectionCache.retain(scrape.keys);
+        resultCache.expire(System.nanoTime(), resultCacheMaxIdleSeconds());
+    }
+
+    /**
+     * @return the time the samples of an unchanged response are kept without being used, long
+     *         enough for the sections with an interval to reuse them.
+     */
+    private long resultCacheMaxIdleSeconds() {
+        long maxIdleSeconds = SolrResultCache.DEFAULT_MAX_IDLE_SECONDS;
+        List<SolrScraperConfig> scraperConfigs = new ArrayList<>(Arrays.asList(config.getPing(), config.getMetrics(), config.getCollections()));
+        if (config.getQueries() != null) {
+            scraperConfigs.addAll(config.getQueries());
+        }
+        for (SolrScraperConfig scraperConfig : scraperConfigs) {
+            if (scraperConfig != null) {
+                maxIdleSeconds = Math.max(maxIdleSeconds, 2L * scraperConfig.getInterval());
             }
         }
+        return maxIdleSeconds;
+    }
 
-        // add scrape duration metric
-        List<MetricFamilySamples.Sample> durationSample = new ArrayList<>();
-        durationSample.add(new MetricFamilySamples.Sample("solr_scrape_duration_seconds", new ArrayList<>(), new ArrayList<>(), (System.nanoTime() - startTime) / 1.0E9));
-        metricFamiliesSamplesList.add(new MetricFamilySamples("solr_scrape_duration_seconds", Type.GAUGE, "Time this Solr scrape took, in seconds.", durationSample));
+    /**
+     * The scrapers of one collection and the accumulator they share.
+     */
+    private static class Scrape {
+        final long startTime;
+        final SolrSampleAccumulator accumulator;
+        final List<Future<SolrSampleAccumulator>> futureList = new ArrayList<>();
+        // the deadline of each task, from its submission
+        final List<Long> deadlineList = new ArrayList<>();
+        final List<SolrScraper> scraperList = new ArrayList<>();
+        final Set<String> keys = new HashSet<>();
+        final SolrShard.Assignment assignment;
+        // the cores whose health the batched ping reads
+        final Set<String> pingedCoreUrls = new HashSet<>();
+        // the nodes scraped, those sent requests, and the scrapers skipped as their node was
+        final Set<String> nodes = new TreeSet<>();
+        final Map<String, Boolean> nodeOk = new HashMap<>();
+        final Map<String, Long> nodeRequestNanos = new HashMap<>();
+        final Set<SolrScraper> skipped = new HashSet<>();
+
+        Scrape(long startTime, SolrSampleAccumulator accumulator, SolrShard.Assignment assignment) {
+            this.startTime = startTime;
+            this.accumulator = accumulator;
+            this.assignment = assignment;
+        }
 
-        return metricFamiliesSamplesList;
+        /**
+         * Record the outcome of a scraper sent requests to a node.
+         */
+        void record(String node, boolean ok, long requestNanos) {
+            nodeOk.merge(node, ok, Boolean::logicalAnd);
+            nodeRequestNanos.merge(node, requestNanos, Math::max);
+        }
     }
 
     /**
+     * Submit a scraper for a section, or reuse the samples of its last run if the section has an
+     * interval and the scraper is not due yet.
      *
-     * @param metrics1
-     * @param metrics2
-     * @return
+     * @param solrClient
+     * @param scraperConfig
+     * @param labelNames
+     * @param labelValues
+     * @param section the section, see {@link SolrScraperMetrics}.
+     * @param scrape
      */
-    private Map<String, MetricFamilySamples> mergeMetrics(Map<String, MetricFamilySamples> metrics1, Map<String, MetricFamilySamples> metrics2) {
-        // marge MetricFamilySamples
-        for (String k : metrics2.keySet()) {
-            if (metrics1.containsKey(k)) {
-                for (MetricFamilySamples.Sample sample : metrics2.get(k).samples) {
-                    if (!metrics1.get(k).samples.contains(sample)) {
-                        metrics1.get(k).samples.add(sample);
+    private void schedule(SolrClient solrClient, SolrScraperConfig scraperConfig, List<String> labelNames, List<String> labelValues, String section, Scrape scrape) {
+        schedule(solrClient, scraperConfig, section, scrape,
+                accumulator -> new SolrScraper(solrClient, scraperConfig, labelNames, labelValues, accumulator, section, metrics));
+    }
+
+    /**
+     * Submit a scraper for a section, or reuse the samples of its last run if the section has an
+     * interval and the scraper is not due yet.
+     *
+     * @param solrClient
+     * @param scraperConfig
+     * @param section the section, see {@link SolrScraperMetrics}.
+     * @param scrape
+     * @param scraperFactory creates the scraper, given the accumulator it must add its samples to.
+     */
+    private void schedule(SolrClient solrClient, SolrScraperConfig scraperConfig, String section, Scrape scrape,
+                          Function<SolrSampleAccumulator, SolrScraper> scraperFactory) {
+        if (solrClient instanceof HttpSolrClient) {
+            scrape.nodes.add(((HttpSolrClient) solrClient).getBaseURL());
+        }
+        if (scraperConfig.getInterval() <= 0) {
+            submit(scraperFactory.apply(scrape.accumulator), scrape);
+            return;
+        }
+
+        String key = key(section, SolrScraperMetrics.target(solrClient), scraperConfig);
+        scrape.keys.add(key);
+        List<MetricFamilySamples> cached = sectionCache.get(key, scrape.startTime);
+        if (cached != null) {
+            scrape.accumulator.addAll(cached);
+            return;
+        }
+
+        // the samples of the run are kept apart, to be reused until it is due again
+        submit(scraperFactory.apply(new SolrSampleAccumulator()), scrape);
+    }
+
+    /**
+     * Schedule the metrics request of each node split into concurrent requests, the core registries
+     * of the node being those of the collections it hosts, or of its cores if it is standalone.
+     *
+     * @param topology
+     * @param scrape
+     */
+    private void scheduleMetricsSplit(SolrTopology topology, Scrape scrape) {
+        SolrScraperConfig metricsConfig = config.getMetrics();
+        if (solrClient instanceof CloudSolrClient) {
+            for (String baseUrl : topology.getBaseUrls()) {
+                if (!scrape.assignment.owns(baseUrl)) {
+                    continue;
+                }
+                HttpSolrClient httpSolrClient = clientRegistry.get(baseUrl);
+                List<String> coreRegistries = new ArrayList<>();
+                for (String collection : topology.getCollections()) {
+                    if (topology.getBaseUrls(collection).contains(baseUrl)) {
+                        coreRegistries.add("solr.core." + collection + ".");
                     }
                 }
+                List<String> labelNames = Arrays.asList("zk_host");
+                List<String> labelValues = Arrays.asList(((CloudSolrClient) solrClient).getZkHost());
+
+                schedule(httpSolrClient, metricsConfig, SolrScraperMetrics.SECTION_METRICS, scrape, accumulator -> {
+                    SolrScraper scraper = new SolrScraper(httpSolrClient, metricsConfig, labelNames, labelValues, accumulator, SolrScraperMetrics.SECTION_METRICS, metrics);
+                    scraper.setCoreRegistries(coreRegistries);
+                    return scraper;
+                });
+            }
+        } else if (scrape.assignment.owns(((HttpSolrClient) solrClient).getBaseURL())) {
+            List<String> coreRegistries = new ArrayList<>();
+            for (String core : topology.getCores(((HttpSolrClient) solrClient).getBaseURL())) {
+                coreRegistries.add("solr.core." + core);
+            }
+
+            schedule(solrClient, metricsConfig, SolrScraperMetrics.SECTION_METRICS, scrape, accumulator -> {
+                SolrScraper scraper = new SolrScraper(solrClient, metricsConfig, new ArrayList<>(), new ArrayList<>(), accumulator, SolrScraperMetrics.SECTION_METRICS, metrics);
+                scraper.setCoreRegistries(coreRegistries);
+                return scraper;
+            });
+        }
+    }
+
+    /**
+     * Schedule one CoreAdmin STATUS request per node, which the pings of the cores of the node
+     * are derived from.
+     *
+     * @param topology
+     * @param scrape
+     */
+    private void schedulePingBatch(SolrTopology topology, Scrape scrape) {
+        SolrScraperConfig pingConfig = config.getPing();
+        for (String baseUrl : topology.getBaseUrls()) {
+            if (!scrape.assignment.owns(baseUrl)) {
+                continue;
+            }
+            HttpSolrClient httpSolrClient;
+            List<String> labelNames;
+            List<String> labelValues;
+            if (solrClient instanceof CloudSolrClient) {
+                httpSolrClient = clientRegistry.get(baseUrl);
+                labelNames = Arrays.asList("zk_host");
+                labelValues = Arrays.asList(((CloudSolrClient) solrClient).getZkHost());
             } else {
-                metrics1.put(k, metrics2.get(k));
+                httpSolrClient = (HttpSolrClient) solrClient;
+                labelNames = new ArrayList<>();
+                labelValues = new ArrayList<>();
+            }
+
+            List<String> cores = topology.getCores(baseUrl);
+            for (String core : cores) {
+                scrape.pingedCoreUrls.add(SolrCoreStatusScraper.coreUrl(baseUrl, core));
+            }
+
+            schedule(httpSolrClient, pingConfig, SolrScraperMetrics.SECTION_PING, scrape,
+                    accumulator -> new SolrCoreStatusScraper(httpSolrClient, pingConfig, cores, labelNames, labelValues, accumulator, SolrScraperMetrics.SECTION_PING, metrics, coreHealth));
+        }
+        coreHealth.keySet().retainAll(scrape.pingedCoreUrls);
+    }
+
+    /**
+     * Add the ping samples of each collection, derived from the status of its replicas instead of
+     * a distributed ping. A collection is OK if every shard has an active replica whose core is
+     * loaded, which a distributed ping needs to succeed. The cores of the nodes scraped by other
+     * instances are taken to be loaded if they are active in the cluster state.
+     *
+     * @param topology
+     * @param scrape receives the samples.
+     */
+    private void collectCollectionPings(SolrTopology topology, Scrape scrape) {
+        SolrSampleAccumulator accumulator = scrape.accumulator;
+        for (String collection : topology.getCollections()) {
+            if (!scrape.assignment.owns(collection)) {
+                continue;
+            }
+            Map<String, List<String>> shards = topology.getShards(collection);
+            boolean ok = !shards.isEmpty();
+            for (List<String> replicas : shards.values()) {
+                boolean shardOk = false;
+                for (String coreUrl : replicas) {
+                    if (!scrape.pingedCoreUrls.contains(coreUrl) || Boolean.TRUE.equals(coreHealth.get(coreUrl))) {
+                        shardOk = true;
+                        break;
+                    }
+                }
+                ok &= shardOk;
+            }
+
+            SolrScraperConfig pingConfig;
+            try {
+                pingConfig = config.getPing().clone();
+            } catch (CloneNotSupportedException e) {
+                logger.error(e.getMessage());
+                metrics.error(SolrScraperMetrics.SECTION_PING, SolrScraperMetrics.target(solrClient), e);
+                continue;
             }
+            pingConfig.getQuery().setCollection(collection);
+
+            new SolrScraper(solrClient, pingConfig, new ArrayList<>(), new ArrayList<>(), accumulator, SolrScraperMetrics.SECTION_PING, metrics)
+                    .collectMetrics(solrClient, pingConfig, SolrCoreStatusScraper.pingResponse(ok), accumulator);
+        }
+    }
+
+    /**
+     * Identify the task of a section against a target, core or collection.
+     */
+    private static String key(String section, String target, SolrScraperConfig scraperConfig) {
+        return section + " " + target
+                + " " + scraperConfig.getQuery().getCore() + " " + scraperConfig.getQuery().getCollection();
+    }
+
+    /**
+     * Submit a scraper to the executor, or send its requests with the asynchronous client. The
+     * scraper is skipped if it scrapes a node whose circuit is open.
+     *
+     * @param scraper
+     * @param scrape
+     */
+    private void submit(SolrScraper scraper, Scrape scrape) {
+        if (scrape.nodes.contains(scraper.getTarget()) && !circuitBreaker.allow(scraper.getTarget(), System.nanoTime())) {
+            scraper.skip();
+            metrics.error(scraper.getSection(), scraper.getTarget(), SolrScraperMetrics.CAUSE_CIRCUIT_OPEN);
+            scrape.futureList.add(CompletableFuture.completedFuture(scraper.getAccumulator()));
+            scrape.deadlineList.add(executor.deadline());
+            scrape.scraperList.add(scraper);
+            scrape.skipped.add(scraper);
+            return;
         }
 
-        return metrics1;
+        scraper.setResultCache(resultCache);
+        scraper.setHedger(hedger);
+        try {
+            if (asyncClient != null) {
+                scrape.futureList.add(scraper.callAsync(asyncClient, executor));
+            } else {
+                scrape.futureList.add(executor.submit(scraper));
+            }
+            scrape.deadlineList.add(executor.deadline());
+            scrape.scraperList.add(scraper);
+        } catch (RejectedExecutionException e) {
+            logger.error("Scraper task rejected: " + e.getMessage());
+            metrics.error(scraper.getSection(), scraper.getTarget(), SolrScraperMetrics.CAUSE_REJECTED);
+        }
     }
 
+    /**
+     * Wait for the submitted scrapers until their deadline, and cache the samples of the scrapers
+     * of sections with an interval.
+     *
+     * @param scrape
+     */
+    private void waitFutures(Scrape scrape) {
+        for (int i = 0; i < scrape.futureList.size(); i++) {
+            SolrScraper scraper = scrape.scraperList.get(i);
+            boolean completed = false;
+            try {
+                executor.get(scrape.futureList.get(i), scrape.deadlineList.get(i));
+                completed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                scrape.futureList.get(i).cancel(true);
+                logger.error(e.getMessage());
+                metrics.error(scraper.getSection(), scraper.getTarget(), SolrScraperMetrics.CAUSE_INTERRUPTED);
+            } catch (TimeoutException | CancellationException e) {
+                logger.error(e.toString());
+                metrics.error(scraper.getSection(), scraper.getTarget(), SolrScraperMetrics.CAUSE_DEADLINE);
+            } catch (ExecutionException e) {
+                logger.error(e.toString());
+                metrics.error(scraper.getSection(), scraper.getTarget(), e.getCause());
+            }
+            if (scrape.nodes.contains(scraper.getTarget()) && !scrape.skipped.contains(scraper)) {
+                scrape.record(scraper.getTarget(), completed && !scraper.isFailed(), scraper.getRequestNanos());
+            }
+
+            if (scraper.getAccumulator() != scrape.accumulator) {
+                List<MetricFamilySamples> samples = scraper.getAccumulator().toList();
+                String key = key(scraper.getSection(), scraper.getTarget(), scraper.getScraperConfig());
+                if (completed && !scraper.isFailed()) {
+                    sectionCache.put(key, scraper.getScraperConfig().getInterval(), samples, scrape.startTime);
+                } else {
+                    // retry in the next collection
+                    sectionCache.remove(key);
+                }
+                scrape.accumulator.addAll(samples);
+            }
+        }
+        scrape.futureList.clear();
+        scrape.deadlineList.clear();
+        scrape.scraperList.clear();
+    }
 
     /**
      * Get target cores via CoreAdminAPI.
@@ -307,9 +706,8 @@ public class SolrCollector extends Collector implements Collector.Describable {
         NoOpResponseParser responseParser = new NoOpResponseParser();
         responseParser.setWriterType("json");
 
-        httpSolrClient.setParser(responseParser);
-
         CoreAdminRequest coreAdminRequest = new CoreAdminRequest();
+        coreAdminRequest.setResponseParser(responseParser);
         coreAdminRequest.setAction(CoreAdminParams.CoreAdminAction.STATUS);
         coreAdminRequest.setIndexInfoNeeded(false);
 
@@ -339,9 +737,8 @@ public class SolrCollector extends Collector implements Collector.Describable {
         NoOpResponseParser responseParser = new NoOpResponseParser();
         responseParser.setWriterType("json");
 
-        cloudSolrClient.setParser(responseParser);
-
         CollectionAdminRequest collectionAdminRequest = new CollectionAdminRequest.List();
+        collectionAdminRequest.setResponseParser(responseParser);
 
         NamedList<Object> collectionAdminResponse = cloudSolrClient.request(collectionAdminRequest);
 
@@ -356,60 +753,4 @@ public class SolrCollector extends Collector implements Collector.Describable {
 
         return collections;
     }
-
-    /**
-     * Get base urls via CollectionsAPI.
-     *
-     * @param cloudSolrClient
-     * @return
-     */
-    private List<String> getBaseUrls(CloudSolrClient cloudSolrClient) throws SolrServerException, IOException {
-        List<String> baseUrls = new ArrayList<>();
-
-        NoOpResponseParser responseParser = new NoOpResponseParser();
-        responseParser.setWriterType("json");
-
-        cloudSolrClient.setParser(responseParser);
-
-        CollectionAdminRequest collectionAdminRequest = new CollectionAdminRequest.ClusterStatus();
-
-        NamedList<Object> collectionAdminResponse = cloudSolrClient.request(collectionAdminRequest);
-
-        List<JsonNode> baseUrlJsonNode = om.readTree((String) collectionAdminResponse.get("response")).findValues("base_url");
-
-        for (Iterator<JsonNode> i = baseUrlJsonNode.iterator(); i.hasNext(); ) {
-            String baseUrl = i.next().textValue();
-            if (!baseUrls.contains(baseUrl)) {
-                baseUrls.add(baseUrl);
-            }
-        }
-
-        return baseUrls;
-    }
-
-    /**
-     *
-     * @param cloudSolrClient
-     * @return
-     * @throws SolrServerException
-     * @throws IOException
-     */
-    private List<HttpSolrClient> getHttpSolrClients(CloudSolrClient cloudSolrClient) throws SolrServerException, IOException {
-        List<HttpSolrClient> solrClients = new ArrayList<>();
-
-        for (String baseUrl : getBaseUrls(cloudSolrClient)) {
-            NoOpResponseParser responseParser = new NoOpResponseParser();
-            responseParser.setWriterType("json");
-
-            HttpSolrClient.Builder builder = new HttpSolrClient.Builder();
-            builder.withBaseSolrUrl(baseUrl);
-
-            HttpSolrClient httpSolrClient = builder.build();
-            httpSolrClient.setParser(responseParser);
-
-            solrClients.add(httpSolrClient);
-        }
-
-        return solrClients;
-    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import io.prometheus.client.Collector;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SolrSectionCache
+ *
+ * The latest samples of each scrape task of a section that has an interval, such as the ping of a
+ * core or the metrics of a node, and when the task is next due. Collections reuse the samples of a
+ * task until it is due and then run it again.
+ *
+ * Due times are staggered: after its first run, each task is next due after a fraction of the
+ * interval derived from its key, and then once per interval. Tasks of the same section, like the
+ * metrics requests to every node, are thus spread across the interval instead of all running in
+ * the same collection.
+ */
+public class SolrSectionCache {
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final List<Collector.MetricFamilySamples> samples;
+        final long dueNanoTime;
+
+        Entry(List<Collector.MetricFamilySamples> samples, long dueNanoTime) {
+            this.samples = samples;
+            this.dueNanoTime = dueNanoTime;
+        }
+    }
+
+    /**
+     * Get the samples of a task that is not due yet.
+     *
+     * @param key the task key.
+     * @param nanoTime the current time, from {@link System#nanoTime()}.
+     * @return the samples of the last run, or null if the task is due.
+     */
+    public List<Collector.MetricFamilySamples> get(String key, long nanoTime) {
+        Entry entry = entries.get(key);
+        if (entry == null || nanoTime - entry.dueNanoTime >= 0) {
+            return null;
+        }
+        return entry.samples;
+    }
+
+    /**
+     * Store the samples of a run of a task and schedule its next run.
+     *
+     * @param key the task key.
+     * @param intervalSeconds the interval of the task's section, in seconds.
+     * @param samples the samples of the run.
+     * @param nanoTime the time the run started, from {@link System#nanoTime()}.
+     */
+    public void put(String key, int intervalSeconds, List<Collector.MetricFamilySamples> samples, long nanoTime) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        Entry previous = entries.get(key);
+        long dueNanoTime;
+        if (previous == null) {
+            // the first run of a task is due again after its phase, then once per interval
+            dueNanoTime = nanoTime + (long) (intervalNanos * phase(key));
+        } else {
+            // keep the phase, skipping the intervals missed by a late run
+            dueNanoTime = previous.dueNanoTime + intervalNanos;
+            if (intervalNanos > 0 && nanoTime - dueNanoTime >= 0) {
+                dueNanoTime += ((nanoTime - dueNanoTime) / intervalNanos + 1) * intervalNanos;
+            }
+        }
+        entries.put(key, new Entry(Collections.unmodifiableList(samples), dueNanoTime));
+    }
+
+    /**
+     * Forget the task, so that it runs in the next collection.
+     *
+     * @param key the task key.
+     */
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Forget the tasks that are no longer scheduled, e.g. of cores that were removed.
+     *
+     * @param keys the keys of the current tasks.
+     */
+    public void retain(Collection<String> keys) {
+        entries.keySet().retainAll(keys);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param key the task key.
+     * @return a fraction of the interval in (0, 1], the same for a key across restarts.
+     */
+    static double phase(String key) {
+        // spread the hash bits, String.hashCode of similar keys differs in the low bits only
+        int h = key.hashCode() * 0x9E3779B9;
+        return ((h >>> 8) + 1) / (double) (1 << 24);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.util.Hash;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * SolrShard
+ *
+ * The part of a Solr cluster scraped by one of several exporter instances sharing the cluster.
+ * Nodes and collections are assigned to the instances by consistent hashing, so that when an
+ * instance joins or leaves, only the nodes and collections it gains or loses change hands. The
+ * sections that read the whole cluster, such as CLUSTERSTATUS, are scraped by the leader only.
+ *
+ * The instances are numbered statically, or are the members of a ZooKeeper path of the scraped
+ * SolrCloud cluster, each registered with an ephemeral node, the oldest being the leader.
+ */
+public abstract class SolrShard implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SolrShard.class);
+
+    // points of each instance on the hash ring, for the keys to spread evenly
+    static final int VIRTUAL_NODES = 128;
+
+    /**
+     * The whole cluster, scraped by a single instance.
+     */
+    public static final SolrShard ALL = new StaticShard(0, 1);
+
+    /**
+     * Create the shard of an instance numbered statically.
+     *
+     * @param index the number of the instance, from 0.
+     * @param count the number of instances, the instance 0 being the leader.
+     * @return the shard.
+     */
+    public static SolrShard of(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard index " + index + " is not in [0, " + count + ")");
+        }
+        return new StaticShard(index, count);
+    }
+
+    /**
+     * Create the shard of an instance member of a ZooKeeper path.
+     *
+     * @param cloudSolrClient the client of the scraped SolrCloud cluster, whose ZooKeeper connection to use.
+     * @param path the path the instances register under, relative to the chroot of the cluster.
+     * @param id the identifier of the instance, which should stay the same across restarts.
+     * @return the shard.
+     */
+    public static SolrShard zk(CloudSolrClient cloudSolrClient, String path, String id) {
+        return new ZkShard(cloudSolrClient, path, id);
+    }
+
+    /**
+     * Get the current assignment, to use for a whole scrape.
+     *
+     * @return the assignment.
+     */
+    public abstract Assignment get();
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * The nodes and collections assigned to an instance, given the instances sharing the cluster.
+     */
+    public static final class Assignment {
+        private final int members;
+        private final String self;
+        private final boolean leader;
+
+        // the points of the hash ring in ascending order, and the instance of each
+        private final int[] points;
+        private final String[] owners;
+
+        /**
+         * Constructor.
+         *
+         * @param members the identifiers of the instances.
+         * @param self the identifier of this instance, one of the members.
+         * @param leader whether this instance scrapes the sections that read the whole cluster.
+         */
+        public Assignment(Collection<String> members, String self, boolean leader) {
+            Set<String> distinct = new TreeSet<>(members);
+            this.members = distinct.size();
+            this.self = self;
+            this.leader = leader;
+
+            long[] ring = new long[distinct.size() * VIRTUAL_NODES];
+            String[] memberArray = distinct.toArray(new String[0]);
+            for (int m = 0; m < memberArray.length; m++) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    // the point in the high half, the index of the member in the low half
+                    ring[m * VIRTUAL_NODES + i] = ((long) hash(memberArray[m] + "#" + i) << 32) | m;
+                }
+            }
+            Arrays.sort(ring);
+            this.points = new int[ring.length];
+            this.owners = new String[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                points[i] = (int) (ring[i] >> 32);
+                owners[i] = memberArray[(int) ring[i]];
+            }
+        }
+
+        /**
+         * @return the instance a node or collection is assigned to, the one of the first point of
+         *         the ring from its hash on.
+         */
+        String owner(String key) {
+            if (points.length == 0) {
+                return self;
+            }
+            int idx = Arrays.binarySearch(points, hash(key));
+            if (idx < 0) {
+                idx = -idx - 1;
+            } else {
+                // the first of equal points
+                while (idx > 0 && points[idx - 1] == points[idx]) {
+                    idx--;
+                }
+            }
+            return owners[idx == points.length ? 0 : idx];
+        }
+
+        /**
+         * @param key the base URL of a node or the name of a collection.
+         * @return true if this instance scrapes it.
+         */
+        public boolean owns(String key) {
+            return self.equals(owner(key));
+        }
+
+        /**
+         * @return true if this instance scrapes the sections that read the whole cluster.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @return the number of instances sharing the cluster.
+         */
+        public int getMembers() {
+            return members;
+        }
+
+        private static int hash(String key) {
+            return Hash.murmurhash3_x86_32(key, 0, key.length(), 0);
+        }
+    }
+
+    /**
+     * Instances numbered from 0 to count - 1.
+     */
+    static class StaticShard extends SolrShard {
+        private final Assignment assignment;
+
+        StaticShard(int index, int count) {
+            List<String> members = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                members.add(Integer.toString(i));
+            }
+            this.assignment = new Assignment(members, Integer.toString(index), index == 0);
+        }
+
+        @Override
+        public Assignment get() {
+            return assignment;
+        }
+    }
+
+    /**
+     * Instances registered under a ZooKeeper path with an ephemeral sequential node named after
+     * their identifier. The node is registered again if it is gone, e.g. once the session expired.
+     */
+    static class ZkShard extends SolrShard {
+        // the suffix ZooKeeper appends to the name of a sequential node, the separator included
+        private static final int SEQUENCE_LENGTH = 11;
+
+        private final CloudSolrClient cloudSolrClient;
+        private final String path;
+        private final String id;
+
+        // guarded by this
+        private String node;
+        private List<String> children;
+        private Assignment assignment;
+
+        ZkShard(CloudSolrClient cloudSolrClient, String path, String id) {
+            this.cloudSolrClient = cloudSolrClient;
+            this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            this.id = id;
+            // until the members are known, scrape everything rather than nothing
+            this.assignment = new Assignment(Collections.singletonList(id), id, true);
+        }
+
+        @Override
+        public synchronized Assignment get() {
+            try {
+                cloudSolrClient.connect();
+                SolrZkClient zkClient = cloudSolrClient.getZkStateReader().getZkClient();
+                if (node == null || !zkClient.exists(path + "/" + node, true)) {
+                    zkClient.makePath(path, false, true);
+                    String created = zkClient.create(path + "/" + id + "-", id.getBytes(StandardCharsets.UTF_8), CreateMode.EPHEMERAL_SEQUENTIAL, true);
+                    node = created.substring(created.lastIndexOf('/') + 1);
+                    logger.info("Registered shard member " + created);
+                }
+
+                List<String> children = new ArrayList<>(zkClient.getChildren(path, null, true));
+                if (!children.equals(this.children)) {
+                    this.children = children;
+                    assignment = assignment(children, node);
+                    logger.info("Shard members changed: " + assignment.getMembers() + " members, leader " + assignment.isLeader());
+                }
+            } catch (KeeperException | SolrException e) {
+                logger.error("Read shard members failed, keeping the last ones: " + e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Read shard members interrupted, keeping the last ones");
+            }
+            return assignment;
+        }
+
+        /**
+         * @return the assignment of the member registered as a node, the leader being the member
+         *         registered first.
+         */
+        static Assignment assignment(List<String> children, String node) {
+            List<String> nodes = new ArrayList<>();
+            for (String child : children) {
+                if (child.length() > SEQUENCE_LENGTH) {
+                    nodes.add(child);
+                }
+            }
+            nodes.sort(Comparator.comparing(child -> child.substring(child.length() - SEQUENCE_LENGTH)));
+
+            List<String> members = new ArrayList<>();
+            for (String child : nodes) {
+                members.add(child.substring(0, child.length() - SEQUENCE_LENGTH));
+            }
+            String self = node.substring(0, node.length() - SEQUENCE_LENGTH);
+            if (!members.contains(self)) {
+                members.add(self);
+            }
+            // a node left by an expired session of this member counts as this member
+            return new Assignment(members, self, members.get(0).equals(self));
+        }
+
+        @Override
+        public synchronized void close() {
+            if (node == null) {
+                return;
+            }
+            try {
+                cloudSolrClient.getZkStateReader().getZkClient().delete(path + "/" + node, -1, true);
+            } catch (KeeperException | SolrException e) {
+                logger.warn("Unregister shard member failed: " + e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            node = null;
+        }
+    }
+}
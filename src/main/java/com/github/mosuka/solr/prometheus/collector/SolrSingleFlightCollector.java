@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SolrSingleFlightCollector
+ *
+ * Runs a collector on behalf of concurrent scrapes: a scrape that arrives while a collection is in
+ * flight waits for it and gets the same samples instead of starting another one. Optionally, the
+ * samples of a completed collection are also reused by scrapes arriving within a window after it
+ * completed. The scrapes served without a collection of their own are counted.
+ *
+ * The samples of a {@link SolrSeriesCollector} are shared as a view of its series store, which
+ * this collector holds until the next collection completes.
+ */
+public class SolrSingleFlightCollector extends Collector implements Collector.Describable, SolrSeriesCollector {
+    private final Collector collector;
+    private final long reuseNanos;
+
+    private final AtomicReference<CompletableFuture<SolrSeriesStore.View>> inFlight = new AtomicReference<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // guarded by this, the view of the last collection is retained until it is replaced
+    private SolrSeriesStore.View last;
+    private long lastNanoTime;
+
+    /**
+     * Constructor.
+     *
+     * @param collector the collector to run.
+     * @param reuseMillis how long the samples of a completed collection are reused, in milliseconds, or 0 to only share collections in flight.
+     */
+    public SolrSingleFlightCollector(Collector collector, long reuseMillis) {
+        this.collector = collector;
+        this.reuseNanos = reuseMillis * 1000000L;
+    }
+
+    /**
+     * @return the number of scrapes served by another scrape's collection.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Get the samples of the collection in flight, of a recent one, or of a new one run in the
+     * calling thread.
+     *
+     * @return the samples, shared with the other scrapes of the collection, retained for the caller.
+     */
+    SolrSeriesStore.View collectOnce() {
+        while (true) {
+            SolrSeriesStore.View recent = recent();
+            if (recent != null) {
+                coalesced.incrementAndGet();
+                return recent;
+            }
+
+            CompletableFuture<SolrSeriesStore.View> future = new CompletableFuture<>();
+            CompletableFuture<SolrSeriesStore.View> current;
+            while ((current = inFlight.get()) == null && !inFlight.compareAndSet(null, future)) {
+                // another scrape started a collection in between, attach to it
+            }
+            if (current != null) {
+                SolrSeriesStore.View view;
+                try {
+                    view = current.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+                if (view.retain()) {
+                    coalesced.incrementAndGet();
+                    return view;
+                }
+                // a later collection replaced it already, start over
+                continue;
+            }
+
+            try {
+                SolrSeriesStore.View view = collectInner();
+                SolrSeriesStore.View previous;
+                synchronized (this) {
+                    // a reference for this collector, on top of the caller's
+                    view.retain();
+                    previous = last;
+                    last = view;
+                    lastNanoTime = System.nanoTime();
+                }
+                if (previous != null) {
+                    previous.release();
+                }
+                future.complete(view);
+                return view;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.set(null);
+            }
+        }
+    }
+
+    /**
+     * @return the view of the last collection if it is recent enough to reuse, retained for the
+     *         caller, or null.
+     */
+    private synchronized SolrSeriesStore.View recent() {
+        if (last != null && System.nanoTime() - lastNanoTime < reuseNanos && last.retain()) {
+            return last;
+        }
+        return null;
+    }
+
+    private SolrSeriesStore.View collectInner() {
+        if (collector instanceof SolrSeriesCollector) {
+            return ((SolrSeriesCollector) collector).collectSeries();
+        }
+        return SolrSeriesStore.View.of(Collections.unmodifiableList(collector.collect()));
+    }
+
+    /**
+     * Describe coalescing status.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_coalesced_requests_total", Type.COUNTER, "Number of scrapes served by the collection of another scrape, in flight or recent.", new ArrayList<>()));
+        return metricFamilies;
+    }
+
+    /**
+     * Collect samples, sharing the collection with concurrent scrapes.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> collect() {
+        SolrSeriesStore.View view = collectSeries();
+        try {
+            return view.toList();
+        } finally {
+            view.release();
+        }
+    }
+
+    /**
+     * Collect samples, sharing the collection with concurrent scrapes.
+     *
+     * @return the view of the samples, retained for the caller, who must release it.
+     */
+    public SolrSeriesStore.View collectSeries() {
+        SolrSeriesStore.View view = collectOnce();
+
+        List<MetricFamilySamples.Sample> coalescedSample = new ArrayList<>();
+        coalescedSample.add(new MetricFamilySamples.Sample("solr_exporter_coalesced_requests_total", new ArrayList<>(), new ArrayList<>(), coalesced.get()));
+        List<MetricFamilySamples> metricFamiliesSamplesList = new ArrayList<>();
+        metricFamiliesSamplesList.add(new MetricFamilySamples("solr_exporter_coalesced_requests_total", Type.COUNTER, "Number of scrapes served by the collection of another scrape, in flight or recent.", coalescedSample));
+
+        return view.with(metricFamiliesSamplesList);
+    }
+}
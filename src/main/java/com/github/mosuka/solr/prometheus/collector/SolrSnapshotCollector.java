@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SolrSnapshotCollector
+ *
+ * Runs a collector on a fixed interval in the background and serves the last completed snapshot,
+ * so that a scrape of this collector returns immediately instead of fanning out to Solr. The
+ * snapshot of a {@link SolrSeriesCollector} is a view of its series store, held until the next
+ * snapshot replaces it.
+ */
+public class SolrSnapshotCollector extends Collector implements Collector.Describable, SolrSeriesCollector {
+    private static final Logger logger = LoggerFactory.getLogger(SolrSnapshotCollector.class);
+
+    private final Collector collector;
+    private final long intervalMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    // guarded by this, the snapshot is retained until it is replaced
+    private SolrSeriesStore.View snapshot = SolrSeriesStore.View.of(Collections.emptyList());
+    private long snapshotNanoTime = 0L;
+    private long lastSuccessMillis = 0L;
+
+    /**
+     * Constructor.
+     *
+     * @param collector the collector to run in the background.
+     * @param intervalMillis the interval between the end of a collection and the start of the next, in milliseconds.
+     */
+    public SolrSnapshotCollector(Collector collector, long intervalMillis) {
+        this.collector = collector;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Start collecting in the background.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "solr-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop collecting in the background.
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+    }
+
+    /**
+     * Run the collector and replace the snapshot.
+     */
+    void refresh() {
+        try {
+            SolrSeriesStore.View view;
+            if (collector instanceof SolrSeriesCollector) {
+                view = ((SolrSeriesCollector) collector).collectSeries();
+            } else {
+                view = SolrSeriesStore.View.of(Collections.unmodifiableList(collector.collect()));
+            }
+
+            SolrSeriesStore.View previous;
+            synchronized (this) {
+                previous = snapshot;
+                snapshot = view;
+                snapshotNanoTime = System.nanoTime();
+                lastSuccessMillis = System.currentTimeMillis();
+            }
+            previous.release();
+        } catch (Exception e) {
+            // keep serving the previous snapshot
+            logger.error("Background collection failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Describe snapshot status.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_snapshot_age_seconds", Type.GAUGE, "Age of the served snapshot, in seconds.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_snapshot_last_success_timestamp_seconds", Type.GAUGE, "Time the last background collection completed, in seconds since epoch.", new ArrayList<>()));
+        return metricFamilies;
+    }
+
+    /**
+     * Collect the last snapshot.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> collect() {
+        SolrSeriesStore.View view = collectSeries();
+        try {
+            return view.toList();
+        } finally {
+            view.release();
+        }
+    }
+
+    /**
+     * Collect the last snapshot.
+     *
+     * @return the view of the snapshot, retained for the caller, who must release it.
+     */
+    public SolrSeriesStore.View collectSeries() {
+        SolrSeriesStore.View snapshot;
+        long snapshotNanoTime;
+        long lastSuccessMillis;
+        synchronized (this) {
+            snapshot = this.snapshot;
+            // cannot fail, the snapshot is retained until it is replaced
+            snapshot.retain();
+            snapshotNanoTime = this.snapshotNanoTime;
+            lastSuccessMillis = this.lastSuccessMillis;
+        }
+
+        List<MetricFamilySamples> metricFamiliesSamplesList = new ArrayList<>(2);
+
+        double age = lastSuccessMillis == 0L ? Double.NaN : (System.nanoTime() - snapshotNanoTime) / 1.0E9;
+
+        List<MetricFamilySamples.Sample> ageSample = new ArrayList<>();
+        ageSample.add(new MetricFamilySamples.Sample("solr_exporter_snapshot_age_seconds", new ArrayList<>(), new ArrayList<>(), age));
+        metricFamiliesSamplesList.add(new MetricFamilySamples("solr_exporter_snapshot_age_seconds", Type.GAUGE, "Age of the served snapshot, in seconds.", ageSample));
+
+        List<MetricFamilySamples.Sample> lastSuccessSample = new ArrayList<>();
+        lastSuccessSample.add(new MetricFamilySamples.Sample("solr_exporter_snapshot_last_success_timestamp_seconds", new ArrayList<>(), new ArrayList<>(), lastSuccessMillis / 1000.0));
+        metricFamiliesSamplesList.add(new MetricFamilySamples("solr_exporter_snapshot_last_success_timestamp_seconds", Type.GAUGE, "Time the last background collection completed, in seconds since epoch.", lastSuccessSample));
+
+        return snapshot.with(metricFamiliesSamplesList);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import java.util.*;
+
+/**
+ * SolrTopology
+ *
+ * Immutable snapshot of the nodes, cores and collections to scrape.
+ */
+public class SolrTopology {
+    public static final SolrTopology EMPTY = new SolrTopology(new ArrayList<>(), new ArrayList<>(), new HashMap<>(), new HashMap<>());
+
+    private final List<String> baseUrls;
+    private final List<String> collections;
+    private final Map<String, List<String>> coresByBaseUrl;
+    private final Map<String, List<String>> baseUrlsByCollection;
+    private final Map<String, Map<String, List<String>>> shardsByCollection;
+
+    /**
+     * Constructor.
+     *
+     * @param baseUrls the base URLs of the nodes to scrape.
+     * @param collections the collection names.
+     * @param coresByBaseUrl the core names hosted by each node.
+     * @param baseUrlsByCollection the base URLs of the nodes hosting each collection.
+     */
+    public SolrTopology(List<String> baseUrls, List<String> collections, Map<String, List<String>> coresByBaseUrl, Map<String, List<String>> baseUrlsByCollection) {
+        this(baseUrls, collections, coresByBaseUrl, baseUrlsByCollection, new HashMap<>());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param baseUrls the base URLs of the nodes to scrape.
+     * @param collections the collection names.
+     * @param coresByBaseUrl the core names hosted by each node.
+     * @param baseUrlsByCollection the base URLs of the nodes hosting each collection.
+     * @param shardsByCollection the active replicas on live nodes of each shard of each collection, as core URLs.
+     */
+    public SolrTopology(List<String> baseUrls, List<String> collections, Map<String, List<String>> coresByBaseUrl, Map<String, List<String>> baseUrlsByCollection,
+                        Map<String, Map<String, List<String>>> shardsByCollection) {
+        this.baseUrls = Collections.unmodifiableList(new ArrayList<>(baseUrls));
+        this.collections = Collections.unmodifiableList(new ArrayList<>(collections));
+        this.coresByBaseUrl = unmodifiableCopy(coresByBaseUrl);
+        this.baseUrlsByCollection = unmodifiableCopy(baseUrlsByCollection);
+
+        Map<String, Map<String, List<String>>> shardsCopy = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, List<String>>> entry : shardsByCollection.entrySet()) {
+            shardsCopy.put(entry.getKey(), unmodifiableCopy(entry.getValue()));
+        }
+        this.shardsByCollection = Collections.unmodifiableMap(shardsCopy);
+    }
+
+    public List<String> getBaseUrls() {
+        return baseUrls;
+    }
+
+    public List<String> getCollections() {
+        return collections;
+    }
+
+    public List<String> getCores(String baseUrl) {
+        List<String> cores = coresByBaseUrl.get(baseUrl);
+        return cores != null ? cores : Collections.emptyList();
+    }
+
+    public List<String> getBaseUrls(String collection) {
+        List<String> collectionBaseUrls = baseUrlsByCollection.get(collection);
+        return collectionBaseUrls != null ? collectionBaseUrls : Collections.emptyList();
+    }
+
+    /**
+     * Get the shards of a collection.
+     *
+     * @param collection the collection name.
+     * @return the core URLs of the active replicas on live nodes, by shard name.
+     */
+    public Map<String, List<String>> getShards(String collection) {
+        Map<String, List<String>> shards = shardsByCollection.get(collection);
+        return shards != null ? shards : Collections.emptyMap();
+    }
+
+    private static Map<String, List<String>> unmodifiableCopy(Map<String, List<String>> map) {
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+}
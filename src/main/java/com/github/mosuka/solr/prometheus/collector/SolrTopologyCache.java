@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrCoreStatusScraper;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.cloud.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SolrTopologyCache
+ *
+ * Keeps the topology of the scraped Solr in memory so that scrapes do not issue discovery requests.
+ * In SolrCloud mode it is built from the cluster state that the {@link ZkStateReader} of the
+ * {@link CloudSolrClient} maintains, and rebuilt when ZooKeeper watches report a change. The nodes
+ * scraped are those hosting a replica of a collection, as listed by CLUSTERSTATUS, whether or not
+ * they are live; live nodes without replicas are not scraped.
+ * In standalone mode the cores reported by CoreAdmin STATUS are cached for a fixed time.
+ */
+public abstract class SolrTopologyCache implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SolrTopologyCache.class);
+
+    public static final long DEFAULT_TTL_MILLIS = 60000L;
+
+    /**
+     * Create the topology cache of a Solr client.
+     *
+     * @param solrClient the client the collector scrapes through.
+     * @return the topology cache.
+     */
+    public static SolrTopologyCache create(SolrClient solrClient) {
+        if (solrClient instanceof CloudSolrClient) {
+            return new ZkTopologyCache((CloudSolrClient) solrClient);
+        } else {
+            return new CoreAdminTopologyCache((HttpSolrClient) solrClient, DEFAULT_TTL_MILLIS);
+        }
+    }
+
+    /**
+     * Get the current topology.
+     *
+     * @return a consistent topology snapshot.
+     */
+    public abstract SolrTopology get() throws SolrServerException, IOException;
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Topology built from the ZooKeeper cluster state.
+     */
+    static class ZkTopologyCache extends SolrTopologyCache {
+        private final CloudSolrClient cloudSolrClient;
+        private final ZkStateReader zkStateReader;
+
+        private final Map<String, CollectionWatcher> watchedCollections = new ConcurrentHashMap<>();
+        private final LiveNodesListener liveNodesListener = (oldLiveNodes, newLiveNodes) -> invalidate();
+
+        private volatile boolean dirty = true;
+        private volatile SolrTopology topology = SolrTopology.EMPTY;
+        private volatile boolean listening = false;
+
+        ZkTopologyCache(CloudSolrClient cloudSolrClient) {
+            this.cloudSolrClient = cloudSolrClient;
+            this.zkStateReader = null;
+        }
+
+        /**
+         * Constructor for a state reader that is already connected.
+         *
+         * @param zkStateReader the state reader.
+         */
+        ZkTopologyCache(ZkStateReader zkStateReader) {
+            this.cloudSolrClient = null;
+            this.zkStateReader = zkStateReader;
+        }
+
+        private void invalidate() {
+            dirty = true;
+        }
+
+        @Override
+        public SolrTopology get() throws IOException {
+            ZkStateReader zkStateReader = getZkStateReader();
+            ClusterState clusterState = zkStateReader.getClusterState();
+
+            // the collection list is kept current by ZkStateReader; new collections need a watcher
+            if (!dirty && watchedCollections.keySet().containsAll(clusterState.getCollectionStates().keySet())) {
+                return topology;
+            }
+
+            synchronized (this) {
+                if (dirty || !watchedCollections.keySet().containsAll(clusterState.getCollectionStates().keySet())) {
+                    dirty = false;
+                    topology = build(zkStateReader);
+                }
+                return topology;
+            }
+        }
+
+        private ZkStateReader getZkStateReader() throws IOException {
+            ZkStateReader zkStateReader = this.zkStateReader;
+            if (zkStateReader == null) {
+                try {
+                    cloudSolrClient.connect();
+                } catch (SolrException e) {
+                    throw new IOException(e);
+                }
+                zkStateReader = cloudSolrClient.getZkStateReader();
+            }
+            if (!listening) {
+                synchronized (this) {
+                    if (!listening) {
+                        zkStateReader.registerLiveNodesListener(liveNodesListener);
+                        listening = true;
+                    }
+                }
+            }
+            return zkStateReader;
+        }
+
+        private SolrTopology build(ZkStateReader zkStateReader) {
+            ClusterState clusterState = zkStateReader.getClusterState();
+            Set<String> liveNodes = clusterState.getLiveNodes();
+
+            // the nodes hosting a replica, live or not, like the base_url of the replicas in CLUSTERSTATUS
+            Set<String> nodeNames = new TreeSet<>();
+            Map<String, List<String>> coresByBaseUrl = new LinkedHashMap<>();
+
+            List<String> collections = new ArrayList<>();
+            Map<String, List<String>> baseUrlsByCollection = new LinkedHashMap<>();
+            Map<String, Map<String, List<String>>> shardsByCollection = new LinkedHashMap<>();
+            for (String collection : new TreeSet<>(clusterState.getCollectionStates().keySet())) {
+                DocCollection docCollection = clusterState.getCollectionOrNull(collection);
+                if (docCollection == null) {
+                    continue;
+                }
+                if (!watchedCollections.containsKey(collection)) {
+                    // a watched collection is kept in memory and reported on change
+                    CollectionWatcher collectionWatcher = new CollectionWatcher(collection, docCollection.getZNodeVersion());
+                    watchedCollections.put(collection, collectionWatcher);
+                    zkStateReader.registerCollectionStateWatcher(collection, collectionWatcher);
+                }
+                collections.add(collection);
+
+                List<String> collectionBaseUrls = new ArrayList<>();
+                for (Replica replica : docCollection.getReplicas()) {
+                    nodeNames.add(replica.getNodeName());
+                    if (!liveNodes.contains(replica.getNodeName())) {
+                        continue;
+                    }
+                    String baseUrl = zkStateReader.getBaseUrlForNodeName(replica.getNodeName());
+                    coresByBaseUrl.computeIfAbsent(baseUrl, k -> new ArrayList<>()).add(replica.getCoreName());
+                    if (!collectionBaseUrls.contains(baseUrl)) {
+                        collectionBaseUrls.add(baseUrl);
+                    }
+                }
+                baseUrlsByCollection.put(collection, collectionBaseUrls);
+
+                Map<String, List<String>> shards = new LinkedHashMap<>();
+                for (Slice slice : docCollection.getActiveSlices()) {
+                    List<String> activeReplicas = new ArrayList<>();
+                    for (Replica replica : slice.getReplicas()) {
+                        if (liveNodes.contains(replica.getNodeName()) && replica.getState() == Replica.State.ACTIVE) {
+                            activeReplicas.add(SolrCoreStatusScraper.coreUrl(zkStateReader.getBaseUrlForNodeName(replica.getNodeName()), replica.getCoreName()));
+                        }
+                    }
+                    shards.put(slice.getName(), activeReplicas);
+                }
+                shardsByCollection.put(collection, shards);
+            }
+            watchedCollections.keySet().retainAll(clusterState.getCollectionStates().keySet());
+
+            List<String> baseUrls = new ArrayList<>();
+            for (String nodeName : nodeNames) {
+                baseUrls.add(zkStateReader.getBaseUrlForNodeName(nodeName));
+            }
+
+            logger.info("Topology updated: " + baseUrls.size() + " nodes, " + collections.size() + " collections");
+
+            return new SolrTopology(baseUrls, collections, coresByBaseUrl, baseUrlsByCollection, shardsByCollection);
+        }
+
+        @Override
+        public void close() {
+            if (!listening) {
+                return;
+            }
+            ZkStateReader zkStateReader = this.zkStateReader != null ? this.zkStateReader : cloudSolrClient.getZkStateReader();
+            zkStateReader.removeLiveNodesListener(liveNodesListener);
+            for (CollectionWatcher collectionWatcher : watchedCollections.values()) {
+                zkStateReader.removeCollectionStateWatcher(collectionWatcher.collection, collectionWatcher);
+            }
+            watchedCollections.clear();
+        }
+
+        /**
+         * Invalidates the topology when the state of a collection changes.
+         */
+        private class CollectionWatcher implements CollectionStateWatcher {
+            private final String collection;
+            // the version of the state the topology was built from
+            private final int zNodeVersion;
+            private final AtomicBoolean registered = new AtomicBoolean(false);
+
+            CollectionWatcher(String collection, int zNodeVersion) {
+                this.collection = collection;
+                this.zNodeVersion = zNodeVersion;
+            }
+
+            @Override
+            public boolean onStateChanged(Set<String> liveNodes, DocCollection collectionState) {
+                // the watcher is called once on registration, with the state the topology was
+                // likely just built from
+                boolean first = registered.compareAndSet(false, true);
+                if (!first || collectionState == null || collectionState.getZNodeVersion() != zNodeVersion) {
+                    invalidate();
+                }
+                // stop watching deleted collections
+                if (collectionState == null) {
+                    watchedCollections.remove(collection, this);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Topology built from CoreAdmin STATUS of a standalone Solr, cached for a fixed time.
+     */
+    static class CoreAdminTopologyCache extends SolrTopologyCache {
+        private final HttpSolrClient httpSolrClient;
+        private final long ttlMillis;
+
+        private SolrTopology topology;
+        private long expiresAt;
+
+        CoreAdminTopologyCache(HttpSolrClient httpSolrClient, long ttlMillis) {
+            this.httpSolrClient = httpSolrClient;
+            this.ttlMillis = ttlMillis;
+        }
+
+        @Override
+        public synchronized SolrTopology get() throws SolrServerException, IOException {
+            long now = System.nanoTime();
+            if (topology == null || now - expiresAt >= 0) {
+                String baseUrl = httpSolrClient.getBaseURL();
+                List<String> cores = SolrCollector.getCores(httpSolrClient);
+
+                topology = new SolrTopology(
+                        Collections.singletonList(baseUrl),
+                        Collections.emptyList(),
+                        Collections.singletonMap(baseUrl, cores),
+                        Collections.emptyMap());
+                expiresAt = now + ttlMillis * 1000000L;
+            }
+            return topology;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector.config;
+
+/**
+ * SolrTargetConfig
+ *
+ * A Solr cluster scraped by an exporter serving several of them: standalone with a base URL, or
+ * SolrCloud with a ZooKeeper connection string, and the configuration file of its collector.
+ */
+public class SolrTargetConfig {
+    private String name = "";
+    private String baseUrl = "";
+    private String zkHost = "";
+    private String config = "";
+
+    /**
+     * @return the name of the target in the target parameter of a probe.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public String getZkHost() {
+        return zkHost;
+    }
+
+    public void setZkHost(String zkHost) {
+        this.zkHost = zkHost;
+    }
+
+    /**
+     * @return the configuration file of the collector, or empty for the one given on the command line.
+     */
+    public String getConfig() {
+        return config;
+    }
+
+    public void setConfig(String config) {
+        this.config = config;
+    }
+
+    /**
+     * @return the base URL or the ZooKeeper connection string, whichever is set.
+     */
+    public String getConnectionString() {
+        return baseUrl != null && !baseUrl.isEmpty() ? baseUrl : zkHost;
+    }
+}
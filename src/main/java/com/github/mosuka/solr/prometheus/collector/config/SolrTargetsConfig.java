@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector.config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SolrTargetsConfig
+ *
+ * The Solr clusters scraped by an exporter serving several of them.
+ */
+public class SolrTargetsConfig {
+    private List<SolrTargetConfig> targets = new ArrayList<>();
+
+    public List<SolrTargetConfig> getTargets() {
+        return targets;
+    }
+
+    public void setTargets(List<SolrTargetConfig> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * Check that there is a target, and that each has a name of its own and either a base URL or a
+     * ZooKeeper connection string.
+     *
+     * @throws IllegalArgumentException if a target is invalid.
+     */
+    public void validate() {
+        if (targets == null || targets.isEmpty()) {
+            throw new IllegalArgumentException("No target is configured");
+        }
+        Set<String> names = new HashSet<>();
+        for (SolrTargetConfig target : targets) {
+            if (isEmpty(target.getName())) {
+                throw new IllegalArgumentException("Target name is empty");
+            }
+            if (!names.add(target.getName())) {
+                throw new IllegalArgumentException("Target " + target.getName() + " is configured more than once");
+            }
+            if (isEmpty(target.getBaseUrl()) == isEmpty(target.getZkHost())) {
+                throw new IllegalArgumentException("Target " + target.getName() + " needs either a base URL or a ZooKeeper host");
+            }
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
@@ -16,15 +16,27 @@
  */
 package com.github.mosuka.solr.prometheus.exporter;
 
+import com.github.mosuka.solr.prometheus.collector.SolrCircuitBreaker;
+import com.github.mosuka.solr.prometheus.collector.SolrClientRegistry;
 import com.github.mosuka.solr.prometheus.collector.SolrCollector;
+import com.github.mosuka.solr.prometheus.collector.SolrSeriesCollector;
+import com.github.mosuka.solr.prometheus.collector.SolrShard;
+import com.github.mosuka.solr.prometheus.collector.SolrSingleFlightCollector;
+import com.github.mosuka.solr.prometheus.collector.SolrSnapshotCollector;
 import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.collector.config.SolrTargetConfig;
+import com.github.mosuka.solr.prometheus.collector.config.SolrTargetsConfig;
+import com.github.mosuka.solr.prometheus.scraper.SolrAsyncClient;
+import com.github.mosuka.solr.prometheus.scraper.SolrHedger;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraperExecutor;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraperMetrics;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
@@ -32,15 +44,21 @@ import org.apache.solr.client.solrj.impl.NoOpResponseParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
 
 import javax.management.MalformedObjectNameException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -104,15 +122,194 @@ public class SolrExporter {
     private static final Integer ARG_NUM_THREADS_DEFAULT = 1;
     private static final String ARG_NUM_THREADS_HELP = "specify number of threads";
 
+    /**
+     * -q, --queue-size
+     */
+    private static final String[] ARG_QUEUE_SIZE_FLAGS = { "-q", "--queue-size" };
+    private static final String ARG_QUEUE_SIZE_METAVAR = "QUEUE_SIZE";
+    private static final String ARG_QUEUE_SIZE_DEST = "queueSize";
+    private static final Integer ARG_QUEUE_SIZE_DEFAULT = SolrScraperExecutor.DEFAULT_QUEUE_SIZE;
+    private static final String ARG_QUEUE_SIZE_HELP = "specify maximum number of scrape tasks waiting for a thread";
+
+    /**
+     * -t, --task-timeout
+     */
+    private static final String[] ARG_TASK_TIMEOUT_FLAGS = { "-t", "--task-timeout" };
+    private static final String ARG_TASK_TIMEOUT_METAVAR = "TASK_TIMEOUT";
+    private static final String ARG_TASK_TIMEOUT_DEST = "taskTimeout";
+    private static final Integer ARG_TASK_TIMEOUT_DEFAULT = 60;
+    private static final String ARG_TASK_TIMEOUT_HELP = "specify deadline of each scrape task in seconds";
+
+    /**
+     * -i, --scrape-interval
+     */
+    private static final String[] ARG_SCRAPE_INTERVAL_FLAGS = { "-i", "--scrape-interval" };
+    private static final String ARG_SCRAPE_INTERVAL_METAVAR = "SCRAPE_INTERVAL";
+    private static final String ARG_SCRAPE_INTERVAL_DEST = "scrapeInterval";
+    private static final Integer ARG_SCRAPE_INTERVAL_DEFAULT = 0;
+    private static final String ARG_SCRAPE_INTERVAL_HELP = "specify interval in seconds to scrape Solr in the background and serve the last snapshot (0 scrapes Solr on every request)";
+
+    /**
+     * -r, --reuse-window
+     */
+    private static final String[] ARG_REUSE_WINDOW_FLAGS = { "-r", "--reuse-window" };
+    private static final String ARG_REUSE_WINDOW_METAVAR = "REUSE_WINDOW";
+    private static final String ARG_REUSE_WINDOW_DEST = "reuseWindow";
+    private static final Integer ARG_REUSE_WINDOW_DEFAULT = 0;
+    private static final String ARG_REUSE_WINDOW_HELP = "specify how long in seconds the result of a scrape is also served to later requests (0 only shares a scrape with the requests arriving while it runs)";
+
+    /**
+     * --max-connections-per-host
+     */
+    private static final String[] ARG_MAX_CONNECTIONS_PER_HOST_FLAGS = { "--max-connections-per-host" };
+    private static final String ARG_MAX_CONNECTIONS_PER_HOST_METAVAR = "MAX_CONNECTIONS_PER_HOST";
+    private static final String ARG_MAX_CONNECTIONS_PER_HOST_DEST = "maxConnectionsPerHost";
+    private static final Integer ARG_MAX_CONNECTIONS_PER_HOST_DEFAULT = SolrClientRegistry.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private static final String ARG_MAX_CONNECTIONS_PER_HOST_HELP = "specify maximum number of connections to each Solr node in SolrCloud mode";
+
+    /**
+     * --connect-timeout
+     */
+    private static final String[] ARG_CONNECT_TIMEOUT_FLAGS = { "--connect-timeout" };
+    private static final String ARG_CONNECT_TIMEOUT_METAVAR = "CONNECT_TIMEOUT";
+    private static final String ARG_CONNECT_TIMEOUT_DEST = "connectTimeout";
+    private static final Integer ARG_CONNECT_TIMEOUT_DEFAULT = SolrClientRegistry.DEFAULT_CONNECT_TIMEOUT;
+    private static final String ARG_CONNECT_TIMEOUT_HELP = "specify connect timeout in milliseconds to each Solr node in SolrCloud mode";
+
+    /**
+     * --socket-timeout
+     */
+    private static final String[] ARG_SOCKET_TIMEOUT_FLAGS = { "--socket-timeout" };
+    private static final String ARG_SOCKET_TIMEOUT_METAVAR = "SOCKET_TIMEOUT";
+    private static final String ARG_SOCKET_TIMEOUT_DEST = "socketTimeout";
+    private static final Integer ARG_SOCKET_TIMEOUT_DEFAULT = SolrClientRegistry.DEFAULT_SOCKET_TIMEOUT;
+    private static final String ARG_SOCKET_TIMEOUT_HELP = "specify socket timeout in milliseconds to each Solr node in SolrCloud mode";
+
+    /**
+     * --http-threads
+     */
+    private static final String[] ARG_HTTP_THREADS_FLAGS = { "--http-threads" };
+    private static final String ARG_HTTP_THREADS_METAVAR = "HTTP_THREADS";
+    private static final String ARG_HTTP_THREADS_DEST = "httpThreads";
+    private static final Integer ARG_HTTP_THREADS_DEFAULT = SolrExporterHttpServer.DEFAULT_NUM_THREADS;
+    private static final String ARG_HTTP_THREADS_HELP = "specify number of threads serving the metrics endpoint";
+
+    /**
+     * --io-threads
+     */
+    private static final String[] ARG_IO_THREADS_FLAGS = { "--io-threads" };
+    private static final String ARG_IO_THREADS_METAVAR = "IO_THREADS";
+    private static final String ARG_IO_THREADS_DEST = "ioThreads";
+    // the non-blocking client does not authenticate, so it is only used when asked for
+    private static final Integer ARG_IO_THREADS_DEFAULT = 0;
+    private static final String ARG_IO_THREADS_HELP = "specify number of threads sending requests to Solr nodes and reading their responses without blocking (default 0, which sends each request from a scraper thread and waits for the response)";
+
+    /**
+     * --targets-file
+     */
+    private static final String[] ARG_TARGETS_FILE_FLAGS = { "--targets-file" };
+    private static final String ARG_TARGETS_FILE_METAVAR = "TARGETS";
+    private static final String ARG_TARGETS_FILE_DEST = "targetsFile";
+    private static final String ARG_TARGETS_FILE_DEFAULT = "";
+    private static final String ARG_TARGETS_FILE_HELP = "specify file listing the Solr clusters to scrape, each served on /probe?target=NAME (instead of -b or -z)";
+
+    /**
+     * --shard-index
+     */
+    private static final String[] ARG_SHARD_INDEX_FLAGS = { "--shard-index" };
+    private static final String ARG_SHARD_INDEX_METAVAR = "SHARD_INDEX";
+    private static final String ARG_SHARD_INDEX_DEST = "shardIndex";
+    private static final Integer ARG_SHARD_INDEX_DEFAULT = 0;
+    private static final String ARG_SHARD_INDEX_HELP = "specify number of this instance among the instances sharing the Solr nodes, from 0 (default 0, the instance 0 also scrapes the collections and queries sections)";
+
+    /**
+     * --shard-count
+     */
+    private static final String[] ARG_SHARD_COUNT_FLAGS = { "--shard-count" };
+    private static final String ARG_SHARD_COUNT_METAVAR = "SHARD_COUNT";
+    private static final String ARG_SHARD_COUNT_DEST = "shardCount";
+    private static final Integer ARG_SHARD_COUNT_DEFAULT = 1;
+    private static final String ARG_SHARD_COUNT_HELP = "specify number of instances sharing the Solr nodes (default 1)";
+
+    /**
+     * --shard-zk-path
+     */
+    private static final String[] ARG_SHARD_ZK_PATH_FLAGS = { "--shard-zk-path" };
+    private static final String ARG_SHARD_ZK_PATH_METAVAR = "SHARD_ZK_PATH";
+    private static final String ARG_SHARD_ZK_PATH_DEST = "shardZkPath";
+    private static final String ARG_SHARD_ZK_PATH_DEFAULT = "";
+    private static final String ARG_SHARD_ZK_PATH_HELP = "specify ZooKeeper path of SolrCloud the instances sharing the Solr nodes register under, not allowed with --shard-index or --shard-count (for example '/solr-exporter')";
+
+    /**
+     * --breaker-failures
+     */
+    private static final String[] ARG_BREAKER_FAILURES_FLAGS = { "--breaker-failures" };
+    private static final String ARG_BREAKER_FAILURES_METAVAR = "BREAKER_FAILURES";
+    private static final String ARG_BREAKER_FAILURES_DEST = "breakerFailures";
+    private static final Integer ARG_BREAKER_FAILURES_DEFAULT = SolrCircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+    private static final String ARG_BREAKER_FAILURES_HELP = "specify number of scrapes in a row a Solr node fails in before it is skipped (0 never skips it)";
+
+    /**
+     * --breaker-slow-threshold
+     */
+    private static final String[] ARG_BREAKER_SLOW_THRESHOLD_FLAGS = { "--breaker-slow-threshold" };
+    private static final String ARG_BREAKER_SLOW_THRESHOLD_METAVAR = "BREAKER_SLOW_THRESHOLD";
+    private static final String ARG_BREAKER_SLOW_THRESHOLD_DEST = "breakerSlowThreshold";
+    private static final Integer ARG_BREAKER_SLOW_THRESHOLD_DEFAULT = 0;
+    private static final String ARG_BREAKER_SLOW_THRESHOLD_HELP = "specify time in milliseconds a request to a Solr node may take before it counts as failed (0 for no limit)";
+
+    /**
+     * --breaker-open-duration
+     */
+    private static final String[] ARG_BREAKER_OPEN_DURATION_FLAGS = { "--breaker-open-duration" };
+    private static final String ARG_BREAKER_OPEN_DURATION_METAVAR = "BREAKER_OPEN_DURATION";
+    private static final String ARG_BREAKER_OPEN_DURATION_DEST = "breakerOpenDuration";
+    private static final Integer ARG_BREAKER_OPEN_DURATION_DEFAULT = (int) TimeUnit.MILLISECONDS.toSeconds(SolrCircuitBreaker.DEFAULT_OPEN_MILLIS);
+    private static final String ARG_BREAKER_OPEN_DURATION_HELP = "specify time in seconds a failing Solr node is skipped before a request probes it";
+
+    /**
+     * --hedge-delay
+     */
+    private static final String[] ARG_HEDGE_DELAY_FLAGS = { "--hedge-delay" };
+    private static final String ARG_HEDGE_DELAY_METAVAR = "HEDGE_DELAY";
+    private static final String ARG_HEDGE_DELAY_DEST = "hedgeDelay";
+    private static final Integer ARG_HEDGE_DELAY_DEFAULT = 0;
+    private static final String ARG_HEDGE_DELAY_HELP = "specify time in milliseconds after which a request through SolrCloud not answered yet is sent again to another replica (0 never sends it again)";
+
     private int port;
     private SolrClient solrClient;
     private SolrCollectorConfig config;
+    private SolrTargetsConfig targetsConfig;
+    private File configFile;
     private int numThreads;
+    private int queueSize;
+    private int taskTimeout;
+    private int scrapeInterval = ARG_SCRAPE_INTERVAL_DEFAULT;
+    private int reuseWindow = ARG_REUSE_WINDOW_DEFAULT;
+    private int maxConnectionsPerHost = ARG_MAX_CONNECTIONS_PER_HOST_DEFAULT;
+    private int connectTimeout = ARG_CONNECT_TIMEOUT_DEFAULT;
+    private int socketTimeout = ARG_SOCKET_TIMEOUT_DEFAULT;
+    private int httpThreads = ARG_HTTP_THREADS_DEFAULT;
+    private int ioThreads = 0;
+    private int shardIndex = ARG_SHARD_INDEX_DEFAULT;
+    private int shardCount = ARG_SHARD_COUNT_DEFAULT;
+    private String shardZkPath = ARG_SHARD_ZK_PATH_DEFAULT;
+    private int breakerFailures = ARG_BREAKER_FAILURES_DEFAULT;
+    private int breakerSlowThreshold = ARG_BREAKER_SLOW_THRESHOLD_DEFAULT;
+    private int breakerOpenDuration = ARG_BREAKER_OPEN_DURATION_DEFAULT;
+    private int hedgeDelay = ARG_HEDGE_DELAY_DEFAULT;
 
     CollectorRegistry registry = new CollectorRegistry();
 
-    private HTTPServer httpServer;
-    private SolrCollector collector;
+    private SolrExporterHttpServer httpServer;
+    private SolrScraperExecutor executor;
+    private SolrClientRegistry clientRegistry;
+    private SolrScraperMetrics scraperMetrics;
+    private SolrAsyncClient asyncClient;
+    private SolrHedger hedger;
+    private List<SolrClient> targetClients = new ArrayList<>();
+    private List<SolrCollector> collectors = new ArrayList<>();
+    private List<SolrSnapshotCollector> snapshotCollectors = new ArrayList<>();
 
     /**
      * Constructor.
@@ -126,6 +323,20 @@ public class SolrExporter {
         this(port, solrClient, new Yaml().loadAs(new FileReader(configFile), SolrCollectorConfig.class), numThreads);
     }
 
+    /**
+     * Constructor.
+     *
+     * @param port the port number to start server on.
+     * @param solrClient the solr client.
+     * @param configFile  the configuration file path.
+     * @param numThreads the number of threads.
+     * @param queueSize the maximum number of scrape tasks waiting for a thread.
+     * @param taskTimeout the deadline of each scrape task in seconds.
+     */
+    public SolrExporter(int port, SolrClient solrClient, File configFile, int numThreads, int queueSize, int taskTimeout) throws IOException {
+        this(port, solrClient, new Yaml().loadAs(new FileReader(configFile), SolrCollectorConfig.class), numThreads, queueSize, taskTimeout);
+    }
+
     /**
      * Constructor.
      *
@@ -135,12 +346,150 @@ public class SolrExporter {
      * @param numThreads the number of threads.
      */
     public SolrExporter(int port, SolrClient solrClient, SolrCollectorConfig config, int numThreads) {
+        this(port, solrClient, config, numThreads, ARG_QUEUE_SIZE_DEFAULT, ARG_TASK_TIMEOUT_DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param port the port number to start server on.
+     * @param solrClient the solr connection string.
+     * @param config the configuration.
+     * @param numThreads the number of threads.
+     * @param queueSize the maximum number of scrape tasks waiting for a thread.
+     * @param taskTimeout the deadline of each scrape task in seconds.
+     */
+    public SolrExporter(int port, SolrClient solrClient, SolrCollectorConfig config, int numThreads, int queueSize, int taskTimeout) {
         super();
 
         this.port = port;
         this.solrClient = solrClient;
         this.config = config;
         this.numThreads = numThreads;
+        this.queueSize = queueSize;
+        this.taskTimeout = taskTimeout;
+    }
+
+    /**
+     * Constructor of an exporter scraping several Solr clusters, the samples of each being served on
+     * /probe?target=, the target being the name, base URL or ZooKeeper host of the cluster. The
+     * executor, the connection pool and the rules of a configuration file are shared by the
+     * clusters.
+     *
+     * @param port the port number to start server on.
+     * @param targetsConfig the clusters.
+     * @param configFile the configuration file of the clusters that do not specify theirs.
+     * @param numThreads the number of threads.
+     * @param queueSize the maximum number of scrape tasks waiting for a thread.
+     * @param taskTimeout the deadline of each scrape task in seconds.
+     */
+    public SolrExporter(int port, SolrTargetsConfig targetsConfig, File configFile, int numThreads, int queueSize, int taskTimeout) {
+        super();
+
+        targetsConfig.validate();
+        this.port = port;
+        this.targetsConfig = targetsConfig;
+        this.configFile = configFile;
+        this.numThreads = numThreads;
+        this.queueSize = queueSize;
+        this.taskTimeout = taskTimeout;
+    }
+
+    /**
+     * Scrape Solr in the background and serve the last snapshot.
+     *
+     * @param scrapeInterval the interval in seconds, or 0 to scrape Solr on every request.
+     */
+    public void setScrapeInterval(int scrapeInterval) {
+        this.scrapeInterval = scrapeInterval;
+    }
+
+    /**
+     * Serve the result of a scrape to the requests arriving while it runs and, optionally, for a
+     * while after. Only applies when Solr is scraped on every request.
+     *
+     * @param reuseWindow how long in seconds the result is served after the scrape completes.
+     */
+    public void setReuseWindow(int reuseWindow) {
+        this.reuseWindow = reuseWindow;
+    }
+
+    /**
+     * Configure the connections to SolrCloud nodes.
+     *
+     * @param maxConnectionsPerHost the maximum number of connections to each node.
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param socketTimeout the socket timeout in milliseconds.
+     */
+    public void setHttpClientSettings(int maxConnectionsPerHost, int connectTimeout, int socketTimeout) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Configure the server of the metrics endpoint.
+     *
+     * @param httpThreads the number of threads serving requests.
+     */
+    public void setHttpThreads(int httpThreads) {
+        this.httpThreads = httpThreads;
+    }
+
+    /**
+     * Send the requests to Solr nodes with a non-blocking client, so that scraper threads only parse
+     * responses and apply rules.
+     *
+     * @param ioThreads the number of I/O threads, or 0 to send requests from the scraper threads.
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Share the Solr nodes and collections with other instances, numbered statically.
+     *
+     * @param shardIndex the number of this instance, from 0.
+     * @param shardCount the number of instances.
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        // fail before starting rather than on the first scrape
+        SolrShard.of(shardIndex, shardCount);
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Share the Solr nodes and collections of SolrCloud with the other instances registered under a
+     * ZooKeeper path, instead of the instances numbered by {@link #setShard(int, int)}. Standalone
+     * Solr is not shared.
+     *
+     * @param shardZkPath the path, or an empty string not to register.
+     */
+    public void setShardZkPath(String shardZkPath) {
+        this.shardZkPath = shardZkPath;
+    }
+
+    /**
+     * Skip the Solr nodes that keep failing or answering slowly, probing them once in a while.
+     *
+     * @param breakerFailures the number of scrapes in a row a node fails in before it is skipped, or 0 never to skip it.
+     * @param breakerSlowThreshold the time in milliseconds a request may take before it counts as failed, or 0 for no limit.
+     * @param breakerOpenDuration the time in seconds a node is skipped before it is probed.
+     */
+    public void setCircuitBreaker(int breakerFailures, int breakerSlowThreshold, int breakerOpenDuration) {
+        this.breakerFailures = breakerFailures;
+        this.breakerSlowThreshold = breakerSlowThreshold;
+        this.breakerOpenDuration = breakerOpenDuration;
+    }
+
+    /**
+     * Send the requests through SolrCloud that are not answered in time again, to another replica.
+     *
+     * @param hedgeDelay the time in milliseconds to wait for an answer, or 0 to send each request once.
+     */
+    public void setHedgeDelay(int hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
     }
 
     /**
@@ -150,11 +499,92 @@ public class SolrExporter {
     public void start() throws MalformedObjectNameException, IOException {
         InetSocketAddress socket = new InetSocketAddress(port);
 
-        this.collector = new SolrCollector(solrClient, config, numThreads);
+        this.executor = new SolrScraperExecutor(numThreads, queueSize, TimeUnit.SECONDS.toMillis(taskTimeout));
+        this.clientRegistry = new SolrClientRegistry(maxConnectionsPerHost, connectTimeout, socketTimeout);
+        this.scraperMetrics = new SolrScraperMetrics();
+        if (ioThreads > 0) {
+            this.asyncClient = new SolrAsyncClient(ioThreads, maxConnectionsPerHost, connectTimeout, socketTimeout);
+        }
+        if (hedgeDelay > 0) {
+            this.hedger = new SolrHedger(hedgeDelay, numThreads);
+        }
+        this.registry.register(this.executor);
+        this.registry.register(this.clientRegistry);
+        this.registry.register(this.scraperMetrics);
+        if (this.asyncClient != null) {
+            this.registry.register(this.asyncClient);
+        }
 
-        this.registry.register(this.collector);
+        if (targetsConfig == null) {
+            // the samples of Solr are written from the series store, not through the registry
+            SolrSeriesCollector seriesCollector = serve(new SolrCollector(solrClient, config, executor, clientRegistry, scraperMetrics, asyncClient), solrClient);
+            this.httpServer = new SolrExporterHttpServer(socket, this.registry, seriesCollector, httpThreads);
+            return;
+        }
+
+        // a configuration file shared by clusters is loaded once, and so are its rules
+        Map<String, SolrCollectorConfig> configs = new HashMap<>();
+        Map<String, SolrSeriesCollector> targets = new HashMap<>();
+        for (SolrTargetConfig targetConfig : targetsConfig.getTargets()) {
+            File targetConfigFile = targetConfig.getConfig() == null || targetConfig.getConfig().isEmpty() ? configFile : new File(targetConfig.getConfig());
+            SolrCollectorConfig collectorConfig = configs.get(targetConfigFile.getCanonicalPath());
+            if (collectorConfig == null) {
+                try (FileReader reader = new FileReader(targetConfigFile)) {
+                    collectorConfig = new Yaml().loadAs(reader, SolrCollectorConfig.class);
+                }
+                configs.put(targetConfigFile.getCanonicalPath(), collectorConfig);
+            }
+
+            SolrClient targetClient = createClient(targetConfig.getConnectionString(), clientRegistry.getHttpClient());
+            this.targetClients.add(targetClient);
+            SolrSeriesCollector seriesCollector = serve(new SolrCollector(targetClient, collectorConfig, executor, clientRegistry, scraperMetrics, asyncClient), targetClient);
+            targets.put(targetConfig.getName(), seriesCollector);
+            targets.putIfAbsent(targetConfig.getConnectionString(), seriesCollector);
+        }
+        this.httpServer = new SolrExporterHttpServer(socket, this.registry, null, targets, httpThreads);
+        logger.info("Serving " + targetsConfig.getTargets().size() + " targets on /probe");
+    }
+
+    /**
+     * Run a collector in the background or on behalf of concurrent requests.
+     *
+     * @param collector the collector.
+     * @param solrClient the client of the collected Solr.
+     * @return the collector to serve.
+     */
+    private SolrSeriesCollector serve(SolrCollector collector, SolrClient solrClient) {
+        this.collectors.add(collector);
+        collector.setCircuitBreaker(new SolrCircuitBreaker(breakerFailures, breakerSlowThreshold, TimeUnit.SECONDS.toMillis(breakerOpenDuration)));
+        collector.setHedger(hedger);
+        if (!shardZkPath.isEmpty()) {
+            if (solrClient instanceof CloudSolrClient) {
+                collector.setShard(SolrShard.zk((CloudSolrClient) solrClient, shardZkPath, shardMemberId()));
+            } else {
+                logger.warn("Standalone Solr is not shared through ZooKeeper, scraping all of it");
+            }
+        } else if (shardCount > 1) {
+            collector.setShard(SolrShard.of(shardIndex, shardCount));
+        }
+        if (scrapeInterval > 0) {
+            SolrSnapshotCollector snapshotCollector = new SolrSnapshotCollector(collector, TimeUnit.SECONDS.toMillis(scrapeInterval));
+            snapshotCollector.start();
+            this.snapshotCollectors.add(snapshotCollector);
+            return snapshotCollector;
+        }
+        return new SolrSingleFlightCollector(collector, TimeUnit.SECONDS.toMillis(reuseWindow));
+    }
 
-        this.httpServer = new HTTPServer(socket, this.registry);
+    /**
+     * @return the identifier of this instance among those sharing Solr, the same across restarts.
+     */
+    private String shardMemberId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = InetAddress.getLoopbackAddress().getHostName();
+        }
+        return host + ":" + port;
     }
 
     /**
@@ -163,7 +593,29 @@ public class SolrExporter {
      */
     public void stop() throws IOException {
         this.httpServer.stop();
-        this.registry.unregister(this.collector);
+        for (SolrSnapshotCollector snapshotCollector : this.snapshotCollectors) {
+            snapshotCollector.stop();
+        }
+        this.registry.unregister(this.executor);
+        this.registry.unregister(this.clientRegistry);
+        this.registry.unregister(this.scraperMetrics);
+        if (this.asyncClient != null) {
+            this.registry.unregister(this.asyncClient);
+        }
+        for (SolrCollector collector : this.collectors) {
+            collector.close();
+        }
+        for (SolrClient targetClient : this.targetClients) {
+            targetClient.close();
+        }
+        this.executor.shutdown();
+        this.clientRegistry.close();
+        if (this.asyncClient != null) {
+            this.asyncClient.close();
+        }
+        if (this.hedger != null) {
+            this.hedger.close();
+        }
     }
 
     /**
@@ -172,6 +624,16 @@ public class SolrExporter {
      * @return
      */
     private static SolrClient createClient(String connStr) {
+        return createClient(connStr, null);
+    }
+
+    /**
+     *
+     * @param connStr
+     * @param httpClient the HttpClient to send requests with, or null for the client to create its own.
+     * @return
+     */
+    private static SolrClient createClient(String connStr, HttpClient httpClient) {
         SolrClient solrClient;
 
         Pattern baseUrlPattern = Pattern.compile("^https?:\\/\\/[\\w\\/:%#\\$&\\?\\(\\)~\\.=\\+\\-]+$");
@@ -185,6 +647,9 @@ public class SolrExporter {
 
             HttpSolrClient.Builder builder = new HttpSolrClient.Builder();
             builder.withBaseSolrUrl(connStr);
+            if (httpClient != null) {
+                builder.withHttpClient(httpClient);
+            }
 
             HttpSolrClient httpSolrClient = builder.build();
             httpSolrClient.setParser(responseParser);
@@ -204,6 +669,9 @@ public class SolrExporter {
             responseParser.setWriterType("json");
 
             CloudSolrClient.Builder builder = new CloudSolrClient.Builder();
+            if (httpClient != null) {
+                builder.withHttpClient(httpClient);
+            }
             if (host.contains(",")) {
                 List<String> hosts = new ArrayList<>();
                 for (String h : host.split(",")) {
@@ -270,6 +738,74 @@ public class SolrExporter {
                 .metavar(ARG_NUM_THREADS_METAVAR).dest(ARG_NUM_THREADS_DEST).type(Integer.class)
                 .setDefault(ARG_NUM_THREADS_DEFAULT).help(ARG_NUM_THREADS_HELP);
 
+        parser.addArgument(ARG_QUEUE_SIZE_FLAGS)
+                .metavar(ARG_QUEUE_SIZE_METAVAR).dest(ARG_QUEUE_SIZE_DEST).type(Integer.class)
+                .setDefault(ARG_QUEUE_SIZE_DEFAULT).help(ARG_QUEUE_SIZE_HELP);
+
+        parser.addArgument(ARG_TASK_TIMEOUT_FLAGS)
+                .metavar(ARG_TASK_TIMEOUT_METAVAR).dest(ARG_TASK_TIMEOUT_DEST).type(Integer.class)
+                .setDefault(ARG_TASK_TIMEOUT_DEFAULT).help(ARG_TASK_TIMEOUT_HELP);
+
+        parser.addArgument(ARG_SCRAPE_INTERVAL_FLAGS)
+                .metavar(ARG_SCRAPE_INTERVAL_METAVAR).dest(ARG_SCRAPE_INTERVAL_DEST).type(Integer.class)
+                .setDefault(ARG_SCRAPE_INTERVAL_DEFAULT).help(ARG_SCRAPE_INTERVAL_HELP);
+
+        parser.addArgument(ARG_REUSE_WINDOW_FLAGS)
+                .metavar(ARG_REUSE_WINDOW_METAVAR).dest(ARG_REUSE_WINDOW_DEST).type(Integer.class)
+                .setDefault(ARG_REUSE_WINDOW_DEFAULT).help(ARG_REUSE_WINDOW_HELP);
+
+        parser.addArgument(ARG_MAX_CONNECTIONS_PER_HOST_FLAGS)
+                .metavar(ARG_MAX_CONNECTIONS_PER_HOST_METAVAR).dest(ARG_MAX_CONNECTIONS_PER_HOST_DEST).type(Integer.class)
+                .setDefault(ARG_MAX_CONNECTIONS_PER_HOST_DEFAULT).help(ARG_MAX_CONNECTIONS_PER_HOST_HELP);
+
+        parser.addArgument(ARG_CONNECT_TIMEOUT_FLAGS)
+                .metavar(ARG_CONNECT_TIMEOUT_METAVAR).dest(ARG_CONNECT_TIMEOUT_DEST).type(Integer.class)
+                .setDefault(ARG_CONNECT_TIMEOUT_DEFAULT).help(ARG_CONNECT_TIMEOUT_HELP);
+
+        parser.addArgument(ARG_SOCKET_TIMEOUT_FLAGS)
+                .metavar(ARG_SOCKET_TIMEOUT_METAVAR).dest(ARG_SOCKET_TIMEOUT_DEST).type(Integer.class)
+                .setDefault(ARG_SOCKET_TIMEOUT_DEFAULT).help(ARG_SOCKET_TIMEOUT_HELP);
+
+        parser.addArgument(ARG_HTTP_THREADS_FLAGS)
+                .metavar(ARG_HTTP_THREADS_METAVAR).dest(ARG_HTTP_THREADS_DEST).type(Integer.class)
+                .setDefault(ARG_HTTP_THREADS_DEFAULT).help(ARG_HTTP_THREADS_HELP);
+
+        parser.addArgument(ARG_IO_THREADS_FLAGS)
+                .metavar(ARG_IO_THREADS_METAVAR).dest(ARG_IO_THREADS_DEST).type(Integer.class)
+                .setDefault(ARG_IO_THREADS_DEFAULT).help(ARG_IO_THREADS_HELP);
+
+        parser.addArgument(ARG_TARGETS_FILE_FLAGS)
+                .metavar(ARG_TARGETS_FILE_METAVAR).dest(ARG_TARGETS_FILE_DEST).type(String.class)
+                .setDefault(ARG_TARGETS_FILE_DEFAULT).help(ARG_TARGETS_FILE_HELP);
+
+        parser.addArgument(ARG_SHARD_INDEX_FLAGS)
+                .metavar(ARG_SHARD_INDEX_METAVAR).dest(ARG_SHARD_INDEX_DEST).type(Integer.class)
+                .help(ARG_SHARD_INDEX_HELP);
+
+        parser.addArgument(ARG_SHARD_COUNT_FLAGS)
+                .metavar(ARG_SHARD_COUNT_METAVAR).dest(ARG_SHARD_COUNT_DEST).type(Integer.class)
+                .help(ARG_SHARD_COUNT_HELP);
+
+        parser.addArgument(ARG_SHARD_ZK_PATH_FLAGS)
+                .metavar(ARG_SHARD_ZK_PATH_METAVAR).dest(ARG_SHARD_ZK_PATH_DEST).type(String.class)
+                .setDefault(ARG_SHARD_ZK_PATH_DEFAULT).help(ARG_SHARD_ZK_PATH_HELP);
+
+        parser.addArgument(ARG_BREAKER_FAILURES_FLAGS)
+                .metavar(ARG_BREAKER_FAILURES_METAVAR).dest(ARG_BREAKER_FAILURES_DEST).type(Integer.class)
+                .setDefault(ARG_BREAKER_FAILURES_DEFAULT).help(ARG_BREAKER_FAILURES_HELP);
+
+        parser.addArgument(ARG_BREAKER_SLOW_THRESHOLD_FLAGS)
+                .metavar(ARG_BREAKER_SLOW_THRESHOLD_METAVAR).dest(ARG_BREAKER_SLOW_THRESHOLD_DEST).type(Integer.class)
+                .setDefault(ARG_BREAKER_SLOW_THRESHOLD_DEFAULT).help(ARG_BREAKER_SLOW_THRESHOLD_HELP);
+
+        parser.addArgument(ARG_BREAKER_OPEN_DURATION_FLAGS)
+                .metavar(ARG_BREAKER_OPEN_DURATION_METAVAR).dest(ARG_BREAKER_OPEN_DURATION_DEST).type(Integer.class)
+                .setDefault(ARG_BREAKER_OPEN_DURATION_DEFAULT).help(ARG_BREAKER_OPEN_DURATION_HELP);
+
+        parser.addArgument(ARG_HEDGE_DELAY_FLAGS)
+                .metavar(ARG_HEDGE_DELAY_METAVAR).dest(ARG_HEDGE_DELAY_DEST).type(Integer.class)
+                .setDefault(ARG_HEDGE_DELAY_DEFAULT).help(ARG_HEDGE_DELAY_HELP);
+
         try {
             Namespace res = parser.parseArgs(args);
 
@@ -282,14 +818,55 @@ public class SolrExporter {
             }
             File configFile = new File(res.getString(ARG_CONFIG_DEST));
             int numThreads = res.getInt(ARG_NUM_THREADS_DEST);
-
-            SolrClient solrClient = createClient(connStr);
-
-            SolrExporter solrExporter = new SolrExporter(port, solrClient, configFile, numThreads);
+            int queueSize = res.getInt(ARG_QUEUE_SIZE_DEST);
+            int taskTimeout = res.getInt(ARG_TASK_TIMEOUT_DEST);
+            int scrapeInterval = res.getInt(ARG_SCRAPE_INTERVAL_DEST);
+            int reuseWindow = res.getInt(ARG_REUSE_WINDOW_DEST);
+            int maxConnectionsPerHost = res.getInt(ARG_MAX_CONNECTIONS_PER_HOST_DEST);
+            int connectTimeout = res.getInt(ARG_CONNECT_TIMEOUT_DEST);
+            int socketTimeout = res.getInt(ARG_SOCKET_TIMEOUT_DEST);
+            int httpThreads = res.getInt(ARG_HTTP_THREADS_DEST);
+            int ioThreads = res.getInt(ARG_IO_THREADS_DEST);
+            String targetsFile = res.getString(ARG_TARGETS_FILE_DEST);
+            String shardZkPath = res.getString(ARG_SHARD_ZK_PATH_DEST);
+            // left unset unless given, to tell them from the defaults
+            Integer shardIndexArg = res.getInt(ARG_SHARD_INDEX_DEST);
+            Integer shardCountArg = res.getInt(ARG_SHARD_COUNT_DEST);
+            if (!shardZkPath.equals("") && (shardIndexArg != null || shardCountArg != null)) {
+                throw new ArgumentParserException("argument --shard-zk-path: not allowed with argument --shard-index or --shard-count", parser);
+            }
+            int shardIndex = shardIndexArg != null ? shardIndexArg : ARG_SHARD_INDEX_DEFAULT;
+            int shardCount = shardCountArg != null ? shardCountArg : ARG_SHARD_COUNT_DEFAULT;
+            int breakerFailures = res.getInt(ARG_BREAKER_FAILURES_DEST);
+            int breakerSlowThreshold = res.getInt(ARG_BREAKER_SLOW_THRESHOLD_DEST);
+            int breakerOpenDuration = res.getInt(ARG_BREAKER_OPEN_DURATION_DEST);
+            int hedgeDelay = res.getInt(ARG_HEDGE_DELAY_DEST);
+
+            SolrExporter solrExporter;
+            if (!targetsFile.equals("")) {
+                SolrTargetsConfig targetsConfig;
+                try (FileReader reader = new FileReader(targetsFile)) {
+                    targetsConfig = new Yaml().loadAs(reader, SolrTargetsConfig.class);
+                }
+                solrExporter = new SolrExporter(port, targetsConfig, configFile, numThreads, queueSize, taskTimeout);
+            } else {
+                SolrClient solrClient = createClient(connStr);
+                solrExporter = new SolrExporter(port, solrClient, configFile, numThreads, queueSize, taskTimeout);
+            }
+            solrExporter.setScrapeInterval(scrapeInterval);
+            solrExporter.setReuseWindow(reuseWindow);
+            solrExporter.setHttpClientSettings(maxConnectionsPerHost, connectTimeout, socketTimeout);
+            solrExporter.setHttpThreads(httpThreads);
+            solrExporter.setIoThreads(ioThreads);
+            solrExporter.setShard(shardIndex, shardCount);
+            solrExporter.setShardZkPath(shardZkPath);
+            solrExporter.setCircuitBreaker(breakerFailures, breakerSlowThreshold, breakerOpenDuration);
+            solrExporter.setHedgeDelay(hedgeDelay);
             solrExporter.start();
             logger.info("Start server");
-        } catch (MalformedObjectNameException | IOException e) {
+        } catch (MalformedObjectNameException | IOException | YAMLException | IllegalArgumentException e) {
             logger.error("Start server failed: " + e.toString());
+            System.exit(1);
         } catch (ArgumentParserException e) {
             parser.handleError(e);
         }
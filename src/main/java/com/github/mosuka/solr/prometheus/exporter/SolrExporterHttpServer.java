@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.collector.SolrSeriesCollector;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraperExecutor;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * SolrExporterHttpServer
+ *
+ * Serves the samples of a {@link CollectorRegistry} on / and /metrics, like simpleclient's HTTPServer,
+ * but with a configurable number of worker threads. The exposition format is negotiated with the
+ * Accept header: the Prometheus text format by default, OpenMetrics or protobuf, see
+ * {@link SolrExpositionFormat#negotiate(List)}. The exposition is
+ * written to the connection as it is encoded, with chunked transfer encoding, instead of being
+ * buffered whole to compute a Content-Length, and is gzip-compressed when the client accepts it.
+ * Connections are kept alive between requests unless the client asks otherwise.
+ *
+ * The samples of a {@link SolrSeriesCollector}, if any, are encoded first, straight from its series
+ * store, followed by those of the registry. Both are collected before the response headers are
+ * sent, so that a failed collection is answered with 500 instead of a truncated exposition.
+ *
+ * An exporter of several Solr clusters serves the samples of each on /probe?target=, like the
+ * blackbox exporter, the target being one of those it is configured with; / and /metrics then
+ * serve the samples of the exporter itself.
+ */
+public class SolrExporterHttpServer {
+    private static final Logger logger = LoggerFactory.getLogger(SolrExporterHttpServer.class);
+
+    public static final int DEFAULT_NUM_THREADS = 4;
+
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+    private static final int SHUTDOWN_DELAY_SECONDS = 1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Start a server.
+     *
+     * @param address the address to listen on.
+     * @param registry the registry to serve.
+     * @param numThreads the number of threads handling requests.
+     */
+    public SolrExporterHttpServer(InetSocketAddress address, CollectorRegistry registry, int numThreads) throws IOException {
+        this(address, registry, null, numThreads);
+    }
+
+    /**
+     * Start a server.
+     *
+     * @param address the address to listen on.
+     * @param registry the registry to serve.
+     * @param seriesCollector the collector whose series to serve before the registry, or null.
+     * @param numThreads the number of threads handling requests.
+     */
+    public SolrExporterHttpServer(InetSocketAddress address, CollectorRegistry registry, SolrSeriesCollector seriesCollector, int numThreads) throws IOException {
+        this(address, registry, seriesCollector, null, numThreads);
+    }
+
+    /**
+     * Start a server.
+     *
+     * @param address the address to listen on.
+     * @param registry the registry to serve.
+     * @param seriesCollector the collector whose series to serve before the registry, or null.
+     * @param targets the collectors whose series to serve on /probe by target, or null not to serve /probe.
+     * @param numThreads the number of threads handling requests.
+     */
+    public SolrExporterHttpServer(InetSocketAddress address, CollectorRegistry registry, SolrSeriesCollector seriesCollector,
+                                  Map<String, ? extends SolrSeriesCollector> targets, int numThreads) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        HttpHandler handler = new MetricsHandler(registry, seriesCollector, null);
+        this.server.createContext("/", handler);
+        this.server.createContext("/metrics", handler);
+        if (targets != null) {
+            this.server.createContext("/probe", new MetricsHandler(null, null, targets));
+        }
+
+        this.executor = Executors.newFixedThreadPool(numThreads, new SolrScraperExecutor.NamedThreadFactory("solr-exporter-http"));
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting connections, give the requests being served a moment to complete and stop the
+     * worker threads.
+     */
+    public void stop() {
+        server.stop(SHUTDOWN_DELAY_SECONDS);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_DELAY_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tell whether an Accept-Encoding header accepts gzip, that is lists gzip, x-gzip or * with a
+     * non-zero quality.
+     *
+     * @param acceptEncodings the values of the Accept-Encoding headers, may be null.
+     * @return true if the response may be gzip-compressed.
+     */
+    static boolean acceptsGzip(List<String> acceptEncodings) {
+        if (acceptEncodings == null) {
+            return false;
+        }
+        for (String acceptEncoding : acceptEncodings) {
+            for (String coding : acceptEncoding.split(",")) {
+                String[] params = coding.split(";");
+                String name = params[0].trim().toLowerCase();
+                if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+                    continue;
+                }
+                double quality = 1.0;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(param.substring(2).trim());
+                        } catch (NumberFormatException e) {
+                            quality = 0.0;
+                        }
+                    }
+                }
+                if (quality > 0.0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the metric names selected by the name[] parameters of a query string.
+     *
+     * @param query the raw query string, may be null.
+     * @return the names, empty to select every metric.
+     */
+    static Set<String> parseQuery(String query) throws IOException {
+        return new HashSet<>(parseParameter(query, "name[]"));
+    }
+
+    /**
+     * Get the values of a parameter of a query string.
+     *
+     * @param query the raw query string, may be null.
+     * @param name the name of the parameter.
+     * @return the values, in the order they appear.
+     */
+    static List<String> parseParameter(String query, String name) throws IOException {
+        List<String> values = new ArrayList<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int idx = pair.indexOf("=");
+                if (idx != -1 && URLDecoder.decode(pair.substring(0, idx), "UTF-8").equals(name)) {
+                    values.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static class MetricsHandler implements HttpHandler {
+        private final CollectorRegistry registry;
+        private final SolrSeriesCollector seriesCollector;
+        private final Map<String, ? extends SolrSeriesCollector> targets;
+
+        /**
+         * @param registry the registry to serve, or null.
+         * @param seriesCollector the collector whose series to serve before the registry, or null.
+         * @param targets the collectors by target, to serve the one of the target parameter, or null.
+         */
+        MetricsHandler(CollectorRegistry registry, SolrSeriesCollector seriesCollector, Map<String, ? extends SolrSeriesCollector> targets) {
+            this.registry = registry;
+            this.seriesCollector = seriesCollector;
+            this.targets = targets;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                if (!method.equals("GET") && !method.equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                String query = exchange.getRequestURI().getRawQuery();
+                SolrSeriesCollector seriesCollector = this.seriesCollector;
+                if (targets != null) {
+                    List<String> target = parseParameter(query, "target");
+                    if (target.isEmpty()) {
+                        sendError(exchange, 400, "Target parameter is missing");
+                        return;
+                    }
+                    seriesCollector = targets.get(target.get(0));
+                    if (seriesCollector == null) {
+                        sendError(exchange, 404, "Unknown target " + target.get(0));
+                        return;
+                    }
+                }
+
+                SolrExpositionFormat.MediaType mediaType = SolrExpositionFormat.negotiate(exchange.getRequestHeaders().get("Accept"));
+                boolean gzip = acceptsGzip(exchange.getRequestHeaders().get("Accept-Encoding"));
+
+                if (method.equals("HEAD")) {
+                    setHeaders(exchange, mediaType, gzip);
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+
+                // once the headers are sent, a failure could only cut the exposition short, which
+                // Prometheus would take for a successful scrape
+                Set<String> names = parseQuery(query);
+                SolrSeriesStore.View view = null;
+                List<Collector.MetricFamilySamples> metricFamilySamples;
+                try {
+                    if (seriesCollector != null) {
+                        view = seriesCollector.collectSeries();
+                    }
+                    metricFamilySamples = registry != null
+                            ? Collections.list(registry.filteredMetricFamilySamples(names)) : Collections.emptyList();
+                } catch (RuntimeException e) {
+                    if (view != null) {
+                        view.release();
+                    }
+                    logger.error("Collecting metrics for " + exchange.getRequestURI() + " failed: " + e.toString());
+                    sendError(exchange, 500, "Collecting metrics failed: " + e.toString());
+                    return;
+                }
+
+                // a length of 0 selects chunked transfer encoding
+                try {
+                    setHeaders(exchange, mediaType, gzip);
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream body = exchange.getResponseBody();
+                    if (gzip) {
+                        body = new GZIPOutputStream(body, GZIP_BUFFER_SIZE);
+                    }
+                    try (OutputStream out = body) {
+                        SolrExpositionFormat format = mediaType.create(out);
+                        if (view != null) {
+                            format.write(view, names);
+                        }
+                        format.write(Collections.enumeration(metricFamilySamples));
+                        format.finish();
+                    }
+                } finally {
+                    if (view != null) {
+                        view.release();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Serving " + exchange.getRequestURI() + " to " + exchange.getRemoteAddress() + " failed: " + e.toString());
+                throw e;
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static void setHeaders(HttpExchange exchange, SolrExpositionFormat.MediaType mediaType, boolean gzip) {
+            exchange.getResponseHeaders().set("Content-Type", mediaType.getContentType());
+            exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+            if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+        }
+
+        private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+            byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * SolrExpositionFormat
+ *
+ * Encodes samples in an exposition format straight to an output stream: those of a
+ * {@link SolrSeriesStore.View}, read in place, and metric families such as those of a registry.
+ * Bytes are buffered and written to the stream as the buffer fills, not held until the whole
+ * exposition is encoded.
+ *
+ * Encoders cache the bytes of the series and families they encode in the store, each under its
+ * own format, so that later scrapes only encode values.
+ */
+public abstract class SolrExpositionFormat {
+    /**
+     * The exposition formats the metrics endpoint negotiates with the Accept header.
+     */
+    public enum MediaType {
+        PROTOBUF("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited", SolrProtobufFormat::new),
+        OPENMETRICS("application/openmetrics-text; version=1.0.0; charset=utf-8", SolrOpenMetricsFormat::new),
+        TEXT(TextFormat.CONTENT_TYPE_004, SolrTextFormat::new);
+
+        private final String contentType;
+        private final Function<OutputStream, SolrExpositionFormat> factory;
+
+        MediaType(String contentType, Function<OutputStream, SolrExpositionFormat> factory) {
+            this.contentType = contentType;
+            this.factory = factory;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @param out the stream to write to, flushed or closed by the caller.
+         * @return an encoder of the format.
+         */
+        public SolrExpositionFormat create(OutputStream out) {
+            return factory.apply(out);
+        }
+    }
+
+    // the formats under which bytes are cached in the store
+    static final int TEXT_ENCODING = 0;
+    static final int OPENMETRICS_ENCODING = 1;
+    static final int PROTOBUF_ENCODING = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Double.toString switches to computerized scientific notation from 10^7 on
+    private static final double MAX_PLAIN_INTEGRAL = 1.0E7;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    /**
+     * Constructor.
+     *
+     * @param out the stream to write to, flushed or closed by the caller.
+     */
+    protected SolrExpositionFormat(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Choose the format of a response from the Accept headers of the request: the one of the
+     * highest quality, the first listed on a tie, or the text format if none is acceptable.
+     *
+     * @param accepts the values of the Accept headers, may be null.
+     * @return the format.
+     */
+    public static MediaType negotiate(List<String> accepts) {
+        MediaType best = MediaType.TEXT;
+        double bestQuality = 0.0;
+        if (accepts == null) {
+            return best;
+        }
+        for (String accept : accepts) {
+            for (String range : accept.split(",")) {
+                String[] params = range.split(";");
+                String type = params[0].trim().toLowerCase();
+                double quality = 1.0;
+                String proto = null;
+                String encoding = null;
+                for (int i = 1; i < params.length; i++) {
+                    int idx = params[i].indexOf('=');
+                    if (idx == -1) {
+                        continue;
+                    }
+                    String name = params[i].substring(0, idx).trim().toLowerCase();
+                    String value = params[i].substring(idx + 1).trim();
+                    if (name.equals("q")) {
+                        try {
+                            quality = Double.parseDouble(value);
+                        } catch (NumberFormatException e) {
+                            quality = 0.0;
+                        }
+                    } else if (name.equals("proto")) {
+                        proto = value;
+                    } else if (name.equals("encoding")) {
+                        encoding = value;
+                    }
+                }
+
+                MediaType mediaType;
+                if (type.equals("application/vnd.google.protobuf")
+                        && "io.prometheus.client.MetricFamily".equals(proto) && "delimited".equals(encoding)) {
+                    mediaType = MediaType.PROTOBUF;
+                } else if (type.equals("application/openmetrics-text")) {
+                    mediaType = MediaType.OPENMETRICS;
+                } else if (type.equals("text/plain") || type.equals("text/*") || type.equals("*/*")) {
+                    mediaType = MediaType.TEXT;
+                } else {
+                    continue;
+                }
+                if (quality > bestQuality) {
+                    best = mediaType;
+                    bestQuality = quality;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Encode the samples of a view: the series of the store that have a sample in the view, then
+     * the metric families that follow them.
+     *
+     * @param view the view.
+     * @param names the metric families to write, empty to write every family.
+     */
+    public void write(SolrSeriesStore.View view, Set<String> names) throws IOException {
+        for (SolrSeriesStore.Family family : view.families()) {
+            if (names.isEmpty() || names.contains(family.getName())) {
+                writeFamily(view, family);
+            }
+        }
+        for (Collector.MetricFamilySamples metricFamilySamples : view.getExtra()) {
+            if (names.isEmpty() || names.contains(metricFamilySamples.name)) {
+                write(metricFamilySamples);
+            }
+        }
+    }
+
+    /**
+     * Encode metric families.
+     *
+     * @param metricFamilySamples the metric families.
+     */
+    public void write(Enumeration<Collector.MetricFamilySamples> metricFamilySamples) throws IOException {
+        while (metricFamilySamples.hasMoreElements()) {
+            write(metricFamilySamples.nextElement());
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the stream, without flushing it. Nothing may be encoded after.
+     */
+    public void finish() throws IOException {
+        flushBuffer();
+    }
+
+    /**
+     * Encode the series of a family that have a sample in a view, if any.
+     */
+    protected abstract void writeFamily(SolrSeriesStore.View view, SolrSeriesStore.Family family) throws IOException;
+
+    /**
+     * Encode a metric family.
+     */
+    protected abstract void write(Collector.MetricFamilySamples metricFamilySamples) throws IOException;
+
+    /**
+     * Get the samples of a family in a view as a metric family, for the formats that encode some
+     * types, such as histograms, from the samples of the whole family.
+     *
+     * @return the metric family, or null if it has no sample in the view.
+     */
+    protected static Collector.MetricFamilySamples toMetricFamilySamples(SolrSeriesStore.View view, SolrSeriesStore.Family family) {
+        List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+        int size = family.size();
+        for (int i = 0; i < size; i++) {
+            SolrSeriesStore.Series series = family.get(i);
+            if (series != null && view.contains(series)) {
+                samples.add(new Collector.MetricFamilySamples.Sample(series.getName(), series.getLabelNames(), series.getLabelValues(), view.value(series)));
+            }
+        }
+        return samples.isEmpty() ? null : new Collector.MetricFamilySamples(family.getName(), family.getType(), family.getHelp(), samples);
+    }
+
+    /**
+     * Append a help or label value, escaping backslashes, line feeds and optionally double quotes.
+     */
+    protected static void escape(StringBuilder builder, String value, boolean quotes) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                builder.append("\\\\");
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c == '"' && quotes) {
+                builder.append("\\\"");
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * Write a value as {@link Collector#doubleToGoString(double)} does.
+     */
+    protected void writeDouble(double value) throws IOException {
+        if (value == (long) value && Math.abs(value) < MAX_PLAIN_INTEGRAL && (value != 0.0 || 1.0 / value > 0.0)) {
+            // what Double.toString gives for an integral value below 10^7, e.g. 42.0
+            ensure(24);
+            long l = (long) value;
+            if (l < 0) {
+                buffer[position++] = '-';
+                l = -l;
+            }
+            int start = position;
+            do {
+                buffer[position++] = (byte) ('0' + l % 10);
+                l /= 10;
+            } while (l > 0);
+            for (int i = start, j = position - 1; i < j; i++, j--) {
+                byte b = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = b;
+            }
+            buffer[position++] = '.';
+            buffer[position++] = '0';
+        } else {
+            writeAscii(Collector.doubleToGoString(value));
+        }
+    }
+
+    protected void writeAscii(String string) throws IOException {
+        ensure(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            buffer[position++] = (byte) string.charAt(i);
+        }
+    }
+
+    protected void writeByte(int b) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+
+    protected void writeLong(long bits) throws IOException {
+        ensure(8);
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) bits;
+            bits >>>= 8;
+        }
+    }
+
+    protected void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    protected void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    private void ensure(int length) throws IOException {
+        if (length > buffer.length - position) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
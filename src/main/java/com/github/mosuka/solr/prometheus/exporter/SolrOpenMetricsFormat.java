@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * SolrOpenMetricsFormat
+ *
+ * Encodes samples in the OpenMetrics text format version 1.0.0. It differs from the Prometheus
+ * text format in that the family of a counter is named without the _total suffix its samples
+ * must have, untyped metrics are of type unknown, help also escapes double quotes, label sets
+ * have no trailing comma and the exposition ends with # EOF. Like {@link SolrTextFormat}, it
+ * caches the bytes of the series and families it encodes in the store.
+ */
+public class SolrOpenMetricsFormat extends SolrExpositionFormat {
+    private static final String TOTAL_SUFFIX = "_total";
+    private static final byte[] EOF = "# EOF\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Constructor.
+     *
+     * @param out the stream to write to, flushed or closed by the caller.
+     */
+    public SolrOpenMetricsFormat(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void writeFamily(SolrSeriesStore.View view, SolrSeriesStore.Family family) throws IOException {
+        boolean header = false;
+        int size = family.size();
+        for (int i = 0; i < size; i++) {
+            SolrSeriesStore.Series series = family.get(i);
+            if (series == null || !view.contains(series)) {
+                continue;
+            }
+            if (!header) {
+                byte[] encoding = family.getEncoding(OPENMETRICS_ENCODING);
+                if (encoding == null) {
+                    encoding = header(family.getName(), family.getHelp(), family.getType());
+                    family.setEncoding(OPENMETRICS_ENCODING, encoding);
+                }
+                write(encoding);
+                header = true;
+            }
+
+            byte[] encoding = series.getEncoding(OPENMETRICS_ENCODING);
+            if (encoding == null) {
+                encoding = prefix(series.getName(), family.getType(), series.getLabelNames(), series.getLabelValues());
+                series.setEncoding(OPENMETRICS_ENCODING, encoding);
+            }
+            write(encoding);
+            writeDouble(view.value(series));
+            writeByte('\n');
+        }
+    }
+
+    @Override
+    protected void write(Collector.MetricFamilySamples metricFamilySamples) throws IOException {
+        write(header(metricFamilySamples.name, metricFamilySamples.help, metricFamilySamples.type));
+        for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+            write(prefix(sample.name, metricFamilySamples.type, sample.labelNames, sample.labelValues));
+            writeDouble(sample.value);
+            writeByte('\n');
+        }
+    }
+
+    /**
+     * Write the end of the exposition and the buffered bytes.
+     */
+    @Override
+    public void finish() throws IOException {
+        write(EOF);
+        super.finish();
+    }
+
+    /**
+     * @return the TYPE and HELP lines of a family.
+     */
+    static byte[] header(String name, String help, Collector.Type type) {
+        if (type == Collector.Type.COUNTER && name.endsWith(TOTAL_SUFFIX)) {
+            name = name.substring(0, name.length() - TOTAL_SUFFIX.length());
+        }
+        StringBuilder header = new StringBuilder(name.length() * 2 + help.length() + 24);
+        header.append("# TYPE ").append(name).append(' ').append(typeString(type)).append('\n');
+        header.append("# HELP ").append(name).append(' ');
+        escape(header, help, true);
+        header.append('\n');
+        return header.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the sample name and labels of a series, followed by the space before the value.
+     */
+    static byte[] prefix(String name, Collector.Type type, List<String> labelNames, List<String> labelValues) {
+        StringBuilder prefix = new StringBuilder(name.length() + labelNames.size() * 32 + 8);
+        prefix.append(name);
+        if (type == Collector.Type.COUNTER && !name.endsWith(TOTAL_SUFFIX)) {
+            prefix.append(TOTAL_SUFFIX);
+        }
+        if (!labelNames.isEmpty()) {
+            prefix.append('{');
+            for (int i = 0; i < labelNames.size(); i++) {
+                if (i > 0) {
+                    prefix.append(',');
+                }
+                prefix.append(labelNames.get(i)).append("=\"");
+                escape(prefix, labelValues.get(i), true);
+                prefix.append('"');
+            }
+            prefix.append('}');
+        }
+        prefix.append(' ');
+        return prefix.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "unknown";
+        }
+    }
+}
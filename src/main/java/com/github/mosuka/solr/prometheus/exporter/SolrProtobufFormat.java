@@ -0,0 +1,359 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * SolrProtobufFormat
+ *
+ * Encodes samples in the Prometheus protobuf format: a sequence of io.prometheus.client.MetricFamily
+ * messages, each preceded by its length as a varint. Prometheus parses it with less CPU than the
+ * text formats. The messages are encoded by hand, the few fields of the metrics data model not
+ * warranting a protobuf runtime.
+ *
+ * Gauges, counters and untyped metrics are encoded from the store, where the bytes of each series
+ * but its value are cached, so that a scrape only appends the 8 bytes of each value. Summaries and
+ * histograms, whose samples are combined into one message per label set, are encoded from their
+ * samples.
+ */
+public class SolrProtobufFormat extends SolrExpositionFormat {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    // MetricFamily
+    private static final int FAMILY_NAME = 1;
+    private static final int FAMILY_HELP = 2;
+    private static final int FAMILY_TYPE = 3;
+    private static final int FAMILY_METRIC = 4;
+
+    // MetricType
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_UNTYPED = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+
+    // Metric, LabelPair, and Gauge, Counter and Untyped
+    private static final int METRIC_LABEL = 1;
+    private static final int METRIC_GAUGE = 2;
+    private static final int METRIC_COUNTER = 3;
+    private static final int METRIC_SUMMARY = 4;
+    private static final int METRIC_UNTYPED = 5;
+    private static final int METRIC_HISTOGRAM = 7;
+    private static final int LABEL_NAME = 1;
+    private static final int LABEL_VALUE = 2;
+    private static final int VALUE = 1;
+
+    // Summary and Quantile, Histogram and Bucket
+    private static final int SAMPLE_COUNT = 1;
+    private static final int SAMPLE_SUM = 2;
+    private static final int QUANTILE = 3;
+    private static final int QUANTILE_QUANTILE = 1;
+    private static final int QUANTILE_VALUE = 2;
+    private static final int BUCKET = 3;
+    private static final int BUCKET_CUMULATIVE_COUNT = 1;
+    private static final int BUCKET_UPPER_BOUND = 2;
+
+    // the length of a Gauge, Counter or Untyped message: the tag and 8 bytes of the value
+    private static final int VALUE_MESSAGE_LENGTH = 9;
+
+    // the series of the family being encoded that have a sample, reused across families
+    private SolrSeriesStore.Series[] present = new SolrSeriesStore.Series[64];
+
+    /**
+     * Constructor.
+     *
+     * @param out the stream to write to, flushed or closed by the caller.
+     */
+    public SolrProtobufFormat(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void writeFamily(SolrSeriesStore.View view, SolrSeriesStore.Family family) throws IOException {
+        if (family.getType() == Collector.Type.SUMMARY || family.getType() == Collector.Type.HISTOGRAM) {
+            Collector.MetricFamilySamples metricFamilySamples = toMetricFamilySamples(view, family);
+            if (metricFamilySamples != null) {
+                write(metricFamilySamples);
+            }
+            return;
+        }
+
+        // the length of the family precedes it, add up the length of its metrics first
+        long length = 0L;
+        int count = 0;
+        int size = family.size();
+        for (int i = 0; i < size; i++) {
+            SolrSeriesStore.Series series = family.get(i);
+            if (series == null || !view.contains(series)) {
+                continue;
+            }
+            byte[] encoding = series.getEncoding(PROTOBUF_ENCODING);
+            if (encoding == null) {
+                encoding = prefix(family.getType(), series.getLabelNames(), series.getLabelValues());
+                series.setEncoding(PROTOBUF_ENCODING, encoding);
+            }
+            length += encoding.length + 8;
+            if (count == present.length) {
+                present = Arrays.copyOf(present, count * 2);
+            }
+            present[count++] = series;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        byte[] header = family.getEncoding(PROTOBUF_ENCODING);
+        if (header == null) {
+            header = header(family.getName(), family.getHelp(), family.getType()).toByteArray();
+            family.setEncoding(PROTOBUF_ENCODING, header);
+        }
+        writeVarint(header.length + length);
+        write(header);
+        for (int i = 0; i < count; i++) {
+            write(present[i].getEncoding(PROTOBUF_ENCODING));
+            writeLong(Double.doubleToLongBits(view.value(present[i])));
+            present[i] = null;
+        }
+    }
+
+    @Override
+    protected void write(Collector.MetricFamilySamples metricFamilySamples) throws IOException {
+        Message family = header(metricFamilySamples.name, metricFamilySamples.help, metricFamilySamples.type);
+        switch (metricFamilySamples.type) {
+            case SUMMARY:
+                writeDistributions(family, metricFamilySamples, "quantile", METRIC_SUMMARY, QUANTILE);
+                break;
+            case HISTOGRAM:
+                writeDistributions(family, metricFamilySamples, "le", METRIC_HISTOGRAM, BUCKET);
+                break;
+            default:
+                for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+                    Message metric = labels(sample.labelNames, sample.labelValues);
+                    metric.message(valueField(metricFamilySamples.type), new Message().doubleField(VALUE, sample.value));
+                    family.message(FAMILY_METRIC, metric);
+                }
+        }
+        writeVarint(family.length);
+        write(family.bytes, 0, family.length);
+    }
+
+    /**
+     * Combine the samples of a summary or a histogram into one message per label set: the _count
+     * and _sum samples, and the quantiles or buckets.
+     */
+    private static void writeDistributions(Message family, Collector.MetricFamilySamples metricFamilySamples, String pointLabel, int metricField, int pointField) {
+        Map<List<List<String>>, Distribution> distributions = new LinkedHashMap<>();
+        for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+            List<String> labelNames = new ArrayList<>(sample.labelNames.size());
+            List<String> labelValues = new ArrayList<>(sample.labelValues.size());
+            String point = null;
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (sample.labelNames.get(i).equals(pointLabel)) {
+                    point = sample.labelValues.get(i);
+                } else {
+                    labelNames.add(sample.labelNames.get(i));
+                    labelValues.add(sample.labelValues.get(i));
+                }
+            }
+            Distribution distribution = distributions.computeIfAbsent(Arrays.asList(labelNames, labelValues), key -> new Distribution(labelNames, labelValues));
+
+            if (sample.name.equals(metricFamilySamples.name + "_count")) {
+                distribution.count = sample.value;
+            } else if (sample.name.equals(metricFamilySamples.name + "_sum")) {
+                distribution.sum = sample.value;
+            } else if (point != null) {
+                try {
+                    Message message = new Message();
+                    if (metricField == METRIC_SUMMARY) {
+                        message.doubleField(QUANTILE_QUANTILE, parseDouble(point)).doubleField(QUANTILE_VALUE, sample.value);
+                    } else {
+                        message.uint64Field(BUCKET_CUMULATIVE_COUNT, (long) sample.value).doubleField(BUCKET_UPPER_BOUND, parseDouble(point));
+                    }
+                    distribution.points.message(pointField, message);
+                } catch (NumberFormatException e) {
+                    // not a quantile or bucket, there is no field for it
+                }
+            }
+        }
+
+        for (Distribution distribution : distributions.values()) {
+            Message value = new Message().uint64Field(SAMPLE_COUNT, (long) distribution.count).doubleField(SAMPLE_SUM, distribution.sum);
+            value.bytes(distribution.points.bytes, 0, distribution.points.length);
+            Message metric = labels(distribution.labelNames, distribution.labelValues);
+            metric.message(metricField, value);
+            family.message(FAMILY_METRIC, metric);
+        }
+    }
+
+    private static final class Distribution {
+        final List<String> labelNames;
+        final List<String> labelValues;
+        double count;
+        double sum;
+        final Message points = new Message();
+
+        Distribution(List<String> labelNames, List<String> labelValues) {
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+    }
+
+    /**
+     * @return the name, help and type fields of a family.
+     */
+    static Message header(String name, String help, Collector.Type type) {
+        return new Message().stringField(FAMILY_NAME, name).stringField(FAMILY_HELP, help).uint64Field(FAMILY_TYPE, typeValue(type));
+    }
+
+    /**
+     * @return the metric field of a series, from its tag to the tag of its value, which is all but
+     *         the 8 bytes of the value.
+     */
+    static byte[] prefix(Collector.Type type, List<String> labelNames, List<String> labelValues) {
+        Message metric = labels(labelNames, labelValues);
+        metric.tag(valueField(type), WIRE_LENGTH_DELIMITED).varint(VALUE_MESSAGE_LENGTH).tag(VALUE, WIRE_FIXED64);
+
+        Message prefix = new Message().tag(FAMILY_METRIC, WIRE_LENGTH_DELIMITED).varint(metric.length + 8);
+        prefix.bytes(metric.bytes, 0, metric.length);
+        return prefix.toByteArray();
+    }
+
+    private static Message labels(List<String> labelNames, List<String> labelValues) {
+        Message metric = new Message();
+        for (int i = 0; i < labelNames.size(); i++) {
+            metric.message(METRIC_LABEL, new Message().stringField(LABEL_NAME, labelNames.get(i)).stringField(LABEL_VALUE, labelValues.get(i)));
+        }
+        return metric;
+    }
+
+    private static int typeValue(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return TYPE_GAUGE;
+            case COUNTER:
+                return TYPE_COUNTER;
+            case SUMMARY:
+                return TYPE_SUMMARY;
+            case HISTOGRAM:
+                return TYPE_HISTOGRAM;
+            default:
+                return TYPE_UNTYPED;
+        }
+    }
+
+    private static int valueField(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return METRIC_GAUGE;
+            case COUNTER:
+                return METRIC_COUNTER;
+            default:
+                return METRIC_UNTYPED;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /**
+     * A protobuf message being encoded.
+     */
+    static final class Message {
+        byte[] bytes = new byte[32];
+        int length;
+
+        Message tag(int field, int wireType) {
+            return varint((field << 3) | wireType);
+        }
+
+        Message varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0L) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        Message bytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, this.bytes, this.length, length);
+            this.length += length;
+            return this;
+        }
+
+        Message uint64Field(int field, long value) {
+            return tag(field, WIRE_VARINT).varint(value);
+        }
+
+        Message doubleField(int field, double value) {
+            tag(field, WIRE_FIXED64);
+            ensure(8);
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                bytes[length++] = (byte) bits;
+                bits >>>= 8;
+            }
+            return this;
+        }
+
+        Message stringField(int field, String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            return tag(field, WIRE_LENGTH_DELIMITED).varint(utf8.length).bytes(utf8, 0, utf8.length);
+        }
+
+        Message message(int field, Message message) {
+            return tag(field, WIRE_LENGTH_DELIMITED).varint(message.length).bytes(message.bytes, 0, message.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void ensure(int more) {
+            if (length + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+            }
+        }
+    }
+}
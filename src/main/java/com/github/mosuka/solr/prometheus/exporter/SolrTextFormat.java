@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * SolrTextFormat
+ *
+ * Encodes samples in the Prometheus text format version 0.0.4, producing the same text as
+ * simpleclient's {@link TextFormat}.
+ *
+ * The escaped UTF-8 bytes of the name and labels of a series, and of the header of a family, are
+ * cached in the store the first time they are encoded. The name and labels of a series never
+ * change, so later scrapes only copy those bytes and format the value, which for the integral
+ * values most Solr metrics have is done without going through a string.
+ */
+public class SolrTextFormat extends SolrExpositionFormat {
+    /**
+     * Constructor.
+     *
+     * @param out the stream to write to, flushed or closed by the caller.
+     */
+    public SolrTextFormat(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void writeFamily(SolrSeriesStore.View view, SolrSeriesStore.Family family) throws IOException {
+        boolean header = false;
+        int size = family.size();
+        for (int i = 0; i < size; i++) {
+            SolrSeriesStore.Series series = family.get(i);
+            if (series == null || !view.contains(series)) {
+                continue;
+            }
+            if (!header) {
+                byte[] encoding = family.getEncoding(TEXT_ENCODING);
+                if (encoding == null) {
+                    encoding = header(family.getName(), family.getHelp(), family.getType());
+                    family.setEncoding(TEXT_ENCODING, encoding);
+                }
+                write(encoding);
+                header = true;
+            }
+
+            byte[] encoding = series.getEncoding(TEXT_ENCODING);
+            if (encoding == null) {
+                encoding = prefix(series.getName(), series.getLabelNames(), series.getLabelValues());
+                series.setEncoding(TEXT_ENCODING, encoding);
+            }
+            write(encoding);
+            writeDouble(view.value(series));
+            writeByte('\n');
+        }
+    }
+
+    @Override
+    protected void write(Collector.MetricFamilySamples metricFamilySamples) throws IOException {
+        write(header(metricFamilySamples.name, metricFamilySamples.help, metricFamilySamples.type));
+        for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+            write(prefix(sample.name, sample.labelNames, sample.labelValues));
+            writeDouble(sample.value);
+            writeByte('\n');
+        }
+    }
+    /**
+     * @return the HELP and TYPE lines of a family.
+     */
+    static byte[] header(String name, String help, Collector.Type type) {
+        StringBuilder header = new StringBuilder(name.length() * 2 + help.length() + 24);
+        header.append("# HELP ").append(name).append(' ');
+        escape(header, help, false);
+        header.append('\n');
+        header.append("# TYPE ").append(name).append(' ').append(typeString(type)).append('\n');
+        return header.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the sample name and labels of a series, followed by the space before the value.
+     */
+    static byte[] prefix(String name, List<String> labelNames, List<String> labelValues) {
+        StringBuilder prefix = new StringBuilder(name.length() + labelNames.size() * 32 + 1);
+        prefix.append(name);
+        if (!labelNames.isEmpty()) {
+            prefix.append('{');
+            for (int i = 0; i < labelNames.size(); i++) {
+                prefix.append(labelNames.get(i)).append("=\"");
+                escape(prefix, labelValues.get(i), true);
+                prefix.append("\",");
+            }
+            prefix.append('}');
+        }
+        prefix.append(' ');
+        return prefix.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+}
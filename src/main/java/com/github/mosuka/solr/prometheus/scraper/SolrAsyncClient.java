@@ -0,0 +1,337 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * SolrAsyncClient
+ *
+ * Non-blocking HTTP client sending the requests of scrapers to Solr nodes. Requests are written and
+ * responses read by a small, fixed number of I/O threads, however many are in flight, and no thread
+ * waits for a response: once the headers of a response have been received, its body is streamed
+ * through a bounded buffer to an executor that parses it as it arrives and runs what the caller
+ * chained to the returned future, such as rule evaluation. A body is never held whole in memory.
+ * Connections to a node are pooled and kept alive across scrapes.
+ */
+public class SolrAsyncClient extends Collector implements Collector.Describable, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SolrAsyncClient.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int ioThreads;
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param ioThreads the number of I/O threads.
+     * @param maxConnectionsPerHost the maximum number of connections to a node.
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param socketTimeout the socket timeout in milliseconds.
+     */
+    public SolrAsyncClient(int ioThreads, int maxConnectionsPerHost, int connectTimeout, int socketTimeout) throws IOException {
+        this.ioThreads = ioThreads;
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectTimeout)
+                .setSoTimeout(socketTimeout)
+                .setSoKeepAlive(true)
+                .build();
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(ioReactorConfig, new SolrScraperExecutor.NamedThreadFactory("solr-scraper-io"));
+
+        // https uses the JVM's default SSL context, configured by the javax.net.ssl system properties
+        this.connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+                .build());
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        this.connectionManager.setMaxTotal(Integer.MAX_VALUE);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        this.httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setThreadFactory(new SolrScraperExecutor.NamedThreadFactory("solr-scraper-reactor"))
+                .build();
+        this.httpClient.start();
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Send a GET request to Solr, the way {@link HttpSolrClient} does.
+     *
+     * @param baseUrl the base URL of the node.
+     * @param collection the core or collection, or null.
+     * @param path the path of the handler, /select if empty.
+     * @param params the request parameters.
+     * @param responseParser parses the response body.
+     * @param executor runs the parser and the stages chained to the future. Rejected tasks complete the future exceptionally.
+     * @return the parsed response. Cancelling it aborts the request.
+     */
+    public CompletableFuture<NamedList<Object>> request(String baseUrl, String collection, String path, SolrParams params,
+                                                        ResponseParser responseParser, Executor executor) {
+        HttpGet httpGet = new HttpGet(url(baseUrl, collection, path, params, responseParser));
+        httpGet.setHeader("Accept-Encoding", "gzip");
+
+        CompletableFuture<NamedList<Object>> result = new CompletableFuture<>();
+        inFlight.incrementAndGet();
+        Future<HttpResponse> httpFuture = httpClient.execute(HttpAsyncMethods.create(httpGet),
+                new StreamingResponseConsumer(baseUrl, responseParser, executor, result), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                inFlight.decrementAndGet();
+                // a successful response with a body completes the future once it has been parsed
+                int status = response.getStatusLine().getStatusCode();
+                if (status != 200) {
+                    result.completeExceptionally(new HttpSolrClient.RemoteSolrException(baseUrl, status, response.getStatusLine().getReasonPhrase(), null));
+                } else if (response.getEntity() == null) {
+                    result.completeExceptionally(new IOException("Empty response from server at " + baseUrl));
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                inFlight.decrementAndGet();
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                inFlight.decrementAndGet();
+                result.cancel(false);
+            }
+        });
+        result.whenComplete((response, t) -> {
+            if (result.isCancelled()) {
+                httpFuture.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Build the URL of a request like {@link HttpSolrClient} does.
+     */
+    static String url(String baseUrl, String collection, String path, SolrParams params, ResponseParser responseParser) {
+        StringBuilder url = new StringBuilder(baseUrl);
+        if (collection != null && !collection.equals("")) {
+            url.append("/").append(collection);
+        }
+        url.append(path == null || !path.startsWith("/") ? "/select" : path);
+
+        ModifiableSolrParams wparams = new ModifiableSolrParams(params);
+        if (responseParser != null && responseParser.getWriterType() != null) {
+            wparams.set(CommonParams.WT, responseParser.getWriterType());
+            wparams.set(CommonParams.VERSION, responseParser.getVersion());
+        }
+        url.append(wparams.toQueryString());
+        return url.toString();
+    }
+
+    /**
+     * Feed the body of a successful response to the parser while it is being received. The I/O
+     * thread writes the content into a bounded buffer and stops reading from the connection while
+     * the buffer is full; the parser reads from it on the executor. The bodies of other responses
+     * are discarded.
+     */
+    private static class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+        private final String baseUrl;
+        private final ResponseParser responseParser;
+        private final Executor executor;
+        private final CompletableFuture<NamedList<Object>> result;
+
+        private HttpResponse response;
+        private SharedInputBuffer buffer;
+        private ByteBuffer discarded;
+        private boolean received = false;
+
+        StreamingResponseConsumer(String baseUrl, ResponseParser responseParser, Executor executor, CompletableFuture<NamedList<Object>> result) {
+            this.baseUrl = baseUrl;
+            this.responseParser = responseParser;
+            this.executor = executor;
+            this.result = result;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                return;
+            }
+
+            SharedInputBuffer buffer = new SharedInputBuffer(BUFFER_SIZE);
+            Charset charset = contentType != null ? contentType.getCharset() : null;
+            String encoding = charset != null ? charset.name() : StandardCharsets.UTF_8.name();
+            Header contentEncoding = entity.getContentEncoding();
+            boolean gzip = contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase("gzip");
+            try {
+                // parsing and the stages that follow must not hold up the I/O thread
+                executor.execute(() -> {
+                    // closing the stream consumes the content the parser left unread
+                    try (InputStream in = gzip ? new GZIPInputStream(new ContentInputStream(buffer)) : new ContentInputStream(buffer)) {
+                        result.complete(responseParser.processResponse(in, encoding));
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                });
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+                throw new IOException("Response from server at " + baseUrl + " could not be parsed", e);
+            }
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            if (buffer != null) {
+                buffer.consumeContent(decoder, ioControl);
+                return;
+            }
+            if (discarded == null) {
+                discarded = ByteBuffer.allocate(4096);
+            }
+            while (decoder.read(discarded) > 0) {
+                discarded.clear();
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            received = true;
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            if (!received && buffer != null) {
+                // fail the future with the cause before the parser sees the body cut short
+                Exception e = getException();
+                if (e != null) {
+                    result.completeExceptionally(e);
+                }
+                buffer.shutdown();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Describe request and connection pool metrics.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_async_requests_in_flight", Type.GAUGE, "Number of requests to Solr sent and waiting for a response.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_async_connections", Type.GAUGE, "Number of connections to Solr nodes by state: leased, available or pending.", new ArrayList<>()));
+        return metricFamilies;
+    }
+
+    /**
+     * Collect request and connection pool metrics.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> inFlightSamples = new ArrayList<>();
+        inFlightSamples.add(new MetricFamilySamples.Sample("solr_exporter_async_requests_in_flight", new ArrayList<>(), new ArrayList<>(), inFlight.get()));
+
+        PoolStats stats = connectionManager.getTotalStats();
+        List<String> labelNames = Arrays.asList("state");
+        List<MetricFamilySamples.Sample> connectionsSamples = new ArrayList<>();
+        connectionsSamples.add(new MetricFamilySamples.Sample("solr_exporter_async_connections", labelNames, Arrays.asList("leased"), stats.getLeased()));
+        connectionsSamples.add(new MetricFamilySamples.Sample("solr_exporter_async_connections", labelNames, Arrays.asList("available"), stats.getAvailable()));
+        connectionsSamples.add(new MetricFamilySamples.Sample("solr_exporter_async_connections", labelNames, Arrays.asList("pending"), stats.getPending()));
+
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_async_requests_in_flight", Type.GAUGE, "Number of requests to Solr sent and waiting for a response.", inFlightSamples));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_async_connections", Type.GAUGE, "Number of connections to Solr nodes by state: leased, available or pending.", connectionsSamples));
+        return metricFamilies;
+    }
+}
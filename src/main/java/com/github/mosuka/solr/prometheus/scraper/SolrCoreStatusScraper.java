@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonResponseParser;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.common.params.CoreAdminParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * SolrCoreStatusScraper
+ *
+ * Derives the ping of every core of a node from one CoreAdmin STATUS request, instead of pinging
+ * each core. For each core, the rules of the ping section are applied to a ping response whose
+ * status is OK if the core is loaded, or FAILED if it failed to load, is missing or the node did
+ * not answer. The samples thus have the names and labels that pinging the core produces. The
+ * outcome of each core is also recorded by core URL, for the health of collections to be derived
+ * from their replicas.
+ */
+public class SolrCoreStatusScraper extends SolrScraper {
+    private static final Logger logger = LoggerFactory.getLogger(SolrCoreStatusScraper.class);
+
+    public static final String CORES_PATH = "/admin/cores";
+
+    private static final JsonNode PING_OK = createPingResponse("OK");
+    private static final JsonNode PING_FAILED = createPingResponse("FAILED");
+
+    private final HttpSolrClient httpSolrClient;
+    private final List<String> cores;
+    // the ping section of each core, null if it could not be built
+    private final List<SolrScraperConfig> coreConfigs;
+    private final Map<String, Boolean> health;
+
+    /**
+     *
+     * @param httpSolrClient the client of the node.
+     * @param pingConfig the ping section, whose rules are applied for each core.
+     * @param cores the cores expected on the node.
+     * @param accumulator receives the samples, and may be shared with other scrapers.
+     * @param section the section of the configuration the scraper runs, see {@link SolrScraperMetrics}.
+     * @param metrics records the requests, parsing, rule evaluation and errors of the scraper, or null.
+     * @param health receives whether each core is loaded, by core URL.
+     */
+    public SolrCoreStatusScraper(HttpSolrClient httpSolrClient, SolrScraperConfig pingConfig, List<String> cores, List<String> labelNames, List<String> labelValues,
+                                 SolrSampleAccumulator accumulator, String section, SolrScraperMetrics metrics, Map<String, Boolean> health) {
+        super(httpSolrClient, pingConfig, labelNames, labelValues, accumulator, section, metrics);
+
+        this.httpSolrClient = httpSolrClient;
+        this.cores = cores;
+        this.health = health;
+
+        // built once rather than on every run, the configuration of a core keeps its identity
+        this.coreConfigs = new ArrayList<>(cores.size());
+        for (String core : cores) {
+            SolrScraperConfig coreConfig = null;
+            try {
+                coreConfig = pingConfig.clone();
+                coreConfig.getQuery().setCore(core);
+            } catch (CloneNotSupportedException e) {
+                logger.error(e.getMessage());
+                error(httpSolrClient, e);
+            }
+            coreConfigs.add(coreConfig);
+        }
+    }
+
+    /**
+     * Request the status of the cores of the node and add the ping samples of each core.
+     *
+     * @param solrClient
+     * @param scraperConfig
+     * @param accumulator receives the samples.
+     */
+    @Override
+    public void collectResponse(SolrClient solrClient, SolrScraperConfig scraperConfig, SolrSampleAccumulator accumulator) {
+        reset();
+        JsonNode statusJson = null;
+        try {
+            CoreAdminRequest coreAdminRequest = new CoreAdminRequest();
+            coreAdminRequest.setResponseParser(new JsonResponseParser());
+            coreAdminRequest.setAction(CoreAdminParams.CoreAdminAction.STATUS);
+            coreAdminRequest.setIndexInfoNeeded(false);
+
+            long startTime = System.nanoTime();
+            statusJson = response(httpSolrClient, startTime, httpSolrClient.request(coreAdminRequest));
+        } catch (Exception e) {
+            logger.error(e.toString());
+            error(httpSolrClient, e);
+            setFailed(true);
+        }
+
+        collectStatus(statusJson, accumulator);
+    }
+
+    /**
+     * Request the status of the cores of the node with the asynchronous client.
+     *
+     * @param asyncClient sends the request.
+     * @param executor runs the parsing and rule evaluation.
+     * @return the accumulator the samples were added to. Cancelling it aborts the request.
+     */
+    @Override
+    public CompletableFuture<SolrSampleAccumulator> callAsync(SolrAsyncClient asyncClient, Executor executor) {
+        reset();
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CoreAdminParams.ACTION, CoreAdminParams.CoreAdminAction.STATUS.toString());
+        params.set(CoreAdminParams.INDEX_INFO, false);
+
+        long startTime = System.nanoTime();
+        CompletableFuture<NamedList<Object>> request = asyncClient.request(httpSolrClient.getBaseURL(), null, CORES_PATH, params, new JsonResponseParser(), executor);
+        CompletableFuture<SolrSampleAccumulator> result = request.handle((queryResponse, t) -> {
+            JsonNode statusJson = null;
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                logger.error(cause.toString());
+                error(httpSolrClient, cause);
+                setFailed(true);
+            } else {
+                statusJson = response(httpSolrClient, startTime, queryResponse);
+            }
+            collectStatus(statusJson, getAccumulator());
+            return getAccumulator();
+        });
+        result.whenComplete((a, t) -> {
+            if (result.isCancelled()) {
+                request.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Do not request the status of the cores, and add the ping samples of cores that are down.
+     */
+    @Override
+    public void skip() {
+        super.skip();
+        collectStatus(null, getAccumulator());
+    }
+
+    /**
+     * Add the ping samples of each core.
+     *
+     * @param statusJson the CoreAdmin STATUS response, or null if it could not be fetched.
+     * @param accumulator receives the samples.
+     */
+    private void collectStatus(JsonNode statusJson, SolrSampleAccumulator accumulator) {
+        Set<String> loaded = loadedCores(statusJson);
+        for (int i = 0; i < cores.size(); i++) {
+            String core = cores.get(i);
+            boolean ok = loaded.contains(core);
+            health.put(coreUrl(httpSolrClient.getBaseURL(), core), ok);
+
+            SolrScraperConfig coreConfig = coreConfigs.get(i);
+            if (coreConfig == null) {
+                continue;
+            }
+            collectMetrics(httpSolrClient, coreConfig, pingResponse(ok), accumulator);
+        }
+    }
+
+    /**
+     * Get the cores a CoreAdmin STATUS response reports as loaded.
+     *
+     * @param statusJson the response, or null.
+     * @return the core names.
+     */
+    static Set<String> loadedCores(JsonNode statusJson) {
+        Set<String> loaded = new HashSet<>();
+        if (statusJson == null || !statusJson.path("status").isObject()) {
+            return loaded;
+        }
+        for (Iterator<Map.Entry<String, JsonNode>> ite = statusJson.get("status").fields(); ite.hasNext(); ) {
+            Map.Entry<String, JsonNode> entry = ite.next();
+            // the status of a core that does not exist is empty
+            if (entry.getValue().has("name")) {
+                loaded.add(entry.getKey());
+            }
+        }
+        for (Iterator<String> ite = statusJson.path("initFailures").fieldNames(); ite.hasNext(); ) {
+            loaded.remove(ite.next());
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the URL of a core, which identifies it in the health map.
+     */
+    public static String coreUrl(String baseUrl, String core) {
+        return baseUrl + "/" + core;
+    }
+
+    /**
+     * Get a ping response to apply the rules of the ping section to.
+     *
+     * @param ok the outcome of the ping.
+     * @return a response with status OK or FAILED, shared and not to be modified.
+     */
+    public static JsonNode pingResponse(boolean ok) {
+        return ok ? PING_OK : PING_FAILED;
+    }
+
+    private static JsonNode createPingResponse(String status) {
+        ObjectNode ping = JsonNodeFactory.instance.objectNode();
+        ping.putObject("responseHeader").put("status", 0);
+        ping.put("status", status);
+        return ping;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * SolrHedger
+ *
+ * Sends a second copy of a request through a cluster client when the first has not been answered
+ * after a delay, and takes whichever answers first. {@link org.apache.solr.client.solrj.impl.CloudSolrClient}
+ * sends each request to a replica picked at random, so the copy most likely goes to another
+ * replica than the slow one. Only reads are sent this way, which every scraper request is.
+ *
+ * The requests are sent from a bounded pool of threads, two per scraper thread. When it is
+ * exhausted, e.g. by requests that were abandoned but are still blocked on a slow cluster, the copy
+ * is not sent, and a request that cannot be sent from the pool is sent from the calling thread.
+ */
+public class SolrHedger implements Closeable {
+    private final long delayMillis;
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param delayMillis the time to wait for an answer before sending the copy, in milliseconds.
+     * @param numThreads the number of scraper threads sending requests.
+     */
+    public SolrHedger(long delayMillis, int numThreads) {
+        this.delayMillis = delayMillis;
+        // the requests block the threads, a request and its copy for each scraper thread; idle
+        // threads are let go
+        this.executor = new ThreadPoolExecutor(0, 2 * numThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new SolrScraperExecutor.NamedThreadFactory("solr-scraper-hedge"), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Send a request, and a copy of it if it is not answered in time.
+     *
+     * @param solrClient the client of the cluster.
+     * @param request the request, sent twice at most.
+     * @param collection the collection, or null.
+     * @param onHedge run when the copy is sent.
+     * @return the first successful response.
+     * @throws SolrServerException if every request failed or the wait was interrupted.
+     * @throws IOException if every request failed.
+     */
+    public NamedList<Object> request(SolrClient solrClient, SolrRequest<?> request, String collection, Runnable onHedge)
+            throws SolrServerException, IOException {
+        CompletionService<NamedList<Object>> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<NamedList<Object>>> futures = new ArrayList<>(2);
+        Callable<NamedList<Object>> call = () -> solrClient.request(request, collection);
+        try {
+            try {
+                futures.add(completionService.submit(call));
+            } catch (RejectedExecutionException e) {
+                // no thread to wait for an answer with, send the request once
+                return solrClient.request(request, collection);
+            }
+            Future<NamedList<Object>> done = completionService.poll(delayMillis, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                try {
+                    futures.add(completionService.submit(call));
+                    onHedge.run();
+                } catch (RejectedExecutionException e) {
+                    // skip the copy and keep waiting for the request
+                }
+            }
+
+            ExecutionException failure = null;
+            for (int pending = futures.size() - (done == null ? 0 : 1); ; pending--) {
+                if (done != null) {
+                    try {
+                        return done.get();
+                    } catch (ExecutionException e) {
+                        // wait for the other request, if any
+                        failure = e;
+                    }
+                }
+                if (pending == 0) {
+                    break;
+                }
+                done = completionService.take();
+            }
+            throw rethrow(failure.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrServerException(e);
+        } finally {
+            for (Future<NamedList<Object>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static SolrServerException rethrow(Throwable t) throws IOException {
+        if (t instanceof SolrServerException) {
+            return (SolrServerException) t;
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new SolrServerException(t);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SolrLabelInterner
+ *
+ * Keeps one canonical instance of each metric name, label name, label value and label name list
+ * (schema) seen by the scrapers, so that the samples of every scrape share them instead of holding
+ * their own copies. Canonical schemas are unmodifiable and can be compared by identity.
+ */
+public class SolrLabelInterner {
+    /**
+     * The interner shared by every scraper.
+     */
+    public static final SolrLabelInterner DEFAULT = new SolrLabelInterner(100000);
+
+    private final int maxSize;
+    private final ConcurrentMap<String, String> strings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, List<String>> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxSize the number of strings, and of schemas, above which the interner starts over.
+     *                This bounds the memory held if label values churn, e.g. as cores come and go.
+     */
+    public SolrLabelInterner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the canonical instance of a string.
+     *
+     * @param s the string, may be null.
+     * @return the canonical instance.
+     */
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        String canonical = strings.get(s);
+        if (canonical == null) {
+            if (strings.size() >= maxSize) {
+                strings.clear();
+            }
+            canonical = strings.putIfAbsent(s, s);
+            if (canonical == null) {
+                canonical = s;
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Get the canonical instance of a label name list.
+     *
+     * @param names the label names.
+     * @return the canonical unmodifiable list.
+     */
+    public List<String> schema(List<String> names) {
+        List<String> canonical = schemas.get(names);
+        if (canonical == null) {
+            String[] internedNames = new String[names.size()];
+            for (int i = 0; i < internedNames.length; i++) {
+                internedNames[i] = intern(names.get(i));
+            }
+            if (schemas.size() >= maxSize) {
+                schemas.clear();
+            }
+            List<String> schema = Collections.unmodifiableList(Arrays.asList(internedNames));
+            canonical = schemas.putIfAbsent(schema, schema);
+            if (canonical == null) {
+                canonical = schema;
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Get the canonical instance of the concatenation of two label name lists.
+     *
+     * @param prefix the first label names.
+     * @param names the label names that follow.
+     * @return the canonical unmodifiable list.
+     */
+    public List<String> schema(List<String> prefix, List<String> names) {
+        if (names.isEmpty()) {
+            return schema(prefix);
+        }
+        List<String> concatenated = new ArrayList<>(prefix.size() + names.size());
+        concatenated.addAll(prefix);
+        concatenated.addAll(names);
+        return schema(concatenated);
+    }
+
+    /**
+     * Label names and values shared by every sample of a target, such as base_url, core and
+     * collection, followed by the labels of each sample.
+     */
+    public class LabelPrefix {
+        private final List<String> names;
+        private final String[] values;
+        // copied on write, new label name lists are rare after the first scrape
+        private volatile Map<List<String>, List<String>> schemas = new IdentityHashMap<>();
+
+        LabelPrefix(List<String> names, List<String> values) {
+            this.names = schema(names);
+            this.values = new String[values.size()];
+            for (int i = 0; i < this.values.length; i++) {
+                this.values[i] = intern(values.get(i));
+            }
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * Get the label names of a sample, caching the result for each canonical list of names.
+         * Thread safe, the slices of a split request are evaluated concurrently.
+         *
+         * @param sampleNames the label names of the sample.
+         * @return the canonical schema of the prefix followed by the names.
+         */
+        public List<String> names(List<String> sampleNames) {
+            // canonical lists, like the label names of native rules, are found by identity
+            Map<List<String>, List<String>> schemas = this.schemas;
+            List<String> schema = schemas.get(sampleNames);
+            if (schema == null) {
+                List<String> canonicalSampleNames = schema(sampleNames);
+                schema = schemas.get(canonicalSampleNames);
+                if (schema == null) {
+                    schema = schema(names, canonicalSampleNames);
+                    synchronized (this) {
+                        Map<List<String>, List<String>> copy = new IdentityHashMap<>(this.schemas);
+                        copy.put(canonicalSampleNames, schema);
+                        this.schemas = copy;
+                    }
+                }
+            }
+            return schema;
+        }
+
+        /**
+         * Get the label values of a sample.
+         *
+         * @param sampleValues the label values of the sample.
+         * @return the prefix values followed by the canonical sample values.
+         */
+        public List<String> values(List<String> sampleValues) {
+            String[] labelValues = Arrays.copyOf(values, values.length + sampleValues.size());
+            for (int i = 0; i < sampleValues.size(); i++) {
+                labelValues[values.length + i] = intern(sampleValues.get(i));
+            }
+            return Arrays.asList(labelValues);
+        }
+    }
+
+    /**
+     * Create the label prefix of a target.
+     *
+     * @param names the label names.
+     * @param values the label values.
+     * @return the prefix.
+     */
+    public LabelPrefix prefix(List<String> names, List<String> values) {
+        return new LabelPrefix(names, values);
+    }
+}
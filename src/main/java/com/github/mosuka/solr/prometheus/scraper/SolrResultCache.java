@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SolrResultCache
+ *
+ * The samples the rules produced from each response of a scraper, or from each registry of an
+ * /admin/metrics response, with the hash of what they were produced from. When the same input comes
+ * back, e.g. CLUSTERSTATUS between topology changes or the registry of an idle core, the samples are
+ * added again instead of applying the rules. Entries not used for a while are expired.
+ */
+public class SolrResultCache {
+    public static final long DEFAULT_MAX_IDLE_SECONDS = 600;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * A sample with the metric family it belongs to.
+     */
+    public static class CachedSample {
+        private final String name;
+        private final Collector.Type type;
+        private final String help;
+        private final Collector.MetricFamilySamples.Sample sample;
+
+        public CachedSample(String name, Collector.Type type, String help, Collector.MetricFamilySamples.Sample sample) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.sample = sample;
+        }
+
+        /**
+         * Add the sample to an accumulator.
+         *
+         * @param accumulator the accumulator.
+         */
+        public void addTo(SolrSampleAccumulator accumulator) {
+            accumulator.add(name, type, help, sample);
+        }
+    }
+
+    private static class Entry {
+        final long hash;
+        final Object rules;
+        final List<CachedSample> samples;
+        volatile long lastUsedNanoTime;
+
+        Entry(long hash, Object rules, List<CachedSample> samples, long lastUsedNanoTime) {
+            this.hash = hash;
+            this.rules = rules;
+            this.samples = samples;
+            this.lastUsedNanoTime = lastUsedNanoTime;
+        }
+    }
+
+    /**
+     * Get the samples produced from an input, if it is unchanged.
+     *
+     * @param key identifies the scraper, and the registry if any.
+     * @param hash the hash of the input.
+     * @param rules the rules applied to the input, compared by identity, so that samples of rules
+     *              that were reloaded are not reused.
+     * @return the samples, or null if the input or the rules changed.
+     */
+    public List<CachedSample> get(String key, long hash, Object rules) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.hash != hash || entry.rules != rules) {
+            return null;
+        }
+        entry.lastUsedNanoTime = System.nanoTime();
+        return entry.samples;
+    }
+
+    /**
+     * Store the samples produced from an input.
+     *
+     * @param key identifies the scraper, and the registry if any.
+     * @param hash the hash of the input.
+     * @param rules the rules applied to the input.
+     * @param samples the samples.
+     */
+    public void put(String key, long hash, Object rules, List<CachedSample> samples) {
+        entries.put(key, new Entry(hash, rules, Collections.unmodifiableList(samples), System.nanoTime()));
+    }
+
+    /**
+     * Forget the entries not used for a while, e.g. of registries of removed cores.
+     *
+     * @param nanoTime the current time, from {@link System#nanoTime()}.
+     * @param maxIdleSeconds the time an entry is kept without being used, in seconds.
+     */
+    public void expire(long nanoTime, long maxIdleSeconds) {
+        long maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+        entries.values().removeIf(entry -> nanoTime - entry.lastUsedNanoTime > maxIdleNanos);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
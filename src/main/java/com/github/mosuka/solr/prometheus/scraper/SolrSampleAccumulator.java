@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SolrSampleAccumulator
+ *
+ * Collects the samples of every scraper of a collection. Samples are indexed by metric family,
+ * sample name and label set, so adding one is a hash lookup regardless of how many samples the
+ * family already holds, and scrapers running concurrently can add to the same accumulator. The
+ * accumulator of a collection of the exporter comes from the {@link SolrSeriesStore} of its
+ * collector, where a series added by a previous collection only has its value overwritten. Any
+ * other accumulator, such as the scratch accumulator of a section run or of a slice of a request,
+ * holds its samples in maps of its own, which cost little to create and are dropped with it.
+ *
+ * Duplicate series: the first sample added for a sample name and label set is kept and any later
+ * one is dropped, whether or not its value differs; dropped samples are counted by
+ * {@link #getDuplicates()}. Likewise the type and help of a family are those of its first sample,
+ * the first ever added to the store. Families are returned in the order they were first added to.
+ */
+public class SolrSampleAccumulator {
+    private static final int WRITER_STRIPES = 16;
+    // ints per stripe, so that stripes do not share a cache line
+    private static final int WRITER_STRIDE = 16;
+
+    private final SolrSeriesStore store;
+    private final SolrSeriesStore.Bank bank;
+    private final int generation;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    // the samples by family and series, in the order they were added, if there is no store;
+    // guarded by itself
+    private final Map<String, LocalFamily> local;
+
+    // the adds in progress by thread stripe, for the store to wait for before it publishes the
+    // samples; null if the accumulator is never published
+    private final AtomicIntegerArray writers;
+    private volatile boolean closed;
+
+    /**
+     * Create an accumulator that is not backed by a store.
+     */
+    public SolrSampleAccumulator() {
+        this.store = null;
+        this.bank = null;
+        this.generation = 0;
+        this.local = new LinkedHashMap<>();
+        this.writers = null;
+    }
+
+    SolrSampleAccumulator(SolrSeriesStore store, SolrSeriesStore.Bank bank, int generation) {
+        this.store = store;
+        this.bank = bank;
+        this.generation = generation;
+        this.local = null;
+        this.writers = new AtomicIntegerArray(WRITER_STRIPES * WRITER_STRIDE);
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param name the metric name, which is also the sample name.
+     * @param type the metric type.
+     * @param help the metric help.
+     * @param labelNames the label names.
+     * @param labelValues the label values, in the same order as the names.
+     * @param value the sample value.
+     * @return true if the sample was added, false if the series already has a sample.
+     */
+    public boolean add(String name, Collector.Type type, String help, List<String> labelNames, List<String> labelValues, double value) {
+        return add(name, type, help, name, labelNames, labelValues, value);
+    }
+
+    /**
+     * Add a sample to a metric family.
+     *
+     * @param name the metric name.
+     * @param type the metric type.
+     * @param help the metric help.
+     * @param sample the sample.
+     * @return true if the sample was added, false if the series already has a sample.
+     */
+    public boolean add(String name, Collector.Type type, String help, Collector.MetricFamilySamples.Sample sample) {
+        return add(name, type, help, sample.name, sample.labelNames, sample.labelValues, sample.value);
+    }
+
+    private boolean add(String familyName, Collector.Type type, String help, String name, List<String> labelNames, List<String> labelValues, double value) {
+        int stripe = enter();
+        if (stripe < -1) {
+            // published already, e.g. by a collection that did not wait for a late scraper
+            return false;
+        }
+        try {
+            if (local != null) {
+                return addLocal(familyName, type, help, name, labelNames, labelValues, value);
+            }
+            SolrSeriesStore.Series series = store.series(familyName, type, help, name, labelNames, labelValues);
+            if (!bank.write(series.getId(), generation, value)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            series.lastSeen = generation;
+            return true;
+        } finally {
+            exit(stripe);
+        }
+    }
+
+    private boolean addLocal(String familyName, Collector.Type type, String help, String name, List<String> labelNames, List<String> labelValues, double value) {
+        SampleKey key = new SampleKey(name, labelNames, labelValues);
+        synchronized (local) {
+            LocalFamily family = local.computeIfAbsent(familyName, k -> new LocalFamily(type, help));
+            if (family.samples.containsKey(key)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            family.samples.put(key, new Collector.MetricFamilySamples.Sample(name, labelNames, labelValues, value));
+            return true;
+        }
+    }
+
+    /**
+     * Add the samples of metric families.
+     *
+     * @param metricFamilySamplesList the metric families.
+     */
+    public void addAll(Collection<Collector.MetricFamilySamples> metricFamilySamplesList) {
+        for (Collector.MetricFamilySamples metricFamilySamples : metricFamilySamplesList) {
+            for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+                add(metricFamilySamples.name, metricFamilySamples.type, metricFamilySamples.help, sample);
+            }
+        }
+    }
+
+    /**
+     * Add the samples of another accumulator, and count the duplicates it dropped as dropped here.
+     *
+     * @param accumulator the accumulator.
+     */
+    public void addAll(SolrSampleAccumulator accumulator) {
+        if (accumulator.local != null) {
+            addAll(accumulator.toList());
+            duplicates.addAndGet(accumulator.getDuplicates());
+            return;
+        }
+        SolrSeriesStore.View view = accumulator.view();
+        for (SolrSeriesStore.Family family : view.families()) {
+            int size = family.size();
+            for (int i = 0; i < size; i++) {
+                SolrSeriesStore.Series series = family.get(i);
+                if (series != null && view.contains(series)) {
+                    add(family.getName(), family.getType(), family.getHelp(), series.getName(), series.getLabelNames(), series.getLabelValues(), view.value(series));
+                }
+            }
+        }
+        duplicates.addAndGet(accumulator.getDuplicates());
+    }
+
+    /**
+     * @return the number of samples dropped because their series already had a sample.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Get the metric families that have samples, in the order they were first added to.
+     *
+     * @return a copy of the metric families.
+     */
+    public List<Collector.MetricFamilySamples> toList() {
+        if (local == null) {
+            return view().toList();
+        }
+        List<Collector.MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
+        synchronized (local) {
+            for (Map.Entry<String, LocalFamily> family : local.entrySet()) {
+                metricFamilySamplesList.add(new Collector.MetricFamilySamples(family.getKey(), family.getValue().type, family.getValue().help,
+                        new ArrayList<>(family.getValue().samples.values())));
+            }
+        }
+        return metricFamilySamplesList;
+    }
+
+    /**
+     * Get the metric families that have samples by name, in the order they were first added to.
+     *
+     * @return a copy of the metric families.
+     */
+    public Map<String, Collector.MetricFamilySamples> toMap() {
+        Map<String, Collector.MetricFamilySamples> metricFamilySamplesMap = new LinkedHashMap<>();
+        for (Collector.MetricFamilySamples metricFamilySamples : toList()) {
+            metricFamilySamplesMap.put(metricFamilySamples.name, metricFamilySamples);
+        }
+        return metricFamilySamplesMap;
+    }
+
+    /**
+     * @return a view of the samples added so far, not retained.
+     */
+    private SolrSeriesStore.View view() {
+        return new SolrSeriesStore.View(store, bank, generation, Collections.emptyList());
+    }
+
+    SolrSeriesStore.Bank getBank() {
+        return bank;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drop the samples added from now on and wait for the adds in progress.
+     */
+    void close() {
+        closed = true;
+        if (writers == null) {
+            return;
+        }
+        for (int i = 0; i < WRITER_STRIPES; i++) {
+            while (writers.get(i * WRITER_STRIDE) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return the stripe of the calling thread, -1 if adds are not tracked, or -2 if the
+     *         accumulator is closed.
+     */
+    private int enter() {
+        if (writers == null) {
+            return closed ? -2 : -1;
+        }
+        int stripe = ((int) Thread.currentThread().getId() & (WRITER_STRIPES - 1)) * WRITER_STRIDE;
+        writers.incrementAndGet(stripe);
+        if (closed) {
+            writers.decrementAndGet(stripe);
+            return -2;
+        }
+        return stripe;
+    }
+
+    private void exit(int stripe) {
+        if (stripe >= 0) {
+            writers.decrementAndGet(stripe);
+        }
+    }
+
+    /**
+     * A metric family of an accumulator without a store, with the type and help of its first sample.
+     */
+    private static final class LocalFamily {
+        private final Collector.Type type;
+        private final String help;
+        private final Map<SampleKey, Collector.MetricFamilySamples.Sample> samples = new LinkedHashMap<>();
+
+        LocalFamily(Collector.Type type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    /**
+     * The sample name and label set of a sample of an accumulator without a store.
+     */
+    private static final class SampleKey {
+        private final String name;
+        private final List<String> labelNames;
+        private final List<String> labelValues;
+        private final int hash;
+
+        SampleKey(String name, List<String> labelNames, List<String> labelValues) {
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.hash = (name.hashCode() * 31 + labelNames.hashCode()) * 31 + labelValues.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SampleKey)) {
+                return false;
+            }
+            SampleKey other = (SampleKey) obj;
+            return hash == other.hash && name.equals(other.name) && labelNames.equals(other.labelNames) && labelValues.equals(other.labelValues);
+        }
+    }
+}
@@ -17,9 +17,13 @@
 package com.github.mosuka.solr.prometheus.scraper;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.mosuka.solr.prometheus.scraper.config.SolrQueryConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrRequestPlan;
 import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonHash;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonResponseParser;
+import com.github.mosuka.solr.prometheus.scraper.rule.SolrMetricRuleSet;
 import io.prometheus.client.Collector;
 import net.thisptr.jackson.jq.JsonQuery;
 import net.thisptr.jackson.jq.exception.JsonQueryException;
@@ -36,12 +40,15 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * SolrScraper
  *
  */
-public class SolrScraper implements Callable<Map<String, Collector.MetricFamilySamples>> {
+public class SolrScraper implements Callable<SolrSampleAccumulator> {
     private static final Logger logger = LoggerFactory.getLogger(SolrScraper.class);
 
     private SolrClient solrClient;
@@ -50,6 +57,24 @@ public class SolrScraper implements Callable<Map<String, Collector.MetricFamilyS
     private List<String> labelNames;
     private List<String> labelValues;
 
+    private SolrSampleAccumulator accumulator;
+
+    private String section;
+    private SolrScraperMetrics metrics;
+
+    private volatile boolean failed;
+    // the time the slowest request of the last run took
+    private volatile long requestNanos;
+
+    private List<String> coreRegistries = Collections.emptyList();
+    private SolrResultCache resultCache;
+    private SolrHedger hedger;
+
+    private SolrLabelInterner interner = SolrLabelInterner.DEFAULT;
+    // replaced as a whole, so that the slices of a split request evaluated concurrently see a
+    // consistent prefix
+    private volatile CachedLabelPrefix labelPrefix;
+
     /**
      *
      */
@@ -61,6 +86,25 @@ public class SolrScraper implements Callable<Map<String, Collector.MetricFamilyS
      *
      */
     public SolrScraper(SolrClient solrClient, SolrScraperConfig scraperConfig, List<String> labelNames, List<String> labelValues) {
+        this(solrClient, scraperConfig, labelNames, labelValues, new SolrSampleAccumulator());
+    }
+
+    /**
+     *
+     * @param accumulator receives the samples, and may be shared with other scrapers.
+     */
+    public SolrScraper(SolrClient solrClient, SolrScraperConfig scraperConfig, List<String> labelNames, List<String> labelValues, SolrSampleAccumulator accumulator) {
+        this(solrClient, scraperConfig, labelNames, labelValues, accumulator, "", null);
+    }
+
+    /**
+     *
+     * @param accumulator receives the samples, and may be shared with other scrapers.
+     * @param section the section of the configuration the scraper runs, see {@link SolrScraperMetrics}.
+     * @param metrics records the requests, parsing, rule evaluation and errors of the scraper, or null.
+     */
+    public SolrScraper(SolrClient solrClient, SolrScraperConfig scraperConfig, List<String> labelNames, List<String> labelValues,
+                       SolrSampleAccumulator accumulator, String section, SolrScraperMetrics metrics) {
         super();
 
         this.solrClient = solrClient;
@@ -68,16 +112,176 @@ public class SolrScraper implements Callable<Map<String, Collector.MetricFamilyS
 
         this.labelNames = labelNames;
         this.labelValues = labelValues;
+
+        this.accumulator = accumulator;
+
+        this.section = section;
+        this.metrics = metrics;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    public String getTarget() {
+        return SolrScraperMetrics.target(solrClient);
+    }
+
+    public SolrScraperConfig getScraperConfig() {
+        return scraperConfig;
+    }
+
+    public SolrSampleAccumulator getAccumulator() {
+        return accumulator;
     }
 
     /**
+     * Set the core registries of the node, which a split /admin/metrics request spreads over
+     * several requests.
      *
-     * @return
+     * @param coreRegistries the registry name prefixes, e.g. solr.core.collection1.
+     */
+    public void setCoreRegistries(List<String> coreRegistries) {
+        this.coreRegistries = coreRegistries;
+    }
+
+    /**
+     * Set the cache of the samples produced from unchanged responses, shared across scrapes.
+     *
+     * @param resultCache the cache, or null to apply the rules to every response.
+     */
+    public void setResultCache(SolrResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Send a copy of the requests through a cluster client that are slow to be answered.
+     *
+     * @param hedger sends the copies, or null to send each request once.
+     */
+    public void setHedger(SolrHedger hedger) {
+        this.hedger = hedger;
+    }
+
+    /**
+     * @return the time the slowest request of the last run took, in nanoseconds.
+     */
+    public long getRequestNanos() {
+        return requestNanos;
+    }
+
+    /**
+     * Do not send the requests, e.g. because the node does not answer, and add the samples that
+     * tell so if there are any.
+     */
+    public void skip() {
+        reset();
+        failed = true;
+    }
+
+    /**
+     * @return true if the last response could not be fetched or parsed.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     *
+     * @return the accumulator the samples were added to.
      * @throws Exception
      */
     @Override
-    public Map<String, Collector.MetricFamilySamples> call() throws Exception {
-        return collectResponse(this.solrClient, this.scraperConfig);
+    public SolrSampleAccumulator call() throws Exception {
+        collectResponse(this.solrClient, this.scraperConfig, this.accumulator);
+        return this.accumulator;
+    }
+
+    /**
+     * Scrape without blocking a thread on the requests: they are sent by the asynchronous client,
+     * and the responses are parsed and the rules applied by the executor once they are received.
+     * Clients other than {@link HttpSolrClient}, which route requests themselves, run the scraper
+     * in the executor instead.
+     *
+     * @param asyncClient sends the requests.
+     * @param executor runs the parsing and rule evaluation.
+     * @return the accumulator the samples were added to. Cancelling it aborts the requests.
+     */
+    public CompletableFuture<SolrSampleAccumulator> callAsync(SolrAsyncClient asyncClient, Executor executor) {
+        if (!(solrClient instanceof HttpSolrClient)) {
+            return CompletableFuture.supplyAsync(() -> {
+                collectResponse(this.solrClient, this.scraperConfig, this.accumulator);
+                return this.accumulator;
+            }, executor);
+        }
+
+        reset();
+        SolrQueryConfig queryConfig = scraperConfig.getQuery();
+        String baseUrl = ((HttpSolrClient) solrClient).getBaseURL();
+        String collection = !queryConfig.getCore().equals("") ? queryConfig.getCore() : queryConfig.getCollection();
+        JsonResponseParser responseParser = new JsonResponseParser(scraperConfig.getProjection());
+
+        // the narrowed requests of /admin/metrics are all in flight at once
+        boolean split = scraperConfig.getSplit() > 0;
+        List<CompletableFuture<NamedList<Object>>> requests = new ArrayList<>();
+        List<CompletableFuture<JsonNode>> responses = new ArrayList<>();
+        List<CompletableFuture<SolrSampleAccumulator>> slices = new ArrayList<>();
+        for (ModifiableSolrParams params : requests(scraperConfig)) {
+            long startTime = System.nanoTime();
+            CompletableFuture<NamedList<Object>> request = asyncClient.request(baseUrl, collection, queryConfig.getPath(), params, responseParser, executor);
+            requests.add(request);
+            CompletableFuture<JsonNode> response = request.thenApply(queryResponse -> response(solrClient, startTime, queryResponse));
+            responses.add(response);
+            if (split) {
+                // the native rules read one registry at a time, so each slice is evaluated as soon
+                // as it is parsed, in parallel with the others
+                slices.add(response.thenApply(responseJson -> {
+                    long evaluationStartTime = System.nanoTime();
+                    SolrSampleAccumulator sliceAccumulator = new SolrSampleAccumulator();
+                    observeRules(solrClient, evaluationStartTime, applyRules(solrClient, scraperConfig, responseJson, sliceAccumulator));
+                    return sliceAccumulator;
+                }));
+            }
+        }
+
+        // runs in the thread that completed the last response, an executor thread unless it failed
+        CompletableFuture<SolrSampleAccumulator> result = CompletableFuture.allOf((split ? slices : responses).toArray(new CompletableFuture<?>[0])).handle((v, t) -> {
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                logger.error(cause.toString());
+                error(solrClient, cause);
+                failed = true;
+                return this.accumulator;
+            }
+            try {
+                if (split) {
+                    // slices are merged in the order of the requests
+                    for (CompletableFuture<SolrSampleAccumulator> slice : slices) {
+                        this.accumulator.addAll(slice.join());
+                    }
+                    // the jq rules may read several registries at once, so they are applied to the merged response
+                    if (!scraperConfig.getCompiledJsonQueries().isEmpty()) {
+                        long evaluationStartTime = System.nanoTime();
+                        observeRules(solrClient, evaluationStartTime, applyJsonQueries(solrClient, scraperConfig, merge(responses), this.accumulator));
+                    }
+                } else {
+                    collectMetrics(solrClient, scraperConfig, merge(responses), this.accumulator);
+                }
+            } catch (Exception e) {
+                logger.error(e.toString());
+                error(solrClient, e);
+                failed = true;
+            }
+            return this.accumulator;
+        });
+        result.whenComplete((a, t) -> {
+            if (result.isCancelled()) {
+                for (CompletableFuture<NamedList<Object>> request : requests) {
+                    request.cancel(false);
+                }
+            }
+        });
+        return result;
     }
 
     /**
@@ -88,115 +292,420 @@ public class SolrScraper implements Callable<Map<String, Collector.MetricFamilyS
      * @return
      */
     public Map<String, Collector.MetricFamilySamples> collectResponse(SolrClient solrClient, SolrScraperConfig scraperConfig) {
-        Map<String, Collector.MetricFamilySamples> metricFamilySamplesMap = new LinkedHashMap<>();
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        collectResponse(solrClient, scraperConfig, accumulator);
+        return accumulator.toMap();
+    }
 
+    /**
+     * Query Solr and add the samples the rules produce to an accumulator.
+     *
+     * @param solrClient
+     * @param scraperConfig
+     * @param accumulator receives the samples.
+     */
+    public void collectResponse(SolrClient solrClient, SolrScraperConfig scraperConfig, SolrSampleAccumulator accumulator) {
+        reset();
         try {
             SolrQueryConfig queryConfig = scraperConfig.getQuery();
 
-            // create Solr request parameters
-            ModifiableSolrParams params = new ModifiableSolrParams();
-            for (Map<String, String> param : queryConfig.getParams()) {
-                for (String name : param.keySet()) {
-                    Object obj = param.get(name);
-                    if (obj instanceof Number) {
-                        params.add(name, obj.toString());
-                    } else {
-                        params.add(name, param.get(name));
-                    }
+            // the response is parsed from the stream, skipping what the rules cannot reference
+            JsonResponseParser responseParser = new JsonResponseParser(scraperConfig.getProjection());
+
+            // /admin/metrics may be split into narrowed requests whose metrics are merged
+            JsonNode metricsJson = null;
+            for (ModifiableSolrParams params : requests(scraperConfig)) {
+                JsonNode responseJson = request(solrClient, queryConfig, params, responseParser);
+                if (metricsJson == null) {
+                    metricsJson = responseJson;
+                } else {
+                    merge(metricsJson, responseJson);
                 }
             }
 
-            // create Solr queryConfig request
-            QueryRequest queryRequest = new QueryRequest(params);
-            queryRequest.setPath(queryConfig.getPath());
-
-            // invoke Solr
-            NamedList<Object> queryResponse = null;
-            if (queryConfig.getCore().equals("") && queryConfig.getCollection().equals("")) {
-                queryResponse = solrClient.request(queryRequest);
-            } else if (!queryConfig.getCore().equals("")) {
-                queryResponse = solrClient.request(queryRequest, queryConfig.getCore());
-            } else if (!queryConfig.getCollection().equals("")) {
-                queryResponse = solrClient.request(queryRequest, queryConfig.getCollection());
+            collectMetrics(solrClient, scraperConfig, metricsJson, accumulator);
+        } catch (HttpSolrClient.RemoteSolrException | SolrServerException | IOException e) {
+            logger.error(e.toString());
+            error(solrClient, e);
+            failed = true;
+        } catch (Exception e) {
+            logger.error(e.toString());
+            error(solrClient, e);
+            failed = true;
+        }
+    }
+
+    /**
+     * Get the parameters of each request of a scrape, split if the section asks for it.
+     */
+    private List<ModifiableSolrParams> requests(SolrScraperConfig scraperConfig) {
+        List<ModifiableSolrParams> requests = scraperConfig.getRequestPlan().getRequests();
+        if (scraperConfig.getSplit() > 0) {
+            return SolrRequestPlan.split(requests, coreRegistries, scraperConfig.getSplit());
+        }
+        return requests;
+    }
+
+    private JsonNode request(SolrClient solrClient, SolrQueryConfig queryConfig, ModifiableSolrParams params, JsonResponseParser responseParser)
+            throws SolrServerException, IOException {
+        // create Solr queryConfig request
+        QueryRequest queryRequest = new QueryRequest(params);
+        queryRequest.setPath(queryConfig.getPath());
+        queryRequest.setResponseParser(responseParser);
+
+        String collection = null;
+        if (!queryConfig.getCore().equals("")) {
+            collection = queryConfig.getCore();
+        } else if (!queryConfig.getCollection().equals("")) {
+            collection = queryConfig.getCollection();
+        }
+
+        // invoke Solr
+        long startTime = System.nanoTime();
+        NamedList<Object> queryResponse;
+        if (hedger != null && solrClient instanceof CloudSolrClient) {
+            queryResponse = hedger.request(solrClient, queryRequest, collection, () -> {
+                if (metrics != null) {
+                    metrics.hedged(section, SolrScraperMetrics.target(solrClient));
+                }
+            });
+        } else {
+            queryResponse = solrClient.request(queryRequest, collection);
+        }
+
+        return response(solrClient, startTime, queryResponse);
+    }
+
+    /**
+     * Record the request and get the response tree out of a parsed response.
+     */
+    protected JsonNode response(SolrClient solrClient, long startTime, NamedList<Object> queryResponse) {
+        long nanos = System.nanoTime() - startTime;
+        // responses of split requests may be handled concurrently
+        synchronized (this) {
+            requestNanos = Math.max(requestNanos, nanos);
+        }
+        if (metrics != null) {
+            String target = SolrScraperMetrics.target(solrClient);
+            metrics.observeRequest(section, target, nanos);
+            Object parseTime = queryResponse.get("parseTime");
+            Object responseBytes = queryResponse.get("responseBytes");
+            if (parseTime instanceof Long) {
+                metrics.observeParse(section, target, (Long) parseTime, responseBytes instanceof Long ? (Long) responseBytes : -1);
             }
+        }
 
-            ObjectMapper om = new ObjectMapper();
+        return (JsonNode) queryResponse.get("response");
+    }
 
-            JsonNode metricsJson = om.readTree((String) queryResponse.get("response"));
+    /**
+     * Forget the outcome of the last run, at the start of a run.
+     */
+    protected void reset() {
+        failed = false;
+        requestNanos = 0;
+    }
 
-            List<JsonQuery> jqs = new ArrayList<>();
-            for (String jsonQuery : scraperConfig.getJsonQueries()) {
-                JsonQuery compiledJsonQuery = JsonQuery.compile(jsonQuery);
-                jqs.add(compiledJsonQuery);
+    /**
+     * Mark the scrape as failed, so that its samples are not reused.
+     */
+    protected void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    /**
+     * Count a failure of the scraper.
+     */
+    protected void error(SolrClient solrClient, Throwable t) {
+        if (metrics != null) {
+            metrics.error(section, SolrScraperMetrics.target(solrClient), t);
+        }
+    }
+
+    /**
+     * Merge the registries of the narrowed /admin/metrics responses into the first.
+     */
+    private static JsonNode merge(List<CompletableFuture<JsonNode>> responses) {
+        JsonNode metricsJson = null;
+        for (CompletableFuture<JsonNode> response : responses) {
+            if (metricsJson == null) {
+                metricsJson = response.join();
+            } else {
+                merge(metricsJson, response.join());
             }
+        }
+        return metricsJson;
+    }
+
+    /**
+     * Merge the registries of a narrowed /admin/metrics response into another.
+     */
+    private static void merge(JsonNode metricsJson, JsonNode responseJson) {
+        JsonNode metrics = metricsJson.get("metrics");
+        JsonNode responseMetrics = responseJson.get("metrics");
+        if (!(metrics instanceof ObjectNode) || responseMetrics == null || !responseMetrics.isObject()) {
+            return;
+        }
+        for (Iterator<Map.Entry<String, JsonNode>> ite = responseMetrics.fields(); ite.hasNext(); ) {
+            Map.Entry<String, JsonNode> registry = ite.next();
+            JsonNode current = metrics.get(registry.getKey());
+            if (current instanceof ObjectNode && registry.getValue().isObject()) {
+                ((ObjectNode) current).setAll((ObjectNode) registry.getValue());
+            } else {
+                ((ObjectNode) metrics).set(registry.getKey(), registry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Apply the native rules and then the jq rules to a response.
+     *
+     * @param solrClient the client the response was fetched with.
+     * @param scraperConfig the scraper config.
+     * @param metricsJson the response.
+     * @return the samples by metric name.
+     */
+    public Map<String, Collector.MetricFamilySamples> collectMetrics(SolrClient solrClient, SolrScraperConfig scraperConfig, JsonNode metricsJson) {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        collectMetrics(solrClient, scraperConfig, metricsJson, accumulator);
+        return accumulator.toMap();
+    }
+
+    /**
+     * Apply the native rules and then the jq rules to a response.
+     *
+     * @param solrClient the client the response was fetched with.
+     * @param scraperConfig the scraper config.
+     * @param metricsJson the response.
+     * @param accumulator receives the samples.
+     */
+    public void collectMetrics(SolrClient solrClient, SolrScraperConfig scraperConfig, JsonNode metricsJson, SolrSampleAccumulator accumulator) {
+        long startTime = System.nanoTime();
+        int samples = applyRules(solrClient, scraperConfig, metricsJson, accumulator);
+        samples += applyJsonQueries(solrClient, scraperConfig, metricsJson, accumulator);
+        observeRules(solrClient, startTime, samples);
+    }
+
+    /**
+     * Apply the native rules to a response. With a result cache, the rules are applied only to the
+     * registries that changed since the last scrape, and the samples of the others are reused.
+     *
+     * @return the number of samples produced.
+     */
+    private int applyRules(SolrClient solrClient, SolrScraperConfig scraperConfig, JsonNode metricsJson, SolrSampleAccumulator accumulator) {
+        SolrMetricRuleSet ruleSet = scraperConfig.getRuleSet();
+        if (resultCache == null || !scraperConfig.isCache()) {
+            int[] samples = { 0 };
+            ruleSet.apply(metricsJson, (rule, labelNames, labelValues, value) -> {
+                addSample(accumulator, null, solrClient, scraperConfig, rule.getName(), rule.getType(), rule.getHelp(), labelNames, labelValues, value);
+                samples[0]++;
+            });
+            return samples[0];
+        }
+
+        if (ruleSet.isEmpty() || metricsJson == null || !metricsJson.path("metrics").isObject()) {
+            return 0;
+        }
+        String key = cacheKey(solrClient, scraperConfig);
+        int samples = 0;
+        for (Iterator<Map.Entry<String, JsonNode>> registries = metricsJson.get("metrics").fields(); registries.hasNext(); ) {
+            Map.Entry<String, JsonNode> registry = registries.next();
+            if (!registry.getValue().isObject() || !ruleSet.reads(registry.getKey())) {
+                continue;
+            }
+            samples += applyCached(solrClient, key + registry.getKey(), registry.getValue(), ruleSet, accumulator, recorded -> {
+                ruleSet.apply(registry.getKey(), registry.getValue(), (rule, labelNames, labelValues, value) ->
+                        addSample(accumulator, recorded, solrClient, scraperConfig, rule.getName(), rule.getType(), rule.getHelp(), labelNames, labelValues, value));
+                return true;
+            });
+        }
+        return samples;
+    }
+
+    /**
+     * Apply the jq rules to a response. With a result cache, they are applied only if the response
+     * changed since the last scrape, and the samples of the last scrape are reused otherwise.
+     *
+     * @return the number of samples produced.
+     */
+    private int applyJsonQueries(SolrClient solrClient, SolrScraperConfig scraperConfig, JsonNode metricsJson, SolrSampleAccumulator accumulator) {
+        List<JsonQuery> jqs = scraperConfig.getCompiledJsonQueries();
+        if (jqs.isEmpty()) {
+            return 0;
+        }
+        if (resultCache == null || !scraperConfig.isCache()) {
+            List<SolrResultCache.CachedSample> recorded = new ArrayList<>();
+            evaluateJsonQueries(solrClient, scraperConfig, metricsJson, accumulator, recorded);
+            return recorded.size();
+        }
+
+        return applyCached(solrClient, cacheKey(solrClient, scraperConfig), metricsJson, jqs, accumulator,
+                recorded -> evaluateJsonQueries(solrClient, scraperConfig, metricsJson, accumulator, recorded));
+    }
+
+    /**
+     * Apply the jq rules to a response.
+     *
+     * @param recorded receives the samples produced.
+     * @return true if every rule could be applied.
+     */
+    private boolean evaluateJsonQueries(SolrClient solrClient, SolrScraperConfig scraperConfig, JsonNode metricsJson, SolrSampleAccumulator accumulator,
+                                        List<SolrResultCache.CachedSample> recorded) {
+        boolean complete = true;
+        List<JsonQuery> jqs = scraperConfig.getCompiledJsonQueries();
+
+        for (int i = 0; i < jqs.size(); i++) {
+            JsonQuery q = jqs.get(i);
+            try {
+                List<JsonNode> results = q.apply(metricsJson);
+                for (JsonNode result : results) {
+                    String type = result.get("type").textValue();
+                    String name = result.get("name").textValue();
+                    String help = result.get("help").textValue();
+                    Double value = result.get("value").doubleValue();
 
-            for (int i = 0; i < jqs.size(); i++) {
-                JsonQuery q = jqs.get(i);
-                try {
-                    List<JsonNode> results = q.apply(metricsJson);
-                    for (JsonNode result : results) {
-                        String type = result.get("type").textValue();
-                        String name = result.get("name").textValue();
-                        String help = result.get("help").textValue();
-                        Double value = result.get("value").doubleValue();
-
-                        List<String> labelNames = new ArrayList<>(this.labelNames);
-                        List<String> labelValues = new ArrayList<>(this.labelValues);
-
-                        if (solrClient instanceof HttpSolrClient) {
-                            labelNames.add("base_url");
-                            labelValues.add(((HttpSolrClient) solrClient).getBaseURL());
-                        } else {
-                            labelNames.add("zk_host");
-                            labelValues.add(((CloudSolrClient) solrClient).getZkHost());
-                        }
-
-                        if (!scraperConfig.getQuery().getCore().equals("")) {
-                            labelNames.add("core");
-                            labelValues.add(scraperConfig.getQuery().getCore());
-                        }
-
-                        if (!scraperConfig.getQuery().getCollection().equals("")) {
-                            labelNames.add("collection");
-                            labelValues.add(scraperConfig.getQuery().getCollection());
-                        }
-
-                        for(Iterator<JsonNode> ite = result.get("label_names").iterator();ite.hasNext();){
-                            JsonNode item = ite.next();
-                            labelNames.add(item.textValue());
-                        }
-                        for(Iterator<JsonNode> ite = result.get("label_values").iterator();ite.hasNext();){
-                            JsonNode item = ite.next();
-                            labelValues.add(item.textValue());
-                        }
-
-                        if (!metricFamilySamplesMap.containsKey(name)) {
-                            Collector.MetricFamilySamples metricFamilySamples = new Collector.MetricFamilySamples(
-                                    name,
-                                    Collector.Type.valueOf(type),
-                                    help,
-                                    new ArrayList<>()
-                            );
-                            metricFamilySamplesMap.put(name, metricFamilySamples);
-                        }
-
-                        Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(name, labelNames, labelValues, value);
-
-                        if (!metricFamilySamplesMap.get(name).samples.contains(sample)) {
-                            metricFamilySamplesMap.get(name).samples.add(sample);
-                        }
+                    List<String> labelNames = new ArrayList<>();
+                    List<String> labelValues = new ArrayList<>();
+
+                    for(Iterator<JsonNode> ite = result.get("label_names").iterator();ite.hasNext();){
+                        JsonNode item = ite.next();
+                        labelNames.add(item.textValue());
+                    }
+                    for(Iterator<JsonNode> ite = result.get("label_values").iterator();ite.hasNext();){
+                        JsonNode item = ite.next();
+                        labelValues.add(item.textValue());
                     }
-                } catch (JsonQueryException e) {
-                    logger.error(e.toString() + " " + q.toString());
-                } finally {
+
+                    addSample(accumulator, recorded, solrClient, scraperConfig, name, Collector.Type.valueOf(type), help, labelNames, labelValues, value);
                 }
+            } catch (JsonQueryException e) {
+                logger.error(e.toString() + " " + q.toString());
+                error(solrClient, e);
+                complete = false;
             }
-        } catch (HttpSolrClient.RemoteSolrException | SolrServerException | IOException e) {
-            logger.error(e.toString());
-        } catch (Exception e) {
-            logger.error(e.toString());
         }
+        return complete;
+    }
+
+    /**
+     * Produces the samples of an input, adding them to a list as well as to the accumulator.
+     */
+    private interface Evaluation {
+        /**
+         * @return false if the samples are incomplete and must not be reused.
+         */
+        boolean evaluate(List<SolrResultCache.CachedSample> recorded);
+    }
+
+    /**
+     * Add the samples of an input from the result cache if it is unchanged, or evaluate it and
+     * cache its samples.
+     *
+     * @return the number of samples added.
+     */
+    private int applyCached(SolrClient solrClient, String key, JsonNode input, Object rules, SolrSampleAccumulator accumulator, Evaluation evaluation) {
+        long hash = JsonHash.hash(input);
+        List<SolrResultCache.CachedSample> cached = resultCache.get(key, hash, rules);
+        if (cached != null) {
+            for (SolrResultCache.CachedSample sample : cached) {
+                sample.addTo(accumulator);
+            }
+            if (metrics != null) {
+                metrics.resultCacheHit(section, SolrScraperMetrics.target(solrClient));
+            }
+            return cached.size();
+        }
+
+        List<SolrResultCache.CachedSample> recorded = new ArrayList<>();
+        if (evaluation.evaluate(recorded)) {
+            resultCache.put(key, hash, rules, recorded);
+        }
+        if (metrics != null) {
+            metrics.resultCacheMiss(section, SolrScraperMetrics.target(solrClient));
+        }
+        return recorded.size();
+    }
+
+    /**
+     * @return the prefix of the result cache keys of a scraper, telling apart the targets, cores
+     *         and collections a configuration is applied to.
+     */
+    private String cacheKey(SolrClient solrClient, SolrScraperConfig scraperConfig) {
+        return section + " " + SolrScraperMetrics.target(solrClient) + " " + scraperConfig.getQuery().getCore() + " "
+                + scraperConfig.getQuery().getCollection() + " " + labelValues + " ";
+    }
 
-        return metricFamilySamplesMap;
+    private void observeRules(SolrClient solrClient, long startTime, int samples) {
+        if (metrics != null) {
+            metrics.observeRules(section, SolrScraperMetrics.target(solrClient), System.nanoTime() - startTime, samples);
+        }
+    }
+
+    /**
+     * Add a sample to an accumulator, and to a list of samples to cache if there is one.
+     */
+    private void addSample(SolrSampleAccumulator accumulator, List<SolrResultCache.CachedSample> recorded, SolrClient solrClient, SolrScraperConfig scraperConfig,
+                           String name, Collector.Type type, String help, List<String> ruleLabelNames, List<String> ruleLabelValues, double value) {
+        SolrLabelInterner.LabelPrefix labelPrefix = getLabelPrefix(solrClient, scraperConfig);
+
+        String sampleName = interner.intern(name);
+        String sampleHelp = interner.intern(help);
+        Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(sampleName,
+                labelPrefix.names(ruleLabelNames), labelPrefix.values(ruleLabelValues), value);
+        accumulator.add(sampleName, type, sampleHelp, sample);
+        if (recorded != null) {
+            recorded.add(new SolrResultCache.CachedSample(sampleName, type, sampleHelp, sample));
+        }
+    }
+
+    /**
+     * Get the labels every sample of the target starts with, built once per target.
+     */
+    private SolrLabelInterner.LabelPrefix getLabelPrefix(SolrClient solrClient, SolrScraperConfig scraperConfig) {
+        CachedLabelPrefix cached = this.labelPrefix;
+        if (cached != null && cached.solrClient == solrClient && cached.scraperConfig == scraperConfig) {
+            return cached.labelPrefix;
+        }
+
+        List<String> labelNames = new ArrayList<>(this.labelNames);
+        List<String> labelValues = new ArrayList<>(this.labelValues);
+
+        if (solrClient instanceof HttpSolrClient) {
+            labelNames.add("base_url");
+            labelValues.add(((HttpSolrClient) solrClient).getBaseURL());
+        } else {
+            labelNames.add("zk_host");
+            labelValues.add(((CloudSolrClient) solrClient).getZkHost());
+        }
+
+        if (!scraperConfig.getQuery().getCore().equals("")) {
+            labelNames.add("core");
+            labelValues.add(scraperConfig.getQuery().getCore());
+        }
+
+        if (!scraperConfig.getQuery().getCollection().equals("")) {
+            labelNames.add("collection");
+            labelValues.add(scraperConfig.getQuery().getCollection());
+        }
+
+        // threads building it at once build the same prefix, either may be kept
+        cached = new CachedLabelPrefix(solrClient, scraperConfig, interner.prefix(labelNames, labelValues));
+        this.labelPrefix = cached;
+        return cached.labelPrefix;
+    }
+
+    /**
+     * The label prefix of a target, with the client and configuration it was built for.
+     */
+    private static final class CachedLabelPrefix {
+        private final SolrClient solrClient;
+        private final SolrScraperConfig scraperConfig;
+        private final SolrLabelInterner.LabelPrefix labelPrefix;
+
+        CachedLabelPrefix(SolrClient solrClient, SolrScraperConfig scraperConfig, SolrLabelInterner.LabelPrefix labelPrefix) {
+            this.solrClient = solrClient;
+            this.scraperConfig = scraperConfig;
+            this.labelPrefix = labelPrefix;
+        }
     }
 }
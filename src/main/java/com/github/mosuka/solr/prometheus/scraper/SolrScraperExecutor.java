@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SolrScraperExecutor
+ *
+ * Long-lived thread pool that runs scraper tasks. It is created once per exporter and shared by every scrape,
+ * has a bounded work queue, named daemon threads and a per-task deadline, and exposes its saturation as metrics.
+ * It also runs the completion callbacks of {@link SolrAsyncClient} requests.
+ */
+public class SolrScraperExecutor extends Collector implements Collector.Describable, Executor {
+    private static final Logger logger = LoggerFactory.getLogger(SolrScraperExecutor.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final long DEFAULT_TASK_TIMEOUT_MILLIS = 60000L;
+    public static final long SHUTDOWN_TIMEOUT_MILLIS = 10000L;
+
+    private final ThreadPoolExecutor executor;
+    private final int queueSize;
+    private final long taskTimeoutMillis;
+
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicLong timedOutTasks = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param numThreads the number of scraper threads.
+     */
+    public SolrScraperExecutor(int numThreads) {
+        this(numThreads, DEFAULT_QUEUE_SIZE, DEFAULT_TASK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numThreads the number of scraper threads.
+     * @param queueSize the maximum number of tasks waiting for a thread.
+     * @param taskTimeoutMillis the deadline of each task, in milliseconds.
+     */
+    public SolrScraperExecutor(int numThreads, int queueSize, long taskTimeoutMillis) {
+        this.queueSize = queueSize;
+        this.taskTimeoutMillis = taskTimeoutMillis;
+
+        this.executor = new ThreadPoolExecutor(
+                numThreads,
+                numThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new NamedThreadFactory("solr-scraper"),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public int getNumThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getTaskTimeoutMillis() {
+        return taskTimeoutMillis;
+    }
+
+    /**
+     * Submit a task.
+     *
+     * @param task the task to run.
+     * @return the future of the task.
+     * @throws RejectedExecutionException if the work queue is full or the executor is shut down.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Run a callback, such as the parsing of a response received by {@link SolrAsyncClient}.
+     *
+     * @param command the callback to run.
+     * @throws RejectedExecutionException if the work queue is full or the executor is shut down.
+     */
+    @Override
+    public void execute(Runnable command) {
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a task submitted now until its deadline. The task is cancelled when the deadline passes.
+     *
+     * @param future the future returned by {@link #submit(Callable)}.
+     * @return the result of the task.
+     */
+    public <T> T get(Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(future, deadline());
+    }
+
+    /**
+     * @return the deadline of a task submitted now, from {@link System#nanoTime()}.
+     */
+    public long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(taskTimeoutMillis);
+    }
+
+    /**
+     * Wait for a task until its deadline, only for the time left of it. The task is cancelled when
+     * the deadline passes, so that waiting for several tasks one after the other takes no longer
+     * than the last deadline.
+     *
+     * @param future the future returned by {@link #submit(Callable)}.
+     * @param deadlineNanoTime the deadline of the task, see {@link #deadline()}.
+     * @return the result of the task.
+     */
+    public <T> T get(Future<T> future, long deadlineNanoTime) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            // a task done by its deadline is returned even if the deadline has passed since
+            return future.get(Math.max(0, deadlineNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timedOutTasks.incrementAndGet();
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Stop accepting tasks and wait for the running ones to finish.
+     * Tasks that do not finish in time are interrupted.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                List<Runnable> dropped = executor.shutdownNow();
+                logger.warn("Scraper executor did not terminate in time, " + dropped.size() + " queued tasks dropped");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Describe executor metrics.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_threads", Type.GAUGE, "Number of threads in the scraper pool.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_active_threads", Type.GAUGE, "Number of scraper threads running a task.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_queued_tasks", Type.GAUGE, "Number of tasks waiting in the scraper queue.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_queue_capacity", Type.GAUGE, "Maximum number of tasks the scraper queue can hold.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_completed_tasks_total", Type.COUNTER, "Number of scraper tasks completed.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_rejected_tasks_total", Type.COUNTER, "Number of scraper tasks rejected because the queue was full.", new ArrayList<>()));
+        metricFamilies.add(new MetricFamilySamples("solr_exporter_executor_timed_out_tasks_total", Type.COUNTER, "Number of scraper tasks cancelled at their deadline.", new ArrayList<>()));
+        return metricFamilies;
+    }
+
+    /**
+     * Collect executor metrics.
+     *
+     * @return
+     */
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.add(gauge("solr_exporter_executor_threads", Type.GAUGE, "Number of threads in the scraper pool.", executor.getPoolSize()));
+        metricFamilies.add(gauge("solr_exporter_executor_active_threads", Type.GAUGE, "Number of scraper threads running a task.", executor.getActiveCount()));
+        metricFamilies.add(gauge("solr_exporter_executor_queued_tasks", Type.GAUGE, "Number of tasks waiting in the scraper queue.", executor.getQueue().size()));
+        metricFamilies.add(gauge("solr_exporter_executor_queue_capacity", Type.GAUGE, "Maximum number of tasks the scraper queue can hold.", queueSize));
+        metricFamilies.add(gauge("solr_exporter_executor_completed_tasks_total", Type.COUNTER, "Number of scraper tasks completed.", executor.getCompletedTaskCount()));
+        metricFamilies.add(gauge("solr_exporter_executor_rejected_tasks_total", Type.COUNTER, "Number of scraper tasks rejected because the queue was full.", rejectedTasks.get()));
+        metricFamilies.add(gauge("solr_exporter_executor_timed_out_tasks_total", Type.COUNTER, "Number of scraper tasks cancelled at their deadline.", timedOutTasks.get()));
+        return metricFamilies;
+    }
+
+    private static MetricFamilySamples gauge(String name, Type type, String help, double value) {
+        MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample(name, Collections.emptyList(), Collections.emptyList(), value);
+        return new MetricFamilySamples(name, type, help, Collections.singletonList(sample));
+    }
+
+    /**
+     * Thread factory that names threads after the pool and marks them as daemon threads.
+     */
+    public static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
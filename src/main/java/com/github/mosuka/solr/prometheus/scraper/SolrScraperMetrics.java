@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * SolrScraperMetrics
+ *
+ * Metrics of the exporter itself, labelled by the section of the configuration a scraper runs
+ * (ping, metrics, collections, or queries[i] for the i-th entry of queries) and by its target, the
+ * base URL of a node or the ZooKeeper host of a cluster.
+ */
+public class SolrScraperMetrics extends Collector implements Collector.Describable {
+    public static final String SECTION_PING = "ping";
+    public static final String SECTION_METRICS = "metrics";
+    public static final String SECTION_COLLECTIONS = "collections";
+    public static final String SECTION_TOPOLOGY = "topology";
+
+    public static final String CAUSE_TIMEOUT = "timeout";
+    public static final String CAUSE_CONNECT = "connect";
+    public static final String CAUSE_HTTP = "http";
+    public static final String CAUSE_SOLR = "solr";
+    public static final String CAUSE_IO = "io";
+    public static final String CAUSE_PARSE = "parse";
+    public static final String CAUSE_JQ = "jq";
+    public static final String CAUSE_CONFIG = "config";
+    public static final String CAUSE_REJECTED = "rejected";
+    public static final String CAUSE_DEADLINE = "deadline";
+    public static final String CAUSE_INTERRUPTED = "interrupted";
+    public static final String CAUSE_CIRCUIT_OPEN = "circuit_open";
+    public static final String CAUSE_OTHER = "other";
+
+    private final Histogram requestDuration = Histogram.build()
+            .name("solr_exporter_request_duration_seconds")
+            .help("Time a request to Solr took, including reading and parsing the response, in seconds.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Histogram parseDuration = Histogram.build()
+            .name("solr_exporter_parse_duration_seconds")
+            .help("Time reading and parsing a response body took, in seconds.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Counter responseBytes = Counter.build()
+            .name("solr_exporter_response_bytes_total")
+            .help("Number of response body bytes read from Solr.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Histogram ruleDuration = Histogram.build()
+            .name("solr_exporter_rule_evaluation_duration_seconds")
+            .help("Time applying the rules of a section to a response took, in seconds.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Counter samples = Counter.build()
+            .name("solr_exporter_samples_total")
+            .help("Number of samples the rules produced.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Counter duplicateSamples = Counter.build()
+            .name("solr_exporter_duplicate_samples_total")
+            .help("Number of samples dropped because their series already had a sample in the same scrape.")
+            .create();
+
+    private final Counter resultCacheHits = Counter.build()
+            .name("solr_exporter_result_cache_hits_total")
+            .help("Number of responses and registries that were unchanged, whose samples were reused instead of applying the rules.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Counter resultCacheMisses = Counter.build()
+            .name("solr_exporter_result_cache_misses_total")
+            .help("Number of responses and registries that changed, to which the rules were applied.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Counter hedgedRequests = Counter.build()
+            .name("solr_exporter_hedged_requests_total")
+            .help("Number of requests sent again to another replica because the first was slow to be answered.")
+            .labelNames("section", "target")
+            .create();
+
+    private final Counter errors = Counter.build()
+            .name("solr_exporter_errors_total")
+            .help("Number of failed requests, rules and scraper tasks by cause.")
+            .labelNames("section", "target", "cause")
+            .create();
+
+    /**
+     * @param index the index of an entry of queries.
+     * @return the section of the entry.
+     */
+    public static String querySection(int index) {
+        return "queries[" + index + "]";
+    }
+
+    /**
+     * @param solrClient a client.
+     * @return the target label of the client.
+     */
+    public static String target(SolrClient solrClient) {
+        if (solrClient instanceof HttpSolrClient) {
+            return ((HttpSolrClient) solrClient).getBaseURL();
+        } else if (solrClient instanceof CloudSolrClient) {
+            return ((CloudSolrClient) solrClient).getZkHost();
+        }
+        return "";
+    }
+
+    /**
+     * Classify an error by the first cause that tells what went wrong.
+     *
+     * @param t the error.
+     * @return the cause label.
+     */
+    public static String cause(Throwable t) {
+        String cause = null;
+        for (Throwable c = t; c != null; c = c.getCause() == c ? null : c.getCause()) {
+            if (c instanceof SocketTimeoutException) {
+                return CAUSE_TIMEOUT;
+            } else if (c instanceof ConnectException || c instanceof ConnectTimeoutException
+                    || c instanceof UnknownHostException || c instanceof NoHttpResponseException) {
+                return CAUSE_CONNECT;
+            } else if (c instanceof JsonProcessingException) {
+                return CAUSE_PARSE;
+            } else if (c instanceof JsonQueryException) {
+                return CAUSE_JQ;
+            } else if (c instanceof CloneNotSupportedException) {
+                return CAUSE_CONFIG;
+            } else if (c instanceof RejectedExecutionException) {
+                return CAUSE_REJECTED;
+            } else if (c instanceof TimeoutException || c instanceof CancellationException) {
+                // a scraper task ran past its deadline
+                return CAUSE_DEADLINE;
+            } else if (c instanceof InterruptedException) {
+                return CAUSE_INTERRUPTED;
+            }
+            if (cause == null) {
+                if (c instanceof HttpSolrClient.RemoteSolrException) {
+                    cause = CAUSE_HTTP;
+                } else if (c instanceof SolrServerException) {
+                    cause = CAUSE_SOLR;
+                } else if (c instanceof IOException) {
+                    cause = CAUSE_IO;
+                }
+            }
+        }
+        return cause != null ? cause : CAUSE_OTHER;
+    }
+
+    /**
+     * Record a request to Solr.
+     *
+     * @param section the section.
+     * @param target the target.
+     * @param nanos the time the request took.
+     */
+    public void observeRequest(String section, String target, long nanos) {
+        requestDuration.labels(section, target).observe(nanos / 1.0E9);
+    }
+
+    /**
+     * Record the parsing of a response.
+     *
+     * @param section the section.
+     * @param target the target.
+     * @param nanos the time reading and parsing the body took.
+     * @param bytes the size of the body, or -1 if unknown.
+     */
+    public void observeParse(String section, String target, long nanos, long bytes) {
+        parseDuration.labels(section, target).observe(nanos / 1.0E9);
+        if (bytes >= 0) {
+            responseBytes.labels(section, target).inc(bytes);
+        }
+    }
+
+    /**
+     * Record the evaluation of the rules of a section.
+     *
+     * @param section the section.
+     * @param target the target.
+     * @param nanos the time the evaluation took.
+     * @param samples the number of samples produced.
+     */
+    public void observeRules(String section, String target, long nanos, int samples) {
+        ruleDuration.labels(section, target).observe(nanos / 1.0E9);
+        this.samples.labels(section, target).inc(samples);
+    }
+
+    /**
+     * Count a response or registry whose samples were reused.
+     *
+     * @param section the section.
+     * @param target the target.
+     */
+    public void resultCacheHit(String section, String target) {
+        resultCacheHits.labels(section, target).inc();
+    }
+
+    /**
+     * Count a response or registry to which the rules were applied.
+     *
+     * @param section the section.
+     * @param target the target.
+     */
+    public void resultCacheMiss(String section, String target) {
+        resultCacheMisses.labels(section, target).inc();
+    }
+
+    /**
+     * Count a request sent again to another replica.
+     *
+     * @param section the section.
+     * @param target the target.
+     */
+    public void hedged(String section, String target) {
+        hedgedRequests.labels(section, target).inc();
+    }
+
+    /**
+     * @param duplicates the number of samples an accumulator dropped.
+     */
+    public void duplicates(long duplicates) {
+        if (duplicates > 0) {
+            duplicateSamples.inc(duplicates);
+        }
+    }
+
+    /**
+     * Count an error.
+     *
+     * @param section the section.
+     * @param target the target.
+     * @param cause the cause label.
+     */
+    public void error(String section, String target, String cause) {
+        errors.labels(section, target, cause).inc();
+    }
+
+    /**
+     * Count an error, classified by {@link #cause(Throwable)}.
+     *
+     * @param section the section.
+     * @param target the target.
+     * @param t the error.
+     */
+    public void error(String section, String target, Throwable t) {
+        error(section, target, cause(t));
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.addAll(requestDuration.describe());
+        metricFamilies.addAll(parseDuration.describe());
+        metricFamilies.addAll(responseBytes.describe());
+        metricFamilies.addAll(ruleDuration.describe());
+        metricFamilies.addAll(samples.describe());
+        metricFamilies.addAll(duplicateSamples.describe());
+        metricFamilies.addAll(resultCacheHits.describe());
+        metricFamilies.addAll(resultCacheMisses.describe());
+        metricFamilies.addAll(hedgedRequests.describe());
+        metricFamilies.addAll(errors.describe());
+        return metricFamilies;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+        metricFamilies.addAll(requestDuration.collect());
+        metricFamilies.addAll(parseDuration.collect());
+        metricFamilies.addAll(responseBytes.collect());
+        metricFamilies.addAll(ruleDuration.collect());
+        metricFamilies.addAll(samples.collect());
+        metricFamilies.addAll(duplicateSamples.collect());
+        metricFamilies.addAll(resultCacheHits.collect());
+        metricFamilies.addAll(resultCacheMisses.collect());
+        metricFamilies.addAll(hedgedRequests.collect());
+        metricFamilies.addAll(errors.collect());
+        return metricFamilies;
+    }
+}
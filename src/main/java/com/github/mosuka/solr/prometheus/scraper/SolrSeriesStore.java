@@ -0,0 +1,667 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * SolrSeriesStore
+ *
+ * Holds the series of the collections of a collector across collections. Each series, a sample name
+ * and label set in a metric family, is given an integer ID the first time it is added and keeps it
+ * for as long as it is scraped. Its value lives at that index in primitive arrays that every
+ * collection overwrites in place, so that once the series set is known, adding a sample is a lookup
+ * and a store, and serving the samples does not materialize {@link Collector.MetricFamilySamples}.
+ *
+ * Collections are generations: {@link #begin()} gives an accumulator whose samples are written to
+ * a bank of values stamped with its generation, and {@link #commit(SolrSampleAccumulator)}
+ * publishes them as a {@link View}. While a view is read, the next collection writes to another
+ * bank; a bank is only reused once no reader holds a view of it. Series that were not scraped for
+ * {@link #MAX_ABSENT_GENERATIONS} collections are forgotten and their IDs reused.
+ */
+public class SolrSeriesStore {
+    /**
+     * The number of consecutive collections a series may be missing from before it is forgotten.
+     */
+    public static final int MAX_ABSENT_GENERATIONS = 10;
+
+    static final int PAGE_BITS = 9;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // shared by the stores, a probe is cleared after every lookup
+    private static final ThreadLocal<Probe> PROBES = ThreadLocal.withInitial(Probe::new);
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SeriesKey, Series> index = new ConcurrentHashMap<>();
+
+    // in the order they were created, replaced on change
+    private volatile Family[] familyOrder = new Family[0];
+
+    // guarded by this
+    private final List<Bank> banks = new ArrayList<>();
+    private int nextId;
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int generation;
+    private int open;
+    private View committed;
+
+    /**
+     * Start a collection.
+     *
+     * @return the accumulator of the collection, to be passed to {@link #commit(SolrSampleAccumulator)}
+     *         or {@link #rollback(SolrSampleAccumulator)} once every scraper is done with it.
+     */
+    public synchronized SolrSampleAccumulator begin() {
+        Bank bank = null;
+        for (Bank candidate : banks) {
+            if (!candidate.writing && candidate.readers == 0 && (committed == null || candidate != committed.bank)) {
+                bank = candidate;
+                break;
+            }
+        }
+        if (bank == null) {
+            bank = new Bank();
+            banks.add(bank);
+        }
+        bank.generation = ++generation;
+        bank.writing = true;
+        open++;
+        return new SolrSampleAccumulator(this, bank, bank.generation);
+    }
+
+    /**
+     * Publish the samples of a collection. Samples added to the accumulator afterwards are dropped.
+     *
+     * @param accumulator the accumulator of the collection, from {@link #begin()}.
+     * @return the view of the collection, retained for the caller, who must release it.
+     */
+    public View commit(SolrSampleAccumulator accumulator) {
+        // wait for the adds in progress outside of the lock, which adding a new series takes
+        accumulator.close();
+        synchronized (this) {
+            Bank bank = accumulator.getBank();
+            bank.writing = false;
+            open--;
+
+            View view = new View(this, bank, accumulator.getGeneration(), Collections.emptyList());
+            // collections may complete out of order, serve the latest
+            if (committed == null || committed.generation < view.generation) {
+                committed = view;
+            }
+            if (open == 0) {
+                sweep(generation);
+            }
+            bank.readers++;
+            return view;
+        }
+    }
+
+    /**
+     * Abandon a collection without publishing its samples.
+     *
+     * @param accumulator the accumulator of the collection, from {@link #begin()}.
+     */
+    public void rollback(SolrSampleAccumulator accumulator) {
+        accumulator.close();
+        synchronized (this) {
+            Bank bank = accumulator.getBank();
+            bank.writing = false;
+            // nothing reads the bank, make its samples unreachable before it is reused
+            bank.generation = 0;
+            open--;
+        }
+    }
+
+    /**
+     * Get the view of the latest collection.
+     *
+     * @return the view, retained for the caller, who must release it, or null before the first commit.
+     */
+    public synchronized View acquire() {
+        if (committed == null) {
+            return null;
+        }
+        committed.bank.readers++;
+        return committed;
+    }
+
+    /**
+     * @return the number of series known, scraped by a recent collection or not.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the series of a sample, creating it if it is new.
+     *
+     * @return the series.
+     */
+    Series series(String familyName, Collector.Type type, String help, String name, List<String> labelNames, List<String> labelValues) {
+        Probe probe = PROBES.get();
+        probe.set(familyName, name, labelNames, labelValues);
+        try {
+            Series series = index.get(probe);
+            if (series != null) {
+                return series;
+            }
+        } finally {
+            probe.clear();
+        }
+        return create(familyName, type, help, name, labelNames, labelValues);
+    }
+
+    private synchronized Series create(String familyName, Collector.Type type, String help, String name, List<String> labelNames, List<String> labelValues) {
+        // series are only created under the lock, look again in case another thread just did
+        Probe probe = PROBES.get();
+        probe.set(familyName, name, labelNames, labelValues);
+        Series series = index.get(probe);
+        probe.clear();
+        if (series != null) {
+            return series;
+        }
+
+        Family family = families.get(familyName);
+        if (family == null) {
+            family = new Family(familyName, type, help);
+            families.put(familyName, family);
+            Family[] familyOrder = Arrays.copyOf(this.familyOrder, this.familyOrder.length + 1);
+            familyOrder[familyOrder.length - 1] = family;
+            this.familyOrder = familyOrder;
+        }
+
+        series = new Series(family, name, labelNames, labelValues, freeCount > 0 ? freeIds[--freeCount] : nextId++);
+        series.lastSeen = generation;
+        index.put(series, series);
+        family.append(series);
+        return series;
+    }
+
+    /**
+     * Forget the series no collection has seen for a while. Only runs when no collection is open,
+     * so that the last time a series was seen is up to date.
+     */
+    private void sweep(int generation) {
+        for (Family family : familyOrder) {
+            Series[] members = family.members;
+            int size = Math.min(family.size, members.length);
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (generation - members[i].lastSeen < MAX_ABSENT_GENERATIONS) {
+                    kept++;
+                }
+            }
+            if (kept == size) {
+                continue;
+            }
+
+            Series[] survivors = new Series[Math.max(kept, 4)];
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                Series series = members[i];
+                if (generation - series.lastSeen < MAX_ABSENT_GENERATIONS) {
+                    survivors[j++] = series;
+                } else {
+                    index.remove(series);
+                    free(series.id);
+                }
+            }
+            family.replace(survivors, kept);
+        }
+    }
+
+    private void free(int id) {
+        // a view old enough to still hold a sample of the series must not show it under the next
+        // series given the ID
+        for (Bank bank : banks) {
+            AtomicIntegerArray[] stamps = bank.stamps;
+            int page = id >>> PAGE_BITS;
+            if (page < stamps.length) {
+                stamps[page].set(id & PAGE_MASK, 0);
+            }
+        }
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * @return the families in the order they were created, including those without samples.
+     */
+    Family[] families() {
+        return familyOrder;
+    }
+
+    private synchronized boolean retain(View view) {
+        if (view.bank.generation != view.generation) {
+            // the bank was reused by a later collection
+            return false;
+        }
+        view.bank.readers++;
+        return true;
+    }
+
+    private synchronized void release(View view) {
+        view.bank.readers--;
+    }
+
+    /**
+     * The values of one collection, in pages of {@link #PAGE_SIZE} series. Pages are added as
+     * series are created and never move, so that readers and writers need no lock to access them.
+     */
+    static final class Bank {
+        private volatile double[][] values = new double[0][];
+        // the generation of the collection that wrote the value of a series, 0 if none
+        private volatile AtomicIntegerArray[] stamps = new AtomicIntegerArray[0];
+
+        // guarded by the store
+        private int generation;
+        private boolean writing;
+        private int readers;
+
+        /**
+         * Write the value of a series, unless it already has one in the generation.
+         *
+         * @return true if the value was written, false if the series already has a value.
+         */
+        boolean write(int id, int generation, double value) {
+            int page = id >>> PAGE_BITS;
+            AtomicIntegerArray[] stamps = this.stamps;
+            if (page >= stamps.length) {
+                stamps = grow(page);
+            }
+            if (stamps[page].getAndSet(id & PAGE_MASK, generation) == generation) {
+                return false;
+            }
+            values[page][id & PAGE_MASK] = value;
+            return true;
+        }
+
+        boolean contains(int id, int generation) {
+            int page = id >>> PAGE_BITS;
+            AtomicIntegerArray[] stamps = this.stamps;
+            return page < stamps.length && stamps[page].get(id & PAGE_MASK) == generation;
+        }
+
+        double value(int id) {
+            return values[id >>> PAGE_BITS][id & PAGE_MASK];
+        }
+
+        private synchronized AtomicIntegerArray[] grow(int page) {
+            AtomicIntegerArray[] stamps = this.stamps;
+            if (page < stamps.length) {
+                return stamps;
+            }
+            double[][] values = Arrays.copyOf(this.values, page + 1);
+            stamps = Arrays.copyOf(stamps, page + 1);
+            for (int i = this.stamps.length; i <= page; i++) {
+                values[i] = new double[PAGE_SIZE];
+                stamps[i] = new AtomicIntegerArray(PAGE_SIZE);
+            }
+            // values first, a page is in use once it has stamps
+            this.values = values;
+            this.stamps = stamps;
+            return stamps;
+        }
+    }
+
+    /**
+     * A metric family, with the series it ever had that were not forgotten.
+     */
+    public static final class Family {
+        private final String name;
+        private final Collector.Type type;
+        private final String help;
+
+        // written under the store lock, members before size so that readers reading size first
+        // never index past the members
+        private volatile Series[] members = new Series[4];
+        private volatile int size;
+
+        private final Encodings encodings = new Encodings();
+
+        Family(String name, Collector.Type type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        /**
+         * @param format the exposition format, a small integer assigned by the encoder.
+         * @return the bytes the encoder cached for the family in the format, or null.
+         */
+        public byte[] getEncoding(int format) {
+            return encodings.get(format);
+        }
+
+        /**
+         * Cache bytes encoding the family, such as its header, in an exposition format.
+         *
+         * @param format the exposition format, a small integer assigned by the encoder.
+         * @param encoding the bytes, not to be modified afterwards.
+         */
+        public void setEncoding(int format, byte[] encoding) {
+            encodings.set(format, encoding);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Collector.Type getType() {
+            return type;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        /**
+         * @return the number of series, including those without a sample in a given view.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Get the series of the family. Call {@link #size()} first, and skip nulls: a series
+         * forgotten concurrently may leave one.
+         *
+         * @param i the index, below {@link #size()}.
+         * @return the series, or null.
+         */
+        public Series get(int i) {
+            Series[] members = this.members;
+            return i < members.length ? members[i] : null;
+        }
+
+        private void append(Series series) {
+            Series[] members = this.members;
+            int size = this.size;
+            if (size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+                members[size] = series;
+                this.members = members;
+            } else {
+                members[size] = series;
+            }
+            this.size = size + 1;
+        }
+
+        private void replace(Series[] members, int size) {
+            this.members = members;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The sample name and label set of a series, in a family.
+     */
+    private abstract static class SeriesKey {
+        String familyName;
+        String name;
+        List<String> labelNames;
+        List<String> labelValues;
+        int hash;
+
+        void set(String familyName, String name, List<String> labelNames, List<String> labelValues) {
+            this.familyName = familyName;
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.hash = ((familyName.hashCode() * 31 + name.hashCode()) * 31 + labelNames.hashCode()) * 31 + labelValues.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) obj;
+            return hash == other.hash && name.equals(other.name) && familyName.equals(other.familyName)
+                    && labelNames.equals(other.labelNames) && labelValues.equals(other.labelValues);
+        }
+    }
+
+    /**
+     * Looks series up without allocating a key, one per thread.
+     */
+    private static final class Probe extends SeriesKey {
+        void clear() {
+            // do not hold on to the caller's label lists
+            familyName = null;
+            name = null;
+            labelNames = null;
+            labelValues = null;
+        }
+    }
+
+    /**
+     * A series, identified by its ID for as long as it is scraped.
+     */
+    public static final class Series extends SeriesKey {
+        private final Family family;
+        private final int id;
+
+        // the generation of the latest collection that added a sample, written without a lock
+        // and read when no collection is open
+        int lastSeen;
+
+        private final Encodings encodings = new Encodings();
+
+        Series(Family family, String name, List<String> labelNames, List<String> labelValues, int id) {
+            set(family.name, name, labelNames, labelValues);
+            this.family = family;
+            this.id = id;
+        }
+
+        public Family getFamily() {
+            return family;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getLabelNames() {
+            return labelNames;
+        }
+
+        public List<String> getLabelValues() {
+            return labelValues;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @param format the exposition format, a small integer assigned by the encoder.
+         * @return the bytes the encoder cached for the series in the format, or null.
+         */
+        public byte[] getEncoding(int format) {
+            return encodings.get(format);
+        }
+
+        /**
+         * Cache bytes encoding the series, such as its name and labels, in an exposition format.
+         * The name and labels of a series never change, so neither do the bytes.
+         *
+         * @param format the exposition format, a small integer assigned by the encoder.
+         * @param encoding the bytes, not to be modified afterwards.
+         */
+        public void setEncoding(int format, byte[] encoding) {
+            encodings.set(format, encoding);
+        }
+    }
+
+    /**
+     * Bytes cached by exposition format. Set once per format, so copied on write.
+     */
+    private static final class Encodings {
+        private volatile byte[][] encodings;
+
+        byte[] get(int format) {
+            byte[][] encodings = this.encodings;
+            return encodings != null && format < encodings.length ? encodings[format] : null;
+        }
+
+        synchronized void set(int format, byte[] encoding) {
+            byte[][] encodings = this.encodings == null ? new byte[format + 1][] : Arrays.copyOf(this.encodings, Math.max(this.encodings.length, format + 1));
+            encodings[format] = encoding;
+            this.encodings = encodings;
+        }
+    }
+
+    /**
+     * The samples of a collection, followed by metric families that are not in a store, such as
+     * those of the exporter itself. A view of a store must be released once read, so that the
+     * bank holding its values can be reused.
+     */
+    public static final class View {
+        private static final View EMPTY = new View(null, null, 0, Collections.emptyList());
+        private static final Family[] NO_FAMILIES = new Family[0];
+
+        private final SolrSeriesStore store;
+        private final Bank bank;
+        private final int generation;
+        private final List<Collector.MetricFamilySamples> extra;
+
+        View(SolrSeriesStore store, Bank bank, int generation, List<Collector.MetricFamilySamples> extra) {
+            this.store = store;
+            this.bank = bank;
+            this.generation = generation;
+            this.extra = extra;
+        }
+
+        /**
+         * Get a view of metric families that are not in a store. It needs no release.
+         *
+         * @param metricFamilySamplesList the metric families.
+         * @return the view.
+         */
+        public static View of(List<Collector.MetricFamilySamples> metricFamilySamplesList) {
+            return metricFamilySamplesList.isEmpty() ? EMPTY : new View(null, null, 0, metricFamilySamplesList);
+        }
+
+        /**
+         * Get a view of the same samples followed by more metric families. The view returned takes
+         * over the reference the caller holds on this view: release one or the other, not both.
+         *
+         * @param metricFamilySamplesList the metric families to add.
+         * @return the view.
+         */
+        public View with(List<Collector.MetricFamilySamples> metricFamilySamplesList) {
+            List<Collector.MetricFamilySamples> extra = new ArrayList<>(this.extra.size() + metricFamilySamplesList.size());
+            extra.addAll(this.extra);
+            extra.addAll(metricFamilySamplesList);
+            return new View(store, bank, generation, extra);
+        }
+
+        /**
+         * Take another reference on the view, for another reader.
+         *
+         * @return true if the view could be retained, false if its values were already overwritten.
+         */
+        public boolean retain() {
+            return store == null || store.retain(this);
+        }
+
+        /**
+         * Drop a reference on the view. The view must not be read afterwards.
+         */
+        public void release() {
+            if (store != null) {
+                store.release(this);
+            }
+        }
+
+        /**
+         * @return the families of the store, with or without samples in this view.
+         */
+        public Family[] families() {
+            return store == null ? NO_FAMILIES : store.families();
+        }
+
+        /**
+         * @return true if the series has a sample in this view.
+         */
+        public boolean contains(Series series) {
+            return bank.contains(series.id, generation);
+        }
+
+        /**
+         * @return the value of a series this view contains.
+         */
+        public double value(Series series) {
+            return bank.value(series.id);
+        }
+
+        /**
+         * @return the metric families that follow those of the store.
+         */
+        public List<Collector.MetricFamilySamples> getExtra() {
+            return extra;
+        }
+
+        /**
+         * Materialize the samples of the view, for the consumers of {@link Collector#collect()}.
+         *
+         * @return the metric families that have samples, those of the store first.
+         */
+        public List<Collector.MetricFamilySamples> toList() {
+            List<Collector.MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
+            for (Family family : families()) {
+                List<Collector.MetricFamilySamples.Sample> samples = null;
+                int size = family.size();
+                for (int i = 0; i < size; i++) {
+                    Series series = family.get(i);
+                    if (series != null && contains(series)) {
+                        if (samples == null) {
+                            samples = new ArrayList<>();
+                        }
+                        samples.add(new Collector.MetricFamilySamples.Sample(series.name, series.labelNames, series.labelValues, value(series)));
+                    }
+                }
+                if (samples != null) {
+                    metricFamilySamplesList.add(new Collector.MetricFamilySamples(family.name, family.type, family.help, samples));
+                }
+            }
+            metricFamilySamplesList.addAll(extra);
+            return metricFamilySamplesList;
+        }
+    }
+}
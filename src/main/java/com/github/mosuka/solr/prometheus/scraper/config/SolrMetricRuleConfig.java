@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.config;
+
+import java.util.LinkedHashMap;
+
+/**
+ * SolrMetricRuleConfig
+ *
+ * A native rule that maps the entries of /admin/metrics registries to samples.
+ */
+public class SolrMetricRuleConfig {
+    private String name = "";
+    private String type = "UNTYPED";
+    private String help = "";
+    private String registry = "";
+    private String key = "";
+    private String field = "";
+    private String value = "";
+    private double divisor = 1.0;
+    private LinkedHashMap<String, String> labels = new LinkedHashMap<>();
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public void setHelp(String help) {
+        this.help = help;
+    }
+
+    public String getRegistry() {
+        return registry;
+    }
+
+    public void setRegistry(String registry) {
+        this.registry = registry;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public void setField(String field) {
+        this.field = field;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public double getDivisor() {
+        return divisor;
+    }
+
+    public void setDivisor(double divisor) {
+        this.divisor = divisor;
+    }
+
+    public LinkedHashMap<String, String> getLabels() {
+        return labels;
+    }
+
+    public void setLabels(LinkedHashMap<String, String> labels) {
+        this.labels = labels;
+    }
+}
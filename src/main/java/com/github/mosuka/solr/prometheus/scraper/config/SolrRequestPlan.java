@@ -0,0 +1,439 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.config;
+
+import com.github.mosuka.solr.prometheus.scraper.json.JsonProjection.KeyMatcher;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonQueryAnalyzer.MetricsSelection;
+import com.github.mosuka.solr.prometheus.scraper.rule.SolrMetricRule;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.util.*;
+
+/**
+ * SolrRequestPlan
+ *
+ * The requests a scraper issues for its query. For /admin/metrics, the group, prefix and property
+ * parameters are narrowed to what the rules can read: registries are mapped to the groups that hold
+ * them, and metric keys and value properties to the literal prefixes and names the rules match. At
+ * most two requests are issued, one for the groups read whole and one for the groups read by key
+ * prefix, and their responses are merged. Anything the analysis cannot bound leaves the request as
+ * configured.
+ */
+public class SolrRequestPlan {
+    public static final String METRICS_PATH = "/admin/metrics";
+
+    private static final String GROUP_PARAM = "group";
+    private static final String PREFIX_PARAM = "prefix";
+    private static final String PROPERTY_PARAM = "property";
+    private static final String COMPACT_PARAM = "compact";
+    private static final String REGISTRY_PARAM = "registry";
+    private static final List<String> FILTER_PARAMS = Arrays.asList(REGISTRY_PARAM, "regex", "key");
+    private static final String CORE_GROUP = "core";
+
+    /**
+     * Groups holding a single registry.
+     */
+    private static final Map<String, String> GROUP_REGISTRIES = new LinkedHashMap<>();
+
+    /**
+     * Groups holding the registries starting with a prefix.
+     */
+    private static final Map<String, String> GROUP_REGISTRY_PREFIXES = new LinkedHashMap<>();
+
+    static {
+        GROUP_REGISTRIES.put("jvm", "solr.jvm");
+        GROUP_REGISTRIES.put("jetty", "solr.jetty");
+        GROUP_REGISTRIES.put("node", "solr.node");
+        GROUP_REGISTRIES.put("overseer", "solr.overseer");
+        GROUP_REGISTRIES.put("cluster", "solr.cluster");
+        GROUP_REGISTRY_PREFIXES.put(CORE_GROUP, "solr.core.");
+        GROUP_REGISTRY_PREFIXES.put("collection", "solr.collection.");
+        GROUP_REGISTRY_PREFIXES.put("shard", "solr.shard.");
+    }
+
+    private final List<ModifiableSolrParams> requests;
+    private final String report;
+
+    private SolrRequestPlan(List<ModifiableSolrParams> requests, String report) {
+        this.requests = Collections.unmodifiableList(requests);
+        this.report = report;
+    }
+
+    /**
+     * Plan the requests of a query.
+     *
+     * @param queryConfig the query.
+     * @param selections the registries, metric keys and properties the rules read, or null if unknown.
+     * @return the plan.
+     */
+    public static SolrRequestPlan create(SolrQueryConfig queryConfig, List<MetricsSelection> selections) {
+        ModifiableSolrParams params = toParams(queryConfig);
+
+        String reason = narrowable(queryConfig, params, selections);
+        if (reason != null) {
+            return new SolrRequestPlan(Collections.singletonList(params), "not narrowed: " + reason);
+        }
+
+        // the key prefixes read from each group, null for any key
+        Map<String, Set<String>> groups = new TreeMap<>();
+        Set<String> properties = new TreeSet<>();
+        boolean anyProperty = false;
+        for (MetricsSelection selection : selections) {
+            Set<String> selectionGroups = toGroups(selection.getRegistry());
+            if (selectionGroups == null) {
+                return new SolrRequestPlan(Collections.singletonList(params),
+                        "not narrowed: registry " + selection.getRegistry() + " is not bound to a group");
+            }
+            Set<String> keyPrefixes = toKeyPrefixes(selection.getKeys());
+            for (String group : selectionGroups) {
+                if (keyPrefixes == null) {
+                    groups.put(group, null);
+                } else if (!groups.containsKey(group) || groups.get(group) != null) {
+                    groups.computeIfAbsent(group, k -> new TreeSet<>()).addAll(keyPrefixes);
+                }
+            }
+            if (selection.getProperties() == null) {
+                anyProperty = true;
+            } else {
+                properties.addAll(selection.getProperties());
+            }
+        }
+        // scalar values pass any property filter, so an empty union cannot be expressed
+        if (properties.isEmpty() || "false".equals(params.get(COMPACT_PARAM))) {
+            anyProperty = true;
+        }
+
+        List<String> wholeGroups = new ArrayList<>();
+        List<String> prefixGroups = new ArrayList<>();
+        Set<String> keyPrefixes = new TreeSet<>();
+        for (Map.Entry<String, Set<String>> group : groups.entrySet()) {
+            if (group.getValue() == null) {
+                wholeGroups.add(group.getKey());
+            } else {
+                prefixGroups.add(group.getKey());
+                keyPrefixes.addAll(group.getValue());
+            }
+        }
+
+        keyPrefixes = shortest(keyPrefixes);
+
+        List<ModifiableSolrParams> requests = new ArrayList<>();
+        if (!wholeGroups.isEmpty()) {
+            requests.add(narrow(params, wholeGroups, null, anyProperty ? null : properties));
+        }
+        if (!prefixGroups.isEmpty()) {
+            requests.add(narrow(params, prefixGroups, keyPrefixes, anyProperty ? null : properties));
+        }
+
+        List<String> prunedGroups = new ArrayList<>();
+        for (String group : allGroups()) {
+            if (!groups.containsKey(group)) {
+                prunedGroups.add(group);
+            }
+        }
+
+        StringBuilder buffer = new StringBuilder("narrowed ").append(params).append(" to");
+        for (ModifiableSolrParams request : requests) {
+            buffer.append(" [").append(request).append("]");
+        }
+        buffer.append("; pruned groups: ").append(prunedGroups.isEmpty() ? "none" : String.join(",", prunedGroups));
+        buffer.append("; key prefixes: ").append(prefixGroups.isEmpty() ? "any" : keyPrefixes.size() + " in " + String.join(",", prefixGroups));
+        buffer.append("; properties: ").append(anyProperty ? "any" : String.join(",", properties));
+
+        return new SolrRequestPlan(requests, buffer.toString());
+    }
+
+    /**
+     * @return the parameters of each request to issue, in order.
+     */
+    public List<ModifiableSolrParams> getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return a description of the requests and of what they leave out.
+     */
+    public String getReport() {
+        return report;
+    }
+
+    @Override
+    public String toString() {
+        return report;
+    }
+
+    /**
+     * Split requests into one request per group, and the core group into requests each covering a
+     * slice of the core registries, for the responses to be fetched and evaluated concurrently.
+     * Registries are selected by name prefix, so a slice holds every registry starting with one of
+     * its prefixes. Requests that do not name their groups, or that already filter registries, are
+     * kept whole.
+     *
+     * @param requests the requests of a plan.
+     * @param coreRegistries the prefixes of the core registries of the node, e.g. solr.core.collection1.
+     *                       If empty, the core group is fetched by one request.
+     * @param slices the maximum number of requests the core group is split into.
+     * @return the requests, in order.
+     */
+    public static List<ModifiableSolrParams> split(List<ModifiableSolrParams> requests, Collection<String> coreRegistries, int slices) {
+        List<List<String>> coreSlices = slice(coreRegistries, slices);
+
+        List<ModifiableSolrParams> split = new ArrayList<>();
+        for (ModifiableSolrParams request : requests) {
+            List<String> groups = groups(request);
+            if (groups == null || request.get(REGISTRY_PARAM) != null) {
+                split.add(request);
+                continue;
+            }
+            for (String group : groups) {
+                if (group.equals(CORE_GROUP) && coreSlices.size() > 1) {
+                    // the registry parameter alone selects the registries of the slice
+                    for (List<String> coreSlice : coreSlices) {
+                        ModifiableSolrParams sliceRequest = new ModifiableSolrParams(request);
+                        sliceRequest.remove(GROUP_PARAM);
+                        sliceRequest.add(REGISTRY_PARAM, coreSlice.toArray(new String[0]));
+                        split.add(sliceRequest);
+                    }
+                } else {
+                    ModifiableSolrParams groupRequest = new ModifiableSolrParams(request);
+                    groupRequest.set(GROUP_PARAM, group);
+                    split.add(groupRequest);
+                }
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Spread registry name prefixes over slices of about the same size. A prefix stays in the slice
+     * of a prefix it starts with, for no registry to be fetched by two requests.
+     *
+     * @param registries the registry name prefixes.
+     * @param slices the maximum number of slices.
+     * @return the slices, in sorted order.
+     */
+    static List<List<String>> slice(Collection<String> registries, int slices) {
+        List<List<String>> sliced = new ArrayList<>();
+        if (registries.isEmpty()) {
+            return sliced;
+        }
+
+        Set<String> sorted = new TreeSet<>(registries);
+        int sliceSize = (sorted.size() + Math.max(slices, 1) - 1) / Math.max(slices, 1);
+        List<String> slice = null;
+        String root = null;
+        // in sorted order a covered prefix follows the prefix covering it
+        for (String registry : sorted) {
+            if (root == null || !registry.startsWith(root)) {
+                if (slice == null || slice.size() >= sliceSize) {
+                    slice = new ArrayList<>();
+                    sliced.add(slice);
+                }
+                root = registry;
+            }
+            slice.add(registry);
+        }
+        return sliced;
+    }
+
+    /**
+     * @return the groups a request names, or null if it reads all of them.
+     */
+    private static List<String> groups(ModifiableSolrParams request) {
+        String[] values = request.getParams(GROUP_PARAM);
+        if (values == null) {
+            return null;
+        }
+        List<String> groups = new ArrayList<>();
+        for (String value : values) {
+            for (String group : value.split(",")) {
+                group = group.trim();
+                if (group.equals("all")) {
+                    return null;
+                }
+                if (!group.isEmpty() && !groups.contains(group)) {
+                    groups.add(group);
+                }
+            }
+        }
+        return groups.isEmpty() ? null : groups;
+    }
+
+    /**
+     * Create the parameters of a query as configured.
+     *
+     * @param queryConfig the query.
+     * @return the parameters.
+     */
+    public static ModifiableSolrParams toParams(SolrQueryConfig queryConfig) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        for (Map<String, String> param : queryConfig.getParams()) {
+            for (String name : param.keySet()) {
+                Object obj = param.get(name);
+                if (obj instanceof Number) {
+                    params.add(name, obj.toString());
+                } else {
+                    params.add(name, param.get(name));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static String narrowable(SolrQueryConfig queryConfig, ModifiableSolrParams params, List<MetricsSelection> selections) {
+        if (!METRICS_PATH.equals(queryConfig.getPath())) {
+            return "not an " + METRICS_PATH + " request";
+        }
+        if (selections == null || selections.isEmpty()) {
+            return "the rules cannot be analyzed";
+        }
+        String[] group = params.getParams(GROUP_PARAM);
+        if (group != null && !(group.length == 1 && group[0].equals("all"))) {
+            return "group is set";
+        }
+        for (String name : Arrays.asList(PREFIX_PARAM, PROPERTY_PARAM)) {
+            String[] values = params.getParams(name);
+            if (values != null && !(values.length == 1 && values[0].isEmpty())) {
+                return name + " is set";
+            }
+        }
+        for (String name : FILTER_PARAMS) {
+            if (params.get(name) != null) {
+                return name + " is set";
+            }
+        }
+        return null;
+    }
+
+    private static ModifiableSolrParams narrow(ModifiableSolrParams params, List<String> groups, Set<String> keyPrefixes, Set<String> properties) {
+        ModifiableSolrParams request = new ModifiableSolrParams(params);
+        request.remove(GROUP_PARAM);
+        request.remove(PREFIX_PARAM);
+        request.remove(PROPERTY_PARAM);
+
+        request.add(GROUP_PARAM, groups.toArray(new String[0]));
+        if (keyPrefixes != null) {
+            request.add(PREFIX_PARAM, keyPrefixes.toArray(new String[0]));
+        }
+        if (properties != null) {
+            request.add(PROPERTY_PARAM, properties.toArray(new String[0]));
+        }
+        return request;
+    }
+
+    /**
+     * Get the groups holding the registries a matcher can match.
+     *
+     * @return the groups, or null if they cannot be bounded.
+     */
+    private static Set<String> toGroups(KeyMatcher registry) {
+        String prefix;
+        switch (registry.getType()) {
+            case EQUALS:
+                for (Map.Entry<String, String> group : GROUP_REGISTRIES.entrySet()) {
+                    if (group.getValue().equals(registry.getValue())) {
+                        return Collections.singleton(group.getKey());
+                    }
+                }
+                for (Map.Entry<String, String> group : GROUP_REGISTRY_PREFIXES.entrySet()) {
+                    if (registry.getValue().startsWith(group.getValue())) {
+                        return Collections.singleton(group.getKey());
+                    }
+                }
+                return null;
+            case PREFIX:
+                prefix = registry.getValue();
+                break;
+            case PATTERN:
+                prefix = SolrMetricRule.literalPrefix(registry.getValue());
+                break;
+            default:
+                return null;
+        }
+        if (prefix.isEmpty()) {
+            return null;
+        }
+
+        Set<String> groups = new TreeSet<>();
+        for (Map.Entry<String, String> group : GROUP_REGISTRIES.entrySet()) {
+            if (group.getValue().startsWith(prefix)) {
+                groups.add(group.getKey());
+            }
+        }
+        for (Map.Entry<String, String> group : GROUP_REGISTRY_PREFIXES.entrySet()) {
+            if (group.getValue().startsWith(prefix) || prefix.startsWith(group.getValue())) {
+                groups.add(group.getKey());
+            }
+        }
+        return groups.isEmpty() ? null : groups;
+    }
+
+    /**
+     * Get the literal prefixes of the metric keys matchers can match.
+     *
+     * @return the prefixes, or null for any key.
+     */
+    private static Set<String> toKeyPrefixes(List<KeyMatcher> keys) {
+        if (keys.isEmpty()) {
+            return null;
+        }
+
+        Set<String> prefixes = new TreeSet<>();
+        for (KeyMatcher key : keys) {
+            String prefix;
+            switch (key.getType()) {
+                case EQUALS:
+                case PREFIX:
+                    prefix = key.getValue();
+                    break;
+                case PATTERN:
+                    prefix = SolrMetricRule.literalPrefix(key.getValue());
+                    break;
+                default:
+                    return null;
+            }
+            if (prefix.isEmpty()) {
+                return null;
+            }
+            prefixes.add(prefix);
+        }
+        return prefixes;
+    }
+
+    /**
+     * Drop the prefixes another prefix of the set already covers.
+     */
+    private static Set<String> shortest(Set<String> prefixes) {
+        Set<String> shortest = new TreeSet<>();
+        String last = null;
+        // in sorted order a covered prefix follows the prefix covering it
+        for (String prefix : prefixes) {
+            if (last == null || !prefix.startsWith(last)) {
+                shortest.add(prefix);
+                last = prefix;
+            }
+        }
+        return shortest;
+    }
+
+    private static List<String> allGroups() {
+        List<String> groups = new ArrayList<>(GROUP_REGISTRIES.keySet());
+        groups.addAll(GROUP_REGISTRY_PREFIXES.keySet());
+        Collections.sort(groups);
+        return groups;
+    }
+}
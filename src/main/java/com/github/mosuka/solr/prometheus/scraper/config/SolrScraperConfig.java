@@ -16,18 +16,44 @@
  */
 package com.github.mosuka.solr.prometheus.scraper.config;
 
+import com.github.mosuka.solr.prometheus.scraper.json.JsonProjection;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonQueryAnalyzer;
+import com.github.mosuka.solr.prometheus.scraper.rule.SolrMetricRuleSet;
+import net.thisptr.jackson.jq.JsonQuery;
 import net.thisptr.jackson.jq.exception.JsonQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * SolrScraperConfig
  *
  */
 public class SolrScraperConfig implements Cloneable {
+    private static final Logger logger = LoggerFactory.getLogger(SolrScraperConfig.class);
+
+    /**
+     * Compiled rules shared by every config that uses the same rule text.
+     */
+    private static final ConcurrentMap<String, JsonQuery> COMPILED_JSON_QUERIES = new ConcurrentHashMap<>();
+
     private SolrQueryConfig query = new SolrQueryConfig();
+    private int interval = 0;
+    private boolean batch = false;
+    private int split = 0;
+    private boolean cache = true;
     private List<String> jsonQueries = new ArrayList<>();
+    private List<JsonQuery> compiledJsonQueries = Collections.emptyList();
+    private List<SolrMetricRuleConfig> rules = new ArrayList<>();
+    private SolrMetricRuleSet ruleSet = SolrMetricRuleSet.EMPTY;
+    private JsonProjection projection = JsonProjection.ALL;
+    private volatile SolrRequestPlan requestPlan;
+    private volatile String requestPlanQuery;
 
     public SolrQueryConfig getQuery() {
         return this.query;
@@ -37,12 +63,171 @@ public class SolrScraperConfig implements Cloneable {
         this.query = query;
     }
 
+    /**
+     * @return the minimum time between two scrapes of this section, in seconds. 0 scrapes it on
+     *         every collection.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @return true if the ping section derives the status of the cores of a node from one CoreAdmin
+     *         STATUS request instead of pinging each core. Other sections ignore it.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * @return 0 to send the requests of /admin/metrics as planned. Otherwise each group is fetched
+     *         by a request of its own and the core group by up to this many requests, each covering
+     *         some of the core registries of the node; the native rules are applied to each
+     *         response as it is received. Other requests ignore it.
+     */
+    public int getSplit() {
+        return split;
+    }
+
+    public void setSplit(int split) {
+        this.split = split;
+    }
+
+    /**
+     * @return true if the samples produced from a response, or from a registry of an /admin/metrics
+     *         response, are reused while it is unchanged instead of applying the rules again.
+     */
+    public boolean isCache() {
+        return cache;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
     public List<String> getJsonQueries() {
         return jsonQueries;
     }
 
     public void setJsonQueries(List<String> jsonQueries) throws JsonQueryException {
+        List<JsonQuery> compiledJsonQueries = new ArrayList<>(jsonQueries.size());
+        for (String jsonQuery : jsonQueries) {
+            compiledJsonQueries.add(compile(jsonQuery));
+        }
+
         this.jsonQueries = jsonQueries;
+        this.compiledJsonQueries = Collections.unmodifiableList(compiledJsonQueries);
+        this.projection = project(jsonQueries, ruleSet);
+    }
+
+    /**
+     * Get the rules compiled when the config was loaded.
+     *
+     * @return the compiled rules, in the same order as {@link #getJsonQueries()}.
+     */
+    public List<JsonQuery> getCompiledJsonQueries() {
+        return compiledJsonQueries;
+    }
+
+    public List<SolrMetricRuleConfig> getRules() {
+        return rules;
+    }
+
+    /**
+     * Set the native rules, which are applied before the jq rules.
+     *
+     * @param rules the native rules.
+     * @throws IllegalArgumentException if a rule is invalid.
+     */
+    public void setRules(List<SolrMetricRuleConfig> rules) {
+        SolrMetricRuleSet ruleSet = SolrMetricRuleSet.compile(rules);
+
+        this.rules = rules;
+        this.ruleSet = ruleSet;
+        this.projection = project(jsonQueries, ruleSet);
+    }
+
+    /**
+     * Get the native rules compiled when the config was loaded.
+     *
+     * @return the compiled rules.
+     */
+    public SolrMetricRuleSet getRuleSet() {
+        return ruleSet;
+    }
+
+    /**
+     * Get the parts of the response that the rules can reference.
+     *
+     * @return the projection derived from the rules, or {@link JsonProjection#ALL}.
+     */
+    public JsonProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Get the requests to issue for the query. The plan is worked out again if the query changes.
+     *
+     * @return the plan, narrowed to what the rules read if possible.
+     */
+    public SolrRequestPlan getRequestPlan() {
+        String requestPlanQuery = query.getPath() + "?" + query.getParamsString();
+        SolrRequestPlan requestPlan = this.requestPlan;
+        if (requestPlan == null || !requestPlanQuery.equals(this.requestPlanQuery)) {
+            requestPlan = SolrRequestPlan.create(query, selections(jsonQueries, ruleSet));
+            if (SolrRequestPlan.METRICS_PATH.equals(query.getPath())) {
+                logger.info(requestPlan.getReport());
+            }
+            this.requestPlan = requestPlan;
+            this.requestPlanQuery = requestPlanQuery;
+        }
+        return requestPlan;
+    }
+
+    private static JsonProjection project(List<String> jsonQueries, SolrMetricRuleSet ruleSet) {
+        if (ruleSet.isEmpty()) {
+            return JsonQueryAnalyzer.project(jsonQueries);
+        }
+
+        List<JsonQueryAnalyzer.MetricsSelection> selections = selections(jsonQueries, ruleSet);
+        return selections != null ? JsonQueryAnalyzer.toProjection(selections) : JsonProjection.ALL;
+    }
+
+    /**
+     * Get what the native and jq rules read.
+     *
+     * @return the selections, or null if any jq rule is not recognized.
+     */
+    private static List<JsonQueryAnalyzer.MetricsSelection> selections(List<String> jsonQueries, SolrMetricRuleSet ruleSet) {
+        List<JsonQueryAnalyzer.MetricsSelection> selections = new ArrayList<>(ruleSet.getSelections());
+        if (!jsonQueries.isEmpty()) {
+            List<JsonQueryAnalyzer.MetricsSelection> jsonQuerySelections = JsonQueryAnalyzer.analyze(jsonQueries);
+            if (jsonQuerySelections == null) {
+                return null;
+            }
+            selections.addAll(jsonQuerySelections);
+        }
+        return selections;
+    }
+
+    private static JsonQuery compile(String jsonQuery) throws JsonQueryException {
+        JsonQuery compiledJsonQuery = COMPILED_JSON_QUERIES.get(jsonQuery);
+        if (compiledJsonQuery == null) {
+            compiledJsonQuery = JsonQuery.compile(jsonQuery);
+            JsonQuery current = COMPILED_JSON_QUERIES.putIfAbsent(jsonQuery, compiledJsonQuery);
+            if (current != null) {
+                compiledJsonQuery = current;
+            }
+        }
+        return compiledJsonQuery;
     }
 
     public SolrScraperConfig clone() throws CloneNotSupportedException {
@@ -51,7 +236,9 @@ public class SolrScraperConfig implements Cloneable {
         try {
             scraperConfig = (SolrScraperConfig) super.clone();
             scraperConfig.setQuery(this.query.clone());
-            scraperConfig.setJsonQueries(new ArrayList<>(this.jsonQueries));
+            // compiled rules are shared with the clone
+            scraperConfig.jsonQueries = new ArrayList<>(this.jsonQueries);
+            scraperConfig.rules = new ArrayList<>(this.rules);
         }catch (Exception e){
             e.printStackTrace();
         }
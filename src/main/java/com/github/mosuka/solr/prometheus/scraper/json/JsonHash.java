@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JsonHash
+ *
+ * A 64-bit FNV-1a hash of a JSON tree, telling whether a response or a part of it changed since the
+ * last scrape. It covers the structure, the keys in order and the values, and costs one walk of the
+ * tree, much less than applying rules to it.
+ */
+public final class JsonHash {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private JsonHash() {
+    }
+
+    /**
+     * @param node the tree, or null.
+     * @return the hash of the tree.
+     */
+    public static long hash(JsonNode node) {
+        return node == null ? OFFSET_BASIS : hash(OFFSET_BASIS, node);
+    }
+
+    private static long hash(long hash, JsonNode node) {
+        hash = mix(hash, node.getNodeType().ordinal());
+        switch (node.getNodeType()) {
+            case OBJECT:
+                hash = mix(hash, node.size());
+                for (Iterator<Map.Entry<String, JsonNode>> ite = node.fields(); ite.hasNext(); ) {
+                    Map.Entry<String, JsonNode> field = ite.next();
+                    hash = mix(hash, field.getKey());
+                    hash = hash(hash, field.getValue());
+                }
+                return hash;
+            case ARRAY:
+                hash = mix(hash, node.size());
+                for (JsonNode element : node) {
+                    hash = hash(hash, element);
+                }
+                return hash;
+            case NUMBER:
+                if (node.isIntegralNumber() && node.canConvertToLong()) {
+                    return mix(hash, node.longValue());
+                } else if (node.isFloatingPointNumber()) {
+                    return mix(hash, Double.doubleToLongBits(node.doubleValue()));
+                }
+                return mix(hash, node.asText());
+            case BOOLEAN:
+                return mix(hash, node.booleanValue() ? 1 : 0);
+            case STRING:
+                return mix(hash, node.textValue());
+            default:
+                return mix(hash, node.asText());
+        }
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xff;
+            hash *= PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= PRIME;
+            hash ^= c >>> 8;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * JsonProjection
+ *
+ * Describes which object keys of a JSON document can be referenced by the configured rules.
+ * {@link #read(JsonParser, ObjectMapper)} builds a tree straight from a token stream and skips every
+ * subtree the projection excludes, without materializing it.
+ */
+public class JsonProjection {
+    /**
+     * Keep the whole subtree.
+     */
+    public static final JsonProjection ALL = new JsonProjection(Collections.emptyList(), true);
+
+    private final List<Field> fields;
+    private final boolean all;
+
+    private JsonProjection(List<Field> fields, boolean all) {
+        this.fields = fields;
+        this.all = all;
+    }
+
+    /**
+     * Create a projection that keeps the object keys matching any of the fields.
+     *
+     * @param fields the fields to keep.
+     * @return the projection.
+     */
+    public static JsonProjection of(List<Field> fields) {
+        for (Field field : fields) {
+            if (field.getMatcher().getType() == KeyMatcher.Type.ANY && field.getProjection().isAll()) {
+                return ALL;
+            }
+        }
+        return new JsonProjection(Collections.unmodifiableList(new ArrayList<>(fields)), false);
+    }
+
+    public boolean isAll() {
+        return all;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    /**
+     * Get the projection of the value of an object key, or null if the key is excluded.
+     *
+     * @param key the object key.
+     * @return the projection of the value.
+     */
+    public JsonProjection child(String key) {
+        if (all) {
+            return ALL;
+        }
+
+        JsonProjection matched = null;
+        List<Field> union = null;
+        for (Field field : fields) {
+            if (!field.getMatcher().matches(key)) {
+                continue;
+            }
+            if (field.getProjection().isAll()) {
+                return ALL;
+            }
+            if (matched == null) {
+                matched = field.getProjection();
+            } else {
+                if (union == null) {
+                    union = new ArrayList<>(matched.getFields());
+                }
+                union.addAll(field.getProjection().getFields());
+            }
+        }
+
+        return union != null ? of(union) : matched;
+    }
+
+    /**
+     * Read the projected tree of the next value of a parser.
+     *
+     * @param parser the parser positioned before or on the value.
+     * @param om the object mapper used for subtrees that are kept whole.
+     * @return the projected tree.
+     */
+    public JsonNode read(JsonParser parser, ObjectMapper om) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == null || token == JsonToken.FIELD_NAME) {
+            token = parser.nextToken();
+        }
+        if (token == null) {
+            return null;
+        }
+        if (all || token != JsonToken.START_OBJECT) {
+            return om.readTree(parser);
+        }
+
+        ObjectNode objectNode = JsonNodeFactory.instance.objectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonProjection projection = child(key);
+            parser.nextToken();
+            if (projection == null) {
+                parser.skipChildren();
+            } else {
+                objectNode.set(key, projection.read(parser, om));
+            }
+        }
+        return objectNode;
+    }
+
+    @Override
+    public String toString() {
+        if (all) {
+            return "*";
+        }
+        StringBuilder buffer = new StringBuilder("{");
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(fields.get(i).getMatcher()).append(": ").append(fields.get(i).getProjection());
+        }
+        return buffer.append("}").toString();
+    }
+
+    /**
+     * Object keys matched by a key matcher, and the projection of their values.
+     */
+    public static class Field {
+        private final KeyMatcher matcher;
+        private final JsonProjection projection;
+
+        public Field(KeyMatcher matcher, JsonProjection projection) {
+            this.matcher = matcher;
+            this.projection = projection;
+        }
+
+        public KeyMatcher getMatcher() {
+            return matcher;
+        }
+
+        public JsonProjection getProjection() {
+            return projection;
+        }
+    }
+
+    /**
+     * Matches object keys.
+     */
+    public static class KeyMatcher {
+        public enum Type {
+            ANY, EQUALS, PREFIX, SUFFIX, CONTAINS, PATTERN
+        }
+
+        public static final KeyMatcher ANY = new KeyMatcher(Type.ANY, "");
+
+        private final Type type;
+        private final String value;
+        private final Pattern pattern;
+
+        public KeyMatcher(Type type, String value) {
+            this.type = type;
+            this.value = value;
+            this.pattern = type == Type.PATTERN ? Pattern.compile(value) : null;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public boolean matches(String key) {
+            switch (type) {
+                case EQUALS:
+                    return key.equals(value);
+                case PREFIX:
+                    return key.startsWith(value);
+                case SUFFIX:
+                    return key.endsWith(value);
+                case CONTAINS:
+                    return key.contains(value);
+                case PATTERN:
+                    return pattern.matcher(key).matches();
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case EQUALS:
+                    return "\"" + value + "\"";
+                case PREFIX:
+                    return "\"" + value + "*\"";
+                case SUFFIX:
+                    return "\"*" + value + "\"";
+                case CONTAINS:
+                    return "\"*" + value + "*\"";
+                case PATTERN:
+                    return "/" + value + "/";
+                default:
+                    return "*";
+            }
+        }
+    }
+}
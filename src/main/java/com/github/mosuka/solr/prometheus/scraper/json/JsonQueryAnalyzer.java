@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.json;
+
+import com.github.mosuka.solr.prometheus.scraper.json.JsonProjection.Field;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonProjection.KeyMatcher;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * JsonQueryAnalyzer
+ *
+ * Recognizes the shapes of the /admin/metrics rules in the shipped configuration and works out which
+ * registries and metric keys they can reference. The analysis is conservative: a rule it cannot read
+ * references everything, and only the first key filter of a rule is used, so the result is always a
+ * superset of what the rules need.
+ */
+public class JsonQueryAnalyzer {
+    /**
+     * .metrics["solr.jvm"] | to_entries | .[] | ...
+     */
+    private static final Pattern REGISTRY_PATTERN = Pattern.compile(
+            "^\\s*\\.metrics\\s*\\[\\s*\"([^\"]+)\"\\s*\\]\\s*\\|\\s*to_entries\\s*\\|\\s*\\.\\[\\]\\s*\\|(.*)$", Pattern.DOTALL);
+
+    /**
+     * .metrics | to_entries | .[] | select(.key | startswith("solr.core.")) as $parent | ...
+     */
+    private static final Pattern REGISTRY_PREFIX_PATTERN = Pattern.compile(
+            "^\\s*\\.metrics\\s*\\|\\s*to_entries\\s*\\|\\s*\\.\\[\\]\\s*\\|\\s*select\\s*\\(\\s*\\.key\\s*\\|\\s*startswith\\s*\\(\\s*\"([^\"]+)\"\\s*\\)\\s*\\)\\s*as\\s+\\$(\\w+)\\s*\\|(.*)$", Pattern.DOTALL);
+
+    private static final Pattern FUNCTION_TERM_PATTERN = Pattern.compile("^(startswith|endswith|contains)\\s*\\(\\s*\"([^\"]*)\"\\s*\\)$");
+    private static final Pattern EQUALS_TERM_PATTERN = Pattern.compile("^\\.key\\s*==\\s*\"([^\"]*)\"$");
+    private static final Pattern OR_PATTERN = Pattern.compile("\\s+or\\s+");
+
+    /**
+     * The registries and metric keys a rule references.
+     */
+    public static class MetricsSelection {
+        private final KeyMatcher registry;
+        private final List<KeyMatcher> keys;
+        private final List<String> properties;
+
+        public MetricsSelection(KeyMatcher registry, List<KeyMatcher> keys) {
+            this(registry, keys, null);
+        }
+
+        public MetricsSelection(KeyMatcher registry, List<KeyMatcher> keys, List<String> properties) {
+            this.registry = registry;
+            this.keys = keys;
+            this.properties = properties;
+        }
+
+        /**
+         * @return the matcher of registry names.
+         */
+        public KeyMatcher getRegistry() {
+            return registry;
+        }
+
+        /**
+         * @return the matchers of metric keys, any of which may match, or an empty list for any key.
+         */
+        public List<KeyMatcher> getKeys() {
+            return keys;
+        }
+
+        /**
+         * @return the properties of map-like metric values that are read, or null if unknown.
+         */
+        public List<String> getProperties() {
+            return properties;
+        }
+    }
+
+    /**
+     * Analyze an /admin/metrics rule.
+     *
+     * @param jsonQuery the rule.
+     * @return the selection, or null if the rule is not recognized.
+     */
+    public static MetricsSelection analyze(String jsonQuery) {
+        Matcher matcher = REGISTRY_PATTERN.matcher(jsonQuery);
+        if (matcher.matches()) {
+            return new MetricsSelection(new KeyMatcher(KeyMatcher.Type.EQUALS, matcher.group(1)), parseFirstSelect(matcher.group(2)));
+        }
+
+        matcher = REGISTRY_PREFIX_PATTERN.matcher(jsonQuery);
+        if (matcher.matches()) {
+            KeyMatcher registry = new KeyMatcher(KeyMatcher.Type.PREFIX, matcher.group(1));
+            String variable = "$" + matcher.group(2);
+            Pattern entriesPattern = Pattern.compile(Pattern.quote(variable) + "\\.value\\s*\\|\\s*to_entries\\s*\\|\\s*\\.\\[\\]\\s*\\|(.*)$", Pattern.DOTALL);
+            Matcher entriesMatcher = entriesPattern.matcher(matcher.group(3));
+            // the value of the registry must be read through to_entries only once to narrow its keys
+            if (entriesMatcher.find() && countOccurrences(matcher.group(3), variable + ".value") == 1) {
+                return new MetricsSelection(registry, parseFirstSelect(entriesMatcher.group(1)));
+            }
+            return new MetricsSelection(registry, Collections.emptyList());
+        }
+
+        return null;
+    }
+
+    /**
+     * Analyze a set of /admin/metrics rules.
+     *
+     * @param jsonQueries the rules.
+     * @return the selections, or null if any rule is not recognized.
+     */
+    public static List<MetricsSelection> analyze(List<String> jsonQueries) {
+        if (jsonQueries.isEmpty()) {
+            return null;
+        }
+
+        List<MetricsSelection> selections = new ArrayList<>();
+        for (String jsonQuery : jsonQueries) {
+            MetricsSelection selection = analyze(jsonQuery);
+            if (selection == null) {
+                return null;
+            }
+            selections.add(selection);
+        }
+        return selections;
+    }
+
+    /**
+     * Work out the projection of an /admin/metrics response that a set of rules needs.
+     *
+     * @param jsonQueries the rules.
+     * @return the projection, or {@link JsonProjection#ALL} if any rule is not recognized.
+     */
+    public static JsonProjection project(List<String> jsonQueries) {
+        List<MetricsSelection> selections = analyze(jsonQueries);
+        if (selections == null) {
+            return JsonProjection.ALL;
+        }
+        return toProjection(selections);
+    }
+
+    /**
+     * Work out the projection of an /admin/metrics response that reads the given selections.
+     *
+     * @param selections the registries and metric keys to keep.
+     * @return the projection.
+     */
+    public static JsonProjection toProjection(Collection<MetricsSelection> selections) {
+        // merge the key matchers of each registry matcher
+        Map<String, KeyMatcher> registries = new LinkedHashMap<>();
+        Map<String, Set<String>> keySets = new HashMap<>();
+        Map<String, List<KeyMatcher>> keys = new HashMap<>();
+        for (MetricsSelection selection : selections) {
+            String id = selection.getRegistry().toString();
+            registries.putIfAbsent(id, selection.getRegistry());
+            if (selection.getKeys().isEmpty()) {
+                keys.put(id, null);
+            } else if (!keys.containsKey(id) || keys.get(id) != null) {
+                keys.computeIfAbsent(id, k -> new ArrayList<>());
+                Set<String> keySet = keySets.computeIfAbsent(id, k -> new HashSet<>());
+                for (KeyMatcher key : selection.getKeys()) {
+                    if (keySet.add(key.toString())) {
+                        keys.get(id).add(key);
+                    }
+                }
+            }
+        }
+
+        List<Field> registryFields = new ArrayList<>();
+        for (Map.Entry<String, KeyMatcher> entry : registries.entrySet()) {
+            List<KeyMatcher> registryKeys = keys.get(entry.getKey());
+            if (registryKeys == null) {
+                registryFields.add(new Field(entry.getValue(), JsonProjection.ALL));
+            } else {
+                List<Field> keyFields = new ArrayList<>();
+                for (KeyMatcher key : registryKeys) {
+                    keyFields.add(new Field(key, JsonProjection.ALL));
+                }
+                registryFields.add(new Field(entry.getValue(), JsonProjection.of(keyFields)));
+            }
+        }
+
+        return JsonProjection.of(Collections.singletonList(
+                new Field(new KeyMatcher(KeyMatcher.Type.EQUALS, "metrics"), JsonProjection.of(registryFields))));
+    }
+
+    /**
+     * Parse the key filter of the first select() of an expression.
+     *
+     * @return the key matchers, or an empty list for any key.
+     */
+    private static List<KeyMatcher> parseFirstSelect(String expression) {
+        String s = expression.trim();
+        if (!s.startsWith("select")) {
+            return Collections.emptyList();
+        }
+        s = s.substring("select".length()).trim();
+        String predicate = parenthesized(s);
+        if (predicate == null) {
+            return Collections.emptyList();
+        }
+        List<KeyMatcher> keys = parsePredicate(predicate.trim());
+        return keys != null ? keys : Collections.<KeyMatcher>emptyList();
+    }
+
+    private static List<KeyMatcher> parsePredicate(String predicate) {
+        if (predicate.matches("(?s).*\\bnot\\b.*") || predicate.matches("(?s).*\\sand\\s.*")) {
+            return null;
+        }
+
+        String terms = predicate;
+        boolean piped = false;
+        if (terms.startsWith(".key") && terms.substring(".key".length()).trim().startsWith("|")) {
+            terms = terms.substring(terms.indexOf('|') + 1).trim();
+            piped = true;
+            if (terms.startsWith("(")) {
+                String inner = parenthesized(terms);
+                if (inner == null || inner.length() + 2 != terms.length()) {
+                    return null;
+                }
+                terms = inner.trim();
+            }
+        }
+
+        List<KeyMatcher> keys = new ArrayList<>();
+        for (String term : OR_PATTERN.split(terms)) {
+            term = term.trim();
+            Matcher matcher = FUNCTION_TERM_PATTERN.matcher(term);
+            if (piped && matcher.matches()) {
+                switch (matcher.group(1)) {
+                    case "startswith":
+                        keys.add(new KeyMatcher(KeyMatcher.Type.PREFIX, matcher.group(2)));
+                        break;
+                    case "endswith":
+                        keys.add(new KeyMatcher(KeyMatcher.Type.SUFFIX, matcher.group(2)));
+                        break;
+                    default:
+                        keys.add(new KeyMatcher(KeyMatcher.Type.CONTAINS, matcher.group(2)));
+                        break;
+                }
+                continue;
+            }
+            matcher = EQUALS_TERM_PATTERN.matcher(term);
+            if (!piped && matcher.matches()) {
+                keys.add(new KeyMatcher(KeyMatcher.Type.EQUALS, matcher.group(1)));
+                continue;
+            }
+            return null;
+        }
+        return keys;
+    }
+
+    private static int countOccurrences(String s, String substring) {
+        int count = 0;
+        for (int i = s.indexOf(substring); i >= 0; i = s.indexOf(substring, i + substring.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the content of the parentheses at the start of a string.
+     */
+    private static String parenthesized(String s) {
+        if (!s.startsWith("(")) {
+            return null;
+        }
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' && (i == 0 || s.charAt(i - 1) != '\\')) {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return s.substring(1, i);
+                }
+            }
+        }
+        return null;
+    }
+}
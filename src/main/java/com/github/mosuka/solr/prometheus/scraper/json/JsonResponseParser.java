@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JsonResponseParser
+ *
+ * Parses a JSON response straight from the HTTP input stream into a {@link JsonNode}, keeping only
+ * the parts selected by a {@link JsonProjection}. The tree is returned under the "response" key,
+ * like the string returned by NoOpResponseParser, along with the time reading and parsing the body
+ * took in nanoseconds under "parseTime" and, when read from a stream, its size under "responseBytes".
+ */
+public class JsonResponseParser extends ResponseParser {
+    private static final ObjectMapper om = new ObjectMapper();
+    private static final JsonFactory jsonFactory = om.getFactory();
+
+    private final JsonProjection projection;
+
+    public JsonResponseParser() {
+        this(JsonProjection.ALL);
+    }
+
+    public JsonResponseParser(JsonProjection projection) {
+        this.projection = projection;
+    }
+
+    public JsonProjection getProjection() {
+        return projection;
+    }
+
+    @Override
+    public String getWriterType() {
+        return "json";
+    }
+
+    /**
+     * Solr versions differ in the content type of JSON responses, so it is not checked.
+     */
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public NamedList<Object> processResponse(InputStream body, String encoding) {
+        long startTime = System.nanoTime();
+        CountingInputStream countingBody = new CountingInputStream(body);
+        try {
+            NamedList<Object> list;
+            if (encoding == null || encoding.equalsIgnoreCase(StandardCharsets.UTF_8.name())) {
+                // let the parser decode bytes itself, which is faster than a reader
+                try (JsonParser parser = jsonFactory.createParser(countingBody)) {
+                    list = toNamedList(projection.read(parser, om), startTime);
+                }
+            } else {
+                list = processResponse(new InputStreamReader(countingBody, encoding));
+            }
+            list.add("responseBytes", countingBody.count);
+            return list;
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "parsing error", e);
+        }
+    }
+
+    @Override
+    public NamedList<Object> processResponse(Reader reader) {
+        long startTime = System.nanoTime();
+        try (JsonParser parser = jsonFactory.createParser(reader)) {
+            return toNamedList(projection.read(parser, om), startTime);
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "parsing error", e);
+        }
+    }
+
+    private static NamedList<Object> toNamedList(JsonNode jsonNode, long startTime) {
+        NamedList<Object> list = new NamedList<>();
+        list.add("response", jsonNode);
+        list.add("parseTime", System.nanoTime() - startTime);
+        return list;
+    }
+
+    /**
+     * Counts the bytes read from a response body.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
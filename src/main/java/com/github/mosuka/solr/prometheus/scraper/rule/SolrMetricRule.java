@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.rule;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.mosuka.solr.prometheus.scraper.SolrLabelInterner;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrMetricRuleConfig;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonProjection.KeyMatcher;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonQueryAnalyzer.MetricsSelection;
+import io.prometheus.client.Collector;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SolrMetricRule
+ *
+ * A compiled {@link SolrMetricRuleConfig}. The registry, key and field patterns must match whole
+ * names, and their named groups can be referenced from label templates as ${group}. A template may
+ * list alternatives separated by '|'; the first one whose groups all took part in the match is used,
+ * and the label is left out if none did.
+ */
+public class SolrMetricRule {
+    private static final Pattern GROUP_NAME_PATTERN = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+    private static final Pattern GROUP_REFERENCE_PATTERN = Pattern.compile("\\$\\{([a-zA-Z][a-zA-Z0-9]*)\\}");
+    private static final Pattern OUTER_GROUP_PATTERN = Pattern.compile("^\\((?:\\?<[a-zA-Z][a-zA-Z0-9]*>|\\?:)?([^()]*)\\)$");
+
+    private static final int REGISTRY = 0;
+    private static final int KEY = 1;
+    private static final int FIELD = 2;
+
+    /**
+     * Receives the samples of a rule.
+     */
+    public interface SampleConsumer {
+        void accept(SolrMetricRule rule, List<String> labelNames, List<String> labelValues, double value);
+    }
+
+    private final String name;
+    private final Collector.Type type;
+    private final String help;
+
+    private final Pattern registryPattern;
+    private final Pattern keyPattern;
+    private final Pattern fieldPattern;
+    private final String keyPrefix;
+
+    private final String[] valuePath;
+    private final double divisor;
+
+    private final List<String> labelNames;
+    private final List<LabelTemplate> labelTemplates;
+
+    private SolrMetricRule(SolrMetricRuleConfig ruleConfig) {
+        if (ruleConfig.getName().isEmpty()) {
+            throw new IllegalArgumentException("Rule name is empty");
+        }
+        if (ruleConfig.getRegistry().isEmpty() || ruleConfig.getKey().isEmpty()) {
+            throw new IllegalArgumentException("Rule " + ruleConfig.getName() + " needs a registry and a key pattern");
+        }
+        if (ruleConfig.getDivisor() == 0.0) {
+            throw new IllegalArgumentException("Rule " + ruleConfig.getName() + " has a zero divisor");
+        }
+
+        this.name = ruleConfig.getName();
+        this.type = Collector.Type.valueOf(ruleConfig.getType().toUpperCase(Locale.ROOT));
+        this.help = ruleConfig.getHelp();
+
+        this.registryPattern = Pattern.compile(ruleConfig.getRegistry());
+        this.keyPattern = Pattern.compile(ruleConfig.getKey());
+        this.fieldPattern = ruleConfig.getField().isEmpty() ? null : Pattern.compile(ruleConfig.getField());
+        this.keyPrefix = literalPrefix(ruleConfig.getKey());
+
+        this.valuePath = ruleConfig.getValue().isEmpty() ? new String[0] : ruleConfig.getValue().split("\\.");
+        this.divisor = ruleConfig.getDivisor();
+
+        // resolve each group name to the pattern that declares it
+        Map<String, Integer> groups = new HashMap<>();
+        declareGroups(groups, ruleConfig.getRegistry(), REGISTRY);
+        declareGroups(groups, ruleConfig.getKey(), KEY);
+        declareGroups(groups, ruleConfig.getField(), FIELD);
+
+        List<String> labelNames = new ArrayList<>();
+        List<LabelTemplate> labelTemplates = new ArrayList<>();
+        for (Map.Entry<String, String> label : ruleConfig.getLabels().entrySet()) {
+            labelNames.add(label.getKey());
+            labelTemplates.add(new LabelTemplate(String.valueOf(label.getValue()), groups, name));
+        }
+        this.labelNames = SolrLabelInterner.DEFAULT.schema(labelNames);
+        this.labelTemplates = Collections.unmodifiableList(labelTemplates);
+    }
+
+    /**
+     * Compile a rule.
+     *
+     * @param ruleConfig the rule.
+     * @return the compiled rule.
+     * @throws IllegalArgumentException if the rule is invalid.
+     */
+    public static SolrMetricRule compile(SolrMetricRuleConfig ruleConfig) {
+        return new SolrMetricRule(ruleConfig);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Collector.Type getType() {
+        return type;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public Pattern getRegistryPattern() {
+        return registryPattern;
+    }
+
+    public Pattern getKeyPattern() {
+        return keyPattern;
+    }
+
+    /**
+     * @return the registries and metric keys the rule reads.
+     */
+    public MetricsSelection getSelection() {
+        List<String> properties;
+        if (fieldPattern != null) {
+            properties = literalAlternatives(fieldPattern.pattern());
+        } else if (valuePath.length > 0) {
+            properties = Collections.singletonList(valuePath[0]);
+        } else {
+            // only plain numbers and booleans are read
+            properties = Collections.emptyList();
+        }
+
+        return new MetricsSelection(
+                new KeyMatcher(KeyMatcher.Type.PATTERN, registryPattern.pattern()),
+                Collections.singletonList(new KeyMatcher(KeyMatcher.Type.PATTERN, keyPattern.pattern())),
+                properties);
+    }
+
+    /**
+     * Match a registry name.
+     *
+     * @param registry the registry name.
+     * @return the matcher if the rule reads the registry, or null.
+     */
+    Matcher matchRegistry(String registry) {
+        Matcher matcher = registryPattern.matcher(registry);
+        return matcher.matches() ? matcher : null;
+    }
+
+    /**
+     * Apply the rule to a metric of a matched registry.
+     *
+     * @param registryMatcher the matcher returned by {@link #matchRegistry(String)}.
+     * @param key the metric key.
+     * @param value the metric value.
+     * @param consumer receives the samples.
+     */
+    void apply(Matcher registryMatcher, String key, JsonNode value, SampleConsumer consumer) {
+        if (!key.startsWith(keyPrefix)) {
+            return;
+        }
+        Matcher keyMatcher = keyPattern.matcher(key);
+        if (!keyMatcher.matches()) {
+            return;
+        }
+
+        if (fieldPattern == null) {
+            emit(registryMatcher, keyMatcher, null, value, consumer);
+            return;
+        }
+
+        if (!value.isObject()) {
+            return;
+        }
+        for (Iterator<Map.Entry<String, JsonNode>> ite = value.fields(); ite.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = ite.next();
+            Matcher fieldMatcher = fieldPattern.matcher(field.getKey());
+            if (fieldMatcher.matches()) {
+                emit(registryMatcher, keyMatcher, fieldMatcher, field.getValue(), consumer);
+            }
+        }
+    }
+
+    private void emit(Matcher registryMatcher, Matcher keyMatcher, Matcher fieldMatcher, JsonNode value, SampleConsumer consumer) {
+        JsonNode node = value;
+        for (String name : valuePath) {
+            node = node.get(name);
+            if (node == null) {
+                return;
+            }
+        }
+
+        double sampleValue;
+        if (node.isNumber()) {
+            sampleValue = node.doubleValue();
+        } else if (node.isBoolean()) {
+            sampleValue = node.booleanValue() ? 1.0 : 0.0;
+        } else {
+            return;
+        }
+        if (divisor != 1.0) {
+            sampleValue = sampleValue / divisor;
+        }
+
+        Matcher[] matchers = { registryMatcher, keyMatcher, fieldMatcher };
+        List<String> names = labelNames;
+        List<String> values = new ArrayList<>(labelTemplates.size());
+        for (int i = 0; i < labelTemplates.size(); i++) {
+            String labelValue = labelTemplates.get(i).evaluate(matchers);
+            if (labelValue == null) {
+                if (names == labelNames) {
+                    names = new ArrayList<>(labelNames.subList(0, i));
+                }
+                continue;
+            }
+            if (names != labelNames) {
+                names.add(labelNames.get(i));
+            }
+            values.add(labelValue);
+        }
+
+        consumer.accept(this, names, values, sampleValue);
+    }
+
+    private static void declareGroups(Map<String, Integer> groups, String regex, int source) {
+        Matcher matcher = GROUP_NAME_PATTERN.matcher(regex);
+        while (matcher.find()) {
+            if (groups.put(matcher.group(1), source) != null) {
+                throw new IllegalArgumentException("Group " + matcher.group(1) + " is declared more than once");
+            }
+        }
+    }
+
+    /**
+     * Get the literal text every match of a regular expression starts with.
+     *
+     * @param regex the regular expression.
+     * @return the literal prefix, possibly empty.
+     */
+    public static String literalPrefix(String regex) {
+        // a top-level alternation has no common prefix
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return "";
+            }
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                prefix.append(regex.charAt(++i));
+            } else if ("?*{".indexOf(c) >= 0) {
+                // the last character is optional
+                if (prefix.length() > 0) {
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            } else if ("\\[](){}.+^$|".indexOf(c) >= 0) {
+                break;
+            } else {
+                prefix.append(c);
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Get the strings a regular expression made of literal alternatives matches, such as
+     * "(?&lt;item&gt;hits|size)".
+     *
+     * @param regex the regular expression.
+     * @return the strings, or null if the expression is not a plain alternation of literals.
+     */
+    public static List<String> literalAlternatives(String regex) {
+        String body = regex;
+        Matcher group = OUTER_GROUP_PATTERN.matcher(body);
+        if (group.matches()) {
+            body = group.group(1);
+        }
+
+        List<String> alternatives = new ArrayList<>();
+        for (String alternative : body.split("\\|", -1)) {
+            String literal = literalPrefix(alternative);
+            if (literal.isEmpty() || !literal.equals(unescape(alternative))) {
+                return null;
+            }
+            alternatives.add(literal);
+        }
+        return alternatives;
+    }
+
+    private static String unescape(String regex) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                c = regex.charAt(++i);
+            }
+            buffer.append(c);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * A label value template.
+     */
+    private static class LabelTemplate {
+        private final List<List<Object>> alternatives = new ArrayList<>();
+
+        LabelTemplate(String template, Map<String, Integer> groups, String ruleName) {
+            for (String alternative : template.split("\\|", -1)) {
+                List<Object> parts = new ArrayList<>();
+                Matcher matcher = GROUP_REFERENCE_PATTERN.matcher(alternative);
+                int start = 0;
+                while (matcher.find()) {
+                    if (matcher.start() > start) {
+                        parts.add(alternative.substring(start, matcher.start()));
+                    }
+                    Integer source = groups.get(matcher.group(1));
+                    if (source == null) {
+                        throw new IllegalArgumentException("Rule " + ruleName + " references unknown group " + matcher.group(1));
+                    }
+                    parts.add(new GroupReference(source, matcher.group(1)));
+                    start = matcher.end();
+                }
+                if (start < alternative.length()) {
+                    parts.add(alternative.substring(start));
+                }
+                alternatives.add(parts);
+            }
+        }
+
+        String evaluate(Matcher[] matchers) {
+            for (List<Object> parts : alternatives) {
+                String value = evaluate(parts, matchers);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        private static String evaluate(List<Object> parts, Matcher[] matchers) {
+            if (parts.size() == 1 && parts.get(0) instanceof GroupReference) {
+                return ((GroupReference) parts.get(0)).resolve(matchers);
+            }
+            StringBuilder buffer = new StringBuilder();
+            for (Object part : parts) {
+                if (part instanceof GroupReference) {
+                    String value = ((GroupReference) part).resolve(matchers);
+                    if (value == null) {
+                        return null;
+                    }
+                    buffer.append(value);
+                } else {
+                    buffer.append((String) part);
+                }
+            }
+            return buffer.toString();
+        }
+    }
+
+    private static class GroupReference {
+        private final int source;
+        private final String name;
+
+        GroupReference(int source, String name) {
+            this.source = source;
+            this.name = name;
+        }
+
+        String resolve(Matcher[] matchers) {
+            Matcher matcher = matchers[source];
+            return matcher != null ? matcher.group(name) : null;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.rule;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrMetricRuleConfig;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonQueryAnalyzer.MetricsSelection;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+
+/**
+ * SolrMetricRuleSet
+ *
+ * Applies a set of {@link SolrMetricRule}s to an /admin/metrics response in one pass: every registry
+ * is visited once and each of its metrics is offered only to the rules whose registry pattern
+ * matches the registry name.
+ */
+public class SolrMetricRuleSet {
+    public static final SolrMetricRuleSet EMPTY = new SolrMetricRuleSet(Collections.emptyList());
+
+    /**
+     * Registry names seen are bounded by the cores of the scraped nodes; the cache is dropped if it
+     * grows beyond this.
+     */
+    private static final int MAX_CACHED_REGISTRIES = 10000;
+
+    private final List<SolrMetricRule> rules;
+    private final ConcurrentMap<String, SolrMetricRule[]> rulesByRegistry = new ConcurrentHashMap<>();
+
+    private SolrMetricRuleSet(List<SolrMetricRule> rules) {
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Compile a set of rules.
+     *
+     * @param ruleConfigs the rules.
+     * @return the compiled rule set.
+     * @throws IllegalArgumentException if a rule is invalid.
+     */
+    public static SolrMetricRuleSet compile(List<SolrMetricRuleConfig> ruleConfigs) {
+        if (ruleConfigs.isEmpty()) {
+            return EMPTY;
+        }
+
+        List<SolrMetricRule> rules = new ArrayList<>(ruleConfigs.size());
+        for (SolrMetricRuleConfig ruleConfig : ruleConfigs) {
+            rules.add(SolrMetricRule.compile(ruleConfig));
+        }
+        return new SolrMetricRuleSet(rules);
+    }
+
+    public List<SolrMetricRule> getRules() {
+        return rules;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return the registries and metric keys the rules read.
+     */
+    public List<MetricsSelection> getSelections() {
+        List<MetricsSelection> selections = new ArrayList<>(rules.size());
+        for (SolrMetricRule rule : rules) {
+            selections.add(rule.getSelection());
+        }
+        return selections;
+    }
+
+    /**
+     * Apply the rules to an /admin/metrics response.
+     *
+     * @param response the response.
+     * @param consumer receives the samples.
+     */
+    public void apply(JsonNode response, SolrMetricRule.SampleConsumer consumer) {
+        if (rules.isEmpty() || response == null) {
+            return;
+        }
+        JsonNode metrics = response.get("metrics");
+        if (metrics == null || !metrics.isObject()) {
+            return;
+        }
+
+        for (Iterator<Map.Entry<String, JsonNode>> registries = metrics.fields(); registries.hasNext(); ) {
+            Map.Entry<String, JsonNode> registry = registries.next();
+            apply(registry.getKey(), registry.getValue(), consumer);
+        }
+    }
+
+    /**
+     * Apply the rules to one registry of an /admin/metrics response. The samples of a registry
+     * depend on its name and metrics only.
+     *
+     * @param registry the registry name.
+     * @param registryJson the metrics of the registry.
+     * @param consumer receives the samples.
+     */
+    public void apply(String registry, JsonNode registryJson, SolrMetricRule.SampleConsumer consumer) {
+        if (!registryJson.isObject()) {
+            return;
+        }
+
+        SolrMetricRule[] registryRules = getRules(registry);
+        if (registryRules.length == 0) {
+            return;
+        }
+        Matcher[] registryMatchers = new Matcher[registryRules.length];
+        for (int i = 0; i < registryRules.length; i++) {
+            registryMatchers[i] = registryRules[i].matchRegistry(registry);
+        }
+
+        for (Iterator<Map.Entry<String, JsonNode>> entries = registryJson.fields(); entries.hasNext(); ) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            for (int i = 0; i < registryRules.length; i++) {
+                registryRules[i].apply(registryMatchers[i], entry.getKey(), entry.getValue(), consumer);
+            }
+        }
+    }
+
+    /**
+     * @param registry the registry name.
+     * @return true if any rule reads the registry.
+     */
+    public boolean reads(String registry) {
+        return getRules(registry).length > 0;
+    }
+
+    private SolrMetricRule[] getRules(String registry) {
+        SolrMetricRule[] registryRules = rulesByRegistry.get(registry);
+        if (registryRules == null) {
+            List<SolrMetricRule> matched = new ArrayList<>();
+            for (SolrMetricRule rule : rules) {
+                if (rule.matchRegistry(registry) != null) {
+                    matched.add(rule);
+                }
+            }
+            registryRules = matched.toArray(new SolrMetricRule[0]);
+
+            if (rulesByRegistry.size() >= MAX_CACHED_REGISTRIES) {
+                rulesByRegistry.clear();
+            }
+            rulesByRegistry.put(registry, registryRules);
+        }
+        return registryRules;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.rule;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraper;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import io.prometheus.client.Collector;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * SolrMetricRuleValidator
+ *
+ * Applies the metrics section of two configs to the same /admin/metrics response and reports the
+ * samples that only one of them produces. It is used to check that native rules are equivalent to
+ * the jq rules they replace.
+ */
+public class SolrMetricRuleValidator {
+    private static final String[] ARG_EXPECTED_FLAGS = { "-e", "--expected-config-file" };
+    private static final String ARG_EXPECTED_METAVAR = "EXPECTED_CONFIG";
+    private static final String ARG_EXPECTED_DEST = "expectedConfigFile";
+    private static final String ARG_EXPECTED_DEFAULT = "./conf/config.yml";
+    private static final String ARG_EXPECTED_HELP = "specify the configuration file with the reference rules";
+
+    private static final String[] ARG_ACTUAL_FLAGS = { "-a", "--actual-config-file" };
+    private static final String ARG_ACTUAL_METAVAR = "ACTUAL_CONFIG";
+    private static final String ARG_ACTUAL_DEST = "actualConfigFile";
+    private static final String ARG_ACTUAL_DEFAULT = "./conf/config-native.yml";
+    private static final String ARG_ACTUAL_HELP = "specify the configuration file with the rules to validate";
+
+    private static final String[] ARG_RESPONSE_FLAGS = { "-r", "--response-file" };
+    private static final String ARG_RESPONSE_METAVAR = "RESPONSE";
+    private static final String ARG_RESPONSE_DEST = "responseFile";
+    private static final String ARG_RESPONSE_HELP = "specify a file holding an /admin/metrics response in JSON format";
+
+    private static final String[] ARG_ITERATIONS_FLAGS = { "-i", "--iterations" };
+    private static final String ARG_ITERATIONS_METAVAR = "ITERATIONS";
+    private static final String ARG_ITERATIONS_DEST = "iterations";
+    private static final Integer ARG_ITERATIONS_DEFAULT = 0;
+    private static final String ARG_ITERATIONS_HELP = "specify how many times to apply each rule set to report the time it takes";
+
+    private static final String BASE_URL = "http://localhost:8983/solr";
+
+    /**
+     * The samples only one of two rule sets produces.
+     */
+    public static class Result {
+        private final List<String> missing = new ArrayList<>();
+        private final List<String> unexpected = new ArrayList<>();
+        private int expectedSamples;
+        private int actualSamples;
+
+        /**
+         * @return the samples of the expected rules that the actual rules do not produce.
+         */
+        public List<String> getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return the samples of the actual rules that the expected rules do not produce.
+         */
+        public List<String> getUnexpected() {
+            return unexpected;
+        }
+
+        public int getExpectedSamples() {
+            return expectedSamples;
+        }
+
+        public int getActualSamples() {
+            return actualSamples;
+        }
+
+        public boolean isEquivalent() {
+            return missing.isEmpty() && unexpected.isEmpty();
+        }
+    }
+
+    /**
+     * Compare the samples two scraper configs produce from the same response.
+     *
+     * @param solrClient the client the response is labeled with.
+     * @param expected the reference config.
+     * @param actual the config to validate.
+     * @param response the response.
+     * @return the differences.
+     */
+    public static Result compare(SolrClient solrClient, SolrScraperConfig expected, SolrScraperConfig actual, JsonNode response) {
+        Map<String, Collector.MetricFamilySamples> expectedSamples = new SolrScraper(solrClient, expected).collectMetrics(solrClient, expected, response);
+        Map<String, Collector.MetricFamilySamples> actualSamples = new SolrScraper(solrClient, actual).collectMetrics(solrClient, actual, response);
+
+        Result result = new Result();
+
+        Map<String, Integer> remaining = new HashMap<>();
+        for (Collector.MetricFamilySamples family : expectedSamples.values()) {
+            for (String sample : describe(family)) {
+                remaining.merge(sample, 1, Integer::sum);
+                result.expectedSamples++;
+            }
+        }
+        for (Collector.MetricFamilySamples family : actualSamples.values()) {
+            for (String sample : describe(family)) {
+                result.actualSamples++;
+                Integer count = remaining.get(sample);
+                if (count == null) {
+                    result.unexpected.add(sample);
+                } else if (count == 1) {
+                    remaining.remove(sample);
+                } else {
+                    remaining.put(sample, count - 1);
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : remaining.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                result.missing.add(entry.getKey());
+            }
+        }
+        Collections.sort(result.missing);
+        Collections.sort(result.unexpected);
+
+        return result;
+    }
+
+    private static List<String> describe(Collector.MetricFamilySamples family) {
+        List<String> samples = new ArrayList<>(family.samples.size());
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+            StringBuilder buffer = new StringBuilder(sample.name).append('{');
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (i > 0) {
+                    buffer.append(',');
+                }
+                buffer.append(sample.labelNames.get(i)).append("=\"").append(sample.labelValues.get(i)).append('"');
+            }
+            buffer.append("} ").append(sample.value)
+                    .append(" # ").append(family.type).append(' ').append(family.help);
+            samples.add(buffer.toString());
+        }
+        return samples;
+    }
+
+    private static double measure(SolrClient solrClient, SolrScraperConfig scraperConfig, JsonNode response, int iterations) {
+        SolrScraper scraper = new SolrScraper(solrClient, scraperConfig);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            scraper.collectMetrics(solrClient, scraperConfig, response);
+        }
+        return (System.nanoTime() - start) / 1000000.0 / iterations;
+    }
+
+    private static SolrScraperConfig loadMetrics(String configFile) throws IOException {
+        try (Reader reader = new FileReader(configFile)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class).getMetrics();
+        }
+    }
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newArgumentParser(SolrMetricRuleValidator.class.getSimpleName())
+                .description("Check that two rule sets produce the same samples from an /admin/metrics response.");
+
+        parser.addArgument(ARG_EXPECTED_FLAGS)
+                .metavar(ARG_EXPECTED_METAVAR).dest(ARG_EXPECTED_DEST).type(String.class)
+                .setDefault(ARG_EXPECTED_DEFAULT).help(ARG_EXPECTED_HELP);
+
+        parser.addArgument(ARG_ACTUAL_FLAGS)
+                .metavar(ARG_ACTUAL_METAVAR).dest(ARG_ACTUAL_DEST).type(String.class)
+                .setDefault(ARG_ACTUAL_DEFAULT).help(ARG_ACTUAL_HELP);
+
+        parser.addArgument(ARG_RESPONSE_FLAGS)
+                .metavar(ARG_RESPONSE_METAVAR).dest(ARG_RESPONSE_DEST).type(String.class)
+                .required(true).help(ARG_RESPONSE_HELP);
+
+        parser.addArgument(ARG_ITERATIONS_FLAGS)
+                .metavar(ARG_ITERATIONS_METAVAR).dest(ARG_ITERATIONS_DEST).type(Integer.class)
+                .setDefault(ARG_ITERATIONS_DEFAULT).help(ARG_ITERATIONS_HELP);
+
+        try {
+            Namespace res = parser.parseArgs(args);
+
+            SolrScraperConfig expected = loadMetrics(res.getString(ARG_EXPECTED_DEST));
+            SolrScraperConfig actual = loadMetrics(res.getString(ARG_ACTUAL_DEST));
+            JsonNode response = new ObjectMapper().readTree(new File(res.getString(ARG_RESPONSE_DEST)));
+            int iterations = res.getInt(ARG_ITERATIONS_DEST);
+
+            try (SolrClient solrClient = new HttpSolrClient.Builder(BASE_URL).build()) {
+                Result result = compare(solrClient, expected, actual, response);
+
+                for (String sample : result.getMissing()) {
+                    System.out.println("- " + sample);
+                }
+                for (String sample : result.getUnexpected()) {
+                    System.out.println("+ " + sample);
+                }
+                System.out.println("expected samples: " + result.getExpectedSamples() + ", actual samples: " + result.getActualSamples()
+                        + ", missing: " + result.getMissing().size() + ", unexpected: " + result.getUnexpected().size());
+
+                if (iterations > 0) {
+                    System.out.println(String.format(Locale.ROOT, "expected rules: %.3f ms/response, actual rules: %.3f ms/response",
+                            measure(solrClient, expected, response, iterations), measure(solrClient, actual, response, iterations)));
+                }
+
+                System.exit(result.isEquivalent() ? 0 : 1);
+            }
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(2);
+        } catch (Exception e) {
+            System.err.println(e.toString());
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for SolrCircuitBreaker.
+ */
+public class SolrCircuitBreakerTest extends TestCase {
+    private static final String NODE = "http://127.0.0.1:8983/solr";
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testOpen() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(3, 0, 30000);
+
+        assertTrue(circuitBreaker.allow(NODE, 0));
+        assertTrue(circuitBreaker.isUp(NODE));
+
+        circuitBreaker.record(NODE, false, 0, 0);
+        circuitBreaker.record(NODE, false, 0, SECOND);
+        assertEquals(SolrCircuitBreaker.State.CLOSED, circuitBreaker.getState(NODE));
+        assertFalse(circuitBreaker.isUp(NODE));
+        assertTrue(circuitBreaker.allow(NODE, 2 * SECOND));
+
+        circuitBreaker.record(NODE, false, 0, 2 * SECOND);
+        assertEquals(SolrCircuitBreaker.State.OPEN, circuitBreaker.getState(NODE));
+        assertFalse(circuitBreaker.allow(NODE, 3 * SECOND));
+        assertFalse(circuitBreaker.isUp(NODE));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(2, 0, 30000);
+
+        circuitBreaker.record(NODE, false, 0, 0);
+        circuitBreaker.record(NODE, true, 0, SECOND);
+        circuitBreaker.record(NODE, false, 0, 2 * SECOND);
+
+        assertEquals(SolrCircuitBreaker.State.CLOSED, circuitBreaker.getState(NODE));
+    }
+
+    @Test
+    public void testSlow() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(1, 1000, 30000);
+
+        circuitBreaker.record(NODE, true, SECOND / 2, 0);
+        assertEquals(SolrCircuitBreaker.State.CLOSED, circuitBreaker.getState(NODE));
+
+        circuitBreaker.record(NODE, true, 2 * SECOND, SECOND);
+        assertEquals(SolrCircuitBreaker.State.OPEN, circuitBreaker.getState(NODE));
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(1, 0, 30000);
+        circuitBreaker.record(NODE, false, 0, 0);
+
+        assertFalse(circuitBreaker.allow(NODE, 29 * SECOND));
+
+        // a single probe once the node was skipped long enough
+        assertTrue(circuitBreaker.allow(NODE, 30 * SECOND));
+        assertEquals(SolrCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(NODE));
+        assertFalse(circuitBreaker.allow(NODE, 30 * SECOND));
+
+        // a failed probe opens the circuit again
+        circuitBreaker.record(NODE, false, 0, 31 * SECOND);
+        assertEquals(SolrCircuitBreaker.State.OPEN, circuitBreaker.getState(NODE));
+        assertFalse(circuitBreaker.allow(NODE, 60 * SECOND));
+
+        // a successful probe closes it
+        assertTrue(circuitBreaker.allow(NODE, 61 * SECOND));
+        circuitBreaker.record(NODE, true, 0, 62 * SECOND);
+        assertEquals(SolrCircuitBreaker.State.CLOSED, circuitBreaker.getState(NODE));
+        assertTrue(circuitBreaker.allow(NODE, 62 * SECOND));
+        assertTrue(circuitBreaker.isUp(NODE));
+    }
+
+    @Test
+    public void testLostProbe() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(1, 0, 30000);
+        circuitBreaker.record(NODE, false, 0, 0);
+
+        assertTrue(circuitBreaker.allow(NODE, 30 * SECOND));
+        assertFalse(circuitBreaker.allow(NODE, 59 * SECOND));
+        assertTrue(circuitBreaker.allow(NODE, 60 * SECOND));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(0, 0, 30000);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.record(NODE, false, 0, i * SECOND);
+        }
+
+        assertTrue(circuitBreaker.allow(NODE, 10 * SECOND));
+        assertFalse(circuitBreaker.isUp(NODE));
+    }
+
+    @Test
+    public void testRetain() throws Exception {
+        SolrCircuitBreaker circuitBreaker = new SolrCircuitBreaker(1, 0, 30000);
+        circuitBreaker.record(NODE, false, 0, 0);
+
+        circuitBreaker.retain(Collections.singletonList("http://127.0.0.1:7574/solr"));
+
+        assertTrue(circuitBreaker.allow(NODE, SECOND));
+        assertTrue(circuitBreaker.isUp(NODE));
+    }
+}
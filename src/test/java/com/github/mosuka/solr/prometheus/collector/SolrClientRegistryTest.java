@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.junit.Test;
+
+import java.util.Collections;
+
+/**
+ * Unit test for SolrClientRegistry.
+ */
+public class SolrClientRegistryTest extends TestCase {
+    @Test
+    public void testGet() throws Exception {
+        try (SolrClientRegistry clientRegistry = new SolrClientRegistry()) {
+            HttpSolrClient httpSolrClient = clientRegistry.get("http://127.0.0.1:8983/solr");
+
+            assertEquals("http://127.0.0.1:8983/solr", httpSolrClient.getBaseURL());
+            assertSame(httpSolrClient, clientRegistry.get("http://127.0.0.1:8983/solr"));
+        }
+    }
+
+    @Test
+    public void testRetain() throws Exception {
+        try (SolrClientRegistry clientRegistry = new SolrClientRegistry()) {
+            CollectorRegistry registry = new CollectorRegistry();
+            clientRegistry.register(registry);
+
+            HttpSolrClient httpSolrClient = clientRegistry.get("http://127.0.0.1:8983/solr");
+            clientRegistry.get("http://127.0.0.1:7574/solr");
+
+            assertEquals(2.0, registry.getSampleValue("solr_exporter_http_clients"));
+
+            clientRegistry.retain(Collections.singletonList("http://127.0.0.1:8983/solr"));
+
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_http_clients"));
+            assertSame(httpSolrClient, clientRegistry.get("http://127.0.0.1:8983/solr"));
+        }
+    }
+
+    @Test
+    public void testRetainByOwner() throws Exception {
+        try (SolrClientRegistry clientRegistry = new SolrClientRegistry()) {
+            Object cluster1 = new Object();
+            Object cluster2 = new Object();
+            HttpSolrClient httpSolrClient = clientRegistry.get("http://127.0.0.1:8983/solr");
+            clientRegistry.get("http://127.0.0.1:7574/solr");
+
+            // a cluster does not evict the nodes of another
+            clientRegistry.retain(cluster1, Collections.singletonList("http://127.0.0.1:8983/solr"));
+            clientRegistry.retain(cluster2, Collections.singletonList("http://127.0.0.1:7574/solr"));
+            assertSame(httpSolrClient, clientRegistry.get("http://127.0.0.1:8983/solr"));
+
+            clientRegistry.retain(cluster2, Collections.emptyList());
+            assertSame(httpSolrClient, clientRegistry.get("http://127.0.0.1:8983/solr"));
+            clientRegistry.retain(cluster1, Collections.emptyList());
+            assertNotSame(httpSolrClient, clientRegistry.get("http://127.0.0.1:8983/solr"));
+        }
+    }
+}
@@ -59,6 +59,7 @@ public class SolrCollectorTest extends SolrExporterTestBase {
 
         assertNotNull(collector);
 
+        collector.close();
     }
 
     @Test
@@ -85,6 +86,7 @@ public class SolrCollectorTest extends SolrExporterTestBase {
 
         assertNotEquals(0.0, registry.getSampleValue("solr_scrape_duration_seconds"));
 
+        collector.close();
     }
 }
 
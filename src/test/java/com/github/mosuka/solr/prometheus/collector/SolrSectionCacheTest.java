@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import io.prometheus.client.Collector;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for SolrSectionCache.
+ */
+public class SolrSectionCacheTest extends TestCase {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testPhase() throws Exception {
+        double[] buckets = new double[4];
+        for (int i = 0; i < 1000; i++) {
+            double phase = SolrSectionCache.phase("metrics http://localhost:" + (8983 + i) + "/solr null null");
+            assertTrue(phase > 0.0 && phase <= 1.0);
+            buckets[(int) Math.min(phase * 4, 3)]++;
+        }
+        // the nodes are spread across the interval
+        for (double bucket : buckets) {
+            assertTrue(bucket > 150);
+        }
+        assertEquals(SolrSectionCache.phase("ping"), SolrSectionCache.phase("ping"));
+    }
+
+    @Test
+    public void testDue() throws Exception {
+        SolrSectionCache cache = new SolrSectionCache();
+        List<Collector.MetricFamilySamples> samples = samples(1.0);
+        String key = "ping http://localhost:8983/solr collection1 null";
+        long phase = (long) (60 * SECOND * SolrSectionCache.phase(key));
+
+        assertNull(cache.get(key, 0));
+
+        // the first run is reused until its phase has elapsed
+        cache.put(key, 60, samples, 0);
+        assertEquals(samples, cache.get(key, 0));
+        assertEquals(samples, cache.get(key, phase - 1));
+        assertNull(cache.get(key, phase));
+
+        // then once per interval
+        cache.put(key, 60, samples(2.0), phase + SECOND);
+        assertEquals(samples(2.0), cache.get(key, phase + 59 * SECOND));
+        assertNull(cache.get(key, phase + 60 * SECOND));
+
+        // a late run is not due again immediately
+        cache.put(key, 60, samples(3.0), phase + 600 * SECOND);
+        assertEquals(samples(3.0), cache.get(key, phase + 600 * SECOND));
+        assertNull(cache.get(key, phase + 660 * SECOND));
+
+        cache.remove(key);
+        assertNull(cache.get(key, phase + 600 * SECOND));
+    }
+
+    @Test
+    public void testRetain() throws Exception {
+        SolrSectionCache cache = new SolrSectionCache();
+        cache.put("a", 60, samples(1.0), 0);
+        cache.put("b", 60, samples(1.0), 0);
+        assertEquals(2, cache.size());
+
+        cache.retain(Collections.singleton("a"));
+        assertEquals(1, cache.size());
+        assertNull(cache.get("b", 0));
+    }
+
+    private static List<Collector.MetricFamilySamples> samples(double value) {
+        List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+        samples.add(new Collector.MetricFamilySamples.Sample("solr_ping", Arrays.asList("core"), Arrays.asList("collection1"), value));
+        return Collections.singletonList(new Collector.MetricFamilySamples("solr_ping", Collector.Type.GAUGE, "ping", samples));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit test for SolrShard.
+ */
+public class SolrShardTest extends TestCase {
+    private static List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("http://solr" + i + ".example.com:8983/solr");
+        }
+        return keys;
+    }
+
+    @Test
+    public void testAll() throws Exception {
+        SolrShard.Assignment assignment = SolrShard.ALL.get();
+
+        assertTrue(assignment.isLeader());
+        assertEquals(1, assignment.getMembers());
+        for (String key : keys()) {
+            assertTrue(assignment.owns(key));
+        }
+    }
+
+    @Test
+    public void testOf() throws Exception {
+        SolrShard.Assignment[] assignments = new SolrShard.Assignment[3];
+        for (int i = 0; i < assignments.length; i++) {
+            assignments[i] = SolrShard.of(i, assignments.length).get();
+            assertEquals(3, assignments[i].getMembers());
+        }
+        assertTrue(assignments[0].isLeader());
+        assertFalse(assignments[1].isLeader());
+        assertFalse(assignments[2].isLeader());
+
+        int[] owned = new int[assignments.length];
+        for (String key : keys()) {
+            int owners = 0;
+            for (int i = 0; i < assignments.length; i++) {
+                if (assignments[i].owns(key)) {
+                    owners++;
+                    owned[i]++;
+                }
+            }
+            assertEquals(key, 1, owners);
+        }
+        // the keys spread roughly evenly
+        for (int count : owned) {
+            assertTrue(Arrays.toString(owned), count > 200);
+        }
+    }
+
+    @Test
+    public void testOfInvalid() throws Exception {
+        try {
+            SolrShard.of(2, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SolrShard.of(0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRebalance() throws Exception {
+        SolrShard.Assignment before = new SolrShard.Assignment(Arrays.asList("a", "b", "c"), "a", true);
+        SolrShard.Assignment after = new SolrShard.Assignment(Arrays.asList("a", "b", "c", "d"), "a", true);
+
+        int moved = 0;
+        for (String key : keys()) {
+            String owner = after.owner(key);
+            if (!owner.equals(before.owner(key))) {
+                // only the keys the new member takes change hands
+                assertEquals(key, "d", owner);
+                moved++;
+            }
+        }
+        assertTrue(Integer.toString(moved), moved > 0 && moved < 400);
+    }
+
+    @Test
+    public void testZkAssignment() throws Exception {
+        List<String> children = Arrays.asList("host2:9983-0000000007", "host1:9983-0000000003", "host3:9983-0000000012");
+
+        SolrShard.Assignment first = SolrShard.ZkShard.assignment(children, "host1:9983-0000000003");
+        SolrShard.Assignment second = SolrShard.ZkShard.assignment(children, "host2:9983-0000000007");
+
+        assertEquals(3, first.getMembers());
+        assertTrue(first.isLeader());
+        assertFalse(second.isLeader());
+        for (String key : keys()) {
+            assertEquals(first.owner(key), second.owner(key));
+            assertFalse(first.owns(key) && second.owns(key));
+        }
+    }
+
+    @Test
+    public void testZkAssignmentStaleNode() throws Exception {
+        // the node of an expired session of host1 outlives it for a while
+        List<String> children = Arrays.asList("host1:9983-0000000003", "host2:9983-0000000007", "host1:9983-0000000015");
+
+        SolrShard.Assignment assignment = SolrShard.ZkShard.assignment(children, "host1:9983-0000000015");
+
+        assertEquals(2, assignment.getMembers());
+        assertTrue(assignment.isLeader());
+    }
+
+    @Test
+    public void testZkAssignmentNotListed() throws Exception {
+        SolrShard.Assignment assignment = SolrShard.ZkShard.assignment(Arrays.asList("host2:9983-0000000007"), "host1:9983-0000000009");
+
+        assertEquals(2, assignment.getMembers());
+        assertFalse(assignment.isLeader());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for SolrSingleFlightCollector.
+ */
+public class SolrSingleFlightCollectorTest extends TestCase {
+    private static class BlockingCollector extends Collector {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            int value = count.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample("solr_test", Collections.emptyList(), Collections.emptyList(), value);
+            return Collections.singletonList(new MetricFamilySamples("solr_test", Type.GAUGE, "test", Collections.singletonList(sample)));
+        }
+    }
+
+    @Test
+    public void testCoalesceInFlight() throws Exception {
+        BlockingCollector collector = new BlockingCollector();
+        SolrSingleFlightCollector singleFlightCollector = new SolrSingleFlightCollector(collector, 0);
+        CollectorRegistry registry = new CollectorRegistry();
+        singleFlightCollector.register(registry);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Double>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> registry.getSampleValue("solr_test")));
+            assertTrue(collector.started.await(10, TimeUnit.SECONDS));
+            futures.add(executor.submit(() -> registry.getSampleValue("solr_test")));
+            futures.add(executor.submit(() -> registry.getSampleValue("solr_test")));
+
+            // let the followers attach to the collection in flight before it completes
+            long deadline = System.currentTimeMillis() + 10000;
+            while (singleFlightCollector.getCoalesced() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            collector.release.countDown();
+
+            for (Future<Double> future : futures) {
+                assertEquals(1.0, future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, collector.count.get());
+
+        // without a reuse window, the next scrape collects again
+        assertEquals(2.0, registry.getSampleValue("solr_exporter_coalesced_requests_total"));
+        assertEquals(2, collector.count.get());
+    }
+
+    @Test
+    public void testReuseWindow() throws Exception {
+        BlockingCollector collector = new BlockingCollector();
+        collector.release.countDown();
+        SolrSingleFlightCollector singleFlightCollector = new SolrSingleFlightCollector(collector, 60000);
+        CollectorRegistry registry = new CollectorRegistry();
+        singleFlightCollector.register(registry);
+
+        assertEquals(1.0, registry.getSampleValue("solr_test"));
+        assertEquals(1.0, registry.getSampleValue("solr_test"));
+        assertEquals(1, collector.count.get());
+        assertTrue(singleFlightCollector.getCoalesced() >= 1);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        SolrSingleFlightCollector singleFlightCollector = new SolrSingleFlightCollector(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                throw new IllegalStateException("collection failed");
+            }
+        }, 60000);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                singleFlightCollector.collect();
+                fail();
+            } catch (IllegalStateException e) {
+                // a failed collection is neither reused nor left in flight
+            }
+        }
+        assertEquals(0, singleFlightCollector.getCoalesced());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for SolrSnapshotCollector.
+ */
+public class SolrSnapshotCollectorTest extends TestCase {
+    private static class CountingCollector extends Collector {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample("solr_test", Collections.emptyList(), Collections.emptyList(), count.incrementAndGet());
+            return Collections.singletonList(new MetricFamilySamples("solr_test", Type.GAUGE, "test", Collections.singletonList(sample)));
+        }
+    }
+
+    @Test
+    public void testServeSnapshot() throws Exception {
+        CountingCollector collector = new CountingCollector();
+        SolrSnapshotCollector snapshotCollector = new SolrSnapshotCollector(collector, 60000);
+        CollectorRegistry registry = new CollectorRegistry();
+        snapshotCollector.register(registry);
+
+        assertNull(registry.getSampleValue("solr_test"));
+        assertEquals(0.0, registry.getSampleValue("solr_exporter_snapshot_last_success_timestamp_seconds"));
+
+        snapshotCollector.refresh();
+
+        assertEquals(1.0, registry.getSampleValue("solr_test"));
+        assertEquals(1.0, registry.getSampleValue("solr_test"));
+        assertEquals(1, collector.count.get());
+        assertTrue(registry.getSampleValue("solr_exporter_snapshot_age_seconds") >= 0.0);
+        assertTrue(registry.getSampleValue("solr_exporter_snapshot_last_success_timestamp_seconds") > 0.0);
+    }
+
+    @Test
+    public void testStartStop() throws Exception {
+        CountingCollector collector = new CountingCollector();
+        SolrSnapshotCollector snapshotCollector = new SolrSnapshotCollector(collector, 10);
+
+        snapshotCollector.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (collector.count.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            snapshotCollector.stop();
+        }
+
+        assertTrue(collector.count.get() >= 2);
+    }
+}
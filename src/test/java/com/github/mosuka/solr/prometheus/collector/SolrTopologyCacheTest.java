@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector;
+
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.cloud.*;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for SolrTopologyCache.
+ */
+public class SolrTopologyCacheTest extends TestCase {
+    private static final String NODE1 = "127.0.0.1:8983_solr";
+    private static final String NODE2 = "127.0.0.1:8984_solr";
+    private static final String NODE3 = "127.0.0.1:8985_solr";
+
+    @Test
+    public void testBuild() throws Exception {
+        FakeZkStateReader zkStateReader = new FakeZkStateReader(clusterState(Arrays.asList(NODE1, NODE3),
+                collection("collection1", 0, NODE1, "collection1_shard1_replica1", NODE2, "collection1_shard1_replica2")));
+        try (SolrTopologyCache topologyCache = new SolrTopologyCache.ZkTopologyCache(zkStateReader)) {
+            SolrTopology topology = topologyCache.get();
+
+            // the nodes hosting a replica, whether or not they are live, and not the others
+            assertEquals(Arrays.asList(baseUrl(NODE1), baseUrl(NODE2)), topology.getBaseUrls());
+            assertEquals(Collections.singletonList("collection1_shard1_replica1"), topology.getCores(baseUrl(NODE1)));
+            assertTrue(topology.getCores(baseUrl(NODE2)).isEmpty());
+            assertEquals(Collections.singletonList("collection1"), topology.getCollections());
+            assertEquals(Collections.singletonList(baseUrl(NODE1)), topology.getBaseUrls("collection1"));
+        } finally {
+            zkStateReader.close();
+        }
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        FakeZkStateReader zkStateReader = new FakeZkStateReader(clusterState(Arrays.asList(NODE1, NODE2),
+                collection("collection1", 0, NODE1, "collection1_shard1_replica1")));
+        try (SolrTopologyCache topologyCache = new SolrTopologyCache.ZkTopologyCache(zkStateReader)) {
+            SolrTopology topology = topologyCache.get();
+            assertTrue(zkStateReader.watchers.containsKey("collection1"));
+
+            // the watcher called on registration does not invalidate the topology
+            assertSame(topology, topologyCache.get());
+
+            // a replica was added
+            zkStateReader.update(clusterState(Arrays.asList(NODE1, NODE2),
+                    collection("collection1", 1, NODE1, "collection1_shard1_replica1", NODE2, "collection1_shard1_replica2")), "collection1");
+            SolrTopology updated = topologyCache.get();
+            assertNotSame(topology, updated);
+            assertEquals(Arrays.asList(baseUrl(NODE1), baseUrl(NODE2)), updated.getBaseUrls("collection1"));
+            assertSame(updated, topologyCache.get());
+
+            // a node went down
+            zkStateReader.update(clusterState(Collections.singletonList(NODE1),
+                    collection("collection1", 1, NODE1, "collection1_shard1_replica1", NODE2, "collection1_shard1_replica2")), null);
+            updated = topologyCache.get();
+            assertEquals(Collections.singletonList(baseUrl(NODE1)), updated.getBaseUrls("collection1"));
+        } finally {
+            zkStateReader.close();
+        }
+        // closing the cache removes its watchers
+        assertTrue(zkStateReader.watchers.isEmpty());
+        assertNull(zkStateReader.liveNodesListener);
+    }
+
+    @Test
+    public void testDeletedCollection() throws Exception {
+        FakeZkStateReader zkStateReader = new FakeZkStateReader(clusterState(Arrays.asList(NODE1, NODE2),
+                collection("collection1", 0, NODE1, "collection1_shard1_replica1"),
+                collection("collection2", 0, NODE2, "collection2_shard1_replica1")));
+        try (SolrTopologyCache topologyCache = new SolrTopologyCache.ZkTopologyCache(zkStateReader)) {
+            assertEquals(Arrays.asList("collection1", "collection2"), topologyCache.get().getCollections());
+
+            zkStateReader.update(clusterState(Arrays.asList(NODE1, NODE2),
+                    collection("collection1", 0, NODE1, "collection1_shard1_replica1")), "collection2");
+            SolrTopology topology = topologyCache.get();
+            assertEquals(Collections.singletonList("collection1"), topology.getCollections());
+            assertEquals(Collections.singletonList(baseUrl(NODE1)), topology.getBaseUrls());
+            assertTrue(topology.getShards("collection2").isEmpty());
+
+            // the watcher of the deleted collection was removed
+            assertEquals(Collections.singleton("collection1"), zkStateReader.watchers.keySet());
+
+            // a collection created again with the same name is watched again
+            zkStateReader.update(clusterState(Arrays.asList(NODE1, NODE2),
+                    collection("collection1", 0, NODE1, "collection1_shard1_replica1"),
+                    collection("collection2", 0, NODE1, "collection2_shard1_replica1")), null);
+            assertEquals(Arrays.asList("collection1", "collection2"), topologyCache.get().getCollections());
+            assertTrue(zkStateReader.watchers.containsKey("collection2"));
+        } finally {
+            zkStateReader.close();
+        }
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        CoreAdminSolrClient solrClient = new CoreAdminSolrClient("http://localhost:8983/solr");
+        // load what the first request needs, so that it does not take up the TTL
+        SolrCollector.getCores(solrClient);
+        solrClient.requests.set(0);
+        try (SolrTopologyCache topologyCache = new SolrTopologyCache.CoreAdminTopologyCache(solrClient, 500)) {
+            solrClient.cores = Collections.singletonList("collection1");
+            SolrTopology topology = topologyCache.get();
+            assertEquals(Collections.singletonList("http://localhost:8983/solr"), topology.getBaseUrls());
+            assertEquals(Collections.singletonList("collection1"), topology.getCores("http://localhost:8983/solr"));
+
+            // the cores are cached until the TTL expires
+            solrClient.cores = Arrays.asList("collection1", "collection2");
+            assertSame(topology, topologyCache.get());
+            assertEquals(1, solrClient.requests.get());
+
+            Thread.sleep(600);
+            topology = topologyCache.get();
+            assertEquals(Arrays.asList("collection1", "collection2"), topology.getCores("http://localhost:8983/solr"));
+            assertEquals(2, solrClient.requests.get());
+        } finally {
+            solrClient.close();
+        }
+    }
+
+    private static String baseUrl(String nodeName) {
+        return ZkStateReader.getBaseUrlForNodeName(nodeName, "http");
+    }
+
+    private static ClusterState clusterState(List<String> liveNodes, DocCollection... collections) {
+        Map<String, DocCollection> collectionStates = new LinkedHashMap<>();
+        for (DocCollection collection : collections) {
+            collectionStates.put(collection.getName(), collection);
+        }
+        return new ClusterState(0, new HashSet<>(liveNodes), collectionStates);
+    }
+
+    /**
+     * A collection of one shard.
+     *
+     * @param replicas node names followed by core names.
+     */
+    private static DocCollection collection(String name, int zNodeVersion, String... replicas) {
+        Map<String, Replica> sliceReplicas = new LinkedHashMap<>();
+        for (int i = 0; i < replicas.length; i += 2) {
+            Map<String, Object> props = new HashMap<>();
+            props.put(ZkStateReader.NODE_NAME_PROP, replicas[i]);
+            props.put(ZkStateReader.CORE_NAME_PROP, replicas[i + 1]);
+            props.put(ZkStateReader.BASE_URL_PROP, baseUrl(replicas[i]));
+            props.put(ZkStateReader.STATE_PROP, Replica.State.ACTIVE.toString());
+            sliceReplicas.put("core_node" + (i / 2 + 1), new Replica("core_node" + (i / 2 + 1), props));
+        }
+        Map<String, Slice> slices = new LinkedHashMap<>();
+        slices.put("shard1", new Slice("shard1", sliceReplicas, new HashMap<>()));
+        return new DocCollection(name, slices, new HashMap<>(), DocRouter.DEFAULT, zNodeVersion, ZkStateReader.getCollectionPath(name));
+    }
+
+    /**
+     * Serves a cluster state set by the test, and notifies the watchers the way ZkStateReader does,
+     * including once on registration.
+     */
+    private static class FakeZkStateReader extends ZkStateReader {
+        private final Map<String, CollectionStateWatcher> watchers = new ConcurrentHashMap<>();
+        private volatile LiveNodesListener liveNodesListener;
+        private volatile ClusterState clusterState;
+
+        FakeZkStateReader(ClusterState clusterState) {
+            super((SolrZkClient) null);
+            this.clusterState = clusterState;
+        }
+
+        /**
+         * Replace the cluster state.
+         *
+         * @param clusterState the cluster state.
+         * @param collection the collection whose watcher to notify, or null to notify the live
+         *                   nodes listener.
+         */
+        void update(ClusterState clusterState, String collection) {
+            ClusterState oldClusterState = this.clusterState;
+            this.clusterState = clusterState;
+            if (collection == null) {
+                if (liveNodesListener != null) {
+                    liveNodesListener.onChange(new TreeSet<>(oldClusterState.getLiveNodes()), new TreeSet<>(clusterState.getLiveNodes()));
+                }
+                return;
+            }
+            notify(collection, watchers.get(collection));
+        }
+
+        private void notify(String collection, CollectionStateWatcher watcher) {
+            if (watcher != null && watcher.onStateChanged(clusterState.getLiveNodes(), clusterState.getCollectionOrNull(collection))) {
+                watchers.remove(collection, watcher);
+            }
+        }
+
+        @Override
+        public ClusterState getClusterState() {
+            return clusterState;
+        }
+
+        @Override
+        public String getBaseUrlForNodeName(String nodeName) {
+            return baseUrl(nodeName);
+        }
+
+        @Override
+        public void registerLiveNodesListener(LiveNodesListener listener) {
+            liveNodesListener = listener;
+        }
+
+        @Override
+        public void removeLiveNodesListener(LiveNodesListener listener) {
+            if (liveNodesListener == listener) {
+                liveNodesListener = null;
+            }
+        }
+
+        @Override
+        public void registerCollectionStateWatcher(String collection, CollectionStateWatcher stateWatcher) {
+            watchers.put(collection, stateWatcher);
+            notify(collection, stateWatcher);
+        }
+
+        @Override
+        public void removeCollectionStateWatcher(String collection, CollectionStateWatcher watcher) {
+            watchers.remove(collection, watcher);
+        }
+    }
+
+    /**
+     * Answers CoreAdmin STATUS with the cores set by the test, and counts the requests.
+     */
+    private static class CoreAdminSolrClient extends HttpSolrClient {
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile List<String> cores = Collections.emptyList();
+
+        CoreAdminSolrClient(String baseUrl) {
+            super(new HttpSolrClient.Builder(baseUrl));
+        }
+
+        // SolrJ declares the request raw, which an override must keep
+        @Override
+        @SuppressWarnings("rawtypes")
+        public NamedList<Object> request(SolrRequest request, ResponseParser processor, String collection) {
+            requests.incrementAndGet();
+            StringBuilder status = new StringBuilder();
+            for (String core : cores) {
+                status.append(status.length() > 0 ? "," : "").append("\"").append(core).append("\":{\"name\":\"").append(core).append("\"}");
+            }
+            NamedList<Object> response = new NamedList<>();
+            response.add("response", "{\"status\":{" + status + "}}");
+            return response;
+        }
+    }
+}
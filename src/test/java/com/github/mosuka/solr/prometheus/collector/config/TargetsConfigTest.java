@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.collector.config;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.FileReader;
+
+/**
+ * Unit test for SolrTargetsConfig.
+ */
+public class TargetsConfigTest extends TestCase {
+    @Test
+    public void testTargetsConfig() throws Exception {
+        String targetsFile = "conf/targets.yml";
+
+        SolrTargetsConfig targetsConfig = new Yaml().loadAs(new FileReader(targetsFile), SolrTargetsConfig.class);
+        targetsConfig.validate();
+
+        assertEquals(2, targetsConfig.getTargets().size());
+        assertEquals("localhost:2181/solr", targetsConfig.getTargets().get(0).getConnectionString());
+        assertEquals("", targetsConfig.getTargets().get(0).getConfig());
+        assertEquals("http://localhost:8983/solr", targetsConfig.getTargets().get(1).getConnectionString());
+        assertEquals("./conf/config-native.yml", targetsConfig.getTargets().get(1).getConfig());
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        SolrTargetsConfig targetsConfig = new Yaml().loadAs("targets:\n  - name: a\n    baseUrl: http://localhost:8983/solr\n    zkHost: localhost:2181\n", SolrTargetsConfig.class);
+        try {
+            targetsConfig.validate();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Target a needs either a base URL or a ZooKeeper host", e.getMessage());
+        }
+
+        targetsConfig = new Yaml().loadAs("targets:\n  - name: a\n    baseUrl: http://localhost:8983/solr\n  - name: a\n    zkHost: localhost:2181\n", SolrTargetsConfig.class);
+        try {
+            targetsConfig.validate();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Target a is configured more than once", e.getMessage());
+        }
+
+        try {
+            new SolrTargetsConfig().validate();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("No target is configured", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.collector.SolrSeriesCollector;
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit test for SolrExporterHttpServer.
+ */
+public class SolrExporterHttpServerTest extends TestCase {
+    private CollectorRegistry registry;
+    private SolrExporterHttpServer server;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        registry = new CollectorRegistry();
+        registry.register(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                List<MetricFamilySamples.Sample> pings = new ArrayList<>();
+                List<MetricFamilySamples.Sample> requests = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    pings.add(new MetricFamilySamples.Sample("solr_ping", Collections.singletonList("core"), Collections.singletonList("collection1_shard" + i + "_replica_n1"), 1.0));
+                    requests.add(new MetricFamilySamples.Sample("solr_metrics_core_requests_total", Collections.singletonList("core"), Collections.singletonList("collection1_shard" + i + "_replica_n1"), i));
+                }
+                return Arrays.asList(
+                        new MetricFamilySamples("solr_ping", Type.GAUGE, "See following URL: https://lucene.apache.org/solr/guide/ping.html", pings),
+                        new MetricFamilySamples("solr_metrics_core_requests_total", Type.COUNTER, "See following URL: https://lucene.apache.org/solr/guide/metrics-reporting.html", requests));
+            }
+        });
+        server = new SolrExporterHttpServer(new InetSocketAddress("127.0.0.1", 0), registry, 2);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testAcceptsGzip() throws Exception {
+        assertTrue(SolrExporterHttpServer.acceptsGzip(Collections.singletonList("gzip")));
+        assertTrue(SolrExporterHttpServer.acceptsGzip(Collections.singletonList("deflate, gzip;q=0.5")));
+        assertTrue(SolrExporterHttpServer.acceptsGzip(Collections.singletonList("*")));
+        assertFalse(SolrExporterHttpServer.acceptsGzip(Collections.singletonList("gzip;q=0")));
+        assertFalse(SolrExporterHttpServer.acceptsGzip(Collections.singletonList("identity")));
+        assertFalse(SolrExporterHttpServer.acceptsGzip(null));
+    }
+
+    @Test
+    public void testNegotiate() throws Exception {
+        // what Prometheus sends, with and without the protobuf format enabled
+        assertEquals(SolrExpositionFormat.MediaType.PROTOBUF, SolrExpositionFormat.negotiate(Collections.singletonList(
+                "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3,*/*;q=0.1")));
+        assertEquals(SolrExpositionFormat.MediaType.OPENMETRICS, SolrExpositionFormat.negotiate(Collections.singletonList(
+                "application/openmetrics-text;version=1.0.0,application/openmetrics-text;version=0.0.1;q=0.75,text/plain;version=0.0.4;q=0.5,*/*;q=0.1")));
+        assertEquals(SolrExpositionFormat.MediaType.TEXT, SolrExpositionFormat.negotiate(Collections.singletonList("application/vnd.google.protobuf")));
+        assertEquals(SolrExpositionFormat.MediaType.TEXT, SolrExpositionFormat.negotiate(Collections.singletonList("text/plain;q=0.5, application/openmetrics-text;q=0.5")));
+        assertEquals(SolrExpositionFormat.MediaType.OPENMETRICS, SolrExpositionFormat.negotiate(Arrays.asList("application/json", "application/openmetrics-text")));
+        assertEquals(SolrExpositionFormat.MediaType.TEXT, SolrExpositionFormat.negotiate(Collections.singletonList("application/json")));
+        assertEquals(SolrExpositionFormat.MediaType.TEXT, SolrExpositionFormat.negotiate(null));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        String expected = expected(Collections.emptySet());
+
+        HttpURLConnection connection = open("/metrics", "identity");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(TextFormat.CONTENT_TYPE_004, connection.getHeaderField("Content-Type"));
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(expected, read(connection.getInputStream()));
+
+        connection = open("/", "gzip");
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals(expected, read(new GZIPInputStream(connection.getInputStream())));
+
+        connection = open("/metrics?name[]=solr_ping", "identity");
+        assertEquals(expected(Collections.singleton("solr_ping")), read(connection.getInputStream()));
+
+        connection = open("/metrics", "identity");
+        connection.setRequestProperty("Accept", "application/openmetrics-text; version=1.0.0");
+        assertEquals(SolrExpositionFormat.MediaType.OPENMETRICS.getContentType(), connection.getHeaderField("Content-Type"));
+        assertEquals("Accept, Accept-Encoding", connection.getHeaderField("Vary"));
+        String openMetrics = read(connection.getInputStream());
+        assertTrue(openMetrics.startsWith("# TYPE solr_ping gauge\n"));
+        assertTrue(openMetrics.endsWith("solr_metrics_core_requests_total{core=\"collection1_shard999_replica_n1\"} 999.0\n# EOF\n"));
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        String expected = expected(Collections.emptySet());
+
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                out.write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                Map<String, String> headers = new HashMap<>();
+                assertEquals("HTTP/1.1 200 OK", readLine(in));
+                for (String line; !(line = readLine(in)).isEmpty(); ) {
+                    int idx = line.indexOf(':');
+                    headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
+                }
+                assertEquals("chunked", headers.get("transfer-encoding"));
+                assertNull(headers.get("content-length"));
+                assertEquals(expected, readChunked(in));
+            }
+        }
+    }
+
+    @Test
+    public void testSeriesCollector() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        accumulator.addAll(Collections.list(registry.metricFamilySamples()));
+        accumulator.add("solr_test", Collector.Type.UNTYPED, "escaped \\ help\n", Arrays.asList("a", "b"), Arrays.asList("quote\"", "back\\slash\n"), Double.NaN);
+        store.commit(accumulator).release();
+
+        CollectorRegistry exporterRegistry = new CollectorRegistry();
+        SolrExporterHttpServer seriesServer = new SolrExporterHttpServer(new InetSocketAddress("127.0.0.1", 0), exporterRegistry, store::acquire, 2);
+        try {
+            SolrSeriesStore.View view = store.acquire();
+            List<Collector.MetricFamilySamples> metricFamilySamples = view.toList();
+            view.release();
+
+            // the same text as simpleclient's, escaping included
+            StringWriter writer = new StringWriter();
+            TextFormat.write004(writer, Collections.enumeration(metricFamilySamples));
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + seriesServer.getPort() + "/metrics").openConnection();
+            assertEquals(writer.toString(), read(connection.getInputStream()));
+
+            writer = new StringWriter();
+            TextFormat.write004(writer, Collections.enumeration(metricFamilySamples.subList(0, 1)));
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + seriesServer.getPort() + "/metrics?name[]=solr_ping").openConnection();
+            assertEquals(writer.toString(), read(connection.getInputStream()));
+        } finally {
+            seriesServer.stop();
+        }
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        Map<String, SolrSeriesStore> stores = new HashMap<>();
+        for (String target : Arrays.asList("search", "logs")) {
+            SolrSeriesStore store = new SolrSeriesStore();
+            SolrSampleAccumulator accumulator = store.begin();
+            accumulator.add("solr_ping", Collector.Type.GAUGE, "ping", Collections.singletonList("target"), Collections.singletonList(target), 1.0);
+            store.commit(accumulator).release();
+            stores.put(target, store);
+        }
+        Map<String, SolrSeriesCollector> targets = new HashMap<>();
+        targets.put("search", stores.get("search")::acquire);
+        targets.put("logs", stores.get("logs")::acquire);
+
+        SolrExporterHttpServer probeServer = new SolrExporterHttpServer(new InetSocketAddress("127.0.0.1", 0), registry, null, targets, 2);
+        try {
+            String url = "http://127.0.0.1:" + probeServer.getPort();
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + "/probe?target=logs").openConnection();
+            assertEquals("# HELP solr_ping ping\n# TYPE solr_ping gauge\nsolr_ping{target=\"logs\",} 1.0\n", read(connection.getInputStream()));
+
+            connection = (HttpURLConnection) new URL(url + "/probe?target=other").openConnection();
+            assertEquals(404, connection.getResponseCode());
+            connection = (HttpURLConnection) new URL(url + "/probe").openConnection();
+            assertEquals(400, connection.getResponseCode());
+
+            // the exporter's own samples
+            connection = (HttpURLConnection) new URL(url + "/metrics").openConnection();
+            assertEquals(expected(Collections.emptySet()), read(connection.getInputStream()));
+        } finally {
+            probeServer.stop();
+        }
+    }
+
+    @Test
+    public void testCollectorFailed() throws Exception {
+        CollectorRegistry failingRegistry = new CollectorRegistry();
+        failingRegistry.register(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                throw new IllegalStateException("collector failed");
+            }
+        });
+        SolrSeriesCollector failingSeriesCollector = () -> {
+            throw new IllegalStateException("scrape failed");
+        };
+        SolrSeriesStore store = new SolrSeriesStore();
+        store.commit(store.begin()).release();
+
+        SolrExporterHttpServer failingServer = new SolrExporterHttpServer(new InetSocketAddress("127.0.0.1", 0), failingRegistry, store::acquire, 2);
+        Map<String, SolrSeriesCollector> targets = Collections.singletonMap("search", failingSeriesCollector);
+        SolrExporterHttpServer probeServer = new SolrExporterHttpServer(new InetSocketAddress("127.0.0.1", 0), registry, null, targets, 2);
+        try {
+            // a failed registry collector is not answered with a cut short 200
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + failingServer.getPort() + "/metrics").openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals(500, connection.getResponseCode());
+            assertNull(connection.getHeaderField("Content-Encoding"));
+            assertTrue(read(connection.getErrorStream()).contains("collector failed"));
+
+            // neither is a failed scrape
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + probeServer.getPort() + "/probe?target=search").openConnection();
+            assertEquals(500, connection.getResponseCode());
+            assertTrue(read(connection.getErrorStream()).contains("scrape failed"));
+        } finally {
+            failingServer.stop();
+            probeServer.stop();
+        }
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + "/metrics").openConnection();
+        connection.setRequestMethod("DELETE");
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    private String expected(Set<String> names) throws IOException {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, registry.filteredMetricFamilySamples(names));
+        return writer.toString();
+    }
+
+    private HttpURLConnection open(String path, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream is = in) {
+            for (int n; (n = is.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int size; (size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0; ) {
+            for (int i = 0; i < size; i++) {
+                out.write(in.read());
+            }
+            readLine(in);
+        }
+        readLine(in);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Unit test for SolrOpenMetricsFormat.
+ */
+public class SolrOpenMetricsFormatTest extends TestCase {
+    @Test
+    public void testWrite() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        for (int i = 0; i < 2; i++) {
+            accumulator.add("solr_metrics_core_requests_total", Collector.Type.COUNTER, "See following URL: https://lucene.apache.org/solr/guide/metrics-reporting.html",
+                    Arrays.asList("core", "handler"), Arrays.asList("collection1_shard" + i + "_replica_n1", "/select"), i * 1.5);
+        }
+        accumulator.add("solr_ping", Collector.Type.GAUGE, "ping", Collections.singletonList("core"), Collections.singletonList("collection1_shard1_replica_n1"), 1.0);
+        accumulator.add("solr_test", Collector.Type.UNTYPED, "escaped \\ \"help\"\n", Arrays.asList("a", "b"), Arrays.asList("quote\"", "back\\slash\n"), Double.NaN);
+        SolrSeriesStore.View view = store.commit(accumulator);
+        List<Collector.MetricFamilySamples.Sample> exporterSamples = Collections.singletonList(
+                new Collector.MetricFamilySamples.Sample("solr_exporter_requests", Collections.emptyList(), Collections.emptyList(), 3.0));
+        view = view.with(Collections.singletonList(new Collector.MetricFamilySamples("solr_exporter_requests", Collector.Type.COUNTER, "requests", exporterSamples)));
+
+        String expected = "# TYPE solr_metrics_core_requests counter\n"
+                + "# HELP solr_metrics_core_requests See following URL: https://lucene.apache.org/solr/guide/metrics-reporting.html\n"
+                + "solr_metrics_core_requests_total{core=\"collection1_shard0_replica_n1\",handler=\"/select\"} 0.0\n"
+                + "solr_metrics_core_requests_total{core=\"collection1_shard1_replica_n1\",handler=\"/select\"} 1.5\n"
+                + "# TYPE solr_ping gauge\n"
+                + "# HELP solr_ping ping\n"
+                + "solr_ping{core=\"collection1_shard1_replica_n1\"} 1.0\n"
+                + "# TYPE solr_test unknown\n"
+                + "# HELP solr_test escaped \\\\ \\\"help\\\"\\n\n"
+                + "solr_test{a=\"quote\\\"\",b=\"back\\\\slash\\n\"} NaN\n"
+                + "# TYPE solr_exporter_requests counter\n"
+                + "# HELP solr_exporter_requests requests\n"
+                + "solr_exporter_requests_total 3.0\n"
+                + "# EOF\n";
+        try {
+            // the second time from the cached bytes
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected, write(view, Collections.emptySet()));
+            }
+            assertNotNull(view.families()[0].getEncoding(SolrExpositionFormat.OPENMETRICS_ENCODING));
+            assertEquals("# TYPE solr_ping gauge\n# HELP solr_ping ping\nsolr_ping{core=\"collection1_shard1_replica_n1\"} 1.0\n# EOF\n",
+                    write(view, Collections.singleton("solr_ping")));
+        } finally {
+            view.release();
+        }
+    }
+
+    private static String write(SolrSeriesStore.View view, Set<String> names) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SolrOpenMetricsFormat format = new SolrOpenMetricsFormat(out);
+        format.write(view, names);
+        format.finish();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
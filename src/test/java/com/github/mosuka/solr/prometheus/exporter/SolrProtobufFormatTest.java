@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+import io.prometheus.client.exporter.common.TextFormat;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Unit test for SolrProtobufFormat.
+ */
+public class SolrProtobufFormatTest extends TestCase {
+    @Test
+    public void testWrite() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Histogram histogram = Histogram.build().name("solr_exporter_request_seconds").help("request duration").labelNames("handler").register(registry);
+        Summary summary = Summary.build().name("solr_exporter_response_bytes").help("response size").quantile(0.5, 0.05).quantile(0.99, 0.001).register(registry);
+        for (int i = 0; i < 100; i++) {
+            histogram.labels("/metrics").observe(i * 0.01);
+            summary.observe(i * 100);
+        }
+
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        // more than the buffer holds
+        for (int i = 0; i < 5000; i++) {
+            accumulator.add("solr_metrics_core_requests_total", Collector.Type.COUNTER, "See following URL: https://lucene.apache.org/solr/guide/metrics-reporting.html",
+                    Arrays.asList("core", "handler"), Arrays.asList("collection1_shard" + i + "_replica_n1", "/sélect"), i * 1.5);
+        }
+        accumulator.add("solr_ping", Collector.Type.GAUGE, "ping", Collections.emptyList(), Collections.emptyList(), 1.0);
+        accumulator.add("solr_test", Collector.Type.UNTYPED, "test", Collections.singletonList("a"), Collections.singletonList("b"), Double.NaN);
+        // summaries and histograms of the store are encoded from their samples
+        accumulator.addAll(Collections.list(registry.metricFamilySamples()));
+        SolrSeriesStore.View view = store.commit(accumulator);
+
+        try {
+            List<Collector.MetricFamilySamples> expected = new ArrayList<>(view.toList());
+            expected.addAll(Collections.list(registry.metricFamilySamples()));
+
+            // the second time from the cached bytes
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                SolrProtobufFormat format = new SolrProtobufFormat(out);
+                format.write(view, Collections.emptySet());
+                format.write(registry.metricFamilySamples());
+                format.finish();
+                assertEquals(toText(expected), toText(parse(out.toByteArray())));
+            }
+            assertNotNull(view.families()[0].get(0).getEncoding(SolrExpositionFormat.PROTOBUF_ENCODING));
+        } finally {
+            view.release();
+        }
+    }
+
+    private static String toText(List<Collector.MetricFamilySamples> metricFamilySamples) throws Exception {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, Collections.enumeration(metricFamilySamples));
+        return writer.toString();
+    }
+
+    /**
+     * Decode length-delimited MetricFamily messages into metric families as simpleclient lays them
+     * out.
+     */
+    private static List<Collector.MetricFamilySamples> parse(byte[] bytes) {
+        List<Collector.MetricFamilySamples> metricFamilySamplesList = new ArrayList<>();
+        Reader in = new Reader(bytes, 0, bytes.length);
+        while (!in.done()) {
+            Reader family = in.message();
+            String name = null;
+            String help = null;
+            Collector.Type type = null;
+            List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+            while (!family.done()) {
+                int field = family.tag();
+                if (field == 1) {
+                    name = family.string();
+                } else if (field == 2) {
+                    help = family.string();
+                } else if (field == 3) {
+                    type = new Collector.Type[]{Collector.Type.COUNTER, Collector.Type.GAUGE, Collector.Type.SUMMARY, Collector.Type.UNTYPED, Collector.Type.HISTOGRAM}[(int) family.varint()];
+                } else {
+                    assertEquals(4, field);
+                    assertNotNull(type);
+                    parseMetric(name, type, family.message(), samples);
+                }
+            }
+            metricFamilySamplesList.add(new Collector.MetricFamilySamples(name, type, help, samples));
+        }
+        return metricFamilySamplesList;
+    }
+
+    private static void parseMetric(String name, Collector.Type type, Reader metric, List<Collector.MetricFamilySamples.Sample> samples) {
+        List<String> labelNames = new ArrayList<>();
+        List<String> labelValues = new ArrayList<>();
+        Reader value = null;
+        while (!metric.done()) {
+            int field = metric.tag();
+            if (field == 1) {
+                Reader label = metric.message();
+                assertEquals(1, label.tag());
+                labelNames.add(label.string());
+                assertEquals(2, label.tag());
+                labelValues.add(label.string());
+            } else {
+                int expected = type == Collector.Type.GAUGE ? 2 : type == Collector.Type.COUNTER ? 3 : type == Collector.Type.SUMMARY ? 4 : type == Collector.Type.UNTYPED ? 5 : 7;
+                assertEquals(expected, field);
+                value = metric.message();
+            }
+        }
+        assertNotNull(value);
+
+        if (type != Collector.Type.SUMMARY && type != Collector.Type.HISTOGRAM) {
+            assertEquals(1, value.tag());
+            samples.add(new Collector.MetricFamilySamples.Sample(name, labelNames, labelValues, value.fixed64()));
+            return;
+        }
+
+        double count = 0.0;
+        double sum = 0.0;
+        String pointLabel = type == Collector.Type.SUMMARY ? "quantile" : "le";
+        String pointName = type == Collector.Type.SUMMARY ? name : name + "_bucket";
+        while (!value.done()) {
+            int field = value.tag();
+            if (field == 1) {
+                count = value.varint();
+            } else if (field == 2) {
+                sum = value.fixed64();
+            } else {
+                assertEquals(3, field);
+                Reader point = value.message();
+                double pointValue;
+                double pointBound;
+                assertEquals(1, point.tag());
+                if (type == Collector.Type.SUMMARY) {
+                    pointBound = point.fixed64();
+                    assertEquals(2, point.tag());
+                    pointValue = point.fixed64();
+                } else {
+                    pointValue = point.varint();
+                    assertEquals(2, point.tag());
+                    pointBound = point.fixed64();
+                }
+                List<String> pointLabelNames = new ArrayList<>(labelNames);
+                List<String> pointLabelValues = new ArrayList<>(labelValues);
+                pointLabelNames.add(pointLabel);
+                pointLabelValues.add(Collector.doubleToGoString(pointBound));
+                samples.add(new Collector.MetricFamilySamples.Sample(pointName, pointLabelNames, pointLabelValues, pointValue));
+            }
+        }
+        samples.add(new Collector.MetricFamilySamples.Sample(name + "_count", labelNames, labelValues, count));
+        samples.add(new Collector.MetricFamilySamples.Sample(name + "_sum", labelNames, labelValues, sum));
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean done() {
+            return position >= end;
+        }
+
+        int tag() {
+            return (int) (varint() >>> 3);
+        }
+
+        long varint() {
+            long value = 0L;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        double fixed64() {
+            long bits = 0L;
+            for (int i = 0; i < 8; i++) {
+                bits |= (long) (bytes[position++] & 0xFF) << (i * 8);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        Reader message() {
+            int length = (int) varint();
+            Reader message = new Reader(bytes, position, position + length);
+            position += length;
+            assertTrue(position <= end);
+            return message;
+        }
+
+        String string() {
+            Reader string = message();
+            return new String(bytes, string.position, string.end - string.position, StandardCharsets.UTF_8);
+        }
+    }
+}
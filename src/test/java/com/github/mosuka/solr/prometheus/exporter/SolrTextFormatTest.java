@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.exporter;
+
+import com.github.mosuka.solr.prometheus.scraper.SolrSampleAccumulator;
+import com.github.mosuka.solr.prometheus.scraper.SolrSeriesStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Unit test for SolrTextFormat.
+ */
+public class SolrTextFormatTest extends TestCase {
+    @Test
+    public void testValues() throws Exception {
+        List<Double> values = new ArrayList<>(Arrays.asList(0.0, -0.0, 1.0, -1.0, 42.0, 9999999.0, -9999999.0, 1.0E7, 1.5, -0.25, 1.0E-3, 123456789.0,
+                (double) Long.MAX_VALUE, Double.MIN_VALUE, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN));
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            values.add((double) random.nextInt());
+            values.add(random.nextDouble() * 1000);
+        }
+
+        for (double value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SolrTextFormat textFormat = new SolrTextFormat(out);
+            textFormat.writeDouble(value);
+            textFormat.finish();
+            assertEquals(Collector.doubleToGoString(value), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        // more than the buffer holds
+        for (int i = 0; i < 5000; i++) {
+            accumulator.add("solr_metrics_core_requests_total", Collector.Type.COUNTER, "See following URL: https://lucene.apache.org/solr/guide/metrics-reporting.html",
+                    Arrays.asList("core", "handler"), Arrays.asList("collection1_shard" + i + "_replica_n1", "/sélect"), i * 1.5);
+        }
+        accumulator.add("solr_test", Collector.Type.UNTYPED, "escaped \\ help\n", Arrays.asList("a", "b"), Arrays.asList("quote\"", "back\\slash\n"), Double.NaN);
+        SolrSeriesStore.View view = store.commit(accumulator);
+        List<Collector.MetricFamilySamples.Sample> exporterSamples = Collections.singletonList(
+                new Collector.MetricFamilySamples.Sample("solr_exporter_test", Collections.emptyList(), Collections.emptyList(), 1.0));
+        view = view.with(Collections.singletonList(new Collector.MetricFamilySamples("solr_exporter_test", Collector.Type.GAUGE, "test", exporterSamples)));
+
+        try {
+            StringWriter expected = new StringWriter();
+            TextFormat.write004(expected, Collections.enumeration(view.toList()));
+
+            // the second time from the cached prefixes
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected.toString(), write(view, Collections.emptySet()));
+            }
+            SolrSeriesStore.Family family = view.families()[0];
+            assertNotNull(family.getEncoding(SolrExpositionFormat.TEXT_ENCODING));
+            assertNotNull(family.get(0).getEncoding(SolrExpositionFormat.TEXT_ENCODING));
+
+            expected = new StringWriter();
+            TextFormat.write004(expected, Collections.enumeration(view.toList().subList(1, 3)));
+            assertEquals(expected.toString(), write(view, new HashSet<>(Arrays.asList("solr_test", "solr_exporter_test"))));
+        } finally {
+            view.release();
+        }
+    }
+
+    private static String write(SolrSeriesStore.View view, Set<String> names) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SolrTextFormat textFormat = new SolrTextFormat(out);
+        textFormat.write(view, names);
+        textFormat.finish();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
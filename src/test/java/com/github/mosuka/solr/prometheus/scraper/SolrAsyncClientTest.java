@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonResponseParser;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit test for SolrAsyncClient.
+ */
+public class SolrAsyncClientTest extends TestCase {
+    private static final String RESPONSE_FILE = "src/test/files/metrics/admin-metrics.json";
+    private static final int FAN_OUT = 20;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String baseUrl;
+    private byte[] response;
+    private CountDownLatch arrived;
+    private AtomicInteger metricsRequests;
+    private CountDownLatch parsing;
+    private AtomicBoolean streamed;
+
+    private SolrScraperExecutor executor;
+    private SolrAsyncClient asyncClient;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        response = Files.readAllBytes(Paths.get(RESPONSE_FILE));
+        arrived = new CountDownLatch(0);
+        metricsRequests = new AtomicInteger();
+        parsing = new CountDownLatch(1);
+        streamed = new AtomicBoolean();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/solr/admin/metrics", exchange -> {
+            metricsRequests.incrementAndGet();
+            byte[] body = filter(response, exchange.getRequestURI().getRawQuery());
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(body);
+                }
+                body = out.toByteArray();
+            }
+            // hold the response until every request of the fan-out arrived
+            arrived.countDown();
+            try {
+                if (!arrived.await(10, TimeUnit.SECONDS)) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/solr/admin/stream", exchange -> {
+            // hold the second half of the body until the parser has started on the first
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response, 0, response.length / 2);
+                out.flush();
+                try {
+                    streamed.set(parsing.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(response, response.length / 2, response.length - response.length / 2);
+            }
+        });
+        server.createContext("/solr/admin/error", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        serverExecutor = Executors.newFixedThreadPool(FAN_OUT);
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/solr";
+
+        executor = new SolrScraperExecutor(1);
+        asyncClient = new SolrAsyncClient(1, FAN_OUT, 15000, 60000);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        asyncClient.close();
+        executor.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    @Test
+    public void testUrl() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("group", "all");
+        assertEquals("http://localhost:8983/solr/admin/metrics?group=all&wt=json&version=2.2",
+                SolrAsyncClient.url("http://localhost:8983/solr", "", "/admin/metrics", params, new JsonResponseParser()));
+        assertEquals("http://localhost:8983/solr/collection1/select?wt=json&version=2.2",
+                SolrAsyncClient.url("http://localhost:8983/solr", "collection1", "", new ModifiableSolrParams(), new JsonResponseParser()));
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        NamedList<Object> queryResponse = asyncClient.request(baseUrl, null, "/admin/metrics", new ModifiableSolrParams(), new JsonResponseParser(), executor)
+                .get(10, TimeUnit.SECONDS);
+        JsonNode responseJson = (JsonNode) queryResponse.get("response");
+        assertTrue(responseJson.get("metrics").size() > 0);
+
+        try {
+            asyncClient.request(baseUrl, null, "/admin/error", new ModifiableSolrParams(), new JsonResponseParser(), executor)
+                    .get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpSolrClient.RemoteSolrException);
+            assertEquals(500, ((HttpSolrClient.RemoteSolrException) e.getCause()).code());
+        }
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        JsonResponseParser responseParser = new JsonResponseParser() {
+            @Override
+            public NamedList<Object> processResponse(InputStream body, String encoding) {
+                parsing.countDown();
+                return super.processResponse(body, encoding);
+            }
+        };
+        NamedList<Object> queryResponse = asyncClient.request(baseUrl, null, "/admin/stream", new ModifiableSolrParams(), responseParser, executor)
+                .get(20, TimeUnit.SECONDS);
+        assertTrue(streamed.get());
+        JsonNode responseJson = (JsonNode) queryResponse.get("response");
+        assertTrue(responseJson.get("metrics").size() > 0);
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        // one I/O thread and one scraper thread have every request in flight at once
+        arrived = new CountDownLatch(FAN_OUT);
+        List<CompletableFuture<NamedList<Object>>> futures = new ArrayList<>();
+        for (int i = 0; i < FAN_OUT; i++) {
+            futures.add(asyncClient.request(baseUrl, null, "/admin/metrics", new ModifiableSolrParams(), new JsonResponseParser(), executor));
+        }
+        for (CompletableFuture<NamedList<Object>> future : futures) {
+            assertNotNull(future.get(20, TimeUnit.SECONDS).get("response"));
+        }
+        assertEquals(0, arrived.getCount());
+    }
+
+    @Test
+    public void testScrape() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config-native.yml");
+        SolrScraperMetrics metrics = new SolrScraperMetrics();
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(metrics);
+
+        try (HttpSolrClient solrClient = new HttpSolrClient.Builder(baseUrl).build()) {
+            SolrSampleAccumulator expected = new SolrScraper(solrClient, scraperConfig).call();
+
+            SolrScraper scraper = new SolrScraper(solrClient, scraperConfig, new ArrayList<>(), new ArrayList<>(), new SolrSampleAccumulator(), SolrScraperMetrics.SECTION_METRICS, metrics);
+            SolrSampleAccumulator actual = scraper.callAsync(asyncClient, executor).get(10, TimeUnit.SECONDS);
+            assertFalse(scraper.isFailed());
+            assertEquals(expected.toList(), actual.toList());
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_rule_evaluation_duration_seconds_count",
+                    new String[] { "section", "target" }, new String[] { SolrScraperMetrics.SECTION_METRICS, baseUrl }));
+        }
+
+        try (HttpSolrClient solrClient = new HttpSolrClient.Builder(baseUrl).build()) {
+            scraperConfig.getQuery().setPath("/admin/error");
+            SolrScraper scraper = new SolrScraper(solrClient, scraperConfig, new ArrayList<>(), new ArrayList<>(), new SolrSampleAccumulator(), SolrScraperMetrics.SECTION_METRICS, metrics);
+            assertTrue(scraper.callAsync(asyncClient, executor).get(10, TimeUnit.SECONDS).toList().isEmpty());
+            assertTrue(scraper.isFailed());
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_errors_total",
+                    new String[] { "section", "target", "cause" }, new String[] { SolrScraperMetrics.SECTION_METRICS, baseUrl, SolrScraperMetrics.CAUSE_HTTP }));
+        }
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        for (String configFile : Arrays.asList("conf/config.yml", "conf/config-native.yml")) {
+            SolrScraperConfig scraperConfig = loadMetrics(configFile);
+            SolrScraperMetrics metrics = new SolrScraperMetrics();
+            CollectorRegistry registry = new CollectorRegistry();
+            registry.register(metrics);
+
+            try (HttpSolrClient solrClient = new HttpSolrClient.Builder(baseUrl).build()) {
+                SolrSampleAccumulator expected = new SolrScraper(solrClient, scraperConfig).call();
+
+                SolrScraperConfig splitConfig = scraperConfig.clone();
+                splitConfig.setSplit(2);
+                SolrScraper scraper = new SolrScraper(solrClient, splitConfig, new ArrayList<>(), new ArrayList<>(), new SolrSampleAccumulator(), SolrScraperMetrics.SECTION_METRICS, metrics);
+                scraper.setCoreRegistries(Arrays.asList("solr.core.collection1.", "solr.core.techproducts"));
+
+                // two core slices and three groups, all in flight at once
+                metricsRequests.set(0);
+                arrived = new CountDownLatch(5);
+                SolrSampleAccumulator actual = scraper.callAsync(asyncClient, executor).get(20, TimeUnit.SECONDS);
+                assertFalse(scraper.isFailed());
+                assertEquals(5, metricsRequests.get());
+                assertFalse(describe(actual).isEmpty());
+                assertEquals(describe(expected), describe(actual));
+                assertEquals(configFile, expected.getDuplicates(), actual.getDuplicates());
+
+                // the native rules are evaluated once per response, the jq rules once
+                double evaluations = 5 + (scraperConfig.getCompiledJsonQueries().isEmpty() ? 0 : 1);
+                assertEquals(evaluations, registry.getSampleValue("solr_exporter_rule_evaluation_duration_seconds_count",
+                        new String[] { "section", "target" }, new String[] { SolrScraperMetrics.SECTION_METRICS, baseUrl }));
+            }
+        }
+    }
+
+    private static List<String> describe(SolrSampleAccumulator accumulator) {
+        List<String> samples = new ArrayList<>();
+        for (Collector.MetricFamilySamples metricFamilySamples : accumulator.toList()) {
+            for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+                samples.add(sample.name + sample.labelNames + sample.labelValues + " " + sample.value);
+            }
+        }
+        Collections.sort(samples);
+        return samples;
+    }
+
+    /**
+     * Keep the registries of the response the group and registry parameters select, the way
+     * /admin/metrics does.
+     */
+    private static byte[] filter(byte[] response, String query) throws IOException {
+        List<String> registryPrefixes = new ArrayList<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                String[] pair = param.split("=", 2);
+                if (pair.length < 2) {
+                    continue;
+                }
+                String value = URLDecoder.decode(pair[1], "UTF-8");
+                if (pair[0].equals("group") || pair[0].equals("registry")) {
+                    for (String prefix : value.split(",")) {
+                        if (prefix.equals("all")) {
+                            return response;
+                        }
+                        registryPrefixes.add(prefix.startsWith("solr.") ? prefix : "solr." + prefix);
+                    }
+                }
+            }
+        }
+        if (registryPrefixes.isEmpty()) {
+            return response;
+        }
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectNode responseJson = (ObjectNode) objectMapper.readTree(response);
+        for (Iterator<String> ite = responseJson.get("metrics").fieldNames(); ite.hasNext(); ) {
+            String registry = ite.next();
+            if (registryPrefixes.stream().noneMatch(registry::startsWith)) {
+                ite.remove();
+            }
+        }
+        return objectMapper.writeValueAsBytes(responseJson);
+    }
+
+    private static SolrScraperConfig loadMetrics(String configFile) throws IOException {
+        try (FileReader reader = new FileReader(configFile)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class).getMetrics();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import io.prometheus.client.Collector;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Unit test for SolrCoreStatusScraper.
+ */
+public class SolrCoreStatusScraperTest extends TestCase {
+    private static final String BASE_URL = "http://127.0.0.1:8983/solr";
+    private static final String STATUS_RESPONSE = "{"
+            + "\"responseHeader\":{\"status\":0,\"QTime\":1},"
+            + "\"initFailures\":{\"collection1_shard3_replica_n5\":\"org.apache.solr.common.SolrException: Index dir is locked\"},"
+            + "\"status\":{"
+            + "\"collection1_shard1_replica_n1\":{\"name\":\"collection1_shard1_replica_n1\",\"instanceDir\":\"/var/solr/data/collection1_shard1_replica_n1\",\"uptime\":1000},"
+            + "\"collection1_shard2_replica_n3\":{\"name\":\"collection1_shard2_replica_n3\",\"instanceDir\":\"/var/solr/data/collection1_shard2_replica_n3\",\"uptime\":1000},"
+            + "\"collection1_shard3_replica_n5\":{}}}";
+
+    private static final List<String> CORES = Arrays.asList(
+            "collection1_shard1_replica_n1", "collection1_shard2_replica_n3", "collection1_shard3_replica_n5", "collection1_shard4_replica_n7");
+
+    @Test
+    public void testLoadedCores() throws Exception {
+        Set<String> loaded = SolrCoreStatusScraper.loadedCores(new ObjectMapper().readTree(STATUS_RESPONSE));
+        assertEquals(new HashSet<>(Arrays.asList("collection1_shard1_replica_n1", "collection1_shard2_replica_n3")), loaded);
+        assertTrue(SolrCoreStatusScraper.loadedCores(null).isEmpty());
+    }
+
+    @Test
+    public void testPing() throws Exception {
+        SolrScraperConfig pingConfig = loadPing("conf/config.yml");
+        Map<String, Boolean> health = new HashMap<>();
+
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        try (HttpSolrClient solrClient = new SolrFixedResponseClient(BASE_URL, STATUS_RESPONSE)) {
+            SolrCoreStatusScraper scraper = new SolrCoreStatusScraper(solrClient, pingConfig, CORES, Arrays.asList("zk_host"), Arrays.asList("localhost:2181"),
+                    accumulator, SolrScraperMetrics.SECTION_PING, null, health);
+            scraper.call();
+            assertFalse(scraper.isFailed());
+        }
+
+        // the samples pinging each core would produce
+        SolrSampleAccumulator expected = new SolrSampleAccumulator();
+        for (String core : CORES) {
+            boolean ok = core.endsWith("n1") || core.endsWith("n3");
+            SolrScraperConfig coreConfig = pingConfig.clone();
+            coreConfig.getQuery().setCore(core);
+            try (HttpSolrClient solrClient = new SolrFixedResponseClient(BASE_URL, "{\"responseHeader\":{\"status\":0},\"status\":\"" + (ok ? "OK" : "FAILED") + "\"}")) {
+                new SolrScraper(solrClient, coreConfig, Arrays.asList("zk_host"), Arrays.asList("localhost:2181"), expected).call();
+            }
+            assertEquals(Boolean.valueOf(ok), health.get(SolrCoreStatusScraper.coreUrl(BASE_URL, core)));
+        }
+        assertEquals(expected.toList(), accumulator.toList());
+    }
+
+    @Test
+    public void testNodeFailure() throws Exception {
+        Map<String, Boolean> health = new HashMap<>();
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        try (HttpSolrClient solrClient = new SolrFixedResponseClient(BASE_URL, (String) null)) {
+            SolrCoreStatusScraper scraper = new SolrCoreStatusScraper(solrClient, loadPing("conf/config.yml"), CORES, new ArrayList<>(), new ArrayList<>(),
+                    accumulator, SolrScraperMetrics.SECTION_PING, null, health);
+            scraper.call();
+            assertTrue(scraper.isFailed());
+        }
+
+        List<Collector.MetricFamilySamples> samples = accumulator.toList();
+        assertEquals(1, samples.size());
+        assertEquals(CORES.size(), samples.get(0).samples.size());
+        for (Collector.MetricFamilySamples.Sample sample : samples.get(0).samples) {
+            assertEquals(0.0, sample.value);
+        }
+        assertEquals(CORES.size(), health.size());
+        assertFalse(health.containsValue(true));
+    }
+
+    private static SolrScraperConfig loadPing(String configFile) throws IOException {
+        try (FileReader reader = new FileReader(configFile)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class).getPing();
+        }
+    }}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers every request with the same response, parsed by the response parser of the request, or
+ * fails to connect if there is none.
+ */
+class SolrFixedResponseClient extends HttpSolrClient {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] response;
+
+    /**
+     * @param baseUrl the base URL of the node.
+     * @param response the response body, or null to refuse connections.
+     */
+    SolrFixedResponseClient(String baseUrl, byte[] response) {
+        super(new HttpSolrClient.Builder(baseUrl));
+        this.response = response;
+    }
+
+    /**
+     * @param baseUrl the base URL of the node.
+     * @param response the response body, or null to refuse connections.
+     */
+    SolrFixedResponseClient(String baseUrl, String response) {
+        this(baseUrl, response != null ? response.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    // SolrJ declares the request raw, which an override must keep
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList<Object> request(SolrRequest request, ResponseParser processor, String collection) throws SolrServerException, IOException {
+        if (response == null) {
+            throw new SolrServerException("Server refused connection at: " + getBaseURL(), new ConnectException("Connection refused"));
+        }
+        ResponseParser responseParser = request.getResponseParser() != null ? request.getResponseParser() : processor;
+        return responseParser.processResponse(new ByteArrayInputStream(response), "UTF-8");
+    }
+}
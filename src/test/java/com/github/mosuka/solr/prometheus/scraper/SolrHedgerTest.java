@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for SolrHedger.
+ */
+public class SolrHedgerTest extends TestCase {
+    /**
+     * Answers each request after the delay of its turn, or fails it if the delay is negative.
+     */
+    private static class DelayedSolrClient extends SolrClient {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] delays;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        DelayedSolrClient(long... delays) {
+            this.delays = delays;
+        }
+
+        // SolrJ declares the request raw, which an override must keep
+        @Override
+        @SuppressWarnings("rawtypes")
+        public NamedList<Object> request(SolrRequest request, String collection) throws SolrServerException, IOException {
+            int i = requests.getAndIncrement();
+            if (delays[i] < 0) {
+                throw new IOException("request " + i + " failed");
+            }
+            try {
+                Thread.sleep(delays[i]);
+            } catch (InterruptedException e) {
+                throw new SolrServerException(e);
+            }
+            NamedList<Object> response = new NamedList<>();
+            response.add("request", i);
+            return response;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static QueryRequest request() {
+        return new QueryRequest(new ModifiableSolrParams());
+    }
+
+    @Test
+    public void testFast() throws Exception {
+        try (SolrHedger hedger = new SolrHedger(1000, 1)) {
+            DelayedSolrClient solrClient = new DelayedSolrClient(0, 0);
+            AtomicInteger hedged = new AtomicInteger();
+
+            NamedList<Object> response = hedger.request(solrClient, request(), "collection1", hedged::incrementAndGet);
+
+            assertEquals(0, response.get("request"));
+            assertEquals(0, hedged.get());
+            assertEquals(1, solrClient.requests.get());
+        }
+    }
+
+    @Test
+    public void testHedged() throws Exception {
+        try (SolrHedger hedger = new SolrHedger(50, 1)) {
+            DelayedSolrClient solrClient = new DelayedSolrClient(10000, 0);
+            AtomicInteger hedged = new AtomicInteger();
+
+            long startTime = System.nanoTime();
+            NamedList<Object> response = hedger.request(solrClient, request(), "collection1", hedged::incrementAndGet);
+
+            assertEquals(1, response.get("request"));
+            assertEquals(1, hedged.get());
+            assertTrue(System.nanoTime() - startTime < 5000000000L);
+        }
+    }
+
+    @Test
+    public void testHedgedFailed() throws Exception {
+        try (SolrHedger hedger = new SolrHedger(50, 1)) {
+            // the copy fails, so the slow request is waited for
+            DelayedSolrClient solrClient = new DelayedSolrClient(200, -1);
+
+            NamedList<Object> response = hedger.request(solrClient, request(), "collection1", () -> {});
+
+            assertEquals(0, response.get("request"));
+        }
+    }
+
+    @Test
+    public void testSaturated() throws Exception {
+        // two threads for one scraper thread
+        try (SolrHedger hedger = new SolrHedger(50, 1)) {
+            // a slow request whose copy failed holds one thread
+            List<Thread> callers = new ArrayList<>();
+            callers.add(slowCaller(hedger, 2));
+
+            // the copy of a slow request is skipped, and the request waited for
+            DelayedSolrClient solrClient = new DelayedSolrClient(200, 0);
+            AtomicInteger hedged = new AtomicInteger();
+            NamedList<Object> response = hedger.request(solrClient, request(), "collection1", hedged::incrementAndGet);
+            assertEquals(0, response.get("request"));
+            assertEquals(0, hedged.get());
+            assertEquals(1, solrClient.requests.get());
+
+            // another slow request, whose copy is skipped, holds the other thread, and with no
+            // thread left the request is sent from the calling thread
+            callers.add(slowCaller(hedger, 1));
+            solrClient = new DelayedSolrClient(0);
+            response = hedger.request(solrClient, request(), "collection1", hedged::incrementAndGet);
+            assertEquals(0, response.get("request"));
+            assertEquals(0, hedged.get());
+
+            for (Thread caller : callers) {
+                caller.join();
+            }
+        }
+    }
+
+    /**
+     * Start a request answered after 2 seconds, whose copy fails, and wait until the given number
+     * of requests were sent.
+     */
+    private static Thread slowCaller(SolrHedger hedger, int requests) throws InterruptedException {
+        DelayedSolrClient solrClient = new DelayedSolrClient(2000, -1);
+        Thread caller = new Thread(() -> {
+            try {
+                hedger.request(solrClient, request(), "collection1", () -> {});
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        caller.start();
+        while (solrClient.requests.get() < requests) {
+            Thread.sleep(10);
+        }
+        return caller;
+    }
+
+    @Test
+    public void testFailed() throws Exception {
+        try (SolrHedger hedger = new SolrHedger(50, 1)) {
+            DelayedSolrClient solrClient = new DelayedSolrClient(-1, -1);
+
+            try {
+                hedger.request(solrClient, request(), "collection1", () -> {});
+                fail();
+            } catch (IOException e) {
+                assertEquals("request 0 failed", e.getMessage());
+            }
+            assertEquals(1, solrClient.requests.get());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * Unit test for SolrLabelInterner.
+ */
+public class SolrLabelInternerTest extends TestCase {
+    @Test
+    public void testIntern() throws Exception {
+        SolrLabelInterner interner = new SolrLabelInterner(10);
+
+        String core = interner.intern(new String("collection1_shard1_replica_n1"));
+        assertSame(core, interner.intern(new String("collection1_shard1_replica_n1")));
+
+        List<String> schema = interner.schema(new ArrayList<>(Arrays.asList("category", "handler")));
+        assertSame(schema, interner.schema(Arrays.asList(new String("category"), new String("handler"))));
+        assertSame(schema, interner.schema(Collections.singletonList("category"), Collections.singletonList("handler")));
+        try {
+            schema.add("core");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // canonical schemas are shared
+        }
+    }
+
+    @Test
+    public void testLabelPrefix() throws Exception {
+        SolrLabelInterner interner = new SolrLabelInterner(10);
+        SolrLabelInterner.LabelPrefix labelPrefix = interner.prefix(Arrays.asList("base_url", "core"), Arrays.asList("http://localhost:8983/solr", "techproducts"));
+
+        List<String> names = labelPrefix.names(new ArrayList<>(Arrays.asList("category", "handler")));
+        assertEquals(Arrays.asList("base_url", "core", "category", "handler"), names);
+        assertSame(names, labelPrefix.names(new ArrayList<>(Arrays.asList("category", "handler"))));
+        assertSame(names, interner.prefix(Arrays.asList("base_url", "core"), Arrays.asList("http://localhost:8983/solr", "other"))
+                .names(Arrays.asList("category", "handler")));
+
+        List<String> values = labelPrefix.values(Arrays.asList("QUERY", new String("/select")));
+        assertEquals(Arrays.asList("http://localhost:8983/solr", "techproducts", "QUERY", "/select"), values);
+        assertSame(values.get(3), labelPrefix.values(Arrays.asList("QUERY", new String("/select"))).get(3));
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        SolrLabelInterner interner = new SolrLabelInterner(10);
+
+        String first = interner.intern(new String("core0"));
+        for (int i = 1; i < 10; i++) {
+            interner.intern("core" + i);
+        }
+        assertSame(first, interner.intern(new String("core0")));
+
+        // the interner starts over once it is full
+        interner.intern("core10");
+        assertNotSame(first, interner.intern(new String("core0")));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import com.github.mosuka.solr.prometheus.scraper.json.JsonHash;
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Unit test for SolrResultCache.
+ */
+public class SolrResultCacheTest extends TestCase {
+    private static final String RESPONSE_FILE = "src/test/files/metrics/admin-metrics.json";
+    private static final String BASE_URL = "http://localhost:8983/solr";
+    private static final String[] LABEL_NAMES = new String[] { "section", "target" };
+    private static final String[] LABEL_VALUES = new String[] { SolrScraperMetrics.SECTION_METRICS, BASE_URL };
+
+    @Test
+    public void testHash() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode response = objectMapper.readTree(new File(RESPONSE_FILE));
+
+        assertEquals(JsonHash.hash(response), JsonHash.hash(objectMapper.readTree(new File(RESPONSE_FILE))));
+        assertFalse(JsonHash.hash(objectMapper.readTree("{\"a\":1}")) == JsonHash.hash(objectMapper.readTree("{\"a\":2}")));
+        assertFalse(JsonHash.hash(objectMapper.readTree("{\"a\":1}")) == JsonHash.hash(objectMapper.readTree("{\"b\":1}")));
+        assertFalse(JsonHash.hash(objectMapper.readTree("{\"a\":\"1\"}")) == JsonHash.hash(objectMapper.readTree("{\"a\":1}")));
+        assertFalse(JsonHash.hash(objectMapper.readTree("[[1],2]")) == JsonHash.hash(objectMapper.readTree("[[1,2]]")));
+    }
+
+    @Test
+    public void testNativeRules() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config-native.yml");
+        SolrScraperMetrics metrics = new SolrScraperMetrics();
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(metrics);
+        SolrResultCache resultCache = new SolrResultCache();
+
+        JsonNode response = new ObjectMapper().readTree(new File(RESPONSE_FILE));
+        try (HttpSolrClient solrClient = new HttpSolrClient.Builder(BASE_URL).build()) {
+            SolrSampleAccumulator expected = new SolrSampleAccumulator();
+            new SolrScraper(solrClient, scraperConfig).collectMetrics(solrClient, scraperConfig, response, expected);
+
+            // every registry the rules read is evaluated once, and reused while unchanged
+            SolrSampleAccumulator first = collect(solrClient, scraperConfig, metrics, resultCache, response);
+            double registries = registry.getSampleValue("solr_exporter_result_cache_misses_total", LABEL_NAMES, LABEL_VALUES);
+            assertTrue(registries > 1);
+            SolrSampleAccumulator second = collect(solrClient, scraperConfig, metrics, resultCache, response);
+            assertEquals(registries, registry.getSampleValue("solr_exporter_result_cache_hits_total", LABEL_NAMES, LABEL_VALUES));
+            assertEquals(expected.toList(), first.toList());
+            assertEquals(expected.toList(), second.toList());
+
+            // a changed registry is evaluated again, the others are reused
+            JsonNode changed = response.deepCopy();
+            ((ObjectNode) changed.get("metrics").get("solr.jvm")).put("threads.count", 12345);
+            SolrSampleAccumulator third = collect(solrClient, scraperConfig, metrics, resultCache, changed);
+            assertEquals(registries + 1, registry.getSampleValue("solr_exporter_result_cache_misses_total", LABEL_NAMES, LABEL_VALUES));
+            assertEquals(2 * registries - 1, registry.getSampleValue("solr_exporter_result_cache_hits_total", LABEL_NAMES, LABEL_VALUES));
+            assertTrue(third.toMap().toString().contains("12345.0"));
+            assertFalse(second.toMap().toString().contains("12345.0"));
+        }
+    }
+
+    @Test
+    public void testJsonQueries() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config.yml");
+        SolrScraperMetrics metrics = new SolrScraperMetrics();
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(metrics);
+        SolrResultCache resultCache = new SolrResultCache();
+
+        JsonNode response = new ObjectMapper().readTree(new File(RESPONSE_FILE));
+        try (HttpSolrClient solrClient = new HttpSolrClient.Builder(BASE_URL).build()) {
+            SolrSampleAccumulator first = collect(solrClient, scraperConfig, metrics, resultCache, response);
+            SolrSampleAccumulator second = collect(solrClient, scraperConfig, metrics, resultCache, response);
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_result_cache_misses_total", LABEL_NAMES, LABEL_VALUES));
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_result_cache_hits_total", LABEL_NAMES, LABEL_VALUES));
+            assertFalse(first.toList().isEmpty());
+            assertEquals(first.toList(), second.toList());
+            assertEquals(first.getDuplicates(), second.getDuplicates());
+
+            // the samples of reloaded rules are not reused
+            SolrScraperConfig reloaded = loadMetrics("conf/config.yml");
+            collect(solrClient, reloaded, metrics, resultCache, response);
+            assertEquals(2.0, registry.getSampleValue("solr_exporter_result_cache_misses_total", LABEL_NAMES, LABEL_VALUES));
+
+            // nor those of another target
+            try (HttpSolrClient otherClient = new HttpSolrClient.Builder("http://localhost:7574/solr").build()) {
+                collect(otherClient, reloaded, metrics, resultCache, response);
+                assertEquals(1.0, registry.getSampleValue("solr_exporter_result_cache_misses_total", LABEL_NAMES,
+                        new String[] { SolrScraperMetrics.SECTION_METRICS, "http://localhost:7574/solr" }));
+            }
+
+            // without the cache, the rules are applied every time
+            reloaded.setCache(false);
+            collect(solrClient, reloaded, metrics, resultCache, response);
+            assertEquals(2.0, registry.getSampleValue("solr_exporter_result_cache_misses_total", LABEL_NAMES, LABEL_VALUES));
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_result_cache_hits_total", LABEL_NAMES, LABEL_VALUES));
+        }
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        SolrResultCache resultCache = new SolrResultCache();
+        Object rules = new Object();
+        resultCache.put("a", 1L, rules, Collections.emptyList());
+        assertNotNull(resultCache.get("a", 1L, rules));
+        assertNull(resultCache.get("a", 2L, rules));
+        assertNull(resultCache.get("a", 1L, new Object()));
+
+        resultCache.expire(System.nanoTime(), 60);
+        assertEquals(1, resultCache.size());
+        resultCache.expire(System.nanoTime() + 61000000000L, 60);
+        assertEquals(0, resultCache.size());
+    }
+
+    private static SolrSampleAccumulator collect(HttpSolrClient solrClient, SolrScraperConfig scraperConfig, SolrScraperMetrics metrics,
+                                                 SolrResultCache resultCache, JsonNode response) {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        SolrScraper scraper = new SolrScraper(solrClient, scraperConfig, new ArrayList<>(), new ArrayList<>(), accumulator, SolrScraperMetrics.SECTION_METRICS, metrics);
+        scraper.setResultCache(resultCache);
+        scraper.collectMetrics(solrClient, scraperConfig, response, accumulator);
+        return accumulator;
+    }
+
+    private static SolrScraperConfig loadMetrics(String configFile) throws IOException {
+        try (FileReader reader = new FileReader(configFile)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class).getMetrics();
+        }
+    }
+}
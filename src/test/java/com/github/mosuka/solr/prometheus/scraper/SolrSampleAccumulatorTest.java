@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit test for SolrSampleAccumulator.
+ */
+public class SolrSampleAccumulatorTest extends TestCase {
+    @Test
+    public void testDuplicates() throws Exception {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+
+        assertTrue(accumulator.add("solr_ping", Collector.Type.GAUGE, "See following URL", Arrays.asList("core"), Arrays.asList("a"), 1.0));
+        assertTrue(accumulator.add("solr_ping", Collector.Type.GAUGE, "See following URL", Arrays.asList("core"), Arrays.asList("b"), 1.0));
+        assertTrue(accumulator.add("solr_up", Collector.Type.GAUGE, "See following URL", Arrays.asList("core"), Arrays.asList("a"), 1.0));
+
+        // the first sample of a series is kept
+        assertFalse(accumulator.add("solr_ping", Collector.Type.COUNTER, "other", Arrays.asList("core"), Arrays.asList("a"), 0.0));
+        assertEquals(1, accumulator.getDuplicates());
+
+        List<Collector.MetricFamilySamples> metricFamilySamplesList = accumulator.toList();
+        assertEquals(2, metricFamilySamplesList.size());
+
+        Collector.MetricFamilySamples ping = metricFamilySamplesList.get(0);
+        assertEquals("solr_ping", ping.name);
+        assertEquals(Collector.Type.GAUGE, ping.type);
+        assertEquals(2, ping.samples.size());
+        for (Collector.MetricFamilySamples.Sample sample : ping.samples) {
+            assertEquals(1.0, sample.value);
+        }
+        assertEquals("solr_up", metricFamilySamplesList.get(1).name);
+    }
+
+    @Test
+    public void testAddAllToStore() throws Exception {
+        SolrSampleAccumulator scratch = new SolrSampleAccumulator();
+        scratch.add("solr_ping", Collector.Type.GAUGE, "See following URL", Arrays.asList("core"), Arrays.asList("a"), 1.0);
+        scratch.add("solr_ping", Collector.Type.GAUGE, "See following URL", Arrays.asList("core"), Arrays.asList("a"), 2.0);
+
+        SolrSeriesStore store = new SolrSeriesStore();
+        SolrSampleAccumulator accumulator = store.begin();
+        accumulator.add("solr_up", Collector.Type.GAUGE, "See following URL", Arrays.asList("core"), Arrays.asList("a"), 1.0);
+        accumulator.addAll(scratch);
+        SolrSeriesStore.View view = store.commit(accumulator);
+        try {
+            List<Collector.MetricFamilySamples> metricFamilySamplesList = view.toList();
+            assertEquals(2, metricFamilySamplesList.size());
+            assertEquals("solr_ping", metricFamilySamplesList.get(1).name);
+            assertEquals(1.0, metricFamilySamplesList.get(1).samples.get(0).value);
+            assertEquals(1, accumulator.getDuplicates());
+        } finally {
+            view.release();
+        }
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    // every task adds the same series
+                    for (int i = 0; i < 10000; i++) {
+                        accumulator.add("solr_metric", Collector.Type.GAUGE, "", Arrays.asList("core", "handler"),
+                                Arrays.asList("core" + (i % 100), "/handler" + (i / 100)), i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<String, Collector.MetricFamilySamples> metricFamilySamplesMap = accumulator.toMap();
+        assertEquals(10000, metricFamilySamplesMap.get("solr_metric").samples.size());
+        assertEquals(30000, accumulator.getDuplicates());
+    }
+}
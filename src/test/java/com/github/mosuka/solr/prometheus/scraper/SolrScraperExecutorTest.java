@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit test for SolrScraperExecutor.
+ */
+public class SolrScraperExecutorTest extends TestCase {
+    @Test
+    public void testSubmit() throws Exception {
+        SolrScraperExecutor executor = new SolrScraperExecutor(2, 10, 1000);
+        try {
+            Future<String> future = executor.submit(() -> Thread.currentThread().getName());
+
+            assertTrue(executor.get(future).startsWith("solr-scraper-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTaskTimeout() throws Exception {
+        SolrScraperExecutor executor = new SolrScraperExecutor(1, 10, 100);
+        CollectorRegistry registry = new CollectorRegistry();
+        executor.register(registry);
+        try {
+            Future<Object> future = executor.submit(() -> {
+                Thread.sleep(10000);
+                return null;
+            });
+
+            try {
+                executor.get(future);
+                fail();
+            } catch (TimeoutException e) {
+                assertTrue(future.isCancelled());
+            }
+
+            assertEquals(1.0, registry.getSampleValue("solr_exporter_executor_timed_out_tasks_total"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        SolrScraperExecutor executor = new SolrScraperExecutor(3, 10, 500);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            List<Long> deadlines = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(executor.submit(() -> {
+                    Thread.sleep(10000);
+                    return null;
+                }));
+                deadlines.add(executor.deadline());
+            }
+
+            // waiting for the tasks one after the other takes as long as the last deadline
+            long startTime = System.nanoTime();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    executor.get(futures.get(i), deadlines.get(i));
+                    fail();
+                } catch (TimeoutException e) {
+                    assertTrue(futures.get(i).isCancelled());
+                }
+            }
+            assertTrue(System.nanoTime() - startTime < TimeUnit.MILLISECONDS.toNanos(1000));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeadlinePassedDone() throws Exception {
+        SolrScraperExecutor executor = new SolrScraperExecutor(1, 10, 100);
+        try {
+            Future<String> future = executor.submit(() -> "done");
+            long deadline = executor.deadline();
+            Thread.sleep(200);
+
+            assertEquals("done", executor.get(future, deadline));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        SolrScraperExecutor executor = new SolrScraperExecutor(1, 1, 1000);
+        CollectorRegistry registry = new CollectorRegistry();
+        executor.register(registry);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.submit(() -> {
+                latch.await();
+                return null;
+            });
+            executor.submit(() -> null);
+
+            try {
+                executor.submit(() -> null);
+                fail();
+            } catch (RejectedExecutionException e) {
+                assertEquals(1.0, registry.getSampleValue("solr_exporter_executor_rejected_tasks_total"));
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit test for SolrScraperMetrics.
+ */
+public class SolrScraperMetricsTest extends TestCase {
+    private static final String BASE_URL = "http://127.0.0.1:8983/solr";
+    private static final String RESPONSE_FILE = "src/test/files/metrics/admin-metrics.json";
+
+    @Test
+    public void testCause() throws Exception {
+        assertEquals(SolrScraperMetrics.CAUSE_TIMEOUT, SolrScraperMetrics.cause(new SolrServerException("Timeout occured while waiting response from server", new SocketTimeoutException("Read timed out"))));
+        assertEquals(SolrScraperMetrics.CAUSE_CONNECT, SolrScraperMetrics.cause(new SolrServerException("Server refused connection", new ConnectException("Connection refused"))));
+        assertEquals(SolrScraperMetrics.CAUSE_HTTP, SolrScraperMetrics.cause(new HttpSolrClient.RemoteSolrException(BASE_URL, 500, "Server Error", null)));
+        assertEquals(SolrScraperMetrics.CAUSE_SOLR, SolrScraperMetrics.cause(new SolrServerException("No live SolrServers available")));
+        assertEquals(SolrScraperMetrics.CAUSE_IO, SolrScraperMetrics.cause(new IOException("Broken pipe")));
+        assertEquals(SolrScraperMetrics.CAUSE_PARSE, SolrScraperMetrics.cause(new SolrException(SolrException.ErrorCode.SERVER_ERROR, "parsing error", new JsonParseException(null, "Unexpected end-of-input"))));
+        assertEquals(SolrScraperMetrics.CAUSE_DEADLINE, SolrScraperMetrics.cause(new TimeoutException()));
+        assertEquals(SolrScraperMetrics.CAUSE_OTHER, SolrScraperMetrics.cause(new NullPointerException()));
+    }
+
+    @Test
+    public void testScrape() throws Exception {
+        byte[] response = Files.readAllBytes(Paths.get(RESPONSE_FILE));
+        SolrScraperMetrics metrics = new SolrScraperMetrics();
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(metrics);
+
+        SolrSampleAccumulator accumulator = new SolrSampleAccumulator();
+        try (HttpSolrClient solrClient = new SolrFixedResponseClient(BASE_URL, response)) {
+            new SolrScraper(solrClient, loadMetrics("conf/config-native.yml"), new ArrayList<>(), new ArrayList<>(), accumulator, SolrScraperMetrics.SECTION_METRICS, metrics).call();
+        }
+
+        String[] labelNames = { "section", "target" };
+        String[] labelValues = { SolrScraperMetrics.SECTION_METRICS, BASE_URL };
+        double requests = registry.getSampleValue("solr_exporter_request_duration_seconds_count", labelNames, labelValues);
+        assertTrue(requests >= 1);
+        assertEquals(requests, registry.getSampleValue("solr_exporter_parse_duration_seconds_count", labelNames, labelValues));
+        assertTrue(registry.getSampleValue("solr_exporter_response_bytes_total", labelNames, labelValues) > 0);
+        assertEquals(1.0, registry.getSampleValue("solr_exporter_rule_evaluation_duration_seconds_count", labelNames, labelValues));
+
+        int samples = 0;
+        for (Collector.MetricFamilySamples metricFamilySamples : accumulator.toList()) {
+            samples += metricFamilySamples.samples.size();
+        }
+        assertEquals((double) samples + accumulator.getDuplicates(), registry.getSampleValue("solr_exporter_samples_total", labelNames, labelValues));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        SolrScraperMetrics metrics = new SolrScraperMetrics();
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(metrics);
+
+        try (HttpSolrClient solrClient = new SolrFixedResponseClient(BASE_URL, "{\"metrics\":".getBytes("UTF-8"))) {
+            new SolrScraper(solrClient, loadMetrics("conf/config-native.yml"), new ArrayList<>(), new ArrayList<>(), new SolrSampleAccumulator(), SolrScraperMetrics.SECTION_METRICS, metrics).call();
+        }
+
+        assertEquals(1.0, registry.getSampleValue("solr_exporter_errors_total",
+                new String[] { "section", "target", "cause" }, new String[] { SolrScraperMetrics.SECTION_METRICS, BASE_URL, SolrScraperMetrics.CAUSE_PARSE }));
+    }
+
+    private static SolrScraperConfig loadMetrics(String configFile) throws IOException {
+        try (FileReader reader = new FileReader(configFile)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class).getMetrics();
+        }
+    }}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper;
+
+import io.prometheus.client.Collector;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * Unit test for SolrSeriesStore.
+ */
+public class SolrSeriesStoreTest extends TestCase {
+    private static final List<String> LABEL_NAMES = Collections.singletonList("core");
+
+    @Test
+    public void testStableIds() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+
+        Map<String, Integer> ids = new HashMap<>();
+        for (int generation = 1; generation <= 3; generation++) {
+            SolrSampleAccumulator accumulator = store.begin();
+            for (int i = 0; i < 1000; i++) {
+                accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core" + i), generation * i);
+            }
+            SolrSeriesStore.View view = store.commit(accumulator);
+            try {
+                SolrSeriesStore.Family family = view.families()[0];
+                assertEquals(1000, family.size());
+                for (int i = 0; i < family.size(); i++) {
+                    SolrSeriesStore.Series series = family.get(i);
+                    assertTrue(view.contains(series));
+                    assertEquals((double) generation * i, view.value(series));
+                    // the series added by the previous collections keep their ID
+                    Integer id = ids.putIfAbsent(series.getLabelValues().get(0), series.getId());
+                    assertTrue(id == null || id == series.getId());
+                }
+            } finally {
+                view.release();
+            }
+        }
+        assertEquals(1000, store.size());
+    }
+
+    @Test
+    public void testAppearAndDisappear() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+
+        SolrSampleAccumulator accumulator = store.begin();
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core1"), 1.0);
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core2"), 2.0);
+        store.commit(accumulator).release();
+
+        // core1 is gone and core3 appears
+        accumulator = store.begin();
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core2"), 2.0);
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core3"), 3.0);
+        SolrSeriesStore.View view = store.commit(accumulator);
+        assertEquals(Arrays.asList("core2", "core3"), labelValues(view.toList()));
+        view.release();
+        Set<Integer> forgotten = new HashSet<>(Arrays.asList(id(store, "core1"), id(store, "core3")));
+
+        // a series missing for long enough is forgotten and its ID reused
+        for (int i = 0; i < SolrSeriesStore.MAX_ABSENT_GENERATIONS; i++) {
+            accumulator = store.begin();
+            accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core2"), 2.0);
+            store.commit(accumulator).release();
+        }
+        assertEquals(1, store.size());
+
+        accumulator = store.begin();
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core4"), 4.0);
+        view = store.commit(accumulator);
+        assertEquals(Collections.singletonList("core4"), labelValues(view.toList()));
+        assertTrue(forgotten.contains(id(store, "core4")));
+        view.release();
+    }
+
+    @Test
+    public void testReadersKeepTheirView() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+
+        SolrSampleAccumulator accumulator = store.begin();
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core1"), 1.0);
+        SolrSeriesStore.View first = store.commit(accumulator);
+        List<Collector.MetricFamilySamples> expected = first.toList();
+
+        // the next collections write elsewhere while the first view is held
+        for (int i = 2; i <= 4; i++) {
+            accumulator = store.begin();
+            accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core1"), i);
+            store.commit(accumulator).release();
+        }
+        assertEquals(expected, first.toList());
+        assertTrue(first.retain());
+        first.release();
+        first.release();
+
+        // once released, its values may be overwritten and it can no longer be retained
+        for (int i = 5; i <= 7; i++) {
+            accumulator = store.begin();
+            accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core1"), i);
+            store.commit(accumulator).release();
+        }
+        assertFalse(first.retain());
+
+        SolrSeriesStore.View latest = store.acquire();
+        assertEquals(7.0, latest.toList().get(0).samples.get(0).value);
+        latest.release();
+    }
+
+    @Test
+    public void testLateSamples() throws Exception {
+        SolrSeriesStore store = new SolrSeriesStore();
+
+        SolrSampleAccumulator accumulator = store.begin();
+        assertTrue(accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core1"), 1.0));
+        assertFalse(accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core1"), 2.0));
+        assertEquals(1, accumulator.getDuplicates());
+        SolrSeriesStore.View view = store.commit(accumulator);
+
+        // a scraper that missed the deadline cannot change a published collection
+        assertFalse(accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core2"), 2.0));
+        assertEquals(Collections.singletonList("core1"), labelValues(view.toList()));
+        view.release();
+
+        // nor can a collection that was rolled back
+        accumulator = store.begin();
+        accumulator.add("solr_test", Collector.Type.GAUGE, "test", LABEL_NAMES, Collections.singletonList("core3"), 3.0);
+        store.rollback(accumulator);
+        view = store.acquire();
+        assertEquals(Collections.singletonList("core1"), labelValues(view.toList()));
+        view.release();
+    }
+
+    private static int id(SolrSeriesStore store, String core) {
+        return store.series("solr_test", Collector.Type.GAUGE, "test", "solr_test", LABEL_NAMES, Collections.singletonList(core)).getId();
+    }
+
+    private static List<String> labelValues(List<Collector.MetricFamilySamples> metricFamilySamplesList) {
+        List<String> labelValues = new ArrayList<>();
+        for (Collector.MetricFamilySamples metricFamilySamples : metricFamilySamplesList) {
+            for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+                labelValues.add(sample.labelValues.get(0));
+            }
+        }
+        return labelValues;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.SolrScraper;
+import io.prometheus.client.Collector;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.*;
+
+/**
+ * Unit test for SolrRequestPlan.
+ */
+public class SolrRequestPlanTest extends TestCase {
+    private static final String RESPONSE_FILE = "src/test/files/metrics/admin-metrics.json";
+
+    @Test
+    public void testJsonQueries() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config.yml");
+        List<ModifiableSolrParams> requests = scraperConfig.getRequestPlan().getRequests();
+
+        assertEquals(2, requests.size());
+        assertEquals(Arrays.asList("core", "node"), Arrays.asList(requests.get(0).getParams("group")));
+        assertNull(requests.get(0).getParams("prefix"));
+        assertEquals(Arrays.asList("jetty", "jvm"), Arrays.asList(requests.get(1).getParams("group")));
+        assertNotNull(requests.get(1).getParams("prefix"));
+        for (ModifiableSolrParams request : requests) {
+            assertEquals("all", request.get("type"));
+            assertNull(request.getParams("property"));
+        }
+
+        assertNarrowedResponseEquivalent(scraperConfig);
+    }
+
+    @Test
+    public void testNativeRules() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config-native.yml");
+        List<ModifiableSolrParams> requests = scraperConfig.getRequestPlan().getRequests();
+
+        assertFalse(requests.isEmpty());
+        for (ModifiableSolrParams request : requests) {
+            List<String> properties = Arrays.asList(request.getParams("property"));
+            assertTrue(properties.contains("count"));
+            assertTrue(properties.contains("hits"));
+            assertFalse(properties.contains("p999_ms"));
+        }
+
+        assertNarrowedResponseEquivalent(scraperConfig);
+    }
+
+    @Test
+    public void testNotNarrowed() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config.yml");
+        LinkedHashMap<String, String> group = new LinkedHashMap<>();
+        group.put("group", "core");
+        scraperConfig.getQuery().setParams(Collections.singletonList(group));
+
+        List<ModifiableSolrParams> requests = scraperConfig.getRequestPlan().getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("core", requests.get(0).get("group"));
+        assertTrue(scraperConfig.getRequestPlan().getReport().contains("group is set"));
+
+        // a rule reading from an unknown registry cannot be narrowed
+        scraperConfig = loadMetrics("conf/config.yml");
+        List<String> jsonQueries = new ArrayList<>(scraperConfig.getJsonQueries());
+        jsonQueries.add(".metrics[\"custom\"] | to_entries | .[] | {name: .key, type: \"GAUGE\", help: \"\", label_names: [], label_values: [], value: .value}");
+        scraperConfig.setJsonQueries(jsonQueries);
+
+        requests = scraperConfig.getRequestPlan().getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("all", requests.get(0).get("group"));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        SolrScraperConfig scraperConfig = loadMetrics("conf/config.yml");
+        List<ModifiableSolrParams> requests = SolrRequestPlan.split(scraperConfig.getRequestPlan().getRequests(),
+                Arrays.asList("solr.core.techproducts", "solr.core.collection1."), 2);
+
+        assertEquals(5, requests.size());
+        assertNull(requests.get(0).getParams("group"));
+        assertEquals(Arrays.asList("solr.core.collection1."), Arrays.asList(requests.get(0).getParams("registry")));
+        assertNull(requests.get(1).getParams("group"));
+        assertEquals(Arrays.asList("solr.core.techproducts"), Arrays.asList(requests.get(1).getParams("registry")));
+        assertEquals(Arrays.asList("node"), Arrays.asList(requests.get(2).getParams("group")));
+        assertEquals(Arrays.asList("jetty"), Arrays.asList(requests.get(3).getParams("group")));
+        assertEquals(Arrays.asList("jvm"), Arrays.asList(requests.get(4).getParams("group")));
+        assertNotNull(requests.get(4).getParams("prefix"));
+
+        // every registry is fetched by exactly one request
+        JsonNode metrics = new ObjectMapper().readTree(new File(RESPONSE_FILE)).get("metrics");
+        Map<String, Integer> fetched = new HashMap<>();
+        for (ModifiableSolrParams request : requests) {
+            for (Iterator<String> ite = filter(metrics, request).fieldNames(); ite.hasNext(); ) {
+                fetched.merge(ite.next(), 1, Integer::sum);
+            }
+        }
+        assertEquals(metrics.size(), fetched.size());
+        assertFalse(fetched.values().stream().anyMatch(count -> count > 1));
+
+        // without core registries the core group is fetched whole
+        requests = SolrRequestPlan.split(scraperConfig.getRequestPlan().getRequests(), Collections.emptyList(), 2);
+        assertEquals(Arrays.asList("core"), Arrays.asList(requests.get(0).getParams("group")));
+        assertEquals(4, requests.size());
+
+        // requests that read every group are kept whole
+        ModifiableSolrParams all = new ModifiableSolrParams();
+        all.set("group", "all");
+        assertEquals(Collections.singletonList(all), SolrRequestPlan.split(Collections.singletonList(all), Arrays.asList("solr.core.techproducts"), 2));
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        List<String> registries = Arrays.asList("solr.core.c3", "solr.core.c10", "solr.core.c2", "solr.core.c1");
+
+        assertEquals(Arrays.asList(Arrays.asList("solr.core.c1", "solr.core.c10"), Arrays.asList("solr.core.c2", "solr.core.c3")),
+                SolrRequestPlan.slice(registries, 2));
+        // c10 starts with c1, so they are never fetched apart
+        assertEquals(Arrays.asList(Arrays.asList("solr.core.c1", "solr.core.c10"), Arrays.asList("solr.core.c2"), Arrays.asList("solr.core.c3")),
+                SolrRequestPlan.slice(registries, 4));
+        assertEquals(1, SolrRequestPlan.slice(registries, 1).size());
+        assertTrue(SolrRequestPlan.slice(Collections.emptyList(), 2).isEmpty());
+    }
+
+    private static SolrScraperConfig loadMetrics(String configFile) throws Exception {
+        try (FileReader reader = new FileReader(configFile)) {
+            return new Yaml().loadAs(reader, SolrCollectorConfig.class).getMetrics();
+        }
+    }
+
+    /**
+     * Check that the rules produce the same samples from the merged narrowed responses as from the
+     * full response, filtering the full response the way /admin/metrics does.
+     */
+    private static void assertNarrowedResponseEquivalent(SolrScraperConfig scraperConfig) throws Exception {
+        JsonNode response = new ObjectMapper().readTree(new File(RESPONSE_FILE));
+
+        ObjectNode merged = JsonNodeFactory.instance.objectNode();
+        for (ModifiableSolrParams request : scraperConfig.getRequestPlan().getRequests()) {
+            ObjectNode narrowed = filter(response.get("metrics"), request);
+            for (Iterator<Map.Entry<String, JsonNode>> ite = narrowed.fields(); ite.hasNext(); ) {
+                Map.Entry<String, JsonNode> registry = ite.next();
+                if (merged.has(registry.getKey())) {
+                    ((ObjectNode) merged.get(registry.getKey())).setAll((ObjectNode) registry.getValue());
+                } else {
+                    merged.set(registry.getKey(), registry.getValue());
+                }
+            }
+        }
+        ObjectNode narrowedResponse = JsonNodeFactory.instance.objectNode();
+        narrowedResponse.set("metrics", merged);
+        assertTrue(narrowedResponse.toString().length() < response.toString().length());
+
+        try (SolrClient solrClient = new HttpSolrClient.Builder("http://localhost:8983/solr").build()) {
+            SolrScraper scraper = new SolrScraper(solrClient, scraperConfig);
+            List<String> expected = describe(scraper.collectMetrics(solrClient, scraperConfig, response));
+            List<String> actual = describe(scraper.collectMetrics(solrClient, scraperConfig, narrowedResponse));
+
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static List<String> describe(Map<String, Collector.MetricFamilySamples> metricFamilySamplesMap) {
+        List<String> samples = new ArrayList<>();
+        for (Collector.MetricFamilySamples metricFamilySamples : metricFamilySamplesMap.values()) {
+            for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+                samples.add(sample.name + sample.labelNames + sample.labelValues + " " + sample.value);
+            }
+        }
+        Collections.sort(samples);
+        return samples;
+    }
+
+    private static ObjectNode filter(JsonNode metrics, ModifiableSolrParams request) {
+        List<String> groups = request.getParams("group") != null ? Arrays.asList(request.getParams("group")) : Collections.emptyList();
+        String[] registryPrefixes = request.getParams("registry");
+        String[] prefixes = request.getParams("prefix");
+        String[] properties = request.getParams("property");
+
+        ObjectNode filtered = JsonNodeFactory.instance.objectNode();
+        for (Iterator<Map.Entry<String, JsonNode>> registries = metrics.fields(); registries.hasNext(); ) {
+            Map.Entry<String, JsonNode> registry = registries.next();
+            String[] parts = registry.getKey().split("\\.");
+            if (!groups.contains(parts[1]) && (registryPrefixes == null || Arrays.stream(registryPrefixes).noneMatch(registry.getKey()::startsWith))) {
+                continue;
+            }
+            ObjectNode filteredRegistry = JsonNodeFactory.instance.objectNode();
+            for (Iterator<Map.Entry<String, JsonNode>> entries = registry.getValue().fields(); entries.hasNext(); ) {
+                Map.Entry<String, JsonNode> entry = entries.next();
+                if (prefixes != null && Arrays.stream(prefixes).noneMatch(entry.getKey()::startsWith)) {
+                    continue;
+                }
+                JsonNode value = entry.getValue();
+                if (properties != null && value.isObject()) {
+                    ObjectNode filteredValue = JsonNodeFactory.instance.objectNode();
+                    for (String property : properties) {
+                        if (value.has(property)) {
+                            filteredValue.set(property, value.get(property));
+                        }
+                    }
+                    value = filteredValue;
+                }
+                filteredRegistry.set(entry.getKey(), value);
+            }
+            filtered.set(registry.getKey(), filteredRegistry);
+        }
+        return filtered;
+    }
+}
@@ -17,12 +17,14 @@
 package com.github.mosuka.solr.prometheus.scraper.config;
 
 import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
 import org.apache.solr.SolrTestCaseJ4;
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -62,6 +64,30 @@ public class SolrScraperConfigTest extends SolrTestCaseJ4 {
         assertNotNull(scraperConfig.getJsonQueries());
     }
 
+    @Test
+    public void testGetCompiledJsonQueries() throws Exception {
+        String configFile = "conf/config.yml";
+
+        SolrCollectorConfig collectorConfig = new Yaml().loadAs(new FileReader(configFile), SolrCollectorConfig.class);
+
+        SolrScraperConfig scraperConfig = collectorConfig.getMetrics();
+
+        assertEquals(scraperConfig.getJsonQueries().size(), scraperConfig.getCompiledJsonQueries().size());
+        assertSame(scraperConfig.getCompiledJsonQueries(), scraperConfig.clone().getCompiledJsonQueries());
+    }
+
+    @Test
+    public void testSetInvalidJsonQueries() throws Exception {
+        SolrScraperConfig scraperConfig = new SolrScraperConfig();
+
+        try {
+            scraperConfig.setJsonQueries(Arrays.asList(".metrics | to_entries | ]"));
+            fail();
+        } catch (JsonQueryException e) {
+            assertTrue(scraperConfig.getCompiledJsonQueries().isEmpty());
+        }
+    }
+
     @Test
     public void testGetQueryConfig() throws Exception {
         String configFile = "conf/config.yml";
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import junit.framework.TestCase;
+import net.thisptr.jackson.jq.JsonQuery;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.FileReader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit test for JsonQueryAnalyzer.
+ */
+public class JsonQueryAnalyzerTest extends TestCase {
+    private static final String METRICS_RESPONSE = "{" +
+            "\"responseHeader\":{\"status\":0,\"QTime\":1}," +
+            "\"metrics\":{" +
+            "\"solr.jvm\":{" +
+            "\"gc.G1-Young-Generation.count\":12," +
+            "\"gc.G1-Young-Generation.time\":345," +
+            "\"memory.heap.used\":1024," +
+            "\"memory.heap.usage\":0.5," +
+            "\"os.processCpuLoad\":0.1," +
+            "\"os.name\":\"Linux\"," +
+            "\"system.properties\":{\"java.version\":\"1.8.0\",\"user.dir\":\"/opt/solr\"}}," +
+            "\"solr.jetty\":{" +
+            "\"org.eclipse.jetty.server.handler.DefaultHandler.2xx-responses\":{\"count\":10,\"meanRate\":0.1}}," +
+            "\"solr.node\":{" +
+            "\"ADMIN./admin/cores.clientErrors\":{\"count\":1}," +
+            "\"CONTAINER.cores.loaded\":1}," +
+            "\"solr.core.collection1.shard1.replica_n1\":{" +
+            "\"QUERY./select.clientErrors\":{\"count\":2}," +
+            "\"QUERY./select.requestTimes\":{\"count\":5,\"p99_ms\":1.5}," +
+            "\"INDEX.sizeInBytes\":12345," +
+            "\"SEARCHER.searcher.indexDir\":\"/var/solr/data\"}}}";
+
+    @Test
+    public void testAnalyzeRegistry() throws Exception {
+        JsonQueryAnalyzer.MetricsSelection selection = JsonQueryAnalyzer.analyze(
+                ".metrics[\"solr.jvm\"] | to_entries | .[] | select(.key == \"os.processCpuLoad\" or .key == \"os.systemCpuLoad\") as $object | $object.value");
+
+        assertNotNull(selection);
+        assertEquals("\"solr.jvm\"", selection.getRegistry().toString());
+        assertEquals("[\"os.processCpuLoad\", \"os.systemCpuLoad\"]", selection.getKeys().toString());
+    }
+
+    @Test
+    public void testAnalyzeRegistryPrefix() throws Exception {
+        JsonQueryAnalyzer.MetricsSelection selection = JsonQueryAnalyzer.analyze(
+                ".metrics | to_entries | .[] | select(.key | startswith(\"solr.core.\")) as $parent | " +
+                        "$parent.key | split(\".\") as $items | " +
+                        "$parent.value | to_entries | .[] | select(.key | (endswith(\".clientErrors\") or contains(\".threadPool.\"))) as $object | $object.value.count");
+
+        assertNotNull(selection);
+        assertEquals("\"solr.core.*\"", selection.getRegistry().toString());
+        assertEquals("[\"*.clientErrors\", \"*.threadPool.*\"]", selection.getKeys().toString());
+    }
+
+    @Test
+    public void testAnalyzeNegatedKeys() throws Exception {
+        JsonQueryAnalyzer.MetricsSelection selection = JsonQueryAnalyzer.analyze(
+                ".metrics[\"solr.jvm\"] | to_entries | .[] | select(.key | endswith(\".usage\") | not) as $object | $object.value");
+
+        assertNotNull(selection);
+        assertTrue(selection.getKeys().isEmpty());
+    }
+
+    @Test
+    public void testAnalyzeUnknownRule() throws Exception {
+        assertNull(JsonQueryAnalyzer.analyze(".response.docs[] | {name: \"x\", value: .score}"));
+        assertTrue(JsonQueryAnalyzer.project(Arrays.asList(
+                ".metrics[\"solr.jvm\"] | to_entries | .[] | select(.key == \"os.name\")",
+                ".response.numFound")).isAll());
+        assertTrue(JsonQueryAnalyzer.project(Collections.emptyList()).isAll());
+    }
+
+    @Test
+    public void testProject() throws Exception {
+        JsonProjection projection = JsonQueryAnalyzer.project(Arrays.asList(
+                ".metrics[\"solr.jvm\"] | to_entries | .[] | select(.key | startswith(\"gc.\")) as $object | $object.value",
+                ".metrics[\"solr.jvm\"] | to_entries | .[] | select(.key == \"os.processCpuLoad\") as $object | $object.value"));
+
+        NamedList<Object> response = new JsonResponseParser(projection).processResponse(new StringReader(METRICS_RESPONSE));
+        JsonNode jsonNode = (JsonNode) response.get("response");
+
+        assertEquals(1, jsonNode.size());
+        assertEquals(1, jsonNode.get("metrics").size());
+        assertEquals(3, jsonNode.get("metrics").get("solr.jvm").size());
+        assertEquals(12, jsonNode.get("metrics").get("solr.jvm").get("gc.G1-Young-Generation.count").intValue());
+        assertNull(jsonNode.get("metrics").get("solr.jvm").get("system.properties"));
+    }
+
+    @Test
+    public void testProjectedResults() throws Exception {
+        SolrCollectorConfig collectorConfig = new Yaml().loadAs(new FileReader("conf/config.yml"), SolrCollectorConfig.class);
+        SolrScraperConfig scraperConfig = collectorConfig.getMetrics();
+
+        assertFalse(scraperConfig.getProjection().isAll());
+
+        JsonNode full = new ObjectMapper().readTree(METRICS_RESPONSE);
+        JsonNode projected = (JsonNode) new JsonResponseParser(scraperConfig.getProjection())
+                .processResponse(new StringReader(METRICS_RESPONSE)).get("response");
+
+        assertNull(projected.get("metrics").get("solr.jvm").get("system.properties"));
+        assertNull(projected.get("metrics").get("solr.core.collection1.shard1.replica_n1").get("SEARCHER.searcher.indexDir"));
+
+        for (JsonQuery jsonQuery : scraperConfig.getCompiledJsonQueries()) {
+            List<JsonNode> expected = jsonQuery.apply(full);
+            List<JsonNode> actual = jsonQuery.apply(projected);
+            assertEquals(jsonQuery.toString(), expected, actual);
+        }
+    }
+}
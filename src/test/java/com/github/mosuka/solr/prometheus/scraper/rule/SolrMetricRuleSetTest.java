@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.mosuka.solr.prometheus.scraper.rule;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mosuka.solr.prometheus.collector.config.SolrCollectorConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrMetricRuleConfig;
+import com.github.mosuka.solr.prometheus.scraper.config.SolrScraperConfig;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.*;
+
+/**
+ * Unit test for SolrMetricRuleSet.
+ */
+public class SolrMetricRuleSetTest extends TestCase {
+    private static final String RESPONSE_FILE = "src/test/files/metrics/admin-metrics.json";
+
+    @Test
+    public void testNativeRulesMatchJsonQueries() throws Exception {
+        SolrScraperConfig expected = new Yaml().loadAs(new FileReader("conf/config.yml"), SolrCollectorConfig.class).getMetrics();
+        SolrScraperConfig actual = new Yaml().loadAs(new FileReader("conf/config-native.yml"), SolrCollectorConfig.class).getMetrics();
+        JsonNode response = new ObjectMapper().readTree(new File(RESPONSE_FILE));
+
+        assertTrue(actual.getJsonQueries().isEmpty());
+        assertFalse(actual.getRuleSet().isEmpty());
+
+        try (SolrClient solrClient = new HttpSolrClient.Builder("http://localhost:8983/solr").build()) {
+            SolrMetricRuleValidator.Result result = SolrMetricRuleValidator.compare(solrClient, expected, actual, response);
+
+            assertEquals(Collections.emptyList(), result.getMissing());
+            assertEquals(Collections.emptyList(), result.getUnexpected());
+            assertTrue(result.getExpectedSamples() > 0);
+        }
+
+        // every rule is covered by the response
+        Set<String> names = new HashSet<>();
+        actual.getRuleSet().apply(response, (rule, labelNames, labelValues, value) -> names.add(rule.getName()));
+        for (SolrMetricRule rule : actual.getRuleSet().getRules()) {
+            assertTrue(rule.getName(), names.contains(rule.getName()));
+        }
+    }
+
+    @Test
+    public void testLabelTemplates() throws Exception {
+        SolrMetricRuleConfig ruleConfig = new SolrMetricRuleConfig();
+        ruleConfig.setName("test_requests_total");
+        ruleConfig.setType("counter");
+        ruleConfig.setRegistry("solr\\.core\\.(?:(?<collection>[^.]+)\\.(?<shard>[^.]+)\\.(?<replica>[^.]+)|(?<core>[^.]+))");
+        ruleConfig.setKey("(?<category>[^.]*)\\.(?<handler>/[^.]*)\\.requestTimes");
+        ruleConfig.setValue("count");
+        LinkedHashMap<String, String> labels = new LinkedHashMap<>();
+        labels.put("handler", "${handler}");
+        labels.put("core", "${collection}_${shard}_${replica}|${core}");
+        labels.put("collection", "${collection}");
+        labels.put("type", "core");
+        ruleConfig.setLabels(labels);
+
+        SolrMetricRuleSet ruleSet = SolrMetricRuleSet.compile(Collections.singletonList(ruleConfig));
+
+        JsonNode response = new ObjectMapper().readTree("{\"metrics\":{" +
+                "\"solr.core.c1.shard1.replica_n1\":{\"QUERY./select.requestTimes\":{\"count\":3},\"QUERY./select.requests\":3}," +
+                "\"solr.core.techproducts\":{\"QUERY./select.requestTimes\":{\"count\":5},\"QUERY./get.requestTimes\":7}}}");
+
+        List<String> samples = new ArrayList<>();
+        ruleSet.apply(response, (rule, labelNames, labelValues, value) -> samples.add(labelNames + "=" + labelValues + " " + value));
+
+        assertEquals(Arrays.asList(
+                "[handler, core, collection, type]=[/select, c1_shard1_replica_n1, c1, core] 3.0",
+                "[handler, core, type]=[/select, techproducts, core] 5.0"), samples);
+    }
+
+    @Test
+    public void testInvalidRules() throws Exception {
+        SolrMetricRuleConfig ruleConfig = new SolrMetricRuleConfig();
+        ruleConfig.setName("test");
+        ruleConfig.setRegistry("solr\\.jvm");
+        ruleConfig.setKey("gc\\.(?<item>[^.]*)\\.count");
+        ruleConfig.setLabels(new LinkedHashMap<>(Collections.singletonMap("item", "${name}")));
+
+        try {
+            SolrMetricRuleSet.compile(Collections.singletonList(ruleConfig));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        ruleConfig.setLabels(new LinkedHashMap<>());
+        ruleConfig.setType("meter");
+        try {
+            SolrMetricRuleSet.compile(Collections.singletonList(ruleConfig));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLiteralPrefix() throws Exception {
+        assertEquals("UPDATE.updateHandler.", SolrMetricRule.literalPrefix("UPDATE\\.updateHandler\\.(?<key>.*)"));
+        assertEquals("gc.", SolrMetricRule.literalPrefix("gc\\.(?<item>[^.]*)\\.count"));
+        assertEquals("solr.cor", SolrMetricRule.literalPrefix("solr\\.core?"));
+        assertEquals("", SolrMetricRule.literalPrefix("solr\\.jvm|solr\\.node"));
+        assertEquals("", SolrMetricRule.literalPrefix("(?<category>[^.]*)\\.clientErrors"));
+    }
+}